@@ -44,6 +44,20 @@ public class ErosionSetup
 	
 	public int dryIterations;
 	public float dryBreakHeight;
+	
+	public boolean useDropletMethod = false;
+	
+	public float dropletDensity = 0.5f;
+	public int dropletLifetime = 30;
+	public float dropletInertia = 0.05f;
+	public float dropletCapacity = 4f;
+	public float dropletMinCapacity = 0.00001f;
+	public float dropletErodeSpeed = 0.3f;
+	public float dropletDepositSpeed = 0.3f;
+	public float dropletEvaporateSpeed = 0.02f;
+	public float dropletGravity = 4f;
+	public int dropletRadius = 3;
+	public long dropletSeed = -1;
 
 	public static final String erosionScriptPath = "erosionscripts/";
 	
@@ -53,6 +67,7 @@ public class ErosionSetup
 		WET,
 		WET2,
 		DRY,
+		DROPLET,
 	}
 	private enum ESKeys
 	{
@@ -60,7 +75,19 @@ public class ErosionSetup
 		Iterations,
 		DropletHeight,
 		EvaporateAmount,
-		BreakHeight
+		BreakHeight,
+		useDropletMethod,
+		Density,
+		Lifetime,
+		Inertia,
+		Capacity,
+		MinCapacity,
+		ErodeSpeed,
+		DepositSpeed,
+		EvaporateSpeed,
+		Gravity,
+		Radius,
+		Seed
 	}
 	
 	/**
@@ -127,6 +154,28 @@ public class ErosionSetup
 			kv = dry.getKeyValue(ESKeys.BreakHeight.name());
 			if (kv == null) throw new IOException("No \"" + ESKeys.BreakHeight.name() + "\" key (wet2) found in " + tdfFile.getName());
 			dryBreakHeight = Float.parseFloat(kv.getValue());
+			
+			//DROPLET (optional, older scripts do not have it)
+			kv = main.getKeyValue(ESKeys.useDropletMethod.name());
+			if (kv != null)
+				useDropletMethod = Boolean.parseBoolean(kv.getValue());
+			TDFSection droplet = main.getSection(ESSections.DROPLET.name());
+			if (droplet != null)
+			{
+				dropletDensity = getFloat(droplet, ESKeys.Density, dropletDensity);
+				dropletLifetime = (int)getFloat(droplet, ESKeys.Lifetime, dropletLifetime);
+				dropletInertia = getFloat(droplet, ESKeys.Inertia, dropletInertia);
+				dropletCapacity = getFloat(droplet, ESKeys.Capacity, dropletCapacity);
+				dropletMinCapacity = getFloat(droplet, ESKeys.MinCapacity, dropletMinCapacity);
+				dropletErodeSpeed = getFloat(droplet, ESKeys.ErodeSpeed, dropletErodeSpeed);
+				dropletDepositSpeed = getFloat(droplet, ESKeys.DepositSpeed, dropletDepositSpeed);
+				dropletEvaporateSpeed = getFloat(droplet, ESKeys.EvaporateSpeed, dropletEvaporateSpeed);
+				dropletGravity = getFloat(droplet, ESKeys.Gravity, dropletGravity);
+				dropletRadius = (int)getFloat(droplet, ESKeys.Radius, dropletRadius);
+				kv = droplet.getKeyValue(ESKeys.Seed.name());
+				if (kv != null)
+					dropletSeed = Long.parseLong(kv.getValue());
+			}
 		}
 		catch (NumberFormatException nfe)
 		{
@@ -134,6 +183,12 @@ public class ErosionSetup
 		}
 	}
 	
+	private static float getFloat(TDFSection section, ESKeys key, float defaultValue)
+	{
+		TDFKeyValue kv = section.getKeyValue(key.name());
+		return (kv != null) ? Float.parseFloat(kv.getValue()) : defaultValue;
+	}
+	
 	public void saveToFile(File tdfFile)
 	{
 		//Delete old file
@@ -146,6 +201,9 @@ public class ErosionSetup
 		TDFKeyValue kv = new TDFKeyValue(ESKeys.useAlternativeWetMethod.name(), Boolean.toString(useAlternativeWetMethod));
 		main.addKeyValue(kv);
 		
+		kv = new TDFKeyValue(ESKeys.useDropletMethod.name(), Boolean.toString(useDropletMethod));
+		main.addKeyValue(kv);
+		
 		//WET
 		TDFSection wet = new TDFSection(ESSections.WET.name());
 		doc.addSection(main, wet);
@@ -179,6 +237,22 @@ public class ErosionSetup
 		kv = new TDFKeyValue(ESKeys.BreakHeight.name(), Float.toString(dryBreakHeight));
 		dry.addKeyValue(kv);
 		
+		//DROPLET
+		TDFSection droplet = new TDFSection(ESSections.DROPLET.name());
+		doc.addSection(main, droplet);
+		
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Density.name(), Float.toString(dropletDensity)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Lifetime.name(), Integer.toString(dropletLifetime)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Inertia.name(), Float.toString(dropletInertia)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Capacity.name(), Float.toString(dropletCapacity)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.MinCapacity.name(), Float.toString(dropletMinCapacity)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.ErodeSpeed.name(), Float.toString(dropletErodeSpeed)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.DepositSpeed.name(), Float.toString(dropletDepositSpeed)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.EvaporateSpeed.name(), Float.toString(dropletEvaporateSpeed)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Gravity.name(), Float.toString(dropletGravity)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Radius.name(), Integer.toString(dropletRadius)));
+		droplet.addKeyValue(new TDFKeyValue(ESKeys.Seed.name(), Long.toString(dropletSeed)));
+		
 		//Save...
 		doc.save(tdfFile);
 	}
@@ -0,0 +1,36 @@
+package backend;
+
+/**
+ * Counter based random numbers.<BR>
+ * Every value is a pure function of (seed, a, b, c), so results do not depend<BR>
+ * on the order in which threads ask for them.
+ */
+public final class HashRandom
+{
+	/**
+	 * Returns 64 well mixed bits for the given key (splitmix64 finalizer).
+	 */
+	public static long hash(long seed, int a, int b, int c)
+	{
+		long z = seed * 0x9E3779B97F4A7C15L;
+		z ^= (a * 0xBF58476D1CE4E5B9L) + 0x632BE59BD9B4E019L;
+		z = mix(z);
+		z ^= ((((long)b) << 32) | (c & 0xFFFFFFFFL)) * 0x94D049BB133111EBL;
+		return mix(z);
+	}
+
+	/**
+	 * Returns a float in [0, 1) for the given key.
+	 */
+	public static float nextFloat(long seed, int a, int b, int c)
+	{
+		return (hash(seed, a, b, c) >>> 40) * 0x1.0p-24f;
+	}
+
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,77 @@
+package backend;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Shared fork/join pool for map wide operations.<BR>
+ * Work is split into bands of rows, each band is processed by one task.
+ */
+public class ParallelTasks
+{
+	/**
+	 * Processes rows [start, end) of something.
+	 */
+	public interface RowTask
+	{
+		public void run(int start, int end);
+	}
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	public static ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	public static int getParallelism()
+	{
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Runs task over rows [start, end) in bands of at most grain rows and waits for completion.
+	 */
+	public static void forRows(int start, int end, int grain, RowTask task)
+	{
+		if (end - start <= grain)
+			task.run(start, end);
+		else
+			pool.invoke(new RowAction(start, end, Math.max(grain, 1), task));
+	}
+
+	/**
+	 * Returns a grain that gives every thread a few bands to balance load.
+	 */
+	public static int getGrain(int rows)
+	{
+		return Math.max(rows / (getParallelism() * 4), 16);
+	}
+
+	@SuppressWarnings("serial")
+	private static class RowAction extends RecursiveAction
+	{
+		private final int start, end, grain;
+		private final RowTask task;
+
+		RowAction(int start, int end, int grain, RowTask task)
+		{
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start <= grain)
+				task.run(start, end);
+			else
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new RowAction(start, middle, grain, task), new RowAction(middle, end, grain, task));
+			}
+		}
+	}
+}
@@ -48,7 +48,10 @@ import backend.image.Bitmap;
 import backend.io.ByteInputStream;
 import backend.io.DataInputStream;
 import backend.io.DataOutputStream;
+import backend.map.HeightField;
 import backend.map.Map;
+import backend.map.TextureStorage;
+import backend.map.Texturemap;
 import backend.sm2.SM2File;
 import backend.sm3.SM3Layer;
 
@@ -154,6 +157,9 @@ public class SpringMapEdit
 	
 	//Quicksave/Quickload stuff
 	private QuickSave quicksave;
+	
+	//Undo/Redo
+	public UndoJournal undoJournal;
 		
 	/**
 	 * Create a new map.<BR>
@@ -189,6 +195,14 @@ public class SpringMapEdit
 	private void init()
 	{
 		quicksave = new QuickSave();
+		undoJournal = new UndoJournal(this);
+		if (as != null)
+		{
+			undoJournal.setByteBudget(as.undo_budgetMB * 1024L * 1024L);
+			Texturemap.setMappedAboveBytes((as.texturemap_mapAboveMB < 0) ? Long.MAX_VALUE : as.texturemap_mapAboveMB * 1024L * 1024L);
+			Texturemap.setCompressedAboveBytes((as.texturemap_compressAboveMB < 0) ? Long.MAX_VALUE : as.texturemap_compressAboveMB * 1024L * 1024L,
+					as.texturemap_cacheMB * 1024L * 1024L);
+		}
 		
 		//Slope Colors
 		int slopeCount = 4;
@@ -316,6 +330,7 @@ public class SpringMapEdit
 		if (name.endsWith("_Texture.bmp"))
 			name = name.substring(0, name.length() - 12);
 		
+		undoJournal.clear();
 		map.loadAllMaps(filename, renderer);
 		map.featuremap.loadDataIntoFeaturemap(new File(dir, name + "_Feature.fmf"), renderer.getFeatureManager());
 	}
@@ -327,6 +342,7 @@ public class SpringMapEdit
 		map = null;
 		
 		quicksave.free();
+		undoJournal.clear();
 		
 		//Free Resources
 		System.gc();
@@ -407,14 +423,16 @@ public class SpringMapEdit
 			
 			if (as.quicksave_heightmap)
 			{
-				for (int y = 0; y < map.heightmap.getHeightmapLength(); y++)
-					dataStream.write(map.heightmap.getHeightMap()[y], 0, map.heightmap.getHeightmapWidth());
+				HeightField field = map.heightmap.getHeightField();
+				dataStream.write(field.data, 0, field.data.length);
 				quicksave.hasHeightmap = true;
 			}
 			if (as.quicksave_texturemap)
 			{
-				for (int y = 0; y < map.textureMap.getLength(); y++)
-					dataStream.write(map.textureMap.textureMap[y], 0, map.textureMap.getWidth() * 3);
+				TextureStorage texture = map.textureMap.getMap();
+				byte[] rowBuffer = texture.newRowBuffer();
+				for (int y = 0; y < texture.getLength(); y++)
+					dataStream.write(texture.getRow(y, 0, texture.getWidth(), rowBuffer), 0, texture.getWidth() * 3);
 				quicksave.hasTexturemap = true;
 			}
 			if (as.quicksave_metalmap)
@@ -476,6 +494,7 @@ public class SpringMapEdit
 		
 		if (quicksave.backupStored)
 		{
+			undoJournal.clear();
 			try
 			{
 				long start = System.nanoTime();
@@ -492,16 +511,22 @@ public class SpringMapEdit
 				
 				if (quicksave.hasHeightmap)
 				{
-					float[][] tempMap = new float[map.heightmap.getHeightmapLength()][map.heightmap.getHeightmapWidth()];
-					for (int y = 0; y < map.heightmap.getHeightmapLength(); y++)
-						dataStream.read(tempMap[y], 0, map.heightmap.getHeightmapWidth());
-					map.heightmap.setHeightMap(tempMap);
+					HeightField field = map.heightmap.getHeightField();
+					dataStream.read(field.data, 0, field.data.length);
+					map.heightmap.heightChanged();
 					result[0] = true;
 				}
 				if (quicksave.hasTexturemap)
 				{
-					for (int y = 0; y < map.textureMap.getLength(); y++)
-						dataStream.read(map.textureMap.textureMap[y], 0, map.textureMap.getWidth() * 3);
+					//The backup holds the composited texture
+					map.textureMap.flattenLayers();
+					TextureStorage texture = map.textureMap.getMap();
+					byte[] row = new byte[texture.getWidth() * 3];
+					for (int y = 0; y < texture.getLength(); y++)
+					{
+						dataStream.read(row, 0, row.length);
+						texture.setTexels(y, 0, texture.getWidth(), row, 0);
+					}
 					result[1] = true;
 				}
 				if (quicksave.hasMetalmap)
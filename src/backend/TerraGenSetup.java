@@ -26,17 +26,50 @@ package backend;
  */
 public class TerraGenSetup
 {
+	public enum GeneratorMode
+	{
+		DiamondSquare,
+		Noise
+	}
+	
+	public GeneratorMode mode;
 	public int randomSeed;
+	
+	//Diamond-Square
 	public int skipSteps;
 	public float maxDisplacement;
 	public float displacementRegression;
 	
+	//Noise
+	public int octaves;
+	/**
+	 * Number of base octave features across the longer map side.
+	 */
+	public float baseFrequency;
+	public float lacunarity;
+	public float gain;
+	/**
+	 * 0 = plain fBm, 1 = ridged noise, values in between blend both.
+	 */
+	public float ridged;
+	/**
+	 * How far (in base octave units) coordinates get displaced by the warp noise. 0 disables warping.
+	 */
+	public float warpStrength;
+	
 	public TerraGenSetup()
 	{
+		mode = GeneratorMode.DiamondSquare;
 		randomSeed = -1;
 		skipSteps = 0;
 		maxDisplacement = 5f;
 		displacementRegression = 0.4f;
+		octaves = 6;
+		baseFrequency = 4f;
+		lacunarity = 2f;
+		gain = 0.5f;
+		ridged = 0f;
+		warpStrength = 0f;
 	}
 
 }
@@ -0,0 +1,209 @@
+package backend;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import backend.map.Map;
+
+/**
+ * Tile based undo/redo journal.<BR>
+ * Edit commands call record() before they modify the map. The first time a tile is<BR>
+ * touched during a step its old contents are stored, so a step only costs as much<BR>
+ * as the area it changed. endStep() closes the step, stores the new contents for redo<BR>
+ * and hands the step to a background thread for compression.<BR>
+ * All methods except compression are meant to be called from the worker thread. They are synchronized,<BR>
+ * so the GUI thread can clear() the history before it changes the whole map itself.
+ */
+public class UndoJournal
+{
+	public static final long DEFAULT_BYTE_BUDGET = 64 * 1024 * 1024;
+
+	private SpringMapEdit sme;
+	private ArrayDeque<UndoRedo> undoSteps;
+	private ArrayDeque<UndoRedo> redoSteps;
+	private UndoRedo currentStep;
+	private BitSet recordedTiles;
+	private int tileCountX;
+	private int tileCountY;
+	private long byteBudget;
+	private ExecutorService compressor;
+
+	public UndoJournal(SpringMapEdit sme)
+	{
+		this.sme = sme;
+		this.undoSteps = new ArrayDeque<UndoRedo>();
+		this.redoSteps = new ArrayDeque<UndoRedo>();
+		this.recordedTiles = new BitSet();
+		this.byteBudget = DEFAULT_BYTE_BUDGET;
+		this.compressor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "UndoCompressor");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets the maximum amount of memory all stored steps may use.<BR>
+	 * The most recent step is always kept, even if it alone exceeds the budget.
+	 */
+	public synchronized void setByteBudget(long byteBudget)
+	{
+		this.byteBudget = byteBudget;
+		trimToBudget();
+	}
+
+	/**
+	 * Records the given layers of all tiles overlapping the rectangle (in heightmap units).<BR>
+	 * Opens a new step if none is open.
+	 */
+	public synchronized void record(int layers, int px, int py, int width, int height)
+	{
+		Map map = sme.map;
+		if ((map == null) || (px + width <= 0) || (py + height <= 0))
+			return;
+		checkMapSize(map);
+		if (currentStep == null)
+		{
+			currentStep = new UndoRedo();
+			recordedTiles.clear();
+			redoSteps.clear();
+		}
+		int txStart = Math.max(px, 0) / UndoRedo.TILE_SIZE;
+		int tyStart = Math.max(py, 0) / UndoRedo.TILE_SIZE;
+		int txEnd = Math.min((px + width - 1) / UndoRedo.TILE_SIZE, tileCountX - 1);
+		int tyEnd = Math.min((py + height - 1) / UndoRedo.TILE_SIZE, tileCountY - 1);
+		for (int l = 0; l < UndoRedo.LAYERCOUNT; l++)
+		{
+			int layer = 1 << l;
+			if ((layers & layer) == 0)
+				continue;
+			for (int ty = tyStart; ty <= tyEnd; ty++)
+				for (int tx = txStart; tx <= txEnd; tx++)
+				{
+					int bit = (((l * tileCountY) + ty) * tileCountX) + tx;
+					if (!recordedTiles.get(bit))
+					{
+						recordedTiles.set(bit);
+						currentStep.addTile(map, layer, tx, ty);
+					}
+				}
+		}
+	}
+
+	/**
+	 * Closes the open step, if any.
+	 */
+	public synchronized void endStep()
+	{
+		if (currentStep == null)
+			return;
+		final UndoRedo step = currentStep;
+		currentStep = null;
+		if (step.tiles.isEmpty())
+			return;
+		step.finish(sme.map);
+		undoSteps.push(step);
+		compressor.execute(new Runnable()
+		{
+			public void run()
+			{
+				step.compress();
+			}
+		});
+		trimToBudget();
+	}
+
+	/**
+	 * Reverts the last step.
+	 * @return the reverted step, or null if there was nothing to undo
+	 */
+	public synchronized UndoRedo undo()
+	{
+		endStep();
+		if (sme.map == null)
+			return null;
+		checkMapSize(sme.map);
+		UndoRedo step = undoSteps.poll();
+		if (step == null)
+			return null;
+		step.applyUndo(sme.map);
+		redoSteps.push(step);
+		return step;
+	}
+
+	/**
+	 * Reapplies the last undone step.
+	 * @return the reapplied step, or null if there was nothing to redo
+	 */
+	public synchronized UndoRedo redo()
+	{
+		endStep();
+		if (sme.map == null)
+			return null;
+		checkMapSize(sme.map);
+		UndoRedo step = redoSteps.poll();
+		if (step == null)
+			return null;
+		step.applyRedo(sme.map);
+		undoSteps.push(step);
+		return step;
+	}
+
+	public synchronized void clear()
+	{
+		currentStep = null;
+		recordedTiles.clear();
+		undoSteps.clear();
+		redoSteps.clear();
+	}
+
+	public long getByteSize()
+	{
+		long size = 0;
+		for (UndoRedo step : undoSteps)
+			size += step.getByteSize();
+		for (UndoRedo step : redoSteps)
+			size += step.getByteSize();
+		return size;
+	}
+
+	/**
+	 * Drops redo steps first, then the oldest undo steps, until the journal fits the budget.
+	 */
+	private void trimToBudget()
+	{
+		long size = getByteSize();
+		Iterator<UndoRedo> it = redoSteps.descendingIterator();
+		while ((size > byteBudget) && it.hasNext())
+		{
+			size -= it.next().getByteSize();
+			it.remove();
+		}
+		while ((size > byteBudget) && (undoSteps.size() > 1))
+			size -= undoSteps.pollLast().getByteSize();
+	}
+
+	/**
+	 * Tiles from a map with different size are useless, so drop everything on resize.
+	 */
+	private void checkMapSize(Map map)
+	{
+		int countX = UndoRedo.getTileCountX(map);
+		int countY = UndoRedo.getTileCountY(map);
+		if ((countX != tileCountX) || (countY != tileCountY))
+		{
+			clear();
+			tileCountX = countX;
+			tileCountY = countY;
+		}
+	}
+}
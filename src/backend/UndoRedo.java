@@ -1,32 +1,295 @@
 package backend;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import backend.map.Heightmap;
-import backend.math.Vector2Int;
+import backend.map.HeightField;
+import backend.map.Map;
+import backend.map.Metalmap;
+import backend.map.TextureStorage;
+import backend.map.TexturemapLayer;
 
+/**
+ * One undo step. Holds the before/after contents of every tile the step touched.<BR>
+ * Tiles are TILE_SIZE * TILE_SIZE heightmap units, one layer each.<BR>
+ * Texture tiles also hold the top texture layer if there is one, texture brushes paint into it.<BR>
+ * Data is kept raw until compress() runs on the journal's background thread.
+ */
 public class UndoRedo {
-	//private ArrayList<Integer>[] undoRedoQueue = new ArrayList[0];
-	private Vector2Int mapStart;
-	private int mapType = 0;
-	private float[][] oldMap;
-	private SpringMapEdit sme;
-	
-	public UndoRedo (Vector2Int start, int h, int w, float[][] map, SpringMapEdit sme)
-	{
-		this.sme = sme;
-		mapStart = start;
-		oldMap = new float[h][w];
-		for (int y = 0; y < h; h++)
-			System.arraycopy(map[y], start.x(), oldMap[y], 0, w);
-	}
-	
-	public void applyUndo()
-	{
-		int h = oldMap.length;
-		int w = oldMap[0].length;
-		Heightmap map = sme.map.heightmap;
-		/*for (int y = 0; y < h; h++)
-			System.arraycopy(oldMap., 0, map[y], w, w);*/
+	public static final int TILE_SIZE = 64;
+
+	//Layers
+	public static final int HEIGHT = 1;
+	public static final int TEXTURE = 2;
+	public static final int METAL = 4;
+	public static final int TYPE = 8;
+	public static final int VEGETATION = 16;
+	public static final int ALL = HEIGHT | TEXTURE | METAL | TYPE | VEGETATION;
+	public static final int LAYERCOUNT = 5;
+
+	public static class Tile
+	{
+		public final int layer;
+		public final int tileX;
+		public final int tileY;
+		private byte[] before;
+		private byte[] after;
+		private int rawLength;
+		private boolean compressed;
+
+		private Tile(int layer, int tileX, int tileY, byte[] before)
+		{
+			this.layer = layer;
+			this.tileX = tileX;
+			this.tileY = tileY;
+			this.before = before;
+			this.rawLength = before.length;
+		}
+	}
+
+	public final ArrayList<Tile> tiles = new ArrayList<Tile>();
+	private long byteSize = 0;
+
+	public void addTile(Map map, int layer, int tileX, int tileY)
+	{
+		Tile tile = new Tile(layer, tileX, tileY, readTile(map, layer, tileX, tileY));
+		tiles.add(tile);
+		byteSize += tile.rawLength;
+	}
+
+	/**
+	 * Captures the after state of all tiles, so the step can be redone.
+	 */
+	public synchronized void finish(Map map)
+	{
+		for (Tile tile : tiles)
+		{
+			tile.after = readTile(map, tile.layer, tile.tileX, tile.tileY);
+			byteSize += tile.rawLength;
+		}
+	}
+
+	public synchronized void compress()
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		long size = 0;
+		for (Tile tile : tiles)
+		{
+			if (!tile.compressed)
+			{
+				tile.before = deflate(deflater, tile.before);
+				tile.after = deflate(deflater, tile.after);
+				tile.compressed = true;
+			}
+			size += tile.before.length + tile.after.length;
+		}
+		deflater.end();
+		byteSize = size;
+	}
+
+	public synchronized long getByteSize()
+	{
+		return byteSize;
+	}
+
+	public synchronized void applyUndo(Map map)
+	{
+		for (int i = tiles.size() - 1; i >= 0; i--)
+		{
+			Tile tile = tiles.get(i);
+			writeTile(map, tile.layer, tile.tileX, tile.tileY, tile.compressed ? inflate(tile.before, tile.rawLength) : tile.before);
+		}
+	}
+
+	public synchronized void applyRedo(Map map)
+	{
+		for (Tile tile : tiles)
+			writeTile(map, tile.layer, tile.tileX, tile.tileY, tile.compressed ? inflate(tile.after, tile.rawLength) : tile.after);
+	}
+
+	private static byte[] deflate(Deflater deflater, byte[] data)
+	{
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] out = new byte[data.length + 64];
+		int length = 0;
+		while (!deflater.finished())
+		{
+			if (length == out.length)
+			{
+				byte[] bigger = new byte[out.length * 2];
+				System.arraycopy(out, 0, bigger, 0, length);
+				out = bigger;
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(out, 0, result, 0, length);
+		return result;
+	}
+
+	private static byte[] inflate(byte[] data, int rawLength)
+	{
+		Inflater inflater = new Inflater(true);
+		//nowrap streams need one extra dummy byte
+		byte[] input = new byte[data.length + 1];
+		System.arraycopy(data, 0, input, 0, data.length);
+		inflater.setInput(input);
+		byte[] result = new byte[rawLength];
+		try
+		{
+			int length = 0;
+			while (length < rawLength && !inflater.finished())
+				length += inflater.inflate(result, length, rawLength - length);
+		}
+		catch (DataFormatException e)
+		{
+			e.printStackTrace();
+		}
+		inflater.end();
+		return result;
+	}
+
+	/**
+	 * Returns the number of tiles in x direction for the given map.
+	 */
+	public static int getTileCountX(Map map)
+	{
+		return (map.heightmap.getHeightmapWidth() + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	/**
+	 * Returns the number of tiles in y direction for the given map.
+	 */
+	public static int getTileCountY(Map map)
+	{
+		return (map.heightmap.getHeightmapLength() + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	private static byte[] readTile(Map map, int layer, int tileX, int tileY)
+	{
+		return copyTile(map, layer, tileX, tileY, null, true);
+	}
+
+	private static void writeTile(Map map, int layer, int tileX, int tileY, byte[] data)
+	{
+		copyTile(map, layer, tileX, tileY, data, false);
+	}
+
+	/**
+	 * Copies one tile of a layer out of the map (read) or back into it.<BR>
+	 * Tiles do not overlap, so the last heightmap column/row forms its own thin tile.
+	 */
+	private static byte[] copyTile(Map map, int layer, int tileX, int tileY, byte[] data, boolean read)
+	{
+		int size, x, y, w, h;
+		switch (layer)
+		{
+		case HEIGHT:
+		{
+			HeightField field = map.heightmap.getHeightField();
+			x = tileX * TILE_SIZE;
+			y = tileY * TILE_SIZE;
+			w = Math.min(TILE_SIZE, field.width - x);
+			h = Math.min(TILE_SIZE, field.length - y);
+			if (read)
+				data = new byte[w * h * 4];
+			FloatBuffer buffer = ByteBuffer.wrap(data).asFloatBuffer();
+			for (int i = 0; i < h; i++)
+				if (read)
+					buffer.put(field.data, field.index(x, y + i), w);
+				else
+					buffer.get(field.data, field.index(x, y + i), w);
+			if (!read)
+				map.heightmap.heightChanged(x, y, w, h);
+			return data;
+		}
+		case TEXTURE:
+			size = TILE_SIZE * Map.heightmapSizeTextureFactor;
+			x = tileX * size;
+			y = tileY * size;
+			w = Math.min(size, map.textureMap.getWidth() - x);
+			h = Math.min(size, map.textureMap.getLength() - y);
+			TexturemapLayer top = map.textureMap.getTopLayer();
+			//Layer texels follow the base texels; tiles taken without a layer only restore the base
+			if (!read && (top != null) && (data.length > w * h * 3))
+			{
+				copyRect(top, x, y, w, h, data, w * h * 3, false);
+				top.markDirty(x, y, w, h);
+			}
+			data = copyRect(map.textureMap.getBaseMap(), x, y, w, h, data, read);
+			if (read && (top != null))
+			{
+				data = Arrays.copyOf(data, w * h * 7);
+				copyRect(top, x, y, w, h, data, w * h * 3, true);
+			}
+			if (!read)
+				map.textureMap.baseChanged(x, y, size, size);
+			return data;
+		case METAL:
+		case TYPE:
+			Metalmap metalmap = (layer == METAL) ? map.metalmap : map.typemap;
+			size = TILE_SIZE / Map.heightmapSizeMetalmapDivisor;
+			x = tileX * size;
+			y = tileY * size;
+			return copyRect(metalmap.getMap(), x, y, Math.min(size, metalmap.getMapWidth() - x),
+					Math.min(size, metalmap.getMapLength() - y), data, read);
+		case VEGETATION:
+			//Vegetationmap is stored [x][y], so x and y swap roles here
+			size = TILE_SIZE / Map.heightmapSizeVegetationmapDivisor;
+			x = tileX * size;
+			y = tileY * size;
+			return copyRect(map.vegetationMap, y, x, Math.min(size, map.vegetationMapHeight - y),
+					Math.min(size, map.vegetationMapWidth - x), data, read);
+		}
+		return data;
+	}
+
+	/**
+	 * Copies w * h bytes starting at map[y][x] into data (read) or from data back into map.
+	 */
+	private static byte[] copyRect(byte[][] map, int x, int y, int w, int h, byte[] data, boolean read)
+	{
+		if (read)
+			data = new byte[w * h];
+		for (int i = 0; i < h; i++)
+			if (read)
+				System.arraycopy(map[y + i], x, data, i * w, w);
+			else
+				System.arraycopy(data, i * w, map[y + i], x, w);
+		return data;
+	}
+
+	/**
+	 * Copies w * h RGBA texels starting at texel (x, y) of layer into data from offset (read) or from there back into layer.
+	 */
+	private static void copyRect(TexturemapLayer layer, int x, int y, int w, int h, byte[] data, int offset, boolean read)
+	{
+		for (int i = 0; i < h; i++)
+			if (read)
+				System.arraycopy(layer.texturemapLayer[y + i], x * 4, data, offset + (i * w * 4), w * 4);
+			else
+				System.arraycopy(data, offset + (i * w * 4), layer.texturemapLayer[y + i], x * 4, w * 4);
+	}
+
+	/**
+	 * Copies w * h texels starting at texel (x, y) of texture into data (read) or from data back into texture.
+	 */
+	private static byte[] copyRect(TextureStorage texture, int x, int y, int w, int h, byte[] data, boolean read)
+	{
+		if (read)
+			data = new byte[w * h * 3];
+		for (int i = 0; i < h; i++)
+			if (read)
+				texture.getTexels(y + i, x, w, data, i * w * 3);
+			else
+				texture.setTexels(y + i, x, w, data, i * w * 3);
+		return data;
 	}
 }
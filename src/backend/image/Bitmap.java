@@ -29,6 +29,7 @@ import backend.FastMath;
 import backend.FileHandler;
 import backend.FileHandler.FileFormat;
 import backend.io.LERandomAccessFile;
+import backend.map.TextureStorage;
 
 /**
  * @author Heiko Schmitt
@@ -730,7 +731,7 @@ public class Bitmap
 		}
 	}
 	
-	public void saveDataFromTexturemap(File outFile, byte[][] textureMap, int width, int height)
+	public void saveDataFromTexturemap(File outFile, TextureStorage textureMap, int width, int height)
 	{
 		try
 		{
@@ -768,14 +769,16 @@ public class Bitmap
 				if ((scanlineSize % 4) > 0)
 					scanlineSize = scanlineSize + (4 - (scanlineSize % 4));
 				scanline = new byte[scanlineSize];
+				byte[] rowBuffer = textureMap.newRowBuffer();
 				for (int y = 0; y < height; y++)
 				{
+					byte[] row = textureMap.getRow(height - y - 1, 0, width, rowBuffer);
 					currentByte = 0;
 					for (int x = 0; x < width; x++)
 					{
-						scanline[currentByte + 0] = textureMap[height - y - 1][(x * 3) + 2];
-						scanline[currentByte + 1] = textureMap[height - y - 1][(x * 3) + 1];
-						scanline[currentByte + 2] = textureMap[height - y - 1][(x * 3) + 0];
+						scanline[currentByte + 0] = row[(x * 3) + 2];
+						scanline[currentByte + 1] = row[(x * 3) + 1];
+						scanline[currentByte + 2] = row[(x * 3) + 0];
 						currentByte += 3;
 					}
 					outStream.write(scanline, 0, scanlineSize);
@@ -1169,7 +1172,7 @@ public class Bitmap
 		}
 	}
 	
-	public void loadDataIntoTexturemap(byte[][] textureMap)
+	public void loadDataIntoTexturemap(TextureStorage textureMap)
 	{
 		try
 		{
@@ -1178,6 +1181,7 @@ public class Bitmap
 			int scanlineSize;
 			byte[] scanline;
 			int multiplier;
+			byte[] row = new byte[width * 3];
 			
 			if (bitsPerPixel == 8)
 			{
@@ -1194,11 +1198,12 @@ public class Bitmap
 					currentByte = 0;
 					for (int x = 0; x < width; x++)
 					{
-						textureMap[height - y - 1][(x * 3) + 0] = scanline[currentByte];
-						textureMap[height - y - 1][(x * 3) + 1] = scanline[currentByte];
-						textureMap[height - y - 1][(x * 3) + 2] = scanline[currentByte];
+						row[(x * 3) + 0] = scanline[currentByte];
+						row[(x * 3) + 1] = scanline[currentByte];
+						row[(x * 3) + 2] = scanline[currentByte];
 						currentByte += multiplier;
 					}
+					textureMap.setTexels(height - y - 1, 0, width, row, 0);
 					if ((y % oneTenthsOfHeight) == 0)
 						System.out.print("#");
 				}
@@ -1217,11 +1222,12 @@ public class Bitmap
 					currentByte = 0;
 					for (int x = 0; x < width; x++)
 					{
-						textureMap[height - y - 1][(x * 3) + 0] = scanline[currentByte + 2];
-						textureMap[height - y - 1][(x * 3) + 1] = scanline[currentByte + 1];
-						textureMap[height - y - 1][(x * 3) + 2] = scanline[currentByte + 0];
+						row[(x * 3) + 0] = scanline[currentByte + 2];
+						row[(x * 3) + 1] = scanline[currentByte + 1];
+						row[(x * 3) + 2] = scanline[currentByte + 0];
 						currentByte += multiplier;
 					}
+					textureMap.setTexels(height - y - 1, 0, width, row, 0);
 					if ((y % oneTenthsOfHeight) == 0)
 						System.out.print("#");
 				}
@@ -1237,11 +1243,12 @@ public class Bitmap
 					currentByte = 0;
 					for (int x = 0; x < width; x++)
 					{
-						textureMap[height - y - 1][(x * 3) + 0] = scanline[currentByte + 2];
-						textureMap[height - y - 1][(x * 3) + 1] = scanline[currentByte + 1];
-						textureMap[height - y - 1][(x * 3) + 2] = scanline[currentByte + 0];
+						row[(x * 3) + 0] = scanline[currentByte + 2];
+						row[(x * 3) + 1] = scanline[currentByte + 1];
+						row[(x * 3) + 2] = scanline[currentByte + 0];
 						currentByte += multiplier;
 					}
+					textureMap.setTexels(height - y - 1, 0, width, row, 0);
 					if ((y % oneTenthsOfHeight) == 0)
 						System.out.print("#");
 				}
@@ -0,0 +1,106 @@
+package backend.map;
+
+import java.util.Arrays;
+
+/**
+ * Cells of a rectangle that may still change in an erosion pass that settles down over time.<BR>
+ * A cell is active while it or one of the cells it looks at changed since it was last processed.<BR>
+ * Rows without active cells are skipped as a whole. At the start all cells are active.<BR>
+ * Keeping track costs more than it saves while most cells still change, so after an iteration<BR>
+ * that moved more than 1/8 of the cells, the next one simply visits all cells (isDense()).
+ */
+class ActiveCells
+{
+	private int px, py, width, height;
+	private boolean[] cells = new boolean[0];
+	private boolean[] rows = new boolean[0];
+	private boolean dense;
+
+	ActiveCells(int px, int py, int width, int height)
+	{
+		reset(px, py, width, height);
+	}
+
+	/**
+	 * Starts over with all cells of the given rectangle active. Reuses the arrays if they are large enough.
+	 */
+	void reset(int px, int py, int width, int height)
+	{
+		this.px = px;
+		this.py = py;
+		this.width = Math.max(width, 0);
+		this.height = Math.max(height, 0);
+		if (cells.length < this.width * this.height)
+			cells = new boolean[this.width * this.height];
+		if (rows.length < this.height)
+			rows = new boolean[this.height];
+		Arrays.fill(cells, 0, this.width * this.height, true);
+		Arrays.fill(rows, 0, this.height, true);
+		dense = true;
+	}
+
+	/**
+	 * If true, the next iteration should visit all cells and not call take(), takeRow() or markDiagonal().
+	 */
+	boolean isDense()
+	{
+		return dense;
+	}
+
+	/**
+	 * Must be called after every iteration with the number of cells that changed.
+	 */
+	void endIteration(int changedCells)
+	{
+		if (dense)
+		{
+			//Nothing was tracked, so everything has to be looked at again
+			Arrays.fill(cells, 0, width * height, true);
+			Arrays.fill(rows, 0, height, true);
+		}
+		dense = (long)changedCells * 8 > (long)width * height;
+	}
+
+	/**
+	 * Returns whether row y has active cells and marks it as visited.
+	 */
+	boolean takeRow(int y)
+	{
+		boolean active = rows[y - py];
+		rows[y - py] = false;
+		return active;
+	}
+
+	/**
+	 * Returns whether cell (x, y) is active and deactivates it.
+	 */
+	boolean take(int x, int y)
+	{
+		int i = ((y - py) * width) + (x - px);
+		boolean active = cells[i];
+		cells[i] = false;
+		return active;
+	}
+
+	/**
+	 * Activates (x, y) and its diagonal neighbours, the cells whose decision depends on (x, y).
+	 */
+	void markDiagonal(int x, int y)
+	{
+		mark(x, y);
+		mark(x - 1, y - 1);
+		mark(x + 1, y - 1);
+		mark(x - 1, y + 1);
+		mark(x + 1, y + 1);
+	}
+
+	private void mark(int x, int y)
+	{
+		x -= px;
+		y -= py;
+		if ((x < 0) || (y < 0) || (x >= width) || (y >= height))
+			return;
+		cells[(y * width) + x] = true;
+		rows[y] = true;
+	}
+}
@@ -0,0 +1,251 @@
+package backend.map;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * TextureStorage keeping TILE_SIZE*TILE_SIZE texel tiles deflated (fastest level) in memory.<BR>
+ * Tiles in use are inflated into a least recently used cache of cacheBytes. A tile pushed out of it is<BR>
+ * deflated again only if it was written. Autotextured and blank areas deflate well, so most of a map costs<BR>
+ * a fraction of its raw size. Tiles of equal content (after fill()) share one deflated array.<BR>
+ * All access is synchronized, so parallel users (compositing, auto texturing) serialize on the copies only.
+ */
+public class CompressedTextureStorage extends TextureStorage
+{
+	static final int TILE_SIZE = 256;
+	static final int TILE_SHIFT = 8;
+	private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 3;
+
+	private static class Tile
+	{
+		final byte[] texels;
+		boolean written;
+
+		Tile(byte[] texels)
+		{
+			this.texels = texels;
+		}
+	}
+
+	private final int tilesX;
+	private final byte[][] deflated;
+	private final LinkedHashMap<Integer, Tile> cache;
+	private final int cacheTiles;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final Inflater inflater = new Inflater(true);
+	private byte[] deflateBuffer = new byte[TILE_BYTES + 1024];
+	private byte[] inflateInput = new byte[0];
+	/**
+	 * Deflated tile all tiles got by the last fill(), shared by those not written since.
+	 */
+	private byte[] filled;
+
+	//Counters, hits and misses per tile row span accessed
+	private long hits, misses, deflates;
+	private long deflatedBytes;
+
+	CompressedTextureStorage(int width, int length, long cacheBytes)
+	{
+		super(width, length);
+		tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		deflated = new byte[tilesX * ((length + TILE_SIZE - 1) >> TILE_SHIFT)][];
+		cacheTiles = (int)Math.max(Math.min(cacheBytes / TILE_BYTES, deflated.length), 4);
+		cache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+		fill((byte)0);
+	}
+
+	public boolean copiesRows()
+	{
+		return true;
+	}
+
+	/**
+	 * Returns tile t inflated, from the cache if it is there.
+	 */
+	private Tile getTile(int t)
+	{
+		Integer key = Integer.valueOf(t);
+		Tile tile = cache.get(key);
+		if (tile != null)
+		{
+			hits++;
+			return tile;
+		}
+		misses++;
+		tile = new Tile(evict());
+		inflate(deflated[t], tile.texels);
+		cache.put(key, tile);
+		return tile;
+	}
+
+	/**
+	 * Makes room for one more cached tile, returns a texel array to reuse.
+	 */
+	private byte[] evict()
+	{
+		if (cache.size() < cacheTiles)
+			return new byte[TILE_BYTES];
+		Iterator<Entry<Integer, Tile>> it = cache.entrySet().iterator();
+		Entry<Integer, Tile> eldest = it.next();
+		it.remove();
+		Tile tile = eldest.getValue();
+		if (tile.written)
+		{
+			deflates++;
+			store(eldest.getKey().intValue(), deflate(tile.texels));
+		}
+		return tile.texels;
+	}
+
+	private void store(int t, byte[] data)
+	{
+		if (deflated[t] != filled)
+			deflatedBytes -= deflated[t].length;
+		deflated[t] = data;
+		deflatedBytes += data.length;
+	}
+
+	private byte[] deflate(byte[] texels)
+	{
+		deflater.reset();
+		deflater.setInput(texels);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished())
+		{
+			if (length == deflateBuffer.length)
+				deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+			length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+		}
+		return Arrays.copyOf(deflateBuffer, length);
+	}
+
+	private void inflate(byte[] data, byte[] texels)
+	{
+		//nowrap streams need one extra dummy byte
+		if (inflateInput.length < data.length + 1)
+			inflateInput = new byte[data.length + 1];
+		System.arraycopy(data, 0, inflateInput, 0, data.length);
+		inflater.reset();
+		inflater.setInput(inflateInput, 0, data.length + 1);
+		try
+		{
+			int length = 0;
+			while ((length < TILE_BYTES) && !inflater.finished())
+				length += inflater.inflate(texels, length, TILE_BYTES - length);
+		}
+		catch (DataFormatException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copies texels [x, x + count) of row y from the tiles into array or buffer, or from array into the tiles (write).
+	 */
+	private void copy(int y, int x, int count, byte[] array, int offset, ByteBuffer buffer, boolean write)
+	{
+		if ((x < 0) || (y < 0) || (y >= length) || (x + count > width))
+			throw new IndexOutOfBoundsException("Texel " + x + "," + y + " (" + count + ") outside " + width + "x" + length);
+		int tileRow = (y >> TILE_SHIFT) * tilesX;
+		int rowOffset = ((y & (TILE_SIZE - 1)) << TILE_SHIFT) * 3;
+		while (count > 0)
+		{
+			int n = Math.min(TILE_SIZE - (x & (TILE_SIZE - 1)), count);
+			Tile tile = getTile(tileRow + (x >> TILE_SHIFT));
+			int position = rowOffset + ((x & (TILE_SIZE - 1)) * 3);
+			if (write)
+			{
+				System.arraycopy(array, offset, tile.texels, position, n * 3);
+				tile.written = true;
+			}
+			else if (buffer != null)
+				buffer.put(tile.texels, position, n * 3);
+			else
+				System.arraycopy(tile.texels, position, array, offset, n * 3);
+			offset += n * 3;
+			x += n;
+			count -= n;
+		}
+	}
+
+	public byte[] getRow(int y, int x, int count, byte[] scratch)
+	{
+		getTexels(y, x, count, scratch, x * 3);
+		return scratch;
+	}
+
+	public void putRow(int y, int x, int count, byte[] row)
+	{
+		setTexels(y, x, count, row, x * 3);
+	}
+
+	public synchronized void getTexels(int y, int x, int count, byte[] dst, int offset)
+	{
+		copy(y, x, count, dst, offset, null, false);
+	}
+
+	public synchronized void getTexels(int y, int x, int count, ByteBuffer dst)
+	{
+		copy(y, x, count, null, 0, dst, false);
+	}
+
+	public synchronized void setTexels(int y, int x, int count, byte[] src, int offset)
+	{
+		copy(y, x, count, src, offset, null, true);
+	}
+
+	public synchronized void fill(byte value)
+	{
+		cache.clear();
+		byte[] texels = new byte[TILE_BYTES];
+		Arrays.fill(texels, value);
+		filled = deflate(texels);
+		Arrays.fill(deflated, filled);
+		deflatedBytes = filled.length;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Number of tiles deflated again after being written.
+	 */
+	public synchronized long getDeflates()
+	{
+		return deflates;
+	}
+
+	/**
+	 * Bytes of all deflated tiles. Arrays shared by several tiles count once.
+	 */
+	public synchronized long getDeflatedBytes()
+	{
+		return deflatedBytes;
+	}
+
+	public synchronized long getCachedBytes()
+	{
+		return (long)cache.size() * TILE_BYTES;
+	}
+
+	public synchronized String toString()
+	{
+		long accesses = hits + misses;
+		return "Compressed texturemap: " + (deflatedBytes >> 10) + " KB deflated + " + (getCachedBytes() >> 10) + " KB cached of "
+				+ (((long)width * length * 3) >> 10) + " KB, hit rate " + ((accesses > 0) ? ((hits * 100) / accesses) : 100) + " %";
+	}
+}
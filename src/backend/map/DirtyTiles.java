@@ -0,0 +1,75 @@
+package backend.map;
+
+import java.util.Arrays;
+
+/**
+ * Square tiles of a texel grid that were changed since they were last taken.<BR>
+ * Used by Texturemap and TexturemapLayer to recomposite only what was painted.
+ */
+class DirtyTiles
+{
+	static final int TILE_SIZE = 64;
+	static final int TILE_SHIFT = 6;
+
+	private final int tilesX, tilesY;
+	private final boolean[] dirty;
+	private boolean anyDirty;
+
+	DirtyTiles(int width, int length)
+	{
+		this.tilesX = (Math.max(width, 0) + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.tilesY = (Math.max(length, 0) + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.dirty = new boolean[tilesX * tilesY];
+	}
+
+	int getTilesX()
+	{
+		return tilesX;
+	}
+
+	int getTilesY()
+	{
+		return tilesY;
+	}
+
+	/**
+	 * Marks the tiles touching the given rectangle of texels.
+	 */
+	synchronized void mark(int px, int py, int width, int length)
+	{
+		int x0 = Math.max(px, 0);
+		int y0 = Math.max(py, 0);
+		int x1 = Math.min(px + width, tilesX << TILE_SHIFT) - 1;
+		int y1 = Math.min(py + length, tilesY << TILE_SHIFT) - 1;
+		if ((x0 > x1) || (y0 > y1))
+			return;
+		for (int ty = y0 >> TILE_SHIFT; ty <= (y1 >> TILE_SHIFT); ty++)
+			for (int tx = x0 >> TILE_SHIFT; tx <= (x1 >> TILE_SHIFT); tx++)
+				dirty[(ty * tilesX) + tx] = true;
+		anyDirty = true;
+	}
+
+	synchronized void markAll()
+	{
+		Arrays.fill(dirty, true);
+		anyDirty = true;
+	}
+
+	/**
+	 * ORs the dirty tiles into target (one entry per tile) and clears them here.
+	 * @return true if any tile was dirty
+	 */
+	synchronized boolean takeInto(boolean[] target)
+	{
+		if (!anyDirty)
+			return false;
+		for (int t = 0; t < dirty.length; t++)
+			if (dirty[t])
+			{
+				target[t] = true;
+				dirty[t] = false;
+			}
+		anyDirty = false;
+		return true;
+	}
+}
@@ -0,0 +1,289 @@
+package backend.map;
+
+import java.util.Random;
+
+import backend.ErosionSetup;
+import backend.HashRandom;
+import backend.ParallelTasks;
+
+/**
+ * Hydraulic erosion by simulating single water droplets.<BR>
+ * A droplet runs downhill with some inertia, picks up sediment while it is fast and carries<BR>
+ * less than its capacity, drops sediment when it slows down or runs into a pit, and slowly<BR>
+ * evaporates. Erosion is spread over a small round brush, deposition goes to the four<BR>
+ * corners of the current quad.<BR>
+ * The area is split into square tiles. A droplet never gets further from its start than its<BR>
+ * lifetime plus the brush radius, so tiles are made twice that big and tiles with the same<BR>
+ * (x & 1, y & 1) colour can be processed in parallel without touching the same vertex.<BR>
+ * Start positions are hashed from (seed, tile, droplet), so the result does not depend on the thread count.
+ */
+public class DropletErosion
+{
+	private final HeightField field;
+	private final ErosionSetup setup;
+	private final int xStart, yStart, xEnd, yEnd;
+	private final int tileSize;
+	private final int tilesX, tilesY;
+	private final long seed;
+
+	private final int brushRadius;
+	private final int[] brushOffsetX;
+	private final int[] brushOffsetY;
+	private final int[] brushOffset;
+	private final float[] brushWeight;
+
+	private DropletErosion(HeightField field, ErosionSetup setup, int xStart, int yStart, int xEnd, int yEnd)
+	{
+		this.field = field;
+		this.setup = setup;
+		this.xStart = xStart;
+		this.yStart = yStart;
+		this.xEnd = xEnd;
+		this.yEnd = yEnd;
+		int reach = Math.max(setup.dropletLifetime, 1) + Math.max(setup.dropletRadius, 1) + 2;
+		this.tileSize = Math.max(64, ((2 * reach) + 15) & ~15);
+		this.tilesX = ((xEnd - xStart) + tileSize - 1) / tileSize;
+		this.tilesY = ((yEnd - yStart) + tileSize - 1) / tileSize;
+		this.seed = (setup.dropletSeed >= 0) ? setup.dropletSeed : new Random().nextLong();
+
+		//Erosion brush: weights fall off linearly to the radius and sum up to 1
+		int radius = Math.max(setup.dropletRadius, 1);
+		brushRadius = radius;
+		int count = 0;
+		int[] ox = new int[(2 * radius + 1) * (2 * radius + 1)];
+		int[] oy = new int[ox.length];
+		float[] w = new float[ox.length];
+		float sum = 0;
+		for (int y = -radius; y <= radius; y++)
+			for (int x = -radius; x <= radius; x++)
+			{
+				float weight = radius - (float)Math.sqrt((x * x) + (y * y));
+				if (weight > 0)
+				{
+					ox[count] = x;
+					oy[count] = y;
+					w[count] = weight;
+					sum += weight;
+					count++;
+				}
+			}
+		brushOffsetX = new int[count];
+		brushOffsetY = new int[count];
+		brushOffset = new int[count];
+		brushWeight = new float[count];
+		for (int i = 0; i < count; i++)
+		{
+			brushOffsetX[i] = ox[i];
+			brushOffsetY[i] = oy[i];
+			brushOffset[i] = (oy[i] * field.stride) + ox[i];
+			brushWeight[i] = w[i] / sum;
+		}
+	}
+
+	/**
+	 * Erodes the given rectangle of field with setup.dropletDensity droplets per vertex.
+	 */
+	public static void erode(HeightField field, int px, int py, int width, int height, ErosionSetup setup)
+	{
+		DropletErosion erosion = create(field, px, py, width, height, setup);
+		if (erosion != null)
+			erosion.run();
+	}
+
+	/**
+	 * Prepares erosion of the given rectangle for running it in steps, see runStep().<BR>
+	 * Returns null if there is nothing to erode.
+	 */
+	static DropletErosion create(HeightField field, int px, int py, int width, int height, ErosionSetup setup)
+	{
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + width, field.width);
+		int yEnd = Math.min(py + height, field.length);
+		if ((xEnd - xStart < 2) || (yEnd - yStart < 2))
+			return null;
+		return new DropletErosion(field, setup, xStart, yStart, xEnd, yEnd);
+	}
+
+	private void run()
+	{
+		for (int colour = 0; colour < 4; colour++)
+		{
+			final int firstX = colour & 1;
+			final int firstY = colour >> 1;
+			final int countX = getTileCount(tilesX, firstX);
+			final int countY = getTileCount(tilesY, firstY);
+			if ((countX <= 0) || (countY <= 0))
+				continue;
+			ParallelTasks.forRows(0, countX * countY, 1, new ParallelTasks.RowTask()
+			{
+				public void run(int start, int end)
+				{
+					for (int i = start; i < end; i++)
+						runTile(firstX + ((i % countX) * 2), firstY + ((i / countX) * 2));
+				}
+			});
+		}
+	}
+
+	private static int getTileCount(int tiles, int first)
+	{
+		return (tiles - first + 1) / 2;
+	}
+
+	/**
+	 * Number of steps of a whole run: one per colour and tile row.
+	 */
+	int getStepCount()
+	{
+		int steps = 0;
+		for (int colour = 0; colour < 4; colour++)
+			if (getTileCount(tilesX, colour & 1) > 0)
+				steps += getTileCount(tilesY, colour >> 1);
+		return steps;
+	}
+
+	/**
+	 * Runs the tiles of one colour in one tile row. Steps must be run in order, from 0 to getStepCount() - 1.<BR>
+	 * Tiles of the same colour do not touch each other, so the result is the same as that of erode().
+	 */
+	void runStep(int step)
+	{
+		for (int colour = 0; colour < 4; colour++)
+		{
+			final int firstX = colour & 1;
+			final int countX = getTileCount(tilesX, firstX);
+			int countY = getTileCount(tilesY, colour >> 1);
+			if ((countX <= 0) || (countY <= 0))
+				continue;
+			if (step >= countY)
+			{
+				step -= countY;
+				continue;
+			}
+			final int ty = (colour >> 1) + (step * 2);
+			ParallelTasks.forRows(0, countX, 1, new ParallelTasks.RowTask()
+			{
+				public void run(int start, int end)
+				{
+					for (int i = start; i < end; i++)
+						runTile(firstX + (i * 2), ty);
+				}
+			});
+			return;
+		}
+	}
+
+	private void runTile(int tx, int ty)
+	{
+		int x0 = xStart + (tx * tileSize);
+		int y0 = yStart + (ty * tileSize);
+		int x1 = Math.min(x0 + tileSize, xEnd - 1);
+		int y1 = Math.min(y0 + tileSize, yEnd - 1);
+		if ((x1 <= x0) || (y1 <= y0))
+			return;
+		int tile = (ty * 65536) + tx;
+		float droplets = (x1 - x0) * (y1 - y0) * setup.dropletDensity;
+		int count = (int)droplets;
+		if (HashRandom.nextFloat(seed, tile, -1, 0) < droplets - count)
+			count++;
+		for (int i = 0; i < count; i++)
+			runDroplet(x0 + (HashRandom.nextFloat(seed, tile, i, 0) * (x1 - x0)), y0 + (HashRandom.nextFloat(seed, tile, i, 1) * (y1 - y0)));
+	}
+
+	private void runDroplet(float posX, float posY)
+	{
+		float[] map = field.data;
+		int stride = field.stride;
+		float inertia = setup.dropletInertia;
+		float capacityFactor = setup.dropletCapacity;
+		float minCapacity = setup.dropletMinCapacity;
+		float erodeSpeed = setup.dropletErodeSpeed;
+		float depositSpeed = setup.dropletDepositSpeed;
+		float evaporation = 1 - setup.dropletEvaporateSpeed;
+		float gravity = setup.dropletGravity;
+		float dirX = 0;
+		float dirY = 0;
+		float speed = 1;
+		float water = 1;
+		float sediment = 0;
+		for (int step = 0; step < setup.dropletLifetime; step++)
+		{
+			int nodeX = (int)posX;
+			int nodeY = (int)posY;
+			int i = (nodeY * stride) + nodeX;
+			float u = posX - nodeX;
+			float v = posY - nodeY;
+			float h00 = map[i];
+			float h10 = map[i + 1];
+			float h01 = map[i + stride];
+			float h11 = map[i + stride + 1];
+			float gradX = ((h10 - h00) * (1 - v)) + ((h11 - h01) * v);
+			float gradY = ((h01 - h00) * (1 - u)) + ((h11 - h10) * u);
+			float height = (h00 * (1 - u) * (1 - v)) + (h10 * u * (1 - v)) + (h01 * (1 - u) * v) + (h11 * u * v);
+
+			dirX = (dirX * inertia) - (gradX * (1 - inertia));
+			dirY = (dirY * inertia) - (gradY * (1 - inertia));
+			float length = (float)Math.sqrt((dirX * dirX) + (dirY * dirY));
+			if (length < 1e-12f)
+				break;
+			dirX /= length;
+			dirY /= length;
+			posX += dirX;
+			posY += dirY;
+			if ((posX < xStart) || (posY < yStart) || (posX >= xEnd - 1) || (posY >= yEnd - 1))
+				break;
+
+			int n = ((int)posY * stride) + (int)posX;
+			float nu = posX - (int)posX;
+			float nv = posY - (int)posY;
+			float newHeight = (map[n] * (1 - nu) * (1 - nv)) + (map[n + 1] * nu * (1 - nv)) + (map[n + stride] * (1 - nu) * nv) + (map[n + stride + 1] * nu * nv);
+			float deltaHeight = newHeight - height;
+
+			float capacity = Math.max(-deltaHeight * speed * water * capacityFactor, minCapacity);
+			if ((sediment > capacity) || (deltaHeight > 0))
+			{
+				//Fill the pit we ran into, or drop what we can not carry
+				float amount = (deltaHeight > 0) ? Math.min(deltaHeight, sediment) : (sediment - capacity) * depositSpeed;
+				sediment -= amount;
+				map[i] += amount * (1 - u) * (1 - v);
+				map[i + 1] += amount * u * (1 - v);
+				map[i + stride] += amount * (1 - u) * v;
+				map[i + stride + 1] += amount * u * v;
+			}
+			else
+			{
+				//Never dig deeper than the height difference, that would create holes
+				float amount = Math.min((capacity - sediment) * erodeSpeed, -deltaHeight);
+				if ((nodeX - brushRadius >= xStart) && (nodeY - brushRadius >= yStart) && (nodeX + brushRadius < xEnd) && (nodeY + brushRadius < yEnd))
+				{
+					//Whole brush inside, no bounds checks
+					for (int b = 0; b < brushWeight.length; b++)
+					{
+						int j = i + brushOffset[b];
+						float delta = amount * brushWeight[b];
+						delta = (delta < map[j]) ? delta : map[j];
+						map[j] -= delta;
+						sediment += delta;
+					}
+				}
+				else
+				{
+					for (int b = 0; b < brushWeight.length; b++)
+					{
+						int x = nodeX + brushOffsetX[b];
+						int y = nodeY + brushOffsetY[b];
+						if ((x < xStart) || (y < yStart) || (x >= xEnd) || (y >= yEnd))
+							continue;
+						int j = (y * stride) + x;
+						float delta = Math.min(map[j], amount * brushWeight[b]);
+						map[j] -= delta;
+						sediment += delta;
+					}
+				}
+			}
+			speed = (float)Math.sqrt(Math.max((speed * speed) - (deltaHeight * gravity), 0));
+			water *= evaporation;
+		}
+	}
+}
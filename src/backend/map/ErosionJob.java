@@ -0,0 +1,297 @@
+package backend.map;
+
+import backend.ErosionSetup;
+
+/**
+ * Whole map (or area) erosion that runs in slices, so the caller can do other work,<BR>
+ * redraw the changed parts and cancel in between.<BR>
+ * One step is one iteration of WET/DRY erosion, or one tile row of droplet erosion.<BR>
+ * DRY erosion ends early once nothing moves any more.<BR>
+ * After every slice, the changed tiles are found by comparing against a copy of the area taken<BR>
+ * before the slice, the pyramid is updated for them and they are passed to a TileListener.<BR>
+ * Other commands may run between slices. If one of them replaced the HeightField of the heightmap<BR>
+ * (smoothing, resizing, flipping axes), the job stops without touching either field.<BR>
+ * run() and cancel() may be called from different threads, run() must always be called from the same one.
+ */
+public class ErosionJob
+{
+	/**
+	 * Size of the tiles changes are reported in.
+	 */
+	public static final int TILE_SIZE = HeightPyramid.TILE_SIZE;
+
+	public enum Mode
+	{
+		/** WET erosion as selected in the setup: grid, alternative or droplets */
+		WET,
+		DRY
+	}
+
+	public interface TileListener
+	{
+		public void tileChanged(int px, int py, int width, int height);
+	}
+
+	private enum Method
+	{
+		WET,
+		DRY,
+		DROPLETS
+	}
+
+	private final Heightmap heightmap;
+	private HeightField field;
+	private final Method method;
+	private final boolean hydroErosion;
+	private final int px, py, width, height;
+	private final int repetitions;
+	private final int stepsPerRepetition;
+	private final float dropletHeight;
+	private final float evaporateAmount;
+	private final float breakHeight;
+	private final ErosionSetup setup;
+
+	private int step;
+	private float[] waterMap;
+	private DropletErosion dropletErosion;
+	private ActiveCells activeCells;
+
+	//Area including the one vertex border WET erosion spills into
+	private final int sx, sy, sWidth, sHeight;
+	private final float[] snapshot;
+
+	private volatile boolean cancelled;
+	private volatile boolean finished;
+	private volatile float progress;
+
+	public ErosionJob(Heightmap heightmap, int px, int py, int width, int height, Mode mode, int repetitions, ErosionSetup setup)
+	{
+		this.heightmap = heightmap;
+		this.field = heightmap.getHeightField();
+		this.setup = setup;
+		this.repetitions = Math.max(repetitions, 1);
+
+		int x0 = Math.max(px, 0);
+		int y0 = Math.max(py, 0);
+		int x1 = Math.min(px + width, field.width);
+		int y1 = Math.min(py + height, field.length);
+		this.px = x0;
+		this.py = y0;
+		this.width = Math.max(x1 - x0, 0);
+		this.height = Math.max(y1 - y0, 0);
+
+		if (mode == Mode.DRY)
+		{
+			method = Method.DRY;
+			hydroErosion = false;
+			stepsPerRepetition = setup.dryIterations;
+			breakHeight = setup.dryBreakHeight;
+		}
+		else if (setup.useDropletMethod)
+		{
+			method = Method.DROPLETS;
+			hydroErosion = false;
+			DropletErosion erosion = DropletErosion.create(field, this.px, this.py, this.width, this.height, setup);
+			stepsPerRepetition = (erosion != null) ? erosion.getStepCount() : 0;
+			breakHeight = 0;
+		}
+		else if (setup.useAlternativeWetMethod)
+		{
+			method = Method.DRY;
+			hydroErosion = true;
+			stepsPerRepetition = setup.wet2Iterations;
+			breakHeight = setup.wet2BreakHeight;
+		}
+		else
+		{
+			method = Method.WET;
+			hydroErosion = false;
+			stepsPerRepetition = setup.wetIterations;
+			breakHeight = 0;
+		}
+		dropletHeight = setup.wetDropletHeight;
+		evaporateAmount = setup.wetEvaporateAmount;
+
+		sx = Math.max(this.px - 1, 0);
+		sy = Math.max(this.py - 1, 0);
+		sWidth = Math.min(this.px + this.width + 1, field.width) - sx;
+		sHeight = Math.min(this.py + this.height + 1, field.length) - sy;
+		snapshot = new float[Math.max(sWidth, 0) * Math.max(sHeight, 0)];
+		if ((this.width == 0) || (this.height == 0) || (stepsPerRepetition <= 0))
+		{
+			finished = true;
+			progress = 1;
+		}
+	}
+
+	/**
+	 * Runs steps until at least maxNanos have passed, then reports the changed tiles to listener (may be null).<BR>
+	 * After cancel(), only finishes what must be finished (WET erosion gives back the dissolved soil).
+	 * @return true if there is work left
+	 */
+	public boolean run(long maxNanos, TileListener listener)
+	{
+		if (finished)
+			return false;
+		if (heightmap.getHeightField() != field)
+		{
+			abandon();
+			return false;
+		}
+		takeSnapshot();
+		long start = System.nanoTime();
+		int totalSteps = repetitions * stepsPerRepetition;
+		do
+		{
+			if (cancelled)
+			{
+				endRepetition();
+				finished = true;
+				break;
+			}
+			if (!runStep(step % stepsPerRepetition))
+			{
+				//Settled, the remaining steps would not change anything
+				step = totalSteps;
+				finished = true;
+				break;
+			}
+			step++;
+			if ((step % stepsPerRepetition) == 0)
+				endRepetition();
+			if (step >= totalSteps)
+				finished = true;
+		}
+		while (!finished && (System.nanoTime() - start < maxNanos));
+		progress = (float)step / totalSteps;
+		reportChanges(listener);
+		return !finished;
+	}
+
+	/**
+	 * @return false if the area settled and no further step would change it
+	 */
+	private boolean runStep(int repetitionStep)
+	{
+		switch (method)
+		{
+		case WET:
+			if (waterMap == null)
+				waterMap = new float[heightmap.getWaterMapSize(px, py, px + width, py + height)];
+			heightmap.erodeWetIteration(waterMap, px, py, px + width, py + height, dropletHeight, evaporateAmount);
+			break;
+		case DRY:
+			//Kept over repetitions, a settled area stays settled
+			if (activeCells == null)
+				activeCells = new ActiveCells(px, py, width, height);
+			return heightmap.erodeDryIteration(px, py, width, height, hydroErosion, breakHeight, activeCells);
+		case DROPLETS:
+			//New instance per repetition, same as calling Heightmap.erodeMapWet() again
+			if (dropletErosion == null)
+				dropletErosion = DropletErosion.create(field, px, py, width, height, setup);
+			dropletErosion.runStep(repetitionStep);
+			break;
+		}
+		return true;
+	}
+
+	private void endRepetition()
+	{
+		if (waterMap != null)
+		{
+			heightmap.erodeWetFinish(waterMap, px, py, px + width, py + height);
+			waterMap = null;
+		}
+		dropletErosion = null;
+	}
+
+	private void takeSnapshot()
+	{
+		float[] data = field.data;
+		for (int y = 0; y < sHeight; y++)
+			System.arraycopy(data, field.index(sx, sy + y), snapshot, y * sWidth, sWidth);
+	}
+
+	private void reportChanges(TileListener listener)
+	{
+		float[] data = field.data;
+		int txStart = sx / TILE_SIZE;
+		int tyStart = sy / TILE_SIZE;
+		int txEnd = (sx + sWidth - 1) / TILE_SIZE;
+		int tyEnd = (sy + sHeight - 1) / TILE_SIZE;
+		for (int ty = tyStart; ty <= tyEnd; ty++)
+		{
+			int y0 = Math.max(ty * TILE_SIZE, sy);
+			int y1 = Math.min((ty + 1) * TILE_SIZE, sy + sHeight);
+			for (int tx = txStart; tx <= txEnd; tx++)
+			{
+				int x0 = Math.max(tx * TILE_SIZE, sx);
+				int x1 = Math.min((tx + 1) * TILE_SIZE, sx + sWidth);
+				if (isChanged(data, x0, y0, x1, y1))
+				{
+					heightmap.heightChanged(x0, y0, x1 - x0, y1 - y0);
+					if (listener != null)
+						listener.tileChanged(x0, y0, x1 - x0, y1 - y0);
+				}
+			}
+		}
+	}
+
+	private boolean isChanged(float[] data, int x0, int y0, int x1, int y1)
+	{
+		for (int y = y0; y < y1; y++)
+		{
+			int i = field.index(x0, y);
+			int j = ((y - sy) * sWidth) + (x0 - sx);
+			for (int x = x0; x < x1; x++, i++, j++)
+				if (data[i] != snapshot[j])
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the job before its next step. The next run() cleans up and returns false.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	/**
+	 * Ends the job at once, without finishing the current repetition. For a field or map that was replaced,<BR>
+	 * the water map, droplets and snapshot belong to the old one. Must be called from the thread calling run().
+	 */
+	public void abandon()
+	{
+		cancelled = true;
+		finished = true;
+		waterMap = null;
+		dropletErosion = null;
+		activeCells = null;
+		field = null;
+	}
+
+	public Heightmap getHeightmap()
+	{
+		return heightmap;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	public boolean isFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * Part of the work done so far, 0 to 1.
+	 */
+	public float getProgress()
+	{
+		return progress;
+	}
+}
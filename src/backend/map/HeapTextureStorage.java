@@ -0,0 +1,67 @@
+package backend.map;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * TextureStorage in byte[][] on the heap, one array per row.
+ */
+class HeapTextureStorage extends TextureStorage
+{
+	private static final byte[] noRowBuffer = new byte[0];
+
+	private final byte[][] rows;
+
+	HeapTextureStorage(int width, int length)
+	{
+		this(new byte[length][width * 3], width);
+	}
+
+	HeapTextureStorage(byte[][] rows, int width)
+	{
+		super(width, rows.length);
+		this.rows = rows;
+	}
+
+	public boolean copiesRows()
+	{
+		return false;
+	}
+
+	public byte[] newRowBuffer()
+	{
+		return noRowBuffer;
+	}
+
+	public byte[] getRow(int y, int x, int count, byte[] scratch)
+	{
+		return rows[y];
+	}
+
+	public void putRow(int y, int x, int count, byte[] row)
+	{
+		if (row != rows[y])
+			System.arraycopy(row, x * 3, rows[y], x * 3, count * 3);
+	}
+
+	public void getTexels(int y, int x, int count, byte[] dst, int offset)
+	{
+		System.arraycopy(rows[y], x * 3, dst, offset, count * 3);
+	}
+
+	public void getTexels(int y, int x, int count, ByteBuffer dst)
+	{
+		dst.put(rows[y], x * 3, count * 3);
+	}
+
+	public void setTexels(int y, int x, int count, byte[] src, int offset)
+	{
+		System.arraycopy(src, offset, rows[y], x * 3, count * 3);
+	}
+
+	public void fill(byte value)
+	{
+		for (int y = 0; y < length; y++)
+			Arrays.fill(rows[y], value);
+	}
+}
@@ -0,0 +1,156 @@
+package backend.map;
+
+/**
+ * Row kernels for the height brushes.<BR>
+ * Every kernel works on one run of count floats in a map row and the matching brush row.<BR>
+ * Two implementations: HeightBrushVectorKernels on jdk.incubator.vector (FloatVector), used when the JVM was started<BR>
+ * with --add-modules jdk.incubator.vector (start scripts, build.xml), and plain counted loops otherwise.<BR>
+ * The choice is made once on first use; -Dsme.scalarKernels=true forces the loops.<BR>
+ * C2 does not vectorize the loops by itself (same time with -XX:-UseSuperWord), see HeightBrushKernelBench in tools.<BR>
+ * Math.min/max are avoided in the loops, they are much slower here on JDK 17.
+ */
+public class HeightBrushKernels
+{
+	/**
+	 * One implementation of the kernels, see the static methods for what they do.
+	 */
+	public interface Kernels
+	{
+		public void add(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float amount);
+		public void addNoise(float[] map, int mapOffset, float[] noise, float[] pattern, int patternOffset, int count);
+		public void set(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float value);
+		public void blend(float[] map, int mapOffset, float[] target, int targetOffset, float[] pattern, int patternOffset, int count, float strength);
+		public void average3x3(float[] map, int offset, int stride, float[] out, int outOffset, int count);
+	}
+
+	/**
+	 * The plain loops, always available.
+	 */
+	public static final Kernels SCALAR = new ScalarKernels();
+
+	private static final Kernels vector = loadVectorKernels();
+	private static final Kernels active = ((vector != null) && !Boolean.getBoolean("sme.scalarKernels")) ? vector : SCALAR;
+
+	/**
+	 * Loaded by name, so this class also runs where jdk.incubator.vector is missing.
+	 */
+	private static Kernels loadVectorKernels()
+	{
+		try
+		{
+			return (Kernels)Class.forName("backend.map.HeightBrushVectorKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (Exception e)
+		{
+			//No usable vector shape
+			return null;
+		}
+		catch (LinkageError e)
+		{
+			//Module not resolved
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the vector kernels, null if this JVM has none.
+	 */
+	public static Kernels getVectorKernels()
+	{
+		return vector;
+	}
+
+	public static boolean isVectorized()
+	{
+		return active != SCALAR;
+	}
+
+	/**
+	 * map += amount * pattern, clamped to [0, 1].
+	 */
+	public static void add(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float amount)
+	{
+		active.add(map, mapOffset, pattern, patternOffset, count, amount);
+	}
+
+	/**
+	 * map += noise * pattern, clamped to [0, 1]. noise starts at 0.
+	 */
+	public static void addNoise(float[] map, int mapOffset, float[] noise, float[] pattern, int patternOffset, int count)
+	{
+		active.addNoise(map, mapOffset, noise, pattern, patternOffset, count);
+	}
+
+	/**
+	 * map = value wherever pattern > 0.
+	 */
+	public static void set(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float value)
+	{
+		active.set(map, mapOffset, pattern, patternOffset, count, value);
+	}
+
+	/**
+	 * map = (1 - alpha) * map + alpha * target, with alpha = pattern * strength.
+	 */
+	public static void blend(float[] map, int mapOffset, float[] target, int targetOffset, float[] pattern, int patternOffset, int count, float strength)
+	{
+		active.blend(map, mapOffset, target, targetOffset, pattern, patternOffset, count, strength);
+	}
+
+	/**
+	 * Average of the 3x3 neighbourhood for count pixels starting at offset.<BR>
+	 * All neighbours must exist. Summation order matches Heightmap.smooth9HeightmapBorderAware.
+	 */
+	public static void average3x3(float[] map, int offset, int stride, float[] out, int outOffset, int count)
+	{
+		active.average3x3(map, offset, stride, out, outOffset, count);
+	}
+
+	private static class ScalarKernels implements Kernels
+	{
+		public void add(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float amount)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				float value = map[mapOffset + i] + (amount * pattern[patternOffset + i]);
+				value = (value > 1f) ? 1f : value;
+				map[mapOffset + i] = (value < 0f) ? 0f : value;
+			}
+		}
+
+		public void addNoise(float[] map, int mapOffset, float[] noise, float[] pattern, int patternOffset, int count)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				float value = map[mapOffset + i] + (noise[i] * pattern[patternOffset + i]);
+				value = (value > 1f) ? 1f : value;
+				map[mapOffset + i] = (value < 0f) ? 0f : value;
+			}
+		}
+
+		public void set(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float value)
+		{
+			for (int i = 0; i < count; i++)
+				map[mapOffset + i] = (pattern[patternOffset + i] > 0) ? value : map[mapOffset + i];
+		}
+
+		public void blend(float[] map, int mapOffset, float[] target, int targetOffset, float[] pattern, int patternOffset, int count, float strength)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				float alpha = pattern[patternOffset + i] * strength;
+				map[mapOffset + i] = ((1f - alpha) * map[mapOffset + i]) + (alpha * target[targetOffset + i]);
+			}
+		}
+
+		public void average3x3(float[] map, int offset, int stride, float[] out, int outOffset, int count)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				int c = offset + i;
+				out[outOffset + i] = (map[c] + map[c - stride] + map[c + stride] + map[c - 1] + map[c - stride - 1]
+						+ map[c + stride - 1] + map[c + 1] + map[c - stride + 1] + map[c + stride + 1]) / 9;
+			}
+		}
+	}
+}
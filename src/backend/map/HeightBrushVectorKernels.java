@@ -0,0 +1,116 @@
+package backend.map;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * HeightBrushKernels on FloatVector, in the preferred vector size of the CPU.<BR>
+ * Same operations in the same order as the plain loops, so the results are the same<BR>
+ * (clamping may turn -0 into 0). The rest of a row shorter than a vector runs as plain loop.<BR>
+ * Only loaded through HeightBrushKernels, needs --add-modules jdk.incubator.vector.
+ */
+class HeightBrushVectorKernels implements HeightBrushKernels.Kernels
+{
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	HeightBrushVectorKernels()
+	{
+		//Without SIMD the vector API falls back to slow Java code
+		if (SPECIES.length() < 4)
+			throw new UnsupportedOperationException("No float vectors of 4 or more lanes");
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FloatVector with " + SPECIES.length() + " lanes";
+	}
+
+	public void add(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float amount)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += SPECIES.length())
+		{
+			FloatVector value = FloatVector.fromArray(SPECIES, map, mapOffset + i)
+					.add(FloatVector.fromArray(SPECIES, pattern, patternOffset + i).mul(amount));
+			value.min(1f).max(0f).intoArray(map, mapOffset + i);
+		}
+		for (; i < count; i++)
+		{
+			float value = map[mapOffset + i] + (amount * pattern[patternOffset + i]);
+			value = (value > 1f) ? 1f : value;
+			map[mapOffset + i] = (value < 0f) ? 0f : value;
+		}
+	}
+
+	public void addNoise(float[] map, int mapOffset, float[] noise, float[] pattern, int patternOffset, int count)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += SPECIES.length())
+		{
+			FloatVector value = FloatVector.fromArray(SPECIES, map, mapOffset + i)
+					.add(FloatVector.fromArray(SPECIES, noise, i).mul(FloatVector.fromArray(SPECIES, pattern, patternOffset + i)));
+			value.min(1f).max(0f).intoArray(map, mapOffset + i);
+		}
+		for (; i < count; i++)
+		{
+			float value = map[mapOffset + i] + (noise[i] * pattern[patternOffset + i]);
+			value = (value > 1f) ? 1f : value;
+			map[mapOffset + i] = (value < 0f) ? 0f : value;
+		}
+	}
+
+	public void set(float[] map, int mapOffset, float[] pattern, int patternOffset, int count, float value)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += SPECIES.length())
+		{
+			FloatVector brush = FloatVector.fromArray(SPECIES, pattern, patternOffset + i);
+			FloatVector.fromArray(SPECIES, map, mapOffset + i).blend(value, brush.compare(VectorOperators.GT, 0f)).intoArray(map, mapOffset + i);
+		}
+		for (; i < count; i++)
+			map[mapOffset + i] = (pattern[patternOffset + i] > 0) ? value : map[mapOffset + i];
+	}
+
+	public void blend(float[] map, int mapOffset, float[] target, int targetOffset, float[] pattern, int patternOffset, int count, float strength)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += SPECIES.length())
+		{
+			FloatVector alpha = FloatVector.fromArray(SPECIES, pattern, patternOffset + i).mul(strength);
+			FloatVector kept = alpha.neg().add(1f).mul(FloatVector.fromArray(SPECIES, map, mapOffset + i));
+			kept.add(alpha.mul(FloatVector.fromArray(SPECIES, target, targetOffset + i))).intoArray(map, mapOffset + i);
+		}
+		for (; i < count; i++)
+		{
+			float alpha = pattern[patternOffset + i] * strength;
+			map[mapOffset + i] = ((1f - alpha) * map[mapOffset + i]) + (alpha * target[targetOffset + i]);
+		}
+	}
+
+	public void average3x3(float[] map, int offset, int stride, float[] out, int outOffset, int count)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += SPECIES.length())
+		{
+			int c = offset + i;
+			FloatVector sum = FloatVector.fromArray(SPECIES, map, c)
+					.add(FloatVector.fromArray(SPECIES, map, c - stride))
+					.add(FloatVector.fromArray(SPECIES, map, c + stride))
+					.add(FloatVector.fromArray(SPECIES, map, c - 1))
+					.add(FloatVector.fromArray(SPECIES, map, c - stride - 1))
+					.add(FloatVector.fromArray(SPECIES, map, c + stride - 1))
+					.add(FloatVector.fromArray(SPECIES, map, c + 1))
+					.add(FloatVector.fromArray(SPECIES, map, c - stride + 1))
+					.add(FloatVector.fromArray(SPECIES, map, c + stride + 1));
+			sum.div(9f).intoArray(out, outOffset + i);
+		}
+		for (; i < count; i++)
+		{
+			int c = offset + i;
+			out[outOffset + i] = (map[c] + map[c - stride] + map[c + stride] + map[c - 1] + map[c - stride - 1]
+					+ map[c + stride - 1] + map[c + 1] + map[c - stride + 1] + map[c + stride + 1]) / 9;
+		}
+	}
+}
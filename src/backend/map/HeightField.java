@@ -0,0 +1,135 @@
+package backend.map;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Heightfield storage on one contiguous float array.<BR>
+ * Values are stored row by row, so (x, y) lives at (y * stride) + x.<BR>
+ * Hot loops should fetch data and stride once and index directly,<BR>
+ * instead of going through get/set.
+ */
+public class HeightField
+{
+	public final int width;
+	public final int length;
+	public final int stride;
+	public final float[] data;
+
+	public HeightField(int length, int width)
+	{
+		this.width = width;
+		this.length = length;
+		this.stride = width;
+		this.data = new float[length * width];
+	}
+
+	public int index(int x, int y)
+	{
+		return (y * stride) + x;
+	}
+
+	public float get(int x, int y)
+	{
+		return data[(y * stride) + x];
+	}
+
+	public void set(int x, int y, float value)
+	{
+		data[(y * stride) + x] = value;
+	}
+
+	public void fill(float value)
+	{
+		Arrays.fill(data, value);
+	}
+
+	/**
+	 * Copies count values of row y, starting at column x, into dst.
+	 */
+	public void getRow(int x, int y, int count, float[] dst, int dstOffset)
+	{
+		System.arraycopy(data, (y * stride) + x, dst, dstOffset, count);
+	}
+
+	/**
+	 * Copies count values from src into row y, starting at column x.
+	 */
+	public void setRow(int x, int y, int count, float[] src, int srcOffset)
+	{
+		System.arraycopy(src, srcOffset, data, (y * stride) + x, count);
+	}
+
+	/**
+	 * Returns a buffer view on count values of row y, starting at column x.<BR>
+	 * The view shares the backing array, so writes go straight into the field.
+	 */
+	public FloatBuffer rowView(int x, int y, int count)
+	{
+		return FloatBuffer.wrap(data, (y * stride) + x, count).slice();
+	}
+
+	/**
+	 * Returns a buffer view on the whole field, in row order.
+	 */
+	public FloatBuffer view()
+	{
+		return FloatBuffer.wrap(data);
+	}
+
+	/**
+	 * Copies the rectangle (x, y, w, h) into dst, which is laid out with dstStride.
+	 */
+	public void copyRect(int x, int y, int w, int h, float[] dst, int dstOffset, int dstStride)
+	{
+		int src = (y * stride) + x;
+		for (int row = 0; row < h; row++)
+		{
+			System.arraycopy(data, src, dst, dstOffset, w);
+			src += stride;
+			dstOffset += dstStride;
+		}
+	}
+
+	/**
+	 * Copies a w * h rectangle from src (laid out with srcStride) to (x, y).
+	 */
+	public void pasteRect(int x, int y, int w, int h, float[] src, int srcOffset, int srcStride)
+	{
+		int dst = (y * stride) + x;
+		for (int row = 0; row < h; row++)
+		{
+			System.arraycopy(src, srcOffset, data, dst, w);
+			dst += stride;
+			srcOffset += srcStride;
+		}
+	}
+
+	/**
+	 * Copies the whole field of same dimensions into this one.
+	 */
+	public void copyFrom(HeightField other)
+	{
+		System.arraycopy(other.data, 0, data, 0, data.length);
+	}
+
+	/**
+	 * Creates a [y][x] array copy. Only meant for image io, which still works on 2D arrays.
+	 */
+	public float[][] toArray()
+	{
+		float[][] result = new float[length][width];
+		for (int y = 0; y < length; y++)
+			System.arraycopy(data, y * stride, result[y], 0, width);
+		return result;
+	}
+
+	/**
+	 * Copies a [y][x] array into this field.
+	 */
+	public void fromArray(float[][] map)
+	{
+		for (int y = 0; y < length; y++)
+			System.arraycopy(map[y], 0, data, y * stride, width);
+	}
+}
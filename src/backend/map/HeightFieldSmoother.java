@@ -0,0 +1,188 @@
+package backend.map;
+
+import backend.ParallelTasks;
+
+/**
+ * Parallel box filters on HeightFields.<BR>
+ * Both filters read src and write dst, so callers ping-pong between two fields<BR>
+ * instead of allocating a new one per pass. Rows are split into bands on the shared pool.
+ */
+public class HeightFieldSmoother
+{
+	/**
+	 * 3x3 box filter, blended with the original by strength.<BR>
+	 * Gives exactly the same result as the old serial Heightmap.smoothMap.
+	 */
+	public static void smooth3x3(final HeightField src, final HeightField dst, final float strength)
+	{
+		final int length = src.length;
+		ParallelTasks.forRows(0, length, ParallelTasks.getGrain(length), new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				for (int y = start; y < end; y++)
+					smooth3x3Row(src, dst, strength, y);
+			}
+		});
+	}
+
+	private static void smooth3x3Row(HeightField src, HeightField dst, float strength, int y)
+	{
+		float[] map = src.data;
+		float[] out = dst.data;
+		int w = src.width;
+		int row = y * src.stride;
+		if ((y == 0) || (y == src.length - 1) || (w < 3))
+		{
+			for (int x = 0; x < w; x++)
+				out[row + x] = ((1f - strength) * map[row + x]) + (strength * smoothBorderAware(src, x, y));
+			return;
+		}
+		//Left Border
+		out[row] = ((1f - strength) * map[row]) + (strength * smoothBorderAware(src, 0, y));
+		//Center (No Border checks required -> faster)
+		int i = row + 1;
+		int up = i - src.stride;
+		int down = i + src.stride;
+		for (int x = 1; x < w - 1; x++, i++, up++, down++)
+		{
+			float center = map[i];
+			out[i] = ((1f - strength) * center) + (strength * ((center + map[up - 1] + map[up] + map[up + 1]
+					+ map[i - 1] + map[i + 1] + map[down - 1] + map[down] + map[down + 1]) / 9));
+		}
+		//Right Border
+		out[row + w - 1] = ((1f - strength) * map[row + w - 1]) + (strength * smoothBorderAware(src, w - 1, y));
+	}
+
+	/**
+	 * Average of all existing neighbours, same summation order as Heightmap.smooth9HeightmapBorderAware.
+	 */
+	private static float smoothBorderAware(HeightField src, int x, int y)
+	{
+		float[] map = src.data;
+		int i = src.index(x, y);
+		int s = src.stride;
+		float value = map[i];
+		int pointsUsed = 1;
+		boolean notTop = (y > 0);
+		boolean notBottom = (y < (src.length - 1));
+		if (notTop)
+		{
+			value += map[i - s];
+			pointsUsed++;
+		}
+		if (notBottom)
+		{
+			value += map[i + s];
+			pointsUsed++;
+		}
+		if (x > 0)
+		{
+			value += map[i - 1];
+			pointsUsed++;
+			if (notTop)
+			{
+				value += map[i - s - 1];
+				pointsUsed++;
+			}
+			if (notBottom)
+			{
+				value += map[i + s - 1];
+				pointsUsed++;
+			}
+		}
+		if (x < (src.width - 1))
+		{
+			value += map[i + 1];
+			pointsUsed++;
+			if (notTop)
+			{
+				value += map[i - s + 1];
+				pointsUsed++;
+			}
+			if (notBottom)
+			{
+				value += map[i + s + 1];
+				pointsUsed++;
+			}
+		}
+		return value / pointsUsed;
+	}
+
+	/**
+	 * (2 * radius + 1)^2 box filter, done as horizontal and vertical running sums.<BR>
+	 * Cost per pixel does not depend on radius. Near the border only existing<BR>
+	 * neighbours are averaged. temp must have the same size as src.
+	 */
+	public static void smoothSeparable(HeightField src, HeightField temp, HeightField dst, float strength, int radius)
+	{
+		smoothSeparable(src, temp, dst, strength, radius, ParallelTasks.getGrain(src.length));
+	}
+
+	/**
+	 * smoothSeparable() with bands of the given number of rows, so the band borders can be checked.
+	 */
+	static void smoothSeparable(final HeightField src, final HeightField temp, final HeightField dst, final float strength, final int radius, int grain)
+	{
+		final int length = src.length;
+		final int width = src.width;
+		//Horizontal pass: temp = row sums
+		ParallelTasks.forRows(0, length, grain, new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				float[] map = src.data;
+				float[] out = temp.data;
+				for (int y = start; y < end; y++)
+				{
+					int row = y * src.stride;
+					double sum = 0;
+					for (int x = 0; x < Math.min(radius, width); x++)
+						sum += map[row + x];
+					for (int x = 0; x < width; x++)
+					{
+						if (x + radius < width)
+							sum += map[row + x + radius];
+						if (x - radius - 1 >= 0)
+							sum -= map[row + x - radius - 1];
+						out[row + x] = (float)sum;
+					}
+				}
+			}
+		});
+		//Vertical pass: running column sums, every band starts with the window of row start - 1
+		ParallelTasks.forRows(0, length, grain, new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				float[] map = src.data;
+				float[] rows = temp.data;
+				float[] out = dst.data;
+				int s = src.stride;
+				double[] columnSum = new double[width];
+				for (int y = Math.max(start - radius - 1, 0); y < Math.min(start + radius, length); y++)
+					for (int x = 0; x < width; x++)
+						columnSum[x] += rows[(y * s) + x];
+				for (int y = start; y < end; y++)
+				{
+					int add = y + radius;
+					int remove = y - radius - 1;
+					if (add < length)
+						for (int x = 0; x < width; x++)
+							columnSum[x] += rows[(add * s) + x];
+					if (remove >= 0)
+						for (int x = 0; x < width; x++)
+							columnSum[x] -= rows[(remove * s) + x];
+					int countY = Math.min(y + radius, length - 1) - Math.max(y - radius, 0) + 1;
+					int row = y * s;
+					for (int x = 0; x < width; x++)
+					{
+						int countX = Math.min(x + radius, width - 1) - Math.max(x - radius, 0) + 1;
+						float average = (float)(columnSum[x] / (countX * countY));
+						out[row + x] = ((1f - strength) * map[row + x]) + (strength * average);
+					}
+				}
+			}
+		});
+	}
+}
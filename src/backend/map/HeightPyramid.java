@@ -0,0 +1,242 @@
+package backend.map;
+
+import backend.ParallelTasks;
+
+/**
+ * Quadtree of minimum and maximum heights over a HeightField.<BR>
+ * Level 0 holds one node per TILE_SIZE*TILE_SIZE tile, every higher level combines 2x2 nodes<BR>
+ * of the level below, up to a single root node. A node covers the vertices of its quads,<BR>
+ * so neighbouring nodes share their border vertices.<BR>
+ * After a local edit, update() rescans the changed tiles and walks their parents up to the root.
+ */
+public class HeightPyramid
+{
+	public static final int TILE_SIZE = 16;
+	public static final int TILE_SHIFT = 4;
+
+	private final int width;
+	private final int length;
+	private final int levelCount;
+	private final int[] countX;
+	private final int[] countY;
+	private final float[][] min;
+	private final float[][] max;
+
+	public HeightPyramid(int width, int length)
+	{
+		this.width = width;
+		this.length = length;
+		int cx = Math.max((width - 2) >> TILE_SHIFT, 0) + 1;
+		int cy = Math.max((length - 2) >> TILE_SHIFT, 0) + 1;
+		int levels = 1;
+		for (int x = cx, y = cy; (x > 1) || (y > 1); x = (x + 1) >> 1, y = (y + 1) >> 1)
+			levels++;
+		levelCount = levels;
+		countX = new int[levelCount];
+		countY = new int[levelCount];
+		min = new float[levelCount][];
+		max = new float[levelCount][];
+		for (int l = 0; l < levelCount; l++)
+		{
+			countX[l] = cx;
+			countY[l] = cy;
+			min[l] = new float[cx * cy];
+			max[l] = new float[cx * cy];
+			cx = (cx + 1) >> 1;
+			cy = (cy + 1) >> 1;
+		}
+	}
+
+	public boolean fits(HeightField field)
+	{
+		return (field.width == width) && (field.length == length);
+	}
+
+	/**
+	 * Rebuilds all levels from field.
+	 */
+	public void rebuild(final HeightField field)
+	{
+		final int cx = countX[0];
+		ParallelTasks.forRows(0, countY[0], ParallelTasks.getGrain(countY[0]), new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				for (int ty = start; ty < end; ty++)
+					for (int tx = 0; tx < cx; tx++)
+						scanTile(field, tx, ty);
+			}
+		});
+		for (int l = 1; l < levelCount; l++)
+			combine(l, 0, 0, countX[l] - 1, countY[l] - 1);
+	}
+
+	/**
+	 * Updates all nodes containing vertices of the given rectangle.<BR>
+	 * Costs one scan of each touched tile plus a walk up the levels.
+	 */
+	public void update(HeightField field, int px, int py, int w, int h)
+	{
+		int x0 = Math.max(px, 0);
+		int y0 = Math.max(py, 0);
+		int x1 = Math.min(px + w, width) - 1;
+		int y1 = Math.min(py + h, length) - 1;
+		if ((x0 > x1) || (y0 > y1))
+			return;
+		//A vertex on a tile border also belongs to the tile left of / above it
+		int txStart = Math.max(x0 - 1, 0) >> TILE_SHIFT;
+		int tyStart = Math.max(y0 - 1, 0) >> TILE_SHIFT;
+		int txEnd = Math.min(x1 >> TILE_SHIFT, countX[0] - 1);
+		int tyEnd = Math.min(y1 >> TILE_SHIFT, countY[0] - 1);
+		for (int ty = tyStart; ty <= tyEnd; ty++)
+			for (int tx = txStart; tx <= txEnd; tx++)
+				scanTile(field, tx, ty);
+		for (int l = 1; l < levelCount; l++)
+		{
+			txStart >>= 1;
+			tyStart >>= 1;
+			txEnd >>= 1;
+			tyEnd >>= 1;
+			combine(l, txStart, tyStart, txEnd, tyEnd);
+		}
+	}
+
+	private void scanTile(HeightField field, int tx, int ty)
+	{
+		float[] data = field.data;
+		int xStart = tx << TILE_SHIFT;
+		int yStart = ty << TILE_SHIFT;
+		int xEnd = Math.min(xStart + TILE_SIZE, width - 1);
+		int yEnd = Math.min(yStart + TILE_SIZE, length - 1);
+		float lo = Float.MAX_VALUE;
+		float hi = -Float.MAX_VALUE;
+		for (int y = yStart; y <= yEnd; y++)
+		{
+			int i = field.index(xStart, y);
+			for (int x = xStart; x <= xEnd; x++, i++)
+			{
+				float v = data[i];
+				lo = (v < lo) ? v : lo;
+				hi = (v > hi) ? v : hi;
+			}
+		}
+		int node = (ty * countX[0]) + tx;
+		min[0][node] = lo;
+		max[0][node] = hi;
+	}
+
+	private void combine(int level, int nxStart, int nyStart, int nxEnd, int nyEnd)
+	{
+		int childCountX = countX[level - 1];
+		int childCountY = countY[level - 1];
+		float[] childMin = min[level - 1];
+		float[] childMax = max[level - 1];
+		for (int ny = nyStart; ny <= nyEnd; ny++)
+			for (int nx = nxStart; nx <= nxEnd; nx++)
+			{
+				int cx = nx << 1;
+				int cy = ny << 1;
+				int cxEnd = Math.min(cx + 1, childCountX - 1);
+				int cyEnd = Math.min(cy + 1, childCountY - 1);
+				float lo = Float.MAX_VALUE;
+				float hi = -Float.MAX_VALUE;
+				for (int y = cy; y <= cyEnd; y++)
+					for (int x = cx; x <= cxEnd; x++)
+					{
+						int child = (y * childCountX) + x;
+						lo = Math.min(lo, childMin[child]);
+						hi = Math.max(hi, childMax[child]);
+					}
+				int node = (ny * countX[level]) + nx;
+				min[level][node] = lo;
+				max[level][node] = hi;
+			}
+	}
+
+	/**
+	 * Picks the lowest level on which the rectangle touches at most 2x2 nodes.
+	 */
+	private int getQueryLevel(int x0, int y0, int x1, int y1)
+	{
+		int l = 0;
+		while ((l < levelCount - 1) && (((x1 >> (TILE_SHIFT + l)) - (x0 >> (TILE_SHIFT + l)) > 1) || ((y1 >> (TILE_SHIFT + l)) - (y0 >> (TILE_SHIFT + l)) > 1)))
+			l++;
+		return l;
+	}
+
+	/**
+	 * Returns a lower bound of all heights in the given rectangle of vertices.<BR>
+	 * Looks at no more than four nodes, so the bound is conservative, not exact.
+	 */
+	public float getMin(int px, int py, int w, int h)
+	{
+		return getBound(px, py, w, h, false);
+	}
+
+	/**
+	 * Returns an upper bound of all heights in the given rectangle of vertices.<BR>
+	 * Looks at no more than four nodes, so the bound is conservative, not exact.
+	 */
+	public float getMax(int px, int py, int w, int h)
+	{
+		return getBound(px, py, w, h, true);
+	}
+
+	private float getBound(int px, int py, int w, int h, boolean upper)
+	{
+		int x0 = Math.max(px, 0);
+		int y0 = Math.max(py, 0);
+		int x1 = Math.min(Math.min(px + w, width) - 1, width - 2);
+		int y1 = Math.min(Math.min(py + h, length) - 1, length - 2);
+		x0 = Math.min(x0, x1);
+		y0 = Math.min(y0, y1);
+		if ((x1 < 0) || (y1 < 0))
+			return upper ? max[levelCount - 1][0] : min[levelCount - 1][0];
+		int level = getQueryLevel(x0, y0, x1, y1);
+		int shift = TILE_SHIFT + level;
+		float[] values = upper ? max[level] : min[level];
+		int cx = countX[level];
+		int nx0 = x0 >> shift;
+		int ny0 = y0 >> shift;
+		int nx1 = x1 >> shift;
+		int ny1 = y1 >> shift;
+		float a = values[(ny0 * cx) + nx0];
+		float b = values[(ny0 * cx) + nx1];
+		float c = values[(ny1 * cx) + nx0];
+		float d = values[(ny1 * cx) + nx1];
+		return upper ? Math.max(Math.max(a, b), Math.max(c, d)) : Math.min(Math.min(a, b), Math.min(c, d));
+	}
+
+	public int getLevelCount()
+	{
+		return levelCount;
+	}
+
+	public int getNodeCountX(int level)
+	{
+		return countX[level];
+	}
+
+	public int getNodeCountY(int level)
+	{
+		return countY[level];
+	}
+
+	/**
+	 * Width of a node on the given level, in quads.
+	 */
+	public int getNodeSize(int level)
+	{
+		return TILE_SIZE << level;
+	}
+
+	public float getNodeMin(int level, int nx, int ny)
+	{
+		return min[level][(ny * countX[level]) + nx];
+	}
+
+	public float getNodeMax(int level, int nx, int ny)
+	{
+		return max[level][(ny * countX[level]) + nx];
+	}
+}
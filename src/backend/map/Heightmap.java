@@ -1,7 +1,9 @@
 package backend.map;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import frontend.render.brushes.Brush;
 import frontend.render.brushes.HeightBrush;
@@ -10,6 +12,8 @@ import frontend.render.brushes.PrefabBrush;
 import backend.ErosionSetup;
 import backend.FastMath;
 import backend.FileHandler;
+import backend.HashRandom;
+import backend.ParallelTasks;
 import backend.TerraGenSetup;
 import backend.FileHandler.FileFormat;
 import backend.image.Bitmap;
@@ -24,22 +28,89 @@ public class Heightmap extends AbstractMap {
 	 */
 	public static final int springMapsizeHeightmapFactor = 64;
 	
-	private float[][] heightMap; 
+	/**
+	 * Flat row-major storage, (x, y) is at heightMap[y * heightMapWidth + x].<BR>
+	 * This always is heightField.data, cached here for the inner loops.
+	 */
+	private HeightField heightField;
+	private float[] heightMap;
 	private int heightMapWidth;
 	private int heightmapLength;
 	
 	private float[] buffer;
 	int bufferWidth = 0;
 	
+	/**
+	 * Scratch fields for whole map smoothing, kept between calls.
+	 */
+	private HeightField smoothBuffer;
+	private HeightField smoothTemp;
+	
+	/**
+	 * Scratch memory for the brush kernels, grows to the largest brush used.
+	 */
+	private float[] brushBuffer = new float[0];
+	
+	/**
+	 * Scratch water map of WET erosion, grows to the largest area eroded.
+	 */
+	private float[] waterBuffer = new float[0];
+	
+	/**
+	 * Active cells of DRY erosion, reused like waterBuffer.
+	 */
+	private ActiveCells activeCells;
+	
+	/**
+	 * Min/max bounds, updated by local edits and rebuilt on demand after whole map changes.<BR>
+	 * Read by the GUI and render threads while the worker edits, so pyramid and pyramidValid are only accessed holding pyramidLock.
+	 */
+	private HeightPyramid pyramid;
+	private boolean pyramidValid;
+	private final Object pyramidLock = new Object();
+	
+	/**
+	 * Steepness of the quads, refreshed tile by tile after edits. Null until first asked for.
+	 */
+	private volatile SteepnessField steepness;
+	
+	/**
+	 * Smoothed vertex normals, refreshed tile by tile after edits. Null until first asked for.
+	 */
+	private volatile NormalField normals;
+	
+	/**
+	 * Part of the water height that is dissolved soil in WET erosion.
+	 */
+	private static final float wetDropletSolveFactor = 0.05f;
+	
 	public Heightmap(int length, int width)
 	{
 		super((length * springMapsizeHeightmapFactor) + 1, (width * springMapsizeHeightmapFactor) + 1);
 		this.heightMapWidth = (width * springMapsizeHeightmapFactor) + 1;
 		this.heightmapLength = (length * springMapsizeHeightmapFactor) + 1;
-		this.heightMap = new float[heightmapLength][heightMapWidth];
+		setHeightField(new HeightField(heightmapLength, heightMapWidth));
 		this.buffer = new float[0];
 	}
 	
+	private void setHeightField(HeightField field)
+	{
+		this.heightField = field;
+		this.heightMap = field.data;
+		this.heightMapWidth = field.width;
+		this.heightmapLength = field.length;
+		synchronized (pyramidLock)
+		{
+			this.pyramidValid = false;
+		}
+		SteepnessField s = steepness;
+		if (s != null)
+			s.invalidate();
+		NormalField n = normals;
+		if (n != null)
+			n.invalidate();
+	}
+	
 	public int getHeightmapLength()
 	{
 		return heightmapLength;
@@ -52,21 +123,148 @@ public class Heightmap extends AbstractMap {
 	
 	public void setHeightMap(float[][] map)
 	{
-		for (int i = 0; i < heightMapWidth; i++)
-			for (int j = 0; j < heightmapLength; j++)
-				heightMap[i][j] = map[i][j];
+		heightField.fromArray(map);
+		heightChanged();
+	}
+	
+	public HeightField getHeightField()
+	{
+		return heightField;
+	}
+	
+	/**
+	 * Returns the min/max pyramid of the current heights, rebuilding it if needed. Can be called from any thread.<BR>
+	 * Bounds read while the worker thread edits the heights may be those of just before the edit.
+	 */
+	public HeightPyramid getHeightPyramid()
+	{
+		synchronized (pyramidLock)
+		{
+			HeightField field = heightField;
+			if ((pyramid == null) || !pyramid.fits(field))
+			{
+				pyramid = new HeightPyramid(field.width, field.length);
+				pyramidValid = false;
+			}
+			if (!pyramidValid)
+			{
+				pyramid.rebuild(field);
+				pyramidValid = true;
+			}
+			return pyramid;
+		}
+	}
+	
+	/**
+	 * Returns the steepness of the current heights, recomputing the tiles changed since the last call.
+	 */
+	public SteepnessField getSteepnessField()
+	{
+		SteepnessField result = getSteepness();
+		result.refresh(heightField);
+		return result;
+	}
+	
+	/**
+	 * Same as getSteepnessField(), with the slope layer computed for the given slopeScale (see SteepnessField.refresh()).
+	 */
+	public SteepnessField getSteepnessField(float slopeScale)
+	{
+		SteepnessField result = getSteepness();
+		result.refresh(heightField, slopeScale);
+		return result;
+	}
+	
+	private synchronized SteepnessField getSteepness()
+	{
+		if ((steepness == null) || !steepness.fits(heightField))
+			steepness = new SteepnessField(heightField.width, heightField.length);
+		return steepness;
+	}
+	
+	/**
+	 * Returns the smoothed vertex normals of the current heights, recomputing the tiles changed since the last call.<BR>
+	 * See NormalField.refresh() for the parameters.
+	 */
+	public NormalField getNormalField(float heightScale, float spacing, boolean fast)
+	{
+		NormalField result;
+		synchronized (this)
+		{
+			if ((normals == null) || !normals.fits(heightField))
+				normals = new NormalField(heightField.width, heightField.length);
+			result = normals;
+		}
+		result.refresh(heightField, heightScale, spacing, fast);
+		return result;
+	}
+	
+	/**
+	 * Must be called after heights in the given rectangle were changed from outside this class.
+	 */
+	public void heightChanged(int px, int py, int width, int height)
+	{
+		synchronized (pyramidLock)
+		{
+			if (pyramidValid && (pyramid != null) && pyramid.fits(heightField))
+				pyramid.update(heightField, px, py, width, height);
+		}
+		SteepnessField s = steepness;
+		if (s != null)
+			s.invalidate(px, py, width, height);
+		NormalField n = normals;
+		if (n != null)
+			n.invalidate(px, py, width, height);
+	}
+	
+	/**
+	 * Must be called after large parts of the heights were changed from outside this class.
+	 */
+	public void heightChanged()
+	{
+		synchronized (pyramidLock)
+		{
+			pyramidValid = false;
+		}
+		SteepnessField s = steepness;
+		if (s != null)
+			s.invalidate();
+		NormalField n = normals;
+		if (n != null)
+			n.invalidate();
 	}
 	
-	public float[][] getHeightMap()
+	/**
+	 * Intersects a ray with the terrain, see TerrainPicker.<BR>
+	 * x and z are in heightmap vertices, y in heightmap units (0 to 1).
+	 * @return the smallest t >= 0 where origin + t * direction hits the terrain, or -1
+	 */
+	public float intersectRay(float ox, float oy, float oz, float dx, float dy, float dz)
 	{
-		return heightMap;
+		return TerrainPicker.intersect(heightField, getHeightPyramid(), ox, oy, oz, dx, dy, dz);
+	}
+	
+	/**
+	 * Lower bound of the heights in the given rectangle, in O(1).
+	 */
+	public float getMinHeight(int px, int py, int width, int height)
+	{
+		return getHeightPyramid().getMin(px, py, width, height);
+	}
+	
+	/**
+	 * Upper bound of the heights in the given rectangle, in O(1).
+	 */
+	public float getMaxHeight(int px, int py, int width, int height)
+	{
+		return getHeightPyramid().getMax(px, py, width, height);
 	}
 	
 	public float getHeigth(int px, int py)
 	{
 		if (!validPosition(px, py))
 			return 0;
-		return heightMap[py][px];
+		return heightMap[py * heightMapWidth + px];
 	}
 	
 	public float[][] getHeigth(int x, int y, int xe, int ye)
@@ -79,16 +277,16 @@ public class Heightmap extends AbstractMap {
 		if (!validLength(ye))
 			ye = heightmapLength;
 		for (int i = y; i < ye; i++)
-			System.arraycopy(heightMap[i], x, hm[i - y], 0, xe - x);
+			heightField.getRow(x, i, xe - x, hm[i - y], 0);
 		return hm;
 	}
 	
 	public void saveHeightMap(File heightmapFile, FileFormat fileFormat)
 	{
 		if (fileFormat == FileFormat.PNG16Bit)
-			ImageSaver.saveImageGrayscaleFloat(heightmapFile, new ImageGrayscaleFloat(heightMap), fileFormat, true);
+			ImageSaver.saveImageGrayscaleFloat(heightmapFile, new ImageGrayscaleFloat(heightField.toArray()), fileFormat, true);
 		else
-			new Bitmap(fileFormat).saveDataFromHeightmap(heightmapFile, heightMap, heightMapWidth, heightmapLength);
+			new Bitmap(fileFormat).saveDataFromHeightmap(heightmapFile, heightField.toArray(), heightMapWidth, heightmapLength);
 	}
 	
 	/**
@@ -98,14 +296,7 @@ public class Heightmap extends AbstractMap {
 	public void loadDataIntoHeightmap(File heightmapFile)
 	{
 		if (FileHandler.isHandledByBitmap(heightmapFile))
-		{
-			Bitmap bitmap = new Bitmap(heightmapFile);
-			if (bitmap.width != heightMapWidth)
-				throw new IllegalArgumentException("Image width must be: " + heightMapWidth);
-			if (bitmap.height != heightmapLength)
-				throw new IllegalArgumentException("Image length must be: " + heightmapLength);
-			bitmap.loadDataIntoHeightmap(heightMap);
-		}
+			loadDataIntoHeightmap(new Bitmap(heightmapFile));
 		else
 			loadDataIntoHeightmap(ImageLoader.loadImageGrayscaleFloat(heightmapFile, true));
 	}
@@ -116,7 +307,10 @@ public class Heightmap extends AbstractMap {
 			throw new IllegalArgumentException("Image width must be: " + heightMapWidth);
 		if (bitmap.height != heightmapLength)
 			throw new IllegalArgumentException("Image length must be: " + heightmapLength);
-		bitmap.loadDataIntoHeightmap(this.heightMap);
+		float[][] data = new float[heightmapLength][heightMapWidth];
+		bitmap.loadDataIntoHeightmap(data);
+		heightField.fromArray(data);
+		heightChanged();
 	}
 	
 	public void loadDataIntoHeightmap(ImageGrayscaleFloat image)
@@ -125,43 +319,36 @@ public class Heightmap extends AbstractMap {
 			throw new IllegalArgumentException("Image width must be: " + heightMapWidth);
 		if (image.height != heightmapLength)
 			throw new IllegalArgumentException("Image length must be: " + heightmapLength);
-		float[][] data = image.data;
-		for (int y = 0; y < heightmapLength; y++) // Warning: axis references are inverted!
-			for (int x = 0; x < heightMapWidth; x++)
-				heightMap[y][x] = data[y][x]; //System.arraycopy(data[y], 0, heightMap[y], 0, image.width);
+		heightField.fromArray(image.data);
+		heightChanged();
 	}
 	
 	public void switchMapAxis()
 	{
-		int t = heightMapWidth;
-		heightMapWidth = heightmapLength;
-		heightmapLength = t;
-		float[][] newMap = new float[heightmapLength][heightMapWidth];
-		for (int y = 0; y < heightmapLength; y++)
-			for (int x = 0; x < heightMapWidth; x++)
-				newMap[y][x] = heightMap[x][y];
-		heightMap = newMap;
+		HeightField newField = new HeightField(heightMapWidth, heightmapLength);
+		float[] newMap = newField.data;
+		for (int y = 0; y < newField.length; y++)
+			for (int x = 0; x < newField.width; x++)
+				newMap[y * newField.stride + x] = heightMap[x * heightMapWidth + y];
+		setHeightField(newField);
 	}
 	
 	public void resizeMap(int NewHeight, int NewWidth)
 	{
-		float[][] newMap = new float[NewHeight][NewWidth];
+		HeightField newField = new HeightField(NewHeight, NewWidth);
 		int width = NewWidth;
 		if (width > heightMapWidth)
 			width = heightMapWidth;
 		int height = NewHeight;
 		if (height > heightmapLength)
 			height = heightmapLength;
-		for (int y = 0; y < height; y++)
-			System.arraycopy(heightMap[y], 0, newMap[y], 0, width);
-		heightMap = newMap;
-		heightMapWidth = NewWidth;
-		heightmapLength = NewHeight;
+		newField.pasteRect(0, 0, width, height, heightMap, 0, heightMapWidth);
+		setHeightField(newField);
 	}
 	
 	public void moveMap(int start, int length, int amount, boolean vertically)
 	{
-		float[][] t;
+		float[] t;
 		if (amount <= 0 || amount >= length)
 			return;
 		if (vertically)
@@ -177,16 +364,14 @@ public class Heightmap extends AbstractMap {
 				length = heightMapWidth - start;
 			if (length <= 0)
 				return;
-			t = new float[heightmapLength][amount];
+			t = new float[amount];
 			for (int y = 0; y < heightmapLength; y++)
-				for (int x = 0; x < amount; x++)
-					t[y][x] = heightMap[y][start + length - amount + x];
-			for (int y = 0; y < heightmapLength; y++)
-				for (int x = length - amount - 1; x >= 0; x--)
-					heightMap[y][start + amount + x] = heightMap[y][start + x];
-			for (int y = 0; y < heightmapLength; y++)
-				for (int x = 0; x < amount; x++)
-					heightMap[y][start + x] = t[y][x];
+			{
+				int row = y * heightMapWidth;
+				System.arraycopy(heightMap, row + start + length - amount, t, 0, amount);
+				System.arraycopy(heightMap, row + start, heightMap, row + start + amount, length - amount);
+				System.arraycopy(t, 0, heightMap, row + start, amount);
+			}
 		}
 		else
 		{
@@ -201,17 +386,13 @@ public class Heightmap extends AbstractMap {
 				length = heightmapLength - start;
 			if (length <= 0)
 				return;
-			t = new float[amount][heightMapWidth];
-			for (int y = 0; y < amount; y++)
-				for (int x = 0; x < heightMapWidth; x++)
-					t[y][x] = heightMap[start + length - amount + y][x];
-			for (int y = length - amount - 1; y >= 0; y--)
-				for (int x = 0; x < heightMapWidth; x++)
-					heightMap[start + amount + y][x] = heightMap[start + y][x];
-			for (int y = 0; y < amount; y++)
-				for (int x = 0; x < heightMapWidth; x++)
-					heightMap[start + y][x] = t[y][x];
+			//Rows are contiguous, so whole bands can be moved at once
+			t = new float[amount * heightMapWidth];
+			System.arraycopy(heightMap, (start + length - amount) * heightMapWidth, t, 0, t.length);
+			System.arraycopy(heightMap, start * heightMapWidth, heightMap, (start + amount) * heightMapWidth, (length - amount) * heightMapWidth);
+			System.arraycopy(t, 0, heightMap, start * heightMapWidth, t.length);
 		}
+		heightChanged();
 	}
 	
 	public void mirrorMap(int start, int length, int offset, boolean vertically)
@@ -242,7 +423,7 @@ public class Heightmap extends AbstractMap {
 			offset += start + length - 1;
 			for (int y = 0; y < heightmapLength; y++)
 				for (int x = 0; x < length; x++)
-					heightMap[y][offset - x] = heightMap[y][start + x];
+					heightMap[y * heightMapWidth + offset - x] = heightMap[y * heightMapWidth + start + x];
 		}
 		else
 		{
@@ -270,9 +451,10 @@ public class Heightmap extends AbstractMap {
 			offset += start + length - 1;
 			for (int y = 0; y < length; y++)
 				for (int x = 0; x < heightMapWidth; x++)
-					heightMap[offset - y][x] = heightMap[start + y][x];
+					heightMap[(offset - y) * heightMapWidth + x] = heightMap[(start + y) * heightMapWidth + x];
 			//System.arraycopy(heightMap, start + y, heightMap, offset - y, length);
 		}
+		heightChanged();
 	}
 	
 	public void flipMap(int start, int length, int offset, boolean vertically)
@@ -305,9 +487,9 @@ public class Heightmap extends AbstractMap {
 			for (int y = 0; y < heightmapLength; y++)
 				for (int x = 0; x < length; x++)
 				{
-					t = heightMap[y][offset - x];
-					heightMap[y][offset - x] = heightMap[y][start + x];
-					heightMap[y][start + x] = t;
+					t = heightMap[y * heightMapWidth + offset - x];
+					heightMap[y * heightMapWidth + offset - x] = heightMap[y * heightMapWidth + start + x];
+					heightMap[y * heightMapWidth + start + x] = t;
 				}
 		}
 		else
@@ -337,11 +519,12 @@ public class Heightmap extends AbstractMap {
 			for (int y = 0; y < length; y++)
 				for (int x = 0; x < heightMapWidth; x++)
 				{
-					t = heightMap[offset - y][x];
-					heightMap[offset - y][x] = heightMap[start + y][x];
-					heightMap[start + y][x] = t;
+					t = heightMap[(offset - y) * heightMapWidth + x];
+					heightMap[(offset - y) * heightMapWidth + x] = heightMap[(start + y) * heightMapWidth + x];
+					heightMap[(start + y) * heightMapWidth + x] = t;
 				}
 		}
+		heightChanged();
 	}
 	
 	public void copy(int px, int py, int height, int width)
@@ -366,9 +549,7 @@ public class Heightmap extends AbstractMap {
 			return;
 		buffer = new float[height * width];
 		bufferWidth = width;
-		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width; x++)
-				buffer[y * width + x] = heightMap[py + y][px + x];
+		heightField.copyRect(px, py, width, height, buffer, 0, width);
 	}
 	
 	public void paste(int px, int py, Brush brush)
@@ -411,9 +592,8 @@ public class Heightmap extends AbstractMap {
 			return;
 		if (height > buffer.length / tempBufferWidth)
 			height = buffer.length / tempBufferWidth;
-		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width; x++)
-				heightMap[py + y][px + x] = tempBuffer[y * tempBufferWidth + x];// + (amount * pattern[x - px][y - py]);
+		heightField.pasteRect(px, py, width, height, tempBuffer, 0, tempBufferWidth);
+		heightChanged(px, py, width, height);
 	}
 	
 	public void modifyHeight(int px, int py, HeightBrush brush, boolean invert)
@@ -421,91 +601,33 @@ public class Heightmap extends AbstractMap {
 		float amount = brush.getStrength();
 		if (invert)
 			amount = -amount;
-		float[][] pattern = brush.getPattern().getPattern();
-		float[][] newPattern = pattern;
-		int height = brush.getHeight();
-		int width = brush.getWidth();
-		if (px >= heightMapWidth || py >= heightmapLength)
-			return;
-		if (px < 0)
-		{
-			width += px;
-			if (width <= 0)
-				return;
-			newPattern = new float[width][height];
-			System.arraycopy(pattern, -px - 1, newPattern, 0, width);
-			pattern = newPattern;
-			px = 0;
-		}
-		if (py < 0)
-		{
-			height += py;
-			if (height <= 0)
-				return;
-			newPattern = new float[width][height];
-			for (int x = 0; x < width; x++)
-				System.arraycopy(pattern[x], -py - 1, newPattern[x], 0, height);
-			py = 0;
-		}
-		if (height + py >= heightmapLength)
-			height = heightmapLength - py;
-		if (width + px >= heightMapWidth)
-			width = heightMapWidth - px;
-		if (width <= 0)
+		float[] pattern = brush.getPattern().getPatternRows();
+		int patternWidth = brush.getWidth();
+		int bx = Math.max(0, -px);
+		int by = Math.max(0, -py);
+		int width = Math.min(patternWidth, heightMapWidth - px) - bx;
+		int height = Math.min(brush.getHeight(), heightmapLength - py) - by;
+		if (width <= 0 || height <= 0)
 			return;
-		for (int y = py; y < py + height; y++)
-			for (int x = px; x < px + width; x++)
-			{
-				heightMap[y][x] += amount * newPattern[x - px][y - py];
-				if (heightMap[y][x] > 1)
-					heightMap[y][x] = 1;
-				else if (heightMap[y][x] < 0)
-					heightMap[y][x] = 0;
-			}
+		for (int y = 0; y < height; y++)
+			HeightBrushKernels.add(heightMap, ((py + by + y) * heightMapWidth) + px + bx, pattern, ((by + y) * patternWidth) + bx, width, amount);
+		heightChanged(px + bx, py + by, width, height);
 	}
 	
 	public void setHeight(int px, int py, HeightBrush brush)
 	{
 		float amount = Math.min(1f, brush.getStrength());
-		float[][] pattern = brush.getPattern().getPattern();
-		float[][] newPattern = pattern;
-		int height = brush.getHeight();
-		int width = brush.getWidth();
-		if (px >= heightMapWidth || py >= heightmapLength)
+		float[] pattern = brush.getPattern().getPatternRows();
+		int patternWidth = brush.getWidth();
+		int bx = Math.max(0, -px);
+		int by = Math.max(0, -py);
+		int width = Math.min(patternWidth, heightMapWidth - px) - bx;
+		int height = Math.min(brush.getHeight(), heightmapLength - py) - by;
+		if (width <= 0 || height <= 0)
 			return;
-		if (px < 0)
-		{
-			width += px;
-			if (width <= 0)
-				return;
-			newPattern = new float[width][height];
-			System.arraycopy(pattern, -px - 1, newPattern, 0, width);
-			pattern = newPattern;
-			px = 0;
-		}
-		if (py < 0)
-		{
-			height += py;
-			if (height <= 0)
-				return;
-			newPattern = new float[width][height];
-			for (int x = 0; x < width; x++)
-				System.arraycopy(pattern[x], -py - 1, newPattern[x], 0, height);
-			py = 0;
-		}
-		if (height + py >= heightmapLength)
-			height = heightmapLength - py;
-		if (width + px >= heightMapWidth)
-			width = heightMapWidth - px;
-		if (width <= 0)
-			return;
-		for (int y = py; y < py + height; y++)
-			for (int x = px; x < px + width; x++)
-			{
-				if (newPattern[x - px][y - py] > 0) {
-					heightMap[y][x] = amount;
-				}
-			}
+		for (int y = 0; y < height; y++)
+			HeightBrushKernels.set(heightMap, ((py + by + y) * heightMapWidth) + px + bx, pattern, ((by + y) * patternWidth) + bx, width, amount);
+		heightChanged(px + bx, py + by, width, height);
 	}
 	
 	public void addHeightToMap(float setHeight)
@@ -513,86 +635,58 @@ public class Heightmap extends AbstractMap {
 		for (int y = 0; y < heightmapLength; y++)
 			for (int x = 0; x < heightMapWidth; x++)
 			{
-				heightMap[y][x] = heightMap[y][x] + setHeight;
-				if (heightMap[y][x] > 1)
-					heightMap[y][x] = 1;
-				else if (heightMap[y][x] < 0)
-					heightMap[y][x] = 0;
+				heightMap[y * heightMapWidth + x] = heightMap[y * heightMapWidth + x] + setHeight;
+				if (heightMap[y * heightMapWidth + x] > 1)
+					heightMap[y * heightMapWidth + x] = 1;
+				else if (heightMap[y * heightMapWidth + x] < 0)
+					heightMap[y * heightMapWidth + x] = 0;
 			}
+		heightChanged();
 	}
 	
 	public void setHeightToMap(float setHeight)
 	{
 		for (int y = 0; y < heightmapLength; y++)
 			for (int x = 0; x < heightMapWidth; x++)
-				heightMap[y][x] = setHeight;
+				heightMap[y * heightMapWidth + x] = setHeight;
+		heightChanged();
 	}
 	
 	public void smoothHeight(int px, int py, HeightBrush brush, float strength)
 	{
-		int length = brush.getHeight();
-		int width = brush.getWidth();
+		float[] pattern = brush.getPattern().getPatternRows();
+		int patternWidth = brush.getWidth();
+		int bx = Math.max(0, -px);
+		int by = Math.max(0, -py);
+		int width = Math.min(patternWidth, heightMapWidth - px) - bx;
+		int length = Math.min(brush.getHeight(), heightmapLength - py) - by;
 		if (width <= 2 || length <= 2)
 			return;
-		float[][] smoothedMap;
-		float[][] pattern = brush.getPattern().getPattern();
-		float[][] newPattern;
-		if (px >= heightMapWidth || py >= heightmapLength)
-			return;
-		if (px < 0)
-		{
-			width += px;
-			if (width <= 2)
-				return;
-			newPattern = new float[width][length];
-			System.arraycopy(pattern, -px, newPattern, 0, width);
-			pattern = newPattern;
-			px = 0;
-		}
-		if (py < 0)
-		{
-			length += py;
-			if (length <= 2)
-				return;
-			newPattern = new float[width][length];
-			for (int x = 0; x < width; x++)
-				System.arraycopy(pattern[x], -py, newPattern[x], 0, length);
-			pattern = newPattern;
-			py = 0;
-		}
-		if (length + py >= heightmapLength)
-			length = heightmapLength - py;
-		if (width + px >= heightMapWidth)
-			width = heightMapWidth - px;
-		if (width <= 2 || length <= 2)
-			return;
-		smoothedMap = new float[length][width];
+		px += bx;
+		py += by;
+		//Smooth the whole area first, so already blended pixels do not feed their neighbours
+		float[] smoothedMap = getBrushBuffer(width * length);
 		for (int y = 0; y < length; y++)
-			for (int x = 0; x < width; x++)
-				smoothedMap[y][x] = smooth9HeightmapBorderAware(px + x, py + y);
-		/*float yStart = heightMap[py][px + width / 2];
-		float xStart = heightMap[py + length / 2][px];
-		float yGradient = (heightMap[py + length - 1][px + width / 2] - yStart) / length;
-		float xGradient = (heightMap[py + length / 2][px + width - 1] - xStart) / width;*/
-		/*for (int x = 0; x < width - 2; x++)
 		{
-			float xStart = heightMap[py][px + x];
-			float xGradient = (heightMap[py + length - 1][px + x] - xStart) / length;
-			for (int y = 0; y < length - 2; y++)
-				smoothedMap[y][x] += newSmooth(limit, px + x + 1, py + y + 1, xStart + xGradient * (x + 1));
-		}*/	
-		/*for (int y = 0; y < length - 2; y++)
-		{
-			float yStart = heightMap[py + y][px];
-			float yGradient = (heightMap[py + y][px + width - 1] - yStart) / width;
-			for (int x = 0; x < width - 2; x++)
-				smoothedMap[y][x] += newSmooth(limit, px + x + 1, py + y + 1, yStart + yGradient * (y + 1));
-		}*/
-		for (int y = 0; y < length; y++)
-			for (int x = 0; x < width; x++) {
-				float alpha = pattern[x][y] * strength;
-				heightMap[py + y][px + x] = ((1f - alpha) * heightMap[py + y][px + x]) + (alpha * smoothedMap[y][x]);
+			int my = py + y;
+			int out = y * width;
+			if ((my == 0) || (my == heightmapLength - 1))
+			{
+				for (int x = 0; x < width; x++)
+					smoothedMap[out + x] = smooth9HeightmapBorderAware(px + x, my);
+				continue;
 			}
+			int xStart = (px == 0) ? 1 : 0;
+			int xEnd = (px + width == heightMapWidth) ? width - 1 : width;
+			if (xStart > 0)
+				smoothedMap[out] = smooth9HeightmapBorderAware(px, my);
+			HeightBrushKernels.average3x3(heightMap, (my * heightMapWidth) + px + xStart, heightMapWidth, smoothedMap, out + xStart, xEnd - xStart);
+			if (xEnd < width)
+				smoothedMap[out + width - 1] = smooth9HeightmapBorderAware(px + width - 1, my);
+		}
+		for (int y = 0; y < length; y++)
+			HeightBrushKernels.blend(heightMap, ((py + y) * heightMapWidth) + px, smoothedMap, y * width, pattern, ((by + y) * patternWidth) + bx, width, strength);
+		heightChanged(px, py, width, length);
 	}
 	
 	public void setPrefabHeightMap(int px, int py, PrefabBrush brush, float brushHeightAlign, int maxHeight)
@@ -609,13 +703,14 @@ public class Heightmap extends AbstractMap {
 				for (int x = px; x < px + brush.getWidth() && x < brush.heightmap.getPattern()[y - py].length + px; x++)
 					if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength))
 					{
-						heightMap[y][x] = amount + (scale * pattern[y - py][x - px]);
-						if (heightMap[y][x] > 1)
-							heightMap[y][x] = 1;
-						else if (heightMap[y][x] < 0)
-							heightMap[y][x] = 0;
+						heightMap[y * heightMapWidth + x] = amount + (scale * pattern[y - py][x - px]);
+						if (heightMap[y * heightMapWidth + x] > 1)
+							heightMap[y * heightMapWidth + x] = 1;
+						else if (heightMap[y * heightMapWidth + x] < 0)
+							heightMap[y * heightMapWidth + x] = 0;
 					}
 		}
+		heightChanged(px, py, brush.getWidth(), brush.getHeight());
 	}
 	
 	public void addPrefabHeightMap(int px, int py, PrefabBrush brush, boolean invert) 
@@ -629,63 +724,98 @@ public class Heightmap extends AbstractMap {
 					if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength))
 					{
 						if (invert)
-							heightMap[y][x] = heightMap[y][x] - (scale * pattern[y - py][x - px]);
+							heightMap[y * heightMapWidth + x] = heightMap[y * heightMapWidth + x] - (scale * pattern[y - py][x - px]);
 						else
-							heightMap[y][x] = heightMap[y][x] + (scale * pattern[y - py][x - px]);
-						if (heightMap[y][x] > 1)
-							heightMap[y][x] = 1;
-						else if (heightMap[y][x] < 0)
-							heightMap[y][x] = 0;
+							heightMap[y * heightMapWidth + x] = heightMap[y * heightMapWidth + x] + (scale * pattern[y - py][x - px]);
+						if (heightMap[y * heightMapWidth + x] > 1)
+							heightMap[y * heightMapWidth + x] = 1;
+						else if (heightMap[y * heightMapWidth + x] < 0)
+							heightMap[y * heightMapWidth + x] = 0;
 					}
 		}
+		heightChanged(px, py, brush.getWidth(), brush.getHeight());
 	}
 	
 	public void makeRamp(int pxs, int pys, int pxe, int pye, int w)
 	{
-		float start = heightMap[pxs][pys];
-		float gradient = start - heightMap[pxe][pye] / pxs - pxe + pys - pye;
+		float start = heightMap[pxs * heightMapWidth + pys];
+		float gradient = start - heightMap[pxe * heightMapWidth + pye] / pxs - pxe + pys - pye;
 		float angle = 0;
 		for (int y = pys; y < pye; y++)
 			for (int x = pxs; x < pxe; x++)
-				heightMap[y][x] = gradient;
+				heightMap[y * heightMapWidth + x] = gradient;
+		heightChanged();
 }
 	
 	public void smoothMap(float strength)
+	{
+		smoothMap(strength, 1);
+	}
+	
+	/**
+	 * Smoothes the whole map iterations times with a 3x3 box filter.<BR>
+	 * Runs in parallel and reuses the same two buffers for all passes.
+	 */
+	public void smoothMap(float strength, int iterations)
 	{
 		long start = System.nanoTime();
-		int x, y;
-		float[][] smoothedMap = new float[heightmapLength][heightMapWidth];
-		//Center (No Border checks required -> faster)
-		for (y = 1; y < heightmapLength - 1; y++)
-			for (x = 1; x < heightMapWidth - 1; x++)
-				smoothedMap[y][x] = smooth9(strength, heightMap[y][x], heightMap[y - 1][x - 1], heightMap[y - 1][x], heightMap[y - 1][x + 1],
-						heightMap[y][x - 1], heightMap[y][x + 1], heightMap[y + 1][x - 1], heightMap[y + 1][x], heightMap[y + 1][x + 1]);
-		//Left Border
-		for (y = 1; y < heightmapLength - 1; y++)
-			smoothedMap[y][0] = ((1f-strength) * heightMap[y][0]) + (strength * smooth9HeightmapBorderAware(0, y));
-		//Right Border
-		for (y = 1; y < heightmapLength - 1; y++)
-			smoothedMap[y][heightMapWidth - 1] = ((1f-strength) * heightMap[y][heightMapWidth - 1]) + (strength * smooth9HeightmapBorderAware(heightMapWidth - 1, y));
-		//Upper Border
-		for (x = 0; x < heightMapWidth; x++)
-			smoothedMap[0][x] = ((1f - strength) * heightMap[0][x]) + (strength * smooth9HeightmapBorderAware(x, 0));
-		//Lower Border
-		for (x = 0; x < heightMapWidth; x++)
-			smoothedMap[heightmapLength - 1][x] = ((1f - strength) * heightMap[heightmapLength - 1][x]) + (strength * smooth9HeightmapBorderAware(x, heightmapLength - 1));
-		
-		heightMap = smoothedMap;
+		for (int i = 0; i < iterations; i++)
+		{
+			HeightField target = getSmoothBuffer();
+			HeightFieldSmoother.smooth3x3(heightField, target, strength);
+			swapSmoothBuffer();
+		}
 		System.out.println("Done smoothing heightMap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
 	}
 	
+	/**
+	 * Smoothes the whole map with a (2 * radius + 1)^2 box filter.<BR>
+	 * Separable, so large radii cost the same per pixel as small ones.
+	 */
+	public void smoothMapSeparable(float strength, int radius, int iterations)
+	{
+		long start = System.nanoTime();
+		if (smoothTemp == null || smoothTemp.width != heightMapWidth || smoothTemp.length != heightmapLength)
+			smoothTemp = new HeightField(heightmapLength, heightMapWidth);
+		for (int i = 0; i < iterations; i++)
+		{
+			HeightField target = getSmoothBuffer();
+			HeightFieldSmoother.smoothSeparable(heightField, smoothTemp, target, strength, radius);
+			swapSmoothBuffer();
+		}
+		System.out.println("Done smoothing heightMap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+	}
+	
+	private float[] getBrushBuffer(int size)
+	{
+		if (brushBuffer.length < size)
+			brushBuffer = new float[size];
+		return brushBuffer;
+	}
+	
+	private HeightField getSmoothBuffer()
+	{
+		if (smoothBuffer == null || smoothBuffer.width != heightMapWidth || smoothBuffer.length != heightmapLength)
+			smoothBuffer = new HeightField(heightmapLength, heightMapWidth);
+		return smoothBuffer;
+	}
+	
+	private void swapSmoothBuffer()
+	{
+		HeightField old = heightField;
+		setHeightField(smoothBuffer);
+		smoothBuffer = old;
+	}
+	
 	private float newSmooth(float limit, int x, int y, float g)
 	{
-		if (Math.abs((g - heightMap[y][x]) / 4) < limit)
+		if (Math.abs((g - heightMap[y * heightMapWidth + x]) / 4) < limit)
 		{
-			if ((g - heightMap[y][x]) / 4 + heightMap[y][x] < 0.0)
-				return 0 - heightMap[y][x];
-			if ((g - heightMap[y][x]) / 4 + heightMap[y][x] >= 1.0)
-				return 1 - heightMap[y][x];
-			return (g - heightMap[y][x]) / 4;
+			if ((g - heightMap[y * heightMapWidth + x]) / 4 + heightMap[y * heightMapWidth + x] < 0.0)
+				return 0 - heightMap[y * heightMapWidth + x];
+			if ((g - heightMap[y * heightMapWidth + x]) / 4 + heightMap[y * heightMapWidth + x] >= 1.0)
+				return 1 - heightMap[y * heightMapWidth + x];
+			return (g - heightMap[y * heightMapWidth + x]) / 4;
 		}
 		else
 			return 0;
@@ -693,130 +823,63 @@ public class Heightmap extends AbstractMap {
 	
 	private float smooth9HeightmapBorderAware(int x, int y)
 	{
-		float value = heightMap[y][x];
+		float value = heightMap[y * heightMapWidth + x];
 		int pointsUsed = 1;
 		
 		if (y > 0) //Upper Border
 		{
-			value += heightMap[y - 1][x];
+			value += heightMap[(y - 1) * heightMapWidth + x];
 			pointsUsed++;
 		}
 		if (y < (heightmapLength - 1)) //Lower Border
 		{
-			value += heightMap[y + 1][x];
+			value += heightMap[(y + 1) * heightMapWidth + x];
 			pointsUsed++;
 		}
 		if (x > 0) //Left Border
 		{
-			value += heightMap[y][x - 1];
+			value += heightMap[y * heightMapWidth + x - 1];
 			pointsUsed++;
 			
 			if (y > 0)
 			{
-				value += heightMap[y - 1][x - 1];
+				value += heightMap[(y - 1) * heightMapWidth + x - 1];
 				pointsUsed++;
 			}
 			if (y < (heightmapLength - 1))
 			{
-				value += heightMap[y + 1][x - 1];
+				value += heightMap[(y + 1) * heightMapWidth + x - 1];
 				pointsUsed++;
 			}
 		}
 		if (x < (heightMapWidth - 1)) //Right Border
 		{
-			value += heightMap[y][x + 1];
+			value += heightMap[y * heightMapWidth + x + 1];
 			pointsUsed++;
 			
 			if (y > 0)
 			{
-				value += heightMap[y - 1][x + 1];
+				value += heightMap[(y - 1) * heightMapWidth + x + 1];
 				pointsUsed++;
 			}
 			if (y < (heightmapLength - 1))
 			{
-				value += heightMap[y + 1][x + 1];
+				value += heightMap[(y + 1) * heightMapWidth + x + 1];
 				pointsUsed++;
 			}
 		}
-		return (value / pointsUsed) /*- heightMap[y][x]*/;
-	}
-	
-	private float smooth9(float limit, float center, float v2, float v3, float v4, float v5, float v6, float v7, float v8, float v9)
-	{
-		/*if (limit < Math.abs(center - v2))
-			return center;
-		if (limit < Math.abs(center - v3))
-			return center;
-		if (limit < Math.abs(center - v4))
-			return center;
-		if (limit < Math.abs(center - v5))
-			return center;
-		if (limit < Math.abs(center - v6))
-			return center;
-		if (limit < Math.abs(center - v7))
-			return center;
-		if (limit < Math.abs(center - v8))
-			return center;
-		if (limit < Math.abs(center - v9))
-			return center;*/
-		return ((1f - limit) * center) + (limit * ((center + v2 + v3 + v4 + v5 + v6 + v7 + v8 + v9) / 9));
-	}
-	
-	public float getSmoothedSteepness(int x, int y, float fractX, float fractY)
-	{
-		float st1 = 0;
-		float st2 = 0;
-		float st3 = 0;
-		float st4 = 0;
-		
-		float maxHeight = Math.max(Math.max(Math.max(heightMap[y][x], heightMap[y + 1][x]), heightMap[y + 1][x + 1]), heightMap[y][x + 1]);
-		float minHeight = Math.min(Math.min(Math.min(heightMap[y][x], heightMap[y + 1][x]), heightMap[y + 1][x + 1]), heightMap[y][x + 1]);
-		st1 = maxHeight - minHeight;
-
-		int xMod = 0;
-		int yMod = 0;
-		if (y < (heightmapLength - 2))
-		{
-			yMod = 1;
-			maxHeight = Math.max(Math.max(Math.max(heightMap[y + 0 + yMod][x + 0], heightMap[y + 1 + yMod][x + 0]),
-					heightMap[y + 1 + yMod][x + 1]), heightMap[y + 0 + yMod][x + 1]);
-			minHeight = Math.min(Math.min(Math.min(heightMap[y + 0 + yMod][x + 0], heightMap[y + 1 + yMod][x + 0]),
-					heightMap[y + 1 + yMod][x + 1]), heightMap[y + 0 + yMod][x + 1]);
-			st2 = maxHeight - minHeight;
-		}
-		
-		if ((x < (heightMapWidth - 2)) && (y < (heightmapLength - 2)))
-		{
-			xMod = 1;
-			yMod = 1;
-			maxHeight = Math.max(Math.max(Math.max(heightMap[y + yMod][x + xMod], heightMap[y + 1 + yMod][x + xMod]),
-					heightMap[y + 1 + yMod][x + 1 + xMod]), heightMap[y + yMod][x + 1 + xMod]);
-			minHeight = Math.min(Math.min(Math.min(heightMap[y + yMod][x + xMod], heightMap[y + 1 + yMod][x + xMod]),
-					heightMap[y + 1 + yMod][x + 1 + xMod]), heightMap[y + yMod][x + 1 + xMod]);
-			st3 = maxHeight - minHeight;
-		}
-		
-		if (x < (heightMapWidth - 2))
-		{
-			xMod = 1;
-			yMod = 0;
-			maxHeight = Math.max(Math.max(Math.max(heightMap[y + 0 + yMod][x + 0 + xMod], heightMap[y + 1 + yMod][x + 0 + xMod]),
-					heightMap[y + 1 + yMod][x + 1 + xMod]), heightMap[y + 0 + yMod][x + 1 + xMod]);
-			minHeight = Math.min(Math.min(Math.min(heightMap[y + 0 + yMod][x + 0 + xMod], heightMap[y + 1 + yMod][x + 0 + xMod]),
-					heightMap[y + 1 + yMod][x + 1 + xMod]), heightMap[y + 0 + yMod][x + 1 + xMod]);
-			st4 = maxHeight - minHeight;
-		}
-		
-		float steepYLeft =  ((1 - fractY) * st1) + (fractY * st2);
-		float steepYRight = ((1 - fractY) * st4) + (fractY * st3);
-		
-		return ((1 - fractX) * steepYLeft) + (fractX * steepYRight);
+		return (value / pointsUsed) /*- heightMap[y * heightMapWidth + x]*/;
 	}
 	
 	public void erodeMapWet(int px, int py, int width, int height, ErosionSetup setup)
 	{
 		if (setup == null)
 			return;
+		if (setup.useDropletMethod)
+		{
+			erodeMapDroplets(px, py, width, height, setup);
+			return;
+		}
 		if (setup.useAlternativeWetMethod)
 		{
 			erodeMapDryWet(px, py, width, height, true, setup);
@@ -826,15 +889,7 @@ public class Heightmap extends AbstractMap {
 		long start = System.nanoTime();
 		
 		int iterations = setup.wetIterations;
-		float dropletHeight = setup.wetDropletHeight;
-		float evaporateAmount = setup.wetEvaporateAmount;
-		
 		final int oneTenthsOfHeight = Math.max(iterations / 10, 1);
-		float[][] waterMap = new float[heightmapLength][heightMapWidth];
-		float dropletSolveFactor = 0.05f;
-		float tmpDouble, tmpDouble2;
-		boolean foundMoveLocation;
-		int xMod, yMod;
 		
 		int bWidth = width;
 		int bHeight = height;
@@ -852,144 +907,259 @@ public class Heightmap extends AbstractMap {
 			bWidth = heightMapWidth - px;
 		if (bHeight + py >= heightmapLength)
 			bHeight = heightmapLength - py;
-			
+		if (bWidth <= 0 || bHeight <= 0)
+			return;
+		
+		float[] waterMap = getWaterBuffer(getWaterMapSize(px, py, px + bWidth, py + bHeight));
 		for (int i = 0; i < iterations; i++)
 		{
-			//1. Distribute Water and solve some terrain
-			for (int y = py; y < py + bHeight; y++)
-				for (int x = px; x < px + bWidth; x++)
-					if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength) && (heightMap[y][x] > dropletHeight * dropletSolveFactor))
-					{
-						waterMap[y][x] += dropletHeight;
-						heightMap[y][x] -= dropletHeight * dropletSolveFactor;
-					}
+			erodeWetIteration(waterMap, px, py, px + bWidth, py + bHeight, setup.wetDropletHeight, setup.wetEvaporateAmount);
 			
-			//2. Move Water
-			for (int y = py; y < py + bHeight; y++)
-				for (int x = px; x < px + bWidth; x++)
-					if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength))
-					{
-						xMod = 0;
-						yMod = 0;
-						foundMoveLocation = false;
-						tmpDouble =  heightMap[y][x] + waterMap[y][x]; //Waterheight on center
-						
-						if ((x - 1 >= px) && (y - 1 >= py))
-						{
-							tmpDouble2 = heightMap[y - 1][x - 1] + waterMap[y - 1][x - 1];
-							if (tmpDouble > tmpDouble2)
-							{ 
-								xMod = -1; 
-								yMod = -1; 
-								tmpDouble = tmpDouble2; 
-								foundMoveLocation = true;
-							}
-						}
-						
-						if ((x + 1 < px + bWidth) && (y - 1 >= py))
-						{
-							tmpDouble2 = heightMap[y - 1][x + 1] + waterMap[y - 1][x + 1];
-							if (tmpDouble > tmpDouble2)
-							{
-								xMod = 1;
-								yMod = -1;
-								tmpDouble = tmpDouble2;
-								foundMoveLocation = true;
-							}
-						}
-						
-						if ((x + 1 < px + bWidth) && (y + 1 < py + bHeight))
-						{
-							tmpDouble2 = heightMap[y + 1][x + 1] + waterMap[y + 1][x + 1];
-							if (tmpDouble > tmpDouble2)
-							{
-								xMod = 1;
-								yMod = 1;
-								tmpDouble = tmpDouble2;
-								foundMoveLocation = true;
-							}
-						}
-						
-						if ((x - 1 >= px) && (y + 1 < py+bHeight))
-						{
-							tmpDouble2 = heightMap[y + 1][x - 1] + waterMap[y + 1][x - 1];
-							if (tmpDouble > tmpDouble2)
-							{
-								xMod = -1;
-								yMod = 1;
-								tmpDouble = tmpDouble2;
-								foundMoveLocation = true;
-							}
-						}
-						
-						//Even out Waterlevels between two locations
-						if (foundMoveLocation)
+			//Status output
+			if ((i % oneTenthsOfHeight) == 0)
+				System.out.print("#");
+		}
+		erodeWetFinish(waterMap, px, py, px + bWidth, py + bHeight);
+		System.out.println(" Done eroding heightmap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		heightChanged(px - 1, py - 1, bWidth + 2, bHeight + 2);
+	}
+	
+	/**
+	 * Size of the water map for WET erosion of [xStart, xEnd) x [yStart, yEnd): the rectangle plus a one vertex border.
+	 */
+	int getWaterMapSize(int xStart, int yStart, int xEnd, int yEnd)
+	{
+		return (Math.min(xEnd + 1, heightMapWidth) - Math.max(xStart - 1, 0)) * (Math.min(yEnd + 1, heightmapLength) - Math.max(yStart - 1, 0));
+	}
+	
+	/**
+	 * Returns the scratch water map, large enough for size values and all zero.<BR>
+	 * Kept between calls, so erosion brushes do not allocate a new one on every tick.
+	 */
+	private float[] getWaterBuffer(int size)
+	{
+		if (waterBuffer.length < size)
+			waterBuffer = new float[size];
+		else
+			Arrays.fill(waterBuffer, 0, size, 0f);
+		return waterBuffer;
+	}
+	
+	/**
+	 * One iteration of WET erosion on the already clipped rectangle [xStart, xEnd) x [yStart, yEnd).<BR>
+	 * Dissolved soil is kept in waterMap until erodeWetFinish() is called. waterMap covers the rectangle<BR>
+	 * plus a one vertex border, row by row, see getWaterMapSize().
+	 */
+	void erodeWetIteration(final float[] waterMap, final int xStart, final int yStart, final int xEnd, final int yEnd, final float dropletHeight, final float evaporateAmount)
+	{
+		//Evaporation also covers the one pixel border
+		final int xStartBorder = Math.max(xStart - 1, 0);
+		final int xEndBorder = Math.min(xEnd + 1, heightMapWidth);
+		final int yStartBorder = Math.max(yStart - 1, 0);
+		int yEndBorder = Math.min(yEnd + 1, heightmapLength);
+		final int waterWidth = xEndBorder - xStartBorder;
+		int grain = ParallelTasks.getGrain(yEnd - yStart);
+		
+		//1. Distribute Water and solve some terrain
+		ParallelTasks.forRows(yStart, yEnd, grain, new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				float[] map = heightMap;
+				for (int y = start; y < end; y++)
+				{
+					int j = ((y - yStartBorder) * waterWidth) + (xStart - xStartBorder);
+					for (int i = (y * heightMapWidth) + xStart; i < (y * heightMapWidth) + xEnd; i++, j++)
+						if (map[i] > dropletHeight * wetDropletSolveFactor)
 						{
-							if (heightMap[y + yMod][x + xMod] < heightMap[y][x])
-							{
-								//Height difference
-								tmpDouble = heightMap[y][x] - heightMap[y + yMod][x + xMod];
-								//Available Water
-								tmpDouble2 = waterMap[y + yMod][x + xMod] + waterMap[y][x];
-								if (tmpDouble > tmpDouble2)
-								{
-									//All water fits in new location
-									waterMap[y + yMod][x + xMod] = tmpDouble2;
-									waterMap[y][x] = 0;
-								}
-								else
-								{
-									//Distribute evenly
-									waterMap[y + yMod][x + xMod] = tmpDouble;
-									tmpDouble2 = tmpDouble2 - tmpDouble;
-									waterMap[y + yMod][x + xMod] = waterMap[y + yMod][x + xMod] + (tmpDouble2 / 2);
-									waterMap[y][x] = (tmpDouble2 / 2);
-								}
-							}
-							else
-							{
-								//Height difference
-								tmpDouble = heightMap[y + yMod][x + xMod] - heightMap[y][x];
-								//Available Water
-								tmpDouble2 = waterMap[y + yMod][x + xMod] + waterMap[y][x];
-								if (tmpDouble > tmpDouble2)
-								{
-									//All water fits in old location (should never happen)
-									waterMap[y + yMod][x + xMod] = 0;
-									waterMap[y][x] = tmpDouble2;
-								}
-								else
-								{
-									//Distribute evenly
-									waterMap[y][x] = tmpDouble;
-									tmpDouble2 -= tmpDouble;
-									waterMap[y][x] += tmpDouble2 / 2;
-									waterMap[y + yMod][x + xMod] = tmpDouble2 / 2;
-								}
-							}
+							waterMap[j] += dropletHeight;
+							map[i] -= dropletHeight * wetDropletSolveFactor;
 						}
+				}
+			}
+		});
+		
+		//2. Move Water
+		//A cell only touches its diagonal neighbours, so rows three apart never share a cell.
+		//Every third row is processed in parallel, in three phases. The order does not depend
+		//on the thread count, so neither does the result.
+		for (int phase = 0; phase < 3; phase++)
+		{
+			final int firstRow = yStart + phase;
+			int rowCount = Math.max((yEnd - firstRow + 2) / 3, 0);
+			ParallelTasks.forRows(0, rowCount, Math.max(grain / 3, 1), new ParallelTasks.RowTask()
+			{
+				public void run(int start, int end)
+				{
+					for (int r = start; r < end; r++)
+						moveWaterRow(waterMap, firstRow + (r * 3), xStart, yStart, xEnd, yEnd);
+				}
+			});
+		}
+		
+		//3. Evaporate some Water
+		ParallelTasks.forRows(yStartBorder, yEndBorder, grain, new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				float[] map = heightMap;
+				for (int y = start; y < end; y++)
+				{
+					int j = (y - yStartBorder) * waterWidth;
+					for (int i = (y * heightMapWidth) + xStartBorder; i < (y * heightMapWidth) + xEndBorder; i++, j++)
+					{
+						float amount = Math.min(waterMap[j], evaporateAmount);
+						waterMap[j] -= amount;
+						map[i] += amount * wetDropletSolveFactor;
 					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Cleanup after the last erodeWetIteration(): evaporates all remaining water.
+	 */
+	void erodeWetFinish(float[] waterMap, int xStart, int yStart, int xEnd, int yEnd)
+	{
+		int xStartBorder = Math.max(xStart - 1, 0);
+		int xEndBorder = Math.min(xEnd + 1, heightMapWidth);
+		int yStartBorder = Math.max(yStart - 1, 0);
+		int yEndBorder = Math.min(yEnd + 1, heightmapLength);
+		int j = 0;
+		for (int y = yStartBorder; y < yEndBorder; y++)
+			for (int x = xStartBorder; x < xEndBorder; x++, j++)
+				heightMap[y * heightMapWidth + x] += waterMap[j] * wetDropletSolveFactor;
+	}
+	
+	/**
+	 * Moves water of every cell in row y to its lowest diagonal neighbour inside [px, pxEnd) x [py, pyEnd).
+	 */
+	private void moveWaterRow(float[] waterMap, int y, int px, int py, int pxEnd, int pyEnd)
+	{
+		float tmpDouble, tmpDouble2;
+		boolean foundMoveLocation;
+		int xMod, yMod;
+		int bWidth = pxEnd - px;
+		int bHeight = pyEnd - py;
+		int wx = Math.max(px - 1, 0);
+		int wy = Math.max(py - 1, 0);
+		int ww = Math.min(pxEnd + 1, heightMapWidth) - wx;
+		for (int x = px; x < pxEnd; x++)
+		{
+			xMod = 0;
+			yMod = 0;
+			foundMoveLocation = false;
+			tmpDouble =  heightMap[y * heightMapWidth + x] + waterMap[((y - wy) * ww) + x - wx]; //Waterheight on center
 			
-			//3. Evaporate some Water
-			for (int y = py - 1; y < py + bHeight + 1; y++)
-				for (int x = px - 1; x < px + bWidth + 1; x++)
-					if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength))
+			if ((x - 1 >= px) && (y - 1 >= py))
+			{
+				tmpDouble2 = heightMap[(y - 1) * heightMapWidth + x - 1] + waterMap[((y - 1 - wy) * ww) + x - 1 - wx];
+				if (tmpDouble > tmpDouble2)
+				{ 
+					xMod = -1; 
+					yMod = -1; 
+					tmpDouble = tmpDouble2; 
+					foundMoveLocation = true;
+				}
+			}
+			
+			if ((x + 1 < px + bWidth) && (y - 1 >= py))
+			{
+				tmpDouble2 = heightMap[(y - 1) * heightMapWidth + x + 1] + waterMap[((y - 1 - wy) * ww) + x + 1 - wx];
+				if (tmpDouble > tmpDouble2)
+				{
+					xMod = 1;
+					yMod = -1;
+					tmpDouble = tmpDouble2;
+					foundMoveLocation = true;
+				}
+			}
+			
+			if ((x + 1 < px + bWidth) && (y + 1 < py + bHeight))
+			{
+				tmpDouble2 = heightMap[(y + 1) * heightMapWidth + x + 1] + waterMap[((y + 1 - wy) * ww) + x + 1 - wx];
+				if (tmpDouble > tmpDouble2)
+				{
+					xMod = 1;
+					yMod = 1;
+					tmpDouble = tmpDouble2;
+					foundMoveLocation = true;
+				}
+			}
+			
+			if ((x - 1 >= px) && (y + 1 < py+bHeight))
+			{
+				tmpDouble2 = heightMap[(y + 1) * heightMapWidth + x - 1] + waterMap[((y + 1 - wy) * ww) + x - 1 - wx];
+				if (tmpDouble > tmpDouble2)
+				{
+					xMod = -1;
+					yMod = 1;
+					tmpDouble = tmpDouble2;
+					foundMoveLocation = true;
+				}
+			}
+			
+			//Even out Waterlevels between two locations
+			if (foundMoveLocation)
+			{
+				if (heightMap[(y + yMod) * heightMapWidth + x + xMod] < heightMap[y * heightMapWidth + x])
+				{
+					//Height difference
+					tmpDouble = heightMap[y * heightMapWidth + x] - heightMap[(y + yMod) * heightMapWidth + x + xMod];
+					//Available Water
+					tmpDouble2 = waterMap[((y + yMod - wy) * ww) + x + xMod - wx] + waterMap[((y - wy) * ww) + x - wx];
+					if (tmpDouble > tmpDouble2)
 					{
-						tmpDouble = Math.min(waterMap[y][x], evaporateAmount);
-						waterMap[y][x] -= tmpDouble;
-						heightMap[y][x] += tmpDouble * dropletSolveFactor;
+						//All water fits in new location
+						waterMap[((y + yMod - wy) * ww) + x + xMod - wx] = tmpDouble2;
+						waterMap[((y - wy) * ww) + x - wx] = 0;
 					}
-			
-			//Status output
-			if ((i % oneTenthsOfHeight) == 0)
-				System.out.print("#");
+					else
+					{
+						//Distribute evenly
+						waterMap[((y + yMod - wy) * ww) + x + xMod - wx] = tmpDouble;
+						tmpDouble2 = tmpDouble2 - tmpDouble;
+						waterMap[((y + yMod - wy) * ww) + x + xMod - wx] = waterMap[((y + yMod - wy) * ww) + x + xMod - wx] + (tmpDouble2 / 2);
+						waterMap[((y - wy) * ww) + x - wx] = (tmpDouble2 / 2);
+					}
+				}
+				else
+				{
+					//Height difference
+					tmpDouble = heightMap[(y + yMod) * heightMapWidth + x + xMod] - heightMap[y * heightMapWidth + x];
+					//Available Water
+					tmpDouble2 = waterMap[((y + yMod - wy) * ww) + x + xMod - wx] + waterMap[((y - wy) * ww) + x - wx];
+					if (tmpDouble > tmpDouble2)
+					{
+						//All water fits in old location (should never happen)
+						waterMap[((y + yMod - wy) * ww) + x + xMod - wx] = 0;
+						waterMap[((y - wy) * ww) + x - wx] = tmpDouble2;
+					}
+					else
+					{
+						//Distribute evenly
+						waterMap[((y - wy) * ww) + x - wx] = tmpDouble;
+						tmpDouble2 -= tmpDouble;
+						waterMap[((y - wy) * ww) + x - wx] += tmpDouble2 / 2;
+						waterMap[((y + yMod - wy) * ww) + x + xMod - wx] = tmpDouble2 / 2;
+					}
+				}
+			}
 		}
-		//4. Cleanup: Evaporate all water
-		for (int y = py - 1; y < py + bHeight + 1; y++)
-			for (int x = px - 1; x < px + bWidth + 1; x++)
-				if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength))
-					heightMap[y][x] += waterMap[y][x] * dropletSolveFactor;
-		System.out.println(" Done eroding heightmap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+	}
+	
+	/**
+	 * Hydraulic erosion by simulated droplets, see DropletErosion.
+	 */
+	public void erodeMapDroplets(int px, int py, int width, int height, ErosionSetup setup)
+	{
+		if (setup == null)
+			return;
+		long start = System.nanoTime();
+		DropletErosion.erode(heightField, px, py, width, height, setup);
+		System.out.println("Done eroding heightmap with droplets ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		heightChanged(px, py, width, height);
 	}
 	
 	public void erodeMapDryWet(int px, int py, int width, int height, boolean hydroErosion, ErosionSetup setup)
@@ -1009,9 +1179,6 @@ public class Heightmap extends AbstractMap {
 	    
 		final int oneTenthsOfHeight = Math.max(iterations / 10, 1);
 		
-		float tmpDouble;
-		int xMod, yMod;
-		
 		int bWidth = width;
 		int bHeight = height;
 		if (px < 0)
@@ -1028,67 +1195,95 @@ public class Heightmap extends AbstractMap {
 			bWidth = heightMapWidth - px;
 		if (bHeight + py >= heightmapLength)
 			bHeight = heightmapLength - py;
-		for (int i = 0; i < iterations; i++)
+		if (activeCells == null)
+			activeCells = new ActiveCells(px, py, bWidth, bHeight);
+		else
+			activeCells.reset(px, py, bWidth, bHeight);
+		ActiveCells active = activeCells;
+		int i;
+		for (i = 0; i < iterations; i++)
 		{
-			//1. Move soil
-			for (int y = py; y < py + bHeight; y++)
-				for (int x = px; x < px + bWidth; x++)
-					if ((x >= 0) && (x < heightMapWidth) && (y >= 0) && (y < heightmapLength))
-					{
-						xMod = 0;
-						yMod = 0;
-						tmpDouble = 0; //max height distance so far
-						
-						if ((x - 1 >= px) && (y - 1 >= py) && (heightMap[y][x] - heightMap[y - 1][x - 1]) > tmpDouble)
-						{
-							tmpDouble = heightMap[y][x] - heightMap[y - 1][x - 1];
-							xMod = -1; 
-							yMod = -1;
-						}
-						if ((x + 1 < px + bWidth) && (y - 1 >= py && (heightMap[y][x] - heightMap[y - 1][x + 1]) > tmpDouble))
-						{
-							tmpDouble = heightMap[y][x] - heightMap[y - 1][x + 1];
-							xMod = 1; 
-							yMod = -1;
-						}
-						if ((x + 1 < px + bWidth) && (y + 1 < py + bHeight) && (heightMap[y][x] - heightMap[y + 1][x + 1]) > tmpDouble)
-						{
-							tmpDouble = heightMap[y][x] - heightMap[y + 1][x + 1];
-							xMod = 1; 
-							yMod = 1;
-						}	
-						if ((x - 1 >= px) && (y + 1 < py + bHeight) && (heightMap[y][x] - heightMap[y + 1][x - 1]) > tmpDouble)
-						{
-							tmpDouble = heightMap[y][x] - heightMap[y + 1][x - 1];
-							xMod = -1; 
-							yMod = 1;
-						}
-						
-						//Even out heightlevels between two locations
-						if (hydroErosion)
-						{
-							if ((tmpDouble > 0) && (tmpDouble < breakHeight))
-							{
-								tmpDouble = heightMap[y + yMod][x + xMod] + heightMap[y][x];
-								heightMap[y + yMod][x + xMod] = tmpDouble / 2;
-								heightMap[y][x] = tmpDouble / 2;
-							}
-						}
-						else
-						{
-							if ((tmpDouble > 0) && (tmpDouble > breakHeight))
-							{
-								tmpDouble = heightMap[y + yMod][x + xMod] + heightMap[y][x];
-								heightMap[y + yMod][x + xMod] = tmpDouble / 2;
-								heightMap[y][x] = tmpDouble / 2;
-							}
-						}
-					}
+			if (!erodeDryIteration(px, py, bWidth, bHeight, hydroErosion, breakHeight, active))
+				break;
+			
 			//Status output
 			if ((i % oneTenthsOfHeight) == 0)
 				System.out.print("#");
 		}
+		if (i < iterations)
+			System.out.print(" settled after " + (i + 1) + " iterations");
 		System.out.println(" Done eroding heightmap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		heightChanged(px - 1, py - 1, bWidth + 2, bHeight + 2);
+	}
+	
+	/**
+	 * One iteration of DRY (or alternative WET) erosion on the already clipped rectangle.<BR>
+	 * Only cells in active are looked at: a cell that did not move soil keeps doing nothing until<BR>
+	 * it or one of its diagonal neighbours changes. Cells are still visited in the same order, so the<BR>
+	 * result is the same as sweeping all cells.
+	 * @return false if nothing changed, then all further iterations would not change anything either
+	 */
+	boolean erodeDryIteration(int px, int py, int bWidth, int bHeight, boolean hydroErosion, float breakHeight, ActiveCells active)
+	{
+		float tmpDouble;
+		int xMod, yMod;
+		int changed = 0;
+		boolean track = !active.isDense();
+		//1. Move soil
+		for (int y = py; y < py + bHeight; y++)
+		{
+			if (track && !active.takeRow(y))
+				continue;
+			for (int x = px; x < px + bWidth; x++)
+				if (!track || active.take(x, y))
+				{
+					xMod = 0;
+					yMod = 0;
+					tmpDouble = 0; //max height distance so far
+					
+					if ((x - 1 >= px) && (y - 1 >= py) && (heightMap[y * heightMapWidth + x] - heightMap[(y - 1) * heightMapWidth + x - 1]) > tmpDouble)
+					{
+						tmpDouble = heightMap[y * heightMapWidth + x] - heightMap[(y - 1) * heightMapWidth + x - 1];
+						xMod = -1; 
+						yMod = -1;
+					}
+					if ((x + 1 < px + bWidth) && (y - 1 >= py && (heightMap[y * heightMapWidth + x] - heightMap[(y - 1) * heightMapWidth + x + 1]) > tmpDouble))
+					{
+						tmpDouble = heightMap[y * heightMapWidth + x] - heightMap[(y - 1) * heightMapWidth + x + 1];
+						xMod = 1; 
+						yMod = -1;
+					}
+					if ((x + 1 < px + bWidth) && (y + 1 < py + bHeight) && (heightMap[y * heightMapWidth + x] - heightMap[(y + 1) * heightMapWidth + x + 1]) > tmpDouble)
+					{
+						tmpDouble = heightMap[y * heightMapWidth + x] - heightMap[(y + 1) * heightMapWidth + x + 1];
+						xMod = 1; 
+						yMod = 1;
+					}	
+					if ((x - 1 >= px) && (y + 1 < py + bHeight) && (heightMap[y * heightMapWidth + x] - heightMap[(y + 1) * heightMapWidth + x - 1]) > tmpDouble)
+					{
+						tmpDouble = heightMap[y * heightMapWidth + x] - heightMap[(y + 1) * heightMapWidth + x - 1];
+						xMod = -1; 
+						yMod = 1;
+					}
+					
+					//Even out heightlevels between two locations
+					boolean move = hydroErosion ? ((tmpDouble > 0) && (tmpDouble < breakHeight)) : ((tmpDouble > 0) && (tmpDouble > breakHeight));
+					if (move)
+					{
+						tmpDouble = heightMap[(y + yMod) * heightMapWidth + x + xMod] + heightMap[y * heightMapWidth + x];
+						heightMap[(y + yMod) * heightMapWidth + x + xMod] = tmpDouble / 2;
+						heightMap[y * heightMapWidth + x] = tmpDouble / 2;
+						if (track)
+						{
+							active.markDiagonal(x, y);
+							active.markDiagonal(x + xMod, y + yMod);
+						}
+						changed++;
+					}
+				}
+		}
+		active.endIteration(changed);
+		return changed > 0;
 	}
 	
 	public void ttdize(int stepCount)
@@ -1100,7 +1295,7 @@ public class Heightmap extends AbstractMap {
 		//Round heights to steps
 		for (y = 0; y < heightmapLength; y++)
 			for (x = 0; x < heightMapWidth; x++)
-				steppedMap[y][x] = FastMath.round(heightMap[y][x] * steps);
+				steppedMap[y][x] = FastMath.round(heightMap[y * heightMapWidth + x] * steps);
 		
 		//enforce max steepness
 		for (y = 1; y < heightmapLength; y++)
@@ -1121,62 +1316,42 @@ public class Heightmap extends AbstractMap {
 		//copy back
 		for (y = 0; y < heightmapLength; y++)
 			for (x = 0; x < heightMapWidth; x++)
-				heightMap[y][x] = steppedMap[y][x] / steps;
+				heightMap[y * heightMapWidth + x] = steppedMap[y][x] / steps;
 		System.out.println("Done ttdizing heightMap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		heightChanged();
 	}
 	
 	public void randomizeHeight(int px, int py, HeightBrush brush, float amount)
 	{
-		Random r = new Random();
+		ThreadLocalRandom r = ThreadLocalRandom.current();
 		float amountHalf = amount / 2; //brush.getStrength();
-		float[][] pattern = brush.getPattern().getPattern();
-		float[][] newPattern;
-		int height = brush.getHeight();
-		int width = brush.getWidth();
-		if (px >= heightMapWidth || py >= heightmapLength)
+		float[] pattern = brush.getPattern().getPatternRows();
+		int patternWidth = brush.getWidth();
+		int bx = Math.max(0, -px);
+		int by = Math.max(0, -py);
+		int width = Math.min(patternWidth, heightMapWidth - px) - bx;
+		int height = Math.min(brush.getHeight(), heightmapLength - py) - by;
+		if (width <= 0 || height <= 0)
 			return;
-		if (px < 0)
-		{
-			width += px;
-			if (width <= 0)
-				return;
-			newPattern = new float[width][height];
-			System.arraycopy(pattern, -px - 1, newPattern, 0, width);
-			pattern = newPattern;
-			px = 0;
-		}
-		if (py < 0)
+		float[] noise = getBrushBuffer(width);
+		for (int y = 0; y < height; y++)
 		{
-			height += py;
-			if (height <= 0)
-				return;
-			newPattern = new float[width][height];
 			for (int x = 0; x < width; x++)
-				System.arraycopy(pattern[x], -py - 1, newPattern[x], 0, height);
-			pattern = newPattern;
-			py = 0;
+				noise[x] = (r.nextFloat() * amount) - amountHalf;
+			HeightBrushKernels.addNoise(heightMap, ((py + by + y) * heightMapWidth) + px + bx, noise, pattern, ((by + y) * patternWidth) + bx, width);
 		}
-		if (height + py >= heightmapLength)
-			height = heightmapLength - py;
-		if (width + px >= heightMapWidth)
-			width = heightMapWidth - px;
-		if (width <= 0)
-			return;
-		for (int y = py; y < py + height; y++)
-			for (int x = px; x < px + width; x++)
-			{
-				heightMap[y][x] = heightMap[y][x] + ((r.nextFloat() * amount) - amountHalf) * pattern[x - px][y - py];
-				if (heightMap[y][x] > 1)
-					heightMap[y][x] = 1;
-				else if (heightMap[y][x] < 0)
-					heightMap[y][x] = 0;
-			}
+		heightChanged(px + bx, py + by, width, height);
 	}
 	
 	public void genStartupHeightmap(TerraGenSetup setup)
 	{
-		if (setup != null)
-			genDiamondSquareRandom(heightMap, heightMapWidth, heightmapLength, setup.maxDisplacement, setup.displacementRegression, setup.skipSteps, setup.randomSeed);
+		if (setup == null)
+			return;
+		if (setup.mode == TerraGenSetup.GeneratorMode.Noise)
+			NoiseGenerator.generate(heightField, setup);
+		else
+			genDiamondSquareRandom(heightField, heightMapWidth, heightmapLength, setup.maxDisplacement, setup.displacementRegression, setup.skipSteps, setup.randomSeed);
+		heightChanged();
 	}
 	
 	public void genRandom(float strength)
@@ -1185,21 +1360,26 @@ public class Heightmap extends AbstractMap {
 		for (int y = 0; y < heightmapLength; y++)
 			for (int x = 0; x < heightMapWidth; x++)
 			{
-				heightMap[y][x] = r.nextFloat();
+				heightMap[y * heightMapWidth + x] = r.nextFloat();
 				if ((x > 20) && (x < 40) && (y > 20) && (y < 40))
-					heightMap[y][x] = 1; //TODO WTF!
+					heightMap[y * heightMapWidth + x] = 1; //TODO WTF!
 			}
+		heightChanged();
 	}
 	
-	public void genDiamondSquareRandom(float[][] map, int width, int height,
+	public void genDiamondSquareRandom(HeightField map, int width, int height,
 			float maxDisplacement, float displacementRegression, int skipSteps, int randomSeed)
 	{
 		/*
 		 * 1. Calculate next larger power of 2 square, which can contain given map.
 		 * 2. Allocate new array with this size, copy existing into it, init everything outside via mirror copy
-		 * 3. Generate via diamond-square
+		 * 3. Generate via diamond-square, one level at a time.
+		 *    Within a level every new point only depends on the corners of the previous level,
+		 *    so rows are processed in parallel. Random values come from a hash of (seed, level, x, y),
+		 *    so the result for a seed does not depend on thread count or order.
 		 * 4. Copy back
 		 */
+		long start = System.nanoTime();
 		
 		//Get next larger power of 2 squaresize
 		int squareSize = Math.max(width - 1, height - 1);
@@ -1208,105 +1388,98 @@ public class Heightmap extends AbstractMap {
 		final int arraySize = squareSize + 1;
 		
 		//Allocate temporary array
-		float[][] tempMap = new float[arraySize][arraySize];
+		final HeightField tempField = new HeightField(arraySize, arraySize);
+		final float[] tempMap = tempField.data;
 		
 		//Copy existing map to new map
-		for (int y = 0; y < height; y++)
-			System.arraycopy(map[y], 0, tempMap[y], 0, width);
+		tempField.pasteRect(0, 0, width, height, map.data, 0, map.stride);
 
 		//Mirror-Copy outside area. (This is better than initializing to some fixed value)
 		if (width < arraySize)
 			for (int x = width; x < arraySize; x++)
 				for (int y = 0; y < arraySize; y++)
 					if (((x / (width - 1)) % 2) == 0)
-						tempMap[y][x] = tempMap[y][x % (width - 1)];
+						tempMap[(y * arraySize) + x] = tempMap[(y * arraySize) + (x % (width - 1))];
 					else
-						tempMap[y][x] = tempMap[y][width - (x % (width - 1))];
+						tempMap[(y * arraySize) + x] = tempMap[(y * arraySize) + (width - (x % (width - 1)))];
 		if (height < arraySize)
 			for (int y = height; y < arraySize; y++)
 				for (int x = 0; x < arraySize; x++)
 					if (((y / (height - 1)) % 2) == 0)
-						tempMap[y][x] = tempMap[y % (height - 1)][x];
+						tempMap[(y * arraySize) + x] = tempMap[((y % (height - 1)) * arraySize) + x];
 					else
-						tempMap[y][x] = tempMap[(height - (y % (height - 1)))][x];
+						tempMap[(y * arraySize) + x] = tempMap[((height - (y % (height - 1))) * arraySize) + x];
 		
 		//Do Diamond Square
-		Random r = new Random();
-		if (randomSeed >= 0)
-			r = new Random(randomSeed);
-		int[] xPos = new int[4];
-		int[] yPos = new int[4];
-		int halfSize;
-		float maxDisplacementHalf = maxDisplacement / 2;
+		final long seed = (randomSeed >= 0) ? randomSeed : new Random().nextLong();
 		while (squareSize > 1)
 		{
-			halfSize = squareSize / 2;
+			final int sq = squareSize;
+			final int halfSize = squareSize / 2;
+			final float displacement = maxDisplacement;
+			final float displacementHalf = maxDisplacement / 2;
 			if (skipSteps <= 0)
-				for (int y = 0; y < size; y += squareSize)
+			{
+				//Square Step: Centers, from the 4 corners
+				int cellRows = size / sq;
+				ParallelTasks.forRows(0, cellRows, Math.max(cellRows / (ParallelTasks.getParallelism() * 4), 1), new ParallelTasks.RowTask()
 				{
-					yPos[0] = (y - halfSize);
-					if (yPos[0] < 0)
-						yPos[0] = size + yPos[0];
-					yPos[1] = y + halfSize;
-					yPos[2] = y + squareSize;
-					yPos[3] = y + squareSize + halfSize;
-					if (yPos[3] > size)
-						yPos[3] = yPos[3] % size;
-					for (int x = 0; x < size; x += squareSize)
+					public void run(int rowStart, int rowEnd)
 					{
-						xPos[0] = (x - halfSize);
-						if (xPos[0] < 0)
-							xPos[0] = size + xPos[0];
-						xPos[1] = x + halfSize;
-						xPos[2] = x + squareSize;
-						xPos[3] = x + squareSize + halfSize;
-						if (xPos[3] > size)
-							xPos[3] = xPos[3] % size;
-
-						//Square Step
-						//Center
-						tempMap[yPos[1]][xPos[1]] = Math.min(1, Math.max(0,
-								((tempMap[y][x] + tempMap[yPos[2]][x] + tempMap[y][xPos[2]] + tempMap[yPos[2]][xPos[2]]) / 4) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						
-						//Diamond(s) Step
-						//Left
-						//tempMap[yPos[1]][x] = Math.min(1, Math.max(0, ((tempMap[y][x] + tempMap[yPos[2]][x]) / 2)));
-						tempMap[yPos[1]][x] = Math.min(1, Math.max(0,
-								((tempMap[y][x] + tempMap[yPos[2]][x]) / 2) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[yPos[1]][x] = Math.min(1, Math.max(0, ((tempMap[y][x] + tempMap[yPos[2]][x] + tempMap[yPos[1]][xPos[1]]) / 3) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[yPos[1]][x] = Math.min(1, Math.max(0, ((tempMap[y][x] + tempMap[yPos[2]][x] + tempMap[yPos[1]][xPos[1]] + tempMap[yPos[1]][xPos[0]]) / 4) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						
-						//Upper
-						//tempMap[y][xPos[1]] = Math.min(1, Math.max(0, ((tempMap[y][x] + tempMap[y][xPos[2]]) / 2)));
-						tempMap[y][xPos[1]] = Math.min(1, Math.max(0,
-								((tempMap[y][x] + tempMap[y][xPos[2]]) / 2) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[y][xPos[1]] = Math.min(1, Math.max(0, ((tempMap[y][x] + tempMap[yPos[1]][xPos[1]] + tempMap[y][xPos[2]]) / 3) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[y][xPos[1]] = Math.min(1, Math.max(0, ((tempMap[y][x] + tempMap[yPos[0]][xPos[1]] + tempMap[yPos[1]][xPos[1]] + tempMap[y][xPos[2]]) / 4) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						
-						//Lower
-						//tempMap[yPos[2]][xPos[1]] = Math.min(1, Math.max(0, ((tempMap[yPos[2]][x] + tempMap[yPos[2]][xPos[2]]) / 2)));
-						tempMap[yPos[2]][xPos[1]] = Math.min(1, Math.max(0,
-								((tempMap[yPos[2]][x] + tempMap[yPos[2]][xPos[2]]) / 2) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[yPos[2]][xPos[1]] = Math.min(1, Math.max(0, ((tempMap[yPos[2]][x] + tempMap[yPos[1]][xPos[1]] + tempMap[yPos[2]][xPos[2]]) / 3) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[yPos[2]][xPos[1]] = Math.min(1, Math.max(0, ((tempMap[yPos[2]][x] + tempMap[yPos[1]][xPos[1]] + tempMap[yPos[2]][xPos[2]] + tempMap[yPos[3]][xPos[1]]) / 4) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						
-						//Right
-						//tempMap[yPos[1]][xPos[2]] = Math.min(1, Math.max(0, ((tempMap[y][xPos[2]] + tempMap[yPos[2]][xPos[2]]) / 2)));
-						tempMap[yPos[1]][xPos[2]] = Math.min(1, Math.max(0,
-								((tempMap[y][xPos[2]] + tempMap[yPos[2]][xPos[2]]) / 2) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[yPos[1]][xPos[2]] = Math.min(1, Math.max(0, ((tempMap[y][xPos[2]] + tempMap[yPos[2]][xPos[2]] + tempMap[yPos[1]][xPos[1]]) / 3) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
-						//tempMap[yPos[1]][xPos[2]] = Math.min(1, Math.max(0, ((tempMap[y][xPos[2]] + tempMap[yPos[2]][xPos[2]] + tempMap[yPos[1]][xPos[1]] + tempMap[yPos[1]][xPos[3]]) / 4) + ((r.nextFloat() * maxDisplacement) - maxDisplacementHalf)));
+						for (int y = rowStart * sq; y < rowEnd * sq; y += sq)
+							for (int x = 0; x < size; x += sq)
+							{
+								int cx = x + halfSize;
+								int cy = y + halfSize;
+								float average = (tempMap[(y * arraySize) + x] + tempMap[((y + sq) * arraySize) + x]
+										+ tempMap[(y * arraySize) + x + sq] + tempMap[((y + sq) * arraySize) + x + sq]) / 4;
+								tempMap[(cy * arraySize) + cx] = Math.min(1, Math.max(0,
+										average + ((HashRandom.nextFloat(seed, sq, cx, cy) * displacement) - displacementHalf)));
+							}
 					}
-				}
+				});
+				
+				//Diamond(s) Step: Edge midpoints, from the 2 endpoints of their edge
+				int edgeRows = (size / halfSize) + 1;
+				ParallelTasks.forRows(0, edgeRows, Math.max(edgeRows / (ParallelTasks.getParallelism() * 4), 1), new ParallelTasks.RowTask()
+				{
+					public void run(int rowStart, int rowEnd)
+					{
+						for (int r = rowStart; r < rowEnd; r++)
+						{
+							int y = r * halfSize;
+							if ((r % 2) == 0)
+							{
+								//Upper/Lower edges: horizontal midpoints
+								for (int x = halfSize; x < size; x += sq)
+								{
+									float average = (tempMap[(y * arraySize) + x - halfSize] + tempMap[(y * arraySize) + x + halfSize]) / 2;
+									tempMap[(y * arraySize) + x] = Math.min(1, Math.max(0,
+											average + ((HashRandom.nextFloat(seed, sq, x, y) * displacement) - displacementHalf)));
+								}
+							}
+							else
+							{
+								//Left/Right edges: vertical midpoints
+								for (int x = 0; x <= size; x += sq)
+								{
+									float average = (tempMap[((y - halfSize) * arraySize) + x] + tempMap[((y + halfSize) * arraySize) + x]) / 2;
+									tempMap[(y * arraySize) + x] = Math.min(1, Math.max(0,
+											average + ((HashRandom.nextFloat(seed, sq, x, y) * displacement) - displacementHalf)));
+								}
+							}
+						}
+					}
+				});
+			}
 			else
 				skipSteps--;
 			
 			squareSize = halfSize;
 			maxDisplacement = maxDisplacement * displacementRegression;
-			maxDisplacementHalf = maxDisplacement / 2;
 		}
 		
-		for (int y = 0; y < height; y++)
-			System.arraycopy(tempMap[y], 0, map[y], 0, width);
+		map.pasteRect(0, 0, width, height, tempMap, 0, arraySize);
+		System.out.println("Done generating heightmap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
 	}
 }
@@ -7,7 +7,6 @@ import java.util.Random;
 import org.eclipse.swt.graphics.Point;
 
 import frontend.render.MapRenderer;
-import frontend.render.brushes.BrushTexture;
 import frontend.render.brushes.FeatureBrush;
 import frontend.render.brushes.HeightBrush;
 import frontend.render.brushes.PrefabBrush;
@@ -480,24 +479,7 @@ public class Map {
 			return;
 		
 		long start = System.nanoTime();
-		final int oneTenthsOfHeight = Math.max(textureMap.texturemapLength / 10, 1);
 		
-		int levels = setup.levels;
-		BrushTexture[] brushesFlat = setup.brushesFlat;
-		BrushTexture[] brushesSteep = setup.brushesSteep;
-		float[] heightTransitions = setup.heightTransitions;
-		float[] steepTransitions = setup.steepTransitions;
-		BrushTexture brush1Flat = brushesFlat[0];
-		BrushTexture brush2Flat = brushesFlat[0];
-		BrushTexture brush1Steep = brushesSteep[0];
-		BrushTexture brush2Steep = brushesSteep[0];
-		int xT, yT;
-		int r1, g1, b1, r2, g2, b2;
-		int r1s, g1s, b1s, r2s, g2s, b2s;
-		float h1, h2, h3, h4, fractX, fractY, heightYLeft, heightYRight, height, steep;
-		int transitionCount = (2 * (levels - 1));
-		float blendFactorBrush2Flat = 0.5f;
-		float blendFactorBrush2Steep = 0;
 		int width = textureMap.getWidth(); //heightmap.width;
 		int length = textureMap.texturemapLength;
 		if (px < 0)
@@ -526,119 +508,8 @@ public class Map {
 				width = textureMap.getWidth() - px;
 			//if (x < textureMap.textureMapWidth) && (y < textureMap.textureMapHeight))
 		}
-		for (int y = py; y < py + length; y++)
-		{
-			fractY = (y % heightmapSizeTextureFactor) / (float)heightmapSizeTextureFactor;
-		
-			for (int x = px; x < px + width; x++)
-			{
-				fractX = (x % heightmapSizeTextureFactor) / (float)heightmapSizeTextureFactor;
-					
-				//calculate height of edge vertices
-				xT = x / heightmapSizeTextureFactor;
-				yT = y / heightmapSizeTextureFactor;
-				
-				h1 = heightmap.getHeigth(xT + 0, yT + 0);
-				h2 = heightmap.getHeigth(xT + 0, yT + 1);
-				h3 = heightmap.getHeigth(xT + 1, yT + 1);
-				h4 = heightmap.getHeigth(xT + 1, yT + 0);
-								
-				//Steepness
-				steep = heightmap.getSmoothedSteepness(xT, yT, fractX, fractY);
-					
-				//calculate height of actual texel
-				heightYLeft =  ((1 - fractY) * h1) + (fractY * h2);
-				heightYRight = ((1 - fractY) * h4) + (fractY * h3);
-				height = ((1 - fractX) * heightYLeft) + (fractX * heightYRight);
-					
-				//calculate which brushes to use
-				if (height <= heightTransitions[0])
-				{
-					brush1Flat = brushesFlat[0];
-					brush2Flat = brushesFlat[0];
-					brush1Steep = brushesSteep[0];
-					brush2Steep = brushesSteep[0];
-					if (steep < steepTransitions[0])
-						blendFactorBrush2Steep = 0;
-					else if (steep > steepTransitions[1])
-						blendFactorBrush2Steep = 1;
-					else
-						blendFactorBrush2Steep = 1 - (steepTransitions[1] - steep) / (steepTransitions[1] - steepTransitions[0]);
-				}
-				else if (height >= heightTransitions[transitionCount - 1])
-				{
-					brush1Flat = brushesFlat[levels - 1];
-					brush2Flat = brushesFlat[levels - 1];
-					brush1Steep = brushesSteep[levels - 1];
-					brush2Steep = brushesSteep[levels - 1];
-					if (steep < steepTransitions[((levels - 1) * 2)])
-						blendFactorBrush2Steep = 0;
-					else if (steep > steepTransitions[((levels - 1) * 2) + 1])
-						blendFactorBrush2Steep = 1;
-					else
-						blendFactorBrush2Steep = 1 - (steepTransitions[((levels - 1) * 2) + 1] - steep) / (steepTransitions[((levels - 1) * 2) + 1] - steepTransitions[((levels - 1) * 2)]);
-				}
-				else
-				{
-					boolean notFound = true;
-					int lastIndex = 0;
-					int index = 1;
-					while ((index < transitionCount) && notFound)
-					{
-						if (height <= heightTransitions[index])
-						{
-							brush1Flat = brushesFlat[(lastIndex + 1) / 2];
-							brush2Flat = brushesFlat[(index + 1) / 2];
-							brush1Steep = brushesSteep[(lastIndex + 1) / 2];
-							brush2Steep = brushesSteep[(index + 1) / 2];
-							blendFactorBrush2Flat = ((height - heightTransitions[lastIndex]) / (heightTransitions[index] - heightTransitions[lastIndex]));
-							
-							if (steep < steepTransitions[(((index - 1) / 2) * 2)])
-								blendFactorBrush2Steep = 0;
-							else if (steep > steepTransitions[(((index - 1) / 2) * 2) + 1])
-								blendFactorBrush2Steep = 1;
-							else
-								blendFactorBrush2Steep = 1 - (steepTransitions[(((index - 1) / 2) * 2) + 1] - steep) / (steepTransitions[(((index - 1) / 2) * 2) + 1] - steepTransitions[(((index - 1) / 2) * 2)]);
-							
-							notFound = false;
-						}
-						lastIndex++;
-						index++;
-					}
-				}
-					
-				//TODO: allow scaling of texture
-				
-				//blend color from brushes
-				r1 = (brush1Flat.textureR[x % brush1Flat.width][y % brush1Flat.height] & 0xFF);
-				g1 = (brush1Flat.textureG[x % brush1Flat.width][y % brush1Flat.height] & 0xFF);
-				b1 = (brush1Flat.textureB[x % brush1Flat.width][y % brush1Flat.height] & 0xFF);
-				r1s = (brush1Steep.textureR[x % brush1Steep.width][y % brush1Steep.height] & 0xFF);
-				g1s = (brush1Steep.textureG[x % brush1Steep.width][y % brush1Steep.height] & 0xFF);
-				b1s = (brush1Steep.textureB[x % brush1Steep.width][y % brush1Steep.height] & 0xFF);
-				r1 = (int)(((r1 * (1 - blendFactorBrush2Steep)) + (r1s * blendFactorBrush2Steep)));
-				g1 = (int)(((g1 * (1 - blendFactorBrush2Steep)) + (g1s * blendFactorBrush2Steep)));
-				b1 = (int)(((b1 * (1 - blendFactorBrush2Steep)) + (b1s * blendFactorBrush2Steep)));
-					
-				r2 = (brush2Flat.textureR[x % brush2Flat.width][y % brush2Flat.height] & 0xFF);
-				g2 = (brush2Flat.textureG[x % brush2Flat.width][y % brush2Flat.height] & 0xFF);
-				b2 = (brush2Flat.textureB[x % brush2Flat.width][y % brush2Flat.height] & 0xFF);
-				r2s = (brush2Steep.textureR[x % brush2Steep.width][y % brush2Steep.height] & 0xFF);
-				g2s = (brush2Steep.textureG[x % brush2Steep.width][y % brush2Steep.height] & 0xFF);
-				b2s = (brush2Steep.textureB[x % brush2Steep.width][y % brush2Steep.height] & 0xFF);
-				r2 = (int)(((r2 * (1 - blendFactorBrush2Steep)) + (r2s * blendFactorBrush2Steep)));
-				g2 = (int)(((g2 * (1 - blendFactorBrush2Steep)) + (g2s * blendFactorBrush2Steep)));
-				b2 = (int)(((b2 * (1 - blendFactorBrush2Steep)) + (b2s * blendFactorBrush2Steep)));
-					
-				//set color to texmap
-				textureMap.textureMap[y][(x * 3) + 0] = (byte)(((r1 * (1 - blendFactorBrush2Flat)) + (r2 * blendFactorBrush2Flat)));
-				textureMap.textureMap[y][(x * 3) + 1] = (byte)(((g1 * (1 - blendFactorBrush2Flat)) + (g2 * blendFactorBrush2Flat)));
-				textureMap.textureMap[y][(x * 3) + 2] = (byte)(((b1 * (1 - blendFactorBrush2Flat)) + (b2 * blendFactorBrush2Flat)));
-			}
-			//Status output
-			if ((y % oneTenthsOfHeight) == 0)
-				System.out.print("#");
-		}
-		System.out.println(" Done generating textureMap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		TextureGenerator.generate(heightmap.getHeightField(), heightmap.getSteepnessField(), textureMap.getBaseMap(), heightmapSizeTextureFactor, px, py, width, length, setup);
+		textureMap.baseChanged(px, py, width, length);
+		System.out.println("Done generating textureMap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
 	}
 }
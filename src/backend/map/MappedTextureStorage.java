@@ -0,0 +1,145 @@
+package backend.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * TextureStorage in a memory mapped scratch file, for texturemaps too large for the heap.<BR>
+ * The file is split into TILE_SIZE*TILE_SIZE texel tiles, each stored contiguously, so the blocks the renderer<BR>
+ * and exporter read touch few pages. Which pages stay in memory is left to the OS page cache.<BR>
+ * The file is deleted right after mapping where the OS allows that, on exit otherwise.<BR>
+ * The mapping itself is released when this is garbage collected.
+ */
+class MappedTextureStorage extends TextureStorage
+{
+	static final int TILE_SIZE = 256;
+	static final int TILE_SHIFT = 8;
+	private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 3;
+	/**
+	 * A single mapping can not be larger than 2 GB, so the file is mapped in segments of this many tiles.
+	 */
+	private static final int TILES_PER_SEGMENT = (1 << 30) / TILE_BYTES;
+
+	private final int tilesX;
+	private final MappedByteBuffer[] segments;
+
+	MappedTextureStorage(int width, int length) throws IOException
+	{
+		super(width, length);
+		tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		int tileCount = tilesX * ((length + TILE_SIZE - 1) >> TILE_SHIFT);
+		segments = new MappedByteBuffer[(tileCount + TILES_PER_SEGMENT - 1) / TILES_PER_SEGMENT];
+
+		File file = File.createTempFile("texturemap", ".tmp");
+		RandomAccessFile scratch = new RandomAccessFile(file, "rw");
+		try
+		{
+			scratch.setLength((long)tileCount * TILE_BYTES);
+			FileChannel channel = scratch.getChannel();
+			for (int s = 0; s < segments.length; s++)
+			{
+				int tiles = Math.min(TILES_PER_SEGMENT, tileCount - (s * TILES_PER_SEGMENT));
+				segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, (long)s * TILES_PER_SEGMENT * TILE_BYTES, (long)tiles * TILE_BYTES);
+			}
+		}
+		finally
+		{
+			scratch.close();
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	public boolean copiesRows()
+	{
+		return true;
+	}
+
+	/**
+	 * Returns a view of the segment holding texel (x, y), positioned at it and limited to count texels of its tile row.<BR>
+	 * A view per access keeps concurrent readers and writers of different texels independent.
+	 */
+	private ByteBuffer view(int x, int y, int count)
+	{
+		if ((x < 0) || (y < 0) || (y >= length) || (x + count > width))
+			throw new IndexOutOfBoundsException("Texel " + x + "," + y + " (" + count + ") outside " + width + "x" + length);
+		int tile = ((y >> TILE_SHIFT) * tilesX) + (x >> TILE_SHIFT);
+		int position = ((tile % TILES_PER_SEGMENT) * TILE_BYTES) + (((((y & (TILE_SIZE - 1)) << TILE_SHIFT) + (x & (TILE_SIZE - 1)))) * 3);
+		ByteBuffer view = segments[tile / TILES_PER_SEGMENT].duplicate();
+		view.limit(position + (count * 3));
+		view.position(position);
+		return view;
+	}
+
+	/**
+	 * Texels from x to the end of its tile row, at most count.
+	 */
+	private static int spanInTile(int x, int count)
+	{
+		return Math.min(TILE_SIZE - (x & (TILE_SIZE - 1)), count);
+	}
+
+	public byte[] getRow(int y, int x, int count, byte[] scratch)
+	{
+		getTexels(y, x, count, scratch, x * 3);
+		return scratch;
+	}
+
+	public void putRow(int y, int x, int count, byte[] row)
+	{
+		setTexels(y, x, count, row, x * 3);
+	}
+
+	public void getTexels(int y, int x, int count, byte[] dst, int offset)
+	{
+		while (count > 0)
+		{
+			int n = spanInTile(x, count);
+			view(x, y, n).get(dst, offset, n * 3);
+			offset += n * 3;
+			x += n;
+			count -= n;
+		}
+	}
+
+	public void getTexels(int y, int x, int count, ByteBuffer dst)
+	{
+		while (count > 0)
+		{
+			int n = spanInTile(x, count);
+			dst.put(view(x, y, n));
+			x += n;
+			count -= n;
+		}
+	}
+
+	public void setTexels(int y, int x, int count, byte[] src, int offset)
+	{
+		while (count > 0)
+		{
+			int n = spanInTile(x, count);
+			view(x, y, n).put(src, offset, n * 3);
+			offset += n * 3;
+			x += n;
+			count -= n;
+		}
+	}
+
+	public void fill(byte value)
+	{
+		byte[] chunk = new byte[TILE_BYTES];
+		Arrays.fill(chunk, value);
+		for (int s = 0; s < segments.length; s++)
+		{
+			ByteBuffer segment = segments[s].duplicate();
+			segment.clear();
+			while (segment.hasRemaining())
+				segment.put(chunk);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package backend.map;
+
+import java.util.Random;
+
+import backend.HashRandom;
+import backend.ParallelTasks;
+import backend.TerraGenSetup;
+
+/**
+ * Fractal noise terrain: simplex fBm, ridged noise and domain warping.<BR>
+ * Lattice gradients are hashed from (seed, octave, i, j), so there are no tables and<BR>
+ * every tile can be generated independently, straight into the target field.
+ */
+public class NoiseGenerator
+{
+	public static final int TILE_SIZE = 64;
+
+	private static final float F2 = (float)(0.5 * (Math.sqrt(3) - 1));
+	private static final float G2 = (float)((3 - Math.sqrt(3)) / 6);
+	private static final float[] GRAD_X = { 1, -1, 1, -1, 1, -1, 0, 0 };
+	private static final float[] GRAD_Y = { 1, 1, -1, -1, 0, 0, 1, -1 };
+
+	//Salts for the warp fields, so they do not correlate with the height octaves
+	private static final int WARP_X_SALT = 1000;
+	private static final int WARP_Y_SALT = 2000;
+
+	/**
+	 * Fills the whole field according to setup.
+	 */
+	public static void generate(final HeightField field, final TerraGenSetup setup)
+	{
+		long start = System.nanoTime();
+		final long seed = (setup.randomSeed >= 0) ? setup.randomSeed : new Random().nextLong();
+		final int tilesX = (field.width + TILE_SIZE - 1) / TILE_SIZE;
+		final int tilesY = (field.length + TILE_SIZE - 1) / TILE_SIZE;
+		//Frequencies are relative to the longer map side, so map size does not change the look
+		final float scale = setup.baseFrequency / Math.max(field.width - 1, field.length - 1);
+		ParallelTasks.forRows(0, tilesY, 1, new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				for (int ty = start; ty < end; ty++)
+					for (int tx = 0; tx < tilesX; tx++)
+						generateTile(field, setup, seed, scale, tx, ty);
+			}
+		});
+		System.out.println("Done generating noise heightmap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+	}
+
+	private static void generateTile(HeightField field, TerraGenSetup setup, long seed, float scale, int tx, int ty)
+	{
+		int xStart = tx * TILE_SIZE;
+		int yStart = ty * TILE_SIZE;
+		int xEnd = Math.min(xStart + TILE_SIZE, field.width);
+		int yEnd = Math.min(yStart + TILE_SIZE, field.length);
+		float[] data = field.data;
+		float ridgedWeight = setup.ridged;
+		for (int y = yStart; y < yEnd; y++)
+		{
+			int i = field.index(xStart, y);
+			for (int x = xStart; x < xEnd; x++, i++)
+			{
+				float px = x * scale;
+				float py = y * scale;
+				if (setup.warpStrength > 0)
+				{
+					float wx = fbm(seed, WARP_X_SALT, px, py, 2, setup.lacunarity, setup.gain);
+					float wy = fbm(seed, WARP_Y_SALT, px, py, 2, setup.lacunarity, setup.gain);
+					px += setup.warpStrength * wx;
+					py += setup.warpStrength * wy;
+				}
+				float value;
+				if (ridgedWeight <= 0)
+					value = 0.5f + (0.5f * fbm(seed, 0, px, py, setup.octaves, setup.lacunarity, setup.gain));
+				else if (ridgedWeight >= 1)
+					value = ridged(seed, px, py, setup.octaves, setup.lacunarity, setup.gain);
+				else
+					value = ((1 - ridgedWeight) * (0.5f + (0.5f * fbm(seed, 0, px, py, setup.octaves, setup.lacunarity, setup.gain))))
+							+ (ridgedWeight * ridged(seed, px, py, setup.octaves, setup.lacunarity, setup.gain));
+				data[i] = Math.min(1, Math.max(0, value));
+			}
+		}
+	}
+
+	/**
+	 * Fractal sum of simplex octaves, normalized to about [-1, 1].
+	 */
+	public static float fbm(long seed, int salt, float x, float y, int octaves, float lacunarity, float gain)
+	{
+		float sum = 0;
+		float amplitude = 1;
+		float amplitudeSum = 0;
+		for (int o = 0; o < octaves; o++)
+		{
+			sum += amplitude * simplex(seed, salt + o, x, y);
+			amplitudeSum += amplitude;
+			x *= lacunarity;
+			y *= lacunarity;
+			amplitude *= gain;
+		}
+		return (amplitudeSum > 0) ? sum / amplitudeSum : 0;
+	}
+
+	/**
+	 * Ridged multifractal, normalized to [0, 1].<BR>
+	 * Each octave is weighted by the previous one, so ridges get sharper detail than valleys.
+	 */
+	public static float ridged(long seed, float x, float y, int octaves, float lacunarity, float gain)
+	{
+		float sum = 0;
+		float amplitude = 1;
+		float amplitudeSum = 0;
+		float weight = 1;
+		for (int o = 0; o < octaves; o++)
+		{
+			float n = 1 - Math.abs(simplex(seed, o, x, y));
+			n = n * n * weight;
+			weight = Math.min(1, Math.max(0, n * 2));
+			sum += amplitude * n;
+			amplitudeSum += amplitude;
+			x *= lacunarity;
+			y *= lacunarity;
+			amplitude *= gain;
+		}
+		return (amplitudeSum > 0) ? sum / amplitudeSum : 0;
+	}
+
+	/**
+	 * 2D simplex noise in about [-1, 1].
+	 */
+	public static float simplex(long seed, int octave, float x, float y)
+	{
+		float s = (x + y) * F2;
+		int i = fastFloor(x + s);
+		int j = fastFloor(y + s);
+		float t = (i + j) * G2;
+		float x0 = x - (i - t);
+		float y0 = y - (j - t);
+		int i1, j1;
+		if (x0 > y0)
+		{
+			i1 = 1;
+			j1 = 0;
+		}
+		else
+		{
+			i1 = 0;
+			j1 = 1;
+		}
+		float x1 = x0 - i1 + G2;
+		float y1 = y0 - j1 + G2;
+		float x2 = x0 - 1 + (2 * G2);
+		float y2 = y0 - 1 + (2 * G2);
+		return 70 * (corner(seed, octave, i, j, x0, y0) + corner(seed, octave, i + i1, j + j1, x1, y1)
+				+ corner(seed, octave, i + 1, j + 1, x2, y2));
+	}
+
+	private static float corner(long seed, int octave, int i, int j, float x, float y)
+	{
+		float t = 0.5f - (x * x) - (y * y);
+		if (t <= 0)
+			return 0;
+		int g = (int)(HashRandom.hash(seed, octave, i, j) & 7);
+		t *= t;
+		return t * t * ((GRAD_X[g] * x) + (GRAD_Y[g] * y));
+	}
+
+	private static int fastFloor(float v)
+	{
+		int i = (int)v;
+		return (v < i) ? i - 1 : i;
+	}
+}
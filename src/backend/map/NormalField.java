@@ -0,0 +1,225 @@
+package backend.map;
+
+import java.util.Arrays;
+
+import backend.ParallelTasks;
+
+/**
+ * Cached smoothed normal of every vertex of a HeightField, kept by the Heightmap.<BR>
+ * Normals are stored as x, y, z floats, vertex (x, y) at index ((y * width) + x) * 3.<BR>
+ * An interior vertex gets the sum of the normals of the 4 triangles to its 4 direct neighbours, normalized<BR>
+ * (fast: only the triangle to its upper and left neighbour). Border vertices use their nearest interior neighbour.<BR>
+ * Height edits only mark the touched TILE_SIZE*TILE_SIZE vertex tiles dirty, they are recomputed<BR>
+ * (in parallel) by the next refresh().
+ */
+public class NormalField
+{
+	public static final int TILE_SIZE = 16;
+	public static final int TILE_SHIFT = 4;
+
+	private final int width;
+	private final int length;
+	private final int tilesX, tilesY;
+	private final float[] normals;
+	private float heightScale = Float.NaN;
+	private float spacing = Float.NaN;
+	private boolean fast;
+
+	private final boolean[] dirty;
+	private boolean anyDirty;
+	private int[] dirtyList = new int[0];
+
+	public NormalField(int width, int length)
+	{
+		this.width = width;
+		this.length = length;
+		this.tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.tilesY = (length + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.normals = new float[width * length * 3];
+		this.dirty = new boolean[tilesX * tilesY];
+		invalidate();
+	}
+
+	public boolean fits(HeightField field)
+	{
+		return (field.width == width) && (field.length == length);
+	}
+
+	/**
+	 * Marks everything dirty.
+	 */
+	public synchronized void invalidate()
+	{
+		Arrays.fill(dirty, true);
+		anyDirty = true;
+	}
+
+	/**
+	 * Marks the vertices whose normals use heights of the given rectangle dirty.
+	 */
+	public synchronized void invalidate(int px, int py, int w, int h)
+	{
+		int x0 = Math.max(px - 2, 0);
+		int y0 = Math.max(py - 2, 0);
+		int x1 = Math.min(px + w + 1, width - 1);
+		int y1 = Math.min(py + h + 1, length - 1);
+		if ((x0 > x1) || (y0 > y1))
+			return;
+		for (int ty = y0 >> TILE_SHIFT; ty <= (y1 >> TILE_SHIFT); ty++)
+			for (int tx = x0 >> TILE_SHIFT; tx <= (x1 >> TILE_SHIFT); tx++)
+				dirty[(ty * tilesX) + tx] = true;
+		anyDirty = true;
+	}
+
+	/**
+	 * Recomputes all dirty tiles from field.<BR>
+	 * heightScale is the world height of a height of 1, spacing the world distance of two vertices.<BR>
+	 * If they or fast differ from the last call, everything is recomputed.
+	 */
+	public synchronized void refresh(final HeightField field, float heightScale, float spacing, boolean fast)
+	{
+		if ((heightScale != this.heightScale) || (spacing != this.spacing) || (fast != this.fast))
+		{
+			this.heightScale = heightScale;
+			this.spacing = spacing;
+			this.fast = fast;
+			invalidate();
+		}
+		if (!anyDirty)
+			return;
+		int count = 0;
+		for (int t = 0; t < dirty.length; t++)
+			if (dirty[t])
+			{
+				if (count == dirtyList.length)
+					dirtyList = Arrays.copyOf(dirtyList, Math.max(count * 2, 16));
+				dirtyList[count++] = t;
+				dirty[t] = false;
+			}
+		anyDirty = false;
+
+		//A brush dab dirties a few tiles, not worth waking the pool for
+		final int[] tiles = dirtyList;
+		ParallelTasks.forRows(0, count, Math.max(ParallelTasks.getGrain(count) / 4, 16), new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				float[] normal = new float[3];
+				for (int i = start; i < end; i++)
+					computeTile(field, tiles[i] % tilesX, tiles[i] / tilesX, normal);
+			}
+		});
+	}
+
+	private void computeTile(HeightField field, int tx, int ty, float[] normal)
+	{
+		int xStart = tx << TILE_SHIFT;
+		int yStart = ty << TILE_SHIFT;
+		int xEnd = Math.min(xStart + TILE_SIZE, width);
+		int yEnd = Math.min(yStart + TILE_SIZE, length);
+		for (int y = yStart; y < yEnd; y++)
+			for (int x = xStart; x < xEnd; x++)
+			{
+				//Border vertices have no 4 neighbours
+				int cx = Math.min(Math.max(x, 1), width - 2);
+				int cy = Math.min(Math.max(y, 1), length - 2);
+				if ((cx < 1) || (cy < 1))
+				{
+					normal[0] = 0;
+					normal[1] = 1;
+					normal[2] = 0;
+				}
+				else
+					computeNormal(field.data, field.stride, cx, cy, normal);
+				int n = ((y * width) + x) * 3;
+				normals[n] = normal[0];
+				normals[n + 1] = normal[1];
+				normals[n + 2] = normal[2];
+			}
+	}
+
+	/**
+	 * Smoothed normal of interior vertex (x, y), computed like the renderer always did at full resolution.
+	 */
+	private void computeNormal(float[] map, int stride, int x, int y, float[] normal)
+	{
+		float s = spacing;
+		float h1 = map[y * stride + x] * heightScale;
+		float h4 = map[(y - 1) * stride + x] * heightScale;
+		float h5 = map[y * stride + x - 1] * heightScale;
+		if (fast)
+		{
+			//Triangle 1 (0, h1, 0), 4 (0, h4, -s), 5 (-s, h5, 0)
+			cross(0 - 0, h1 - h4, 0 - (-s), 0 - (-s), h4 - h5, (-s) - 0, normal);
+			normalize(normal);
+			return;
+		}
+		/*
+		 * Arrangement of vertices:
+		 *  	4
+		 *
+		 * 5	1	3
+		 *
+		 *  	2
+		 *
+		 * 4 Triangles used:
+		 * 1:	1, 2, 3
+		 * 2:	1, 3, 4
+		 * 3:	1, 4, 5
+		 * 4:	1, 5, 2
+		 */
+		float h2 = map[(y + 1) * stride + x] * heightScale;
+		float h3 = map[y * stride + x + 1] * heightScale;
+		cross(0 - 0, h1 - h2, 0 - s, 0 - s, h2 - h3, s - 0, normal);
+		float nx = normal[0], ny = normal[1], nz = normal[2];
+		cross(0 - s, h1 - h3, 0 - 0, s - 0, h3 - h4, 0 - (-s), normal);
+		nx += normal[0];
+		ny += normal[1];
+		nz += normal[2];
+		cross(0 - 0, h1 - h4, 0 - (-s), 0 - (-s), h4 - h5, (-s) - 0, normal);
+		nx += normal[0];
+		ny += normal[1];
+		nz += normal[2];
+		cross(0 - (-s), h1 - h5, 0 - 0, (-s) - 0, h5 - h2, 0 - s, normal);
+		normal[0] = nx + normal[0];
+		normal[1] = ny + normal[1];
+		normal[2] = nz + normal[2];
+		normalize(normal);
+	}
+
+	private static void cross(float ax, float ay, float az, float bx, float by, float bz, float[] normal)
+	{
+		normal[0] = (ay * bz) - (az * by);
+		normal[1] = (az * bx) - (ax * bz);
+		normal[2] = (ax * by) - (ay * bx);
+	}
+
+	private static void normalize(float[] normal)
+	{
+		float length = (float)Math.sqrt((normal[0] * normal[0]) + (normal[1] * normal[1]) + (normal[2] * normal[2]));
+		if (length > 0)
+		{
+			normal[0] = normal[0] / length;
+			normal[1] = normal[1] / length;
+			normal[2] = normal[2] / length;
+		}
+	}
+
+	/**
+	 * The normals, vertex (x, y) at index ((y * getWidth()) + x) * 3. Only valid after refresh().
+	 */
+	public float[] getNormals()
+	{
+		return normals;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+}
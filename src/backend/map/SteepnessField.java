@@ -0,0 +1,189 @@
+package backend.map;
+
+import java.util.Arrays;
+
+import backend.ParallelTasks;
+
+/**
+ * Cached steepness of a HeightField, kept by the Heightmap.<BR>
+ * Holds two layers:<BR>
+ * range: height range (max - min) of every quad, what auto texturing blends steep brushes by.<BR>
+ * slope: 1 - normal.y of every 2*2 quad cell, averaged over its two triangles, what the slopemap shows.<BR>
+ * Height edits only mark the touched TILE_SIZE*TILE_SIZE quad tiles dirty, they are recomputed<BR>
+ * (in parallel) by the next refresh().
+ */
+public class SteepnessField
+{
+	public static final int TILE_SIZE = HeightPyramid.TILE_SIZE;
+	public static final int TILE_SHIFT = HeightPyramid.TILE_SHIFT;
+
+	private final int width;
+	private final int length;
+	private final int quadsX, quadsY;
+	private final int slopeWidth, slopeLength;
+	private final int tilesX, tilesY;
+	private final float[] range;
+	private final float[] slope;
+	private float slopeScale = Float.NaN;
+
+	private final boolean[] dirty;
+	private boolean anyDirty;
+	private int[] dirtyList = new int[0];
+
+	public SteepnessField(int width, int length)
+	{
+		this.width = width;
+		this.length = length;
+		this.quadsX = Math.max(width - 1, 0);
+		this.quadsY = Math.max(length - 1, 0);
+		this.slopeWidth = quadsX / 2;
+		this.slopeLength = quadsY / 2;
+		this.tilesX = (quadsX + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.tilesY = (quadsY + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.range = new float[quadsX * quadsY];
+		this.slope = new float[slopeWidth * slopeLength];
+		this.dirty = new boolean[tilesX * tilesY];
+		invalidate();
+	}
+
+	public boolean fits(HeightField field)
+	{
+		return (field.width == width) && (field.length == length);
+	}
+
+	/**
+	 * Marks everything dirty.
+	 */
+	public synchronized void invalidate()
+	{
+		Arrays.fill(dirty, true);
+		anyDirty = true;
+	}
+
+	/**
+	 * Marks the quads touching vertices of the given rectangle dirty.
+	 */
+	public synchronized void invalidate(int px, int py, int w, int h)
+	{
+		int x0 = Math.max(px - 1, 0);
+		int y0 = Math.max(py - 1, 0);
+		int x1 = Math.min(px + w, quadsX) - 1;
+		int y1 = Math.min(py + h, quadsY) - 1;
+		if ((x0 > x1) || (y0 > y1))
+			return;
+		for (int ty = y0 >> TILE_SHIFT; ty <= (y1 >> TILE_SHIFT); ty++)
+			for (int tx = x0 >> TILE_SHIFT; tx <= (x1 >> TILE_SHIFT); tx++)
+				dirty[(ty * tilesX) + tx] = true;
+		anyDirty = true;
+	}
+
+	/**
+	 * Recomputes all dirty tiles from field.<BR>
+	 * slopeScale is the world height of a height of 1 divided by the world distance of two vertices.<BR>
+	 * If it differs from the last call, the whole slope layer is recomputed.
+	 */
+	public synchronized void refresh(final HeightField field, float slopeScale)
+	{
+		if (slopeScale != this.slopeScale)
+		{
+			this.slopeScale = slopeScale;
+			invalidate();
+		}
+		if (!anyDirty)
+			return;
+		int count = 0;
+		for (int t = 0; t < dirty.length; t++)
+			if (dirty[t])
+			{
+				if (count == dirtyList.length)
+					dirtyList = Arrays.copyOf(dirtyList, Math.max(count * 2, 16));
+				dirtyList[count++] = t;
+				dirty[t] = false;
+			}
+		anyDirty = false;
+
+		final int[] tiles = dirtyList;
+		ParallelTasks.forRows(0, count, Math.max(ParallelTasks.getGrain(count) / 4, 1), new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				for (int i = start; i < end; i++)
+					computeTile(field, tiles[i] % tilesX, tiles[i] / tilesX);
+			}
+		});
+	}
+
+	/**
+	 * Recomputes all dirty tiles, keeping the slope scale of the last refresh.
+	 */
+	public void refresh(HeightField field)
+	{
+		refresh(field, Float.isNaN(slopeScale) ? 1 : slopeScale);
+	}
+
+	private void computeTile(HeightField field, int tx, int ty)
+	{
+		float[] map = field.data;
+		int stride = field.stride;
+		int xStart = tx << TILE_SHIFT;
+		int yStart = ty << TILE_SHIFT;
+		int xEnd = Math.min(xStart + TILE_SIZE, quadsX);
+		int yEnd = Math.min(yStart + TILE_SIZE, quadsY);
+		for (int y = yStart; y < yEnd; y++)
+		{
+			int i = field.index(xStart, y);
+			int r = (y * quadsX) + xStart;
+			for (int x = xStart; x < xEnd; x++, i++, r++)
+			{
+				float maxHeight = Math.max(Math.max(Math.max(map[i], map[i + stride]), map[i + stride + 1]), map[i + 1]);
+				float minHeight = Math.min(Math.min(Math.min(map[i], map[i + stride]), map[i + stride + 1]), map[i + 1]);
+				range[r] = maxHeight - minHeight;
+			}
+		}
+
+		//A slope cell covers quads 2 * sx and 2 * sx + 1, which always lie in the same tile.
+		//Its vertices are two apart, so half the scale per height difference
+		float g = slopeScale / 2;
+		float gg = g * g;
+		int sxEnd = Math.min((xEnd + 1) / 2, slopeWidth);
+		int syEnd = Math.min((yEnd + 1) / 2, slopeLength);
+		for (int sy = yStart / 2; sy < syEnd; sy++)
+			for (int sx = xStart / 2; sx < sxEnd; sx++)
+			{
+				int i = field.index(sx * 2, sy * 2);
+				float a = map[i];
+				float b = map[i + (2 * stride)];
+				float c = map[i + 2];
+				float d = map[i + (2 * stride) + 2];
+				float ny1 = 1 / (float)Math.sqrt(1 + (gg * (((a - c) * (a - c)) + ((a - b) * (a - b)))));
+				float ny2 = 1 / (float)Math.sqrt(1 + (gg * (((b - d) * (b - d)) + ((d - c) * (d - c)))));
+				slope[(sy * slopeWidth) + sx] = 1 - ((ny1 + ny2) / 2);
+			}
+	}
+
+	/**
+	 * Height range of quad (x, y). Only valid after refresh().
+	 */
+	public float getRange(int x, int y)
+	{
+		return range[(y * quadsX) + x];
+	}
+
+	/**
+	 * Slope of the 2*2 quad cell with top left vertex (2 * sx, 2 * sy), 0 (flat) to 1. Only valid after refresh().
+	 */
+	public float getSlope(int sx, int sy)
+	{
+		return slope[(sy * slopeWidth) + sx];
+	}
+
+	public int getSlopeWidth()
+	{
+		return slopeWidth;
+	}
+
+	public int getSlopeLength()
+	{
+		return slopeLength;
+	}
+}
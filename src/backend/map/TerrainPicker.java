@@ -0,0 +1,231 @@
+package backend.map;
+
+/**
+ * Exact ray vs. heightfield intersection.<BR>
+ * The terrain is treated as the triangles MapRenderer draws: every quad (x, y) is split<BR>
+ * along the diagonal from (x, y + 1) to (x + 1, y).<BR>
+ * The ray descends the HeightPyramid, skipping every node whose height range it misses,<BR>
+ * and walks the quads of the remaining 16x16 tiles front to back (DDA).<BR>
+ * Coordinates: x and z in heightmap vertices, y in heightmap units (0 to 1).
+ */
+public class TerrainPicker
+{
+	private final HeightField field;
+	private final HeightPyramid pyramid;
+	private final float ox, oy, oz;
+	private final float dx, dy, dz;
+
+	private TerrainPicker(HeightField field, HeightPyramid pyramid, float ox, float oy, float oz, float dx, float dy, float dz)
+	{
+		this.field = field;
+		this.pyramid = pyramid;
+		this.ox = ox;
+		this.oy = oy;
+		this.oz = oz;
+		this.dx = dx;
+		this.dy = dy;
+		this.dz = dz;
+	}
+
+	/**
+	 * Returns the smallest t >= 0 where origin + t * direction hits the terrain, or -1 if it does not.
+	 */
+	public static float intersect(HeightField field, HeightPyramid pyramid, float ox, float oy, float oz, float dx, float dy, float dz)
+	{
+		if ((field.width < 2) || (field.length < 2))
+			return -1;
+		TerrainPicker picker = new TerrainPicker(field, pyramid, ox, oy, oz, dx, dy, dz);
+		int root = pyramid.getLevelCount() - 1;
+		return picker.intersectNode(root, 0, 0);
+	}
+
+	/**
+	 * Brute force reference: tests every triangle of the map.
+	 */
+	public static float intersectAll(HeightField field, float ox, float oy, float oz, float dx, float dy, float dz)
+	{
+		TerrainPicker picker = new TerrainPicker(field, null, ox, oy, oz, dx, dy, dz);
+		float best = -1;
+		for (int y = 0; y < field.length - 1; y++)
+			for (int x = 0; x < field.width - 1; x++)
+			{
+				float t = picker.intersectQuad(x, y);
+				if ((t >= 0) && ((best < 0) || (t < best)))
+					best = t;
+			}
+		return best;
+	}
+
+	private float intersectNode(int level, int nx, int ny)
+	{
+		float[] range = new float[2];
+		if (!clipNode(level, nx, ny, range, true))
+			return -1;
+		if (level == 0)
+			return intersectTile(nx, ny, range[0], range[1]);
+		//Visit the (up to) four children in the order the ray enters them
+		int[] childX = new int[4];
+		int[] childY = new int[4];
+		float[] enter = new float[4];
+		int count = 0;
+		int countX = pyramid.getNodeCountX(level - 1);
+		int countY = pyramid.getNodeCountY(level - 1);
+		for (int cy = ny << 1; cy <= Math.min((ny << 1) + 1, countY - 1); cy++)
+			for (int cx = nx << 1; cx <= Math.min((nx << 1) + 1, countX - 1); cx++)
+			{
+				if (!clipNode(level - 1, cx, cy, range, false))
+					continue;
+				int i = count++;
+				while ((i > 0) && (enter[i - 1] > range[0]))
+				{
+					childX[i] = childX[i - 1];
+					childY[i] = childY[i - 1];
+					enter[i] = enter[i - 1];
+					i--;
+				}
+				childX[i] = cx;
+				childY[i] = cy;
+				enter[i] = range[0];
+			}
+		for (int i = 0; i < count; i++)
+		{
+			float t = intersectNode(level - 1, childX[i], childY[i]);
+			if (t >= 0)
+				return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * Clips the ray against the box of a node. With useHeight false only x and z are used,<BR>
+	 * which gives the order in which the ray passes over the nodes.
+	 * @return false if the ray misses the box
+	 */
+	private boolean clipNode(int level, int nx, int ny, float[] range, boolean useHeight)
+	{
+		int size = pyramid.getNodeSize(level);
+		float tMin = 0;
+		float tMax = Float.MAX_VALUE;
+		float x0 = nx * size;
+		float z0 = ny * size;
+		float x1 = Math.min(x0 + size, field.width - 1);
+		float z1 = Math.min(z0 + size, field.length - 1);
+		range[0] = tMin;
+		range[1] = tMax;
+		if (!clipSlab(ox, dx, x0, x1, range) || !clipSlab(oz, dz, z0, z1, range))
+			return false;
+		if (useHeight && !clipSlab(oy, dy, pyramid.getNodeMin(level, nx, ny), pyramid.getNodeMax(level, nx, ny), range))
+			return false;
+		return true;
+	}
+
+	private static boolean clipSlab(float origin, float direction, float min, float max, float[] range)
+	{
+		if (direction == 0)
+			return (origin >= min) && (origin <= max);
+		float t0 = (min - origin) / direction;
+		float t1 = (max - origin) / direction;
+		if (t0 > t1)
+		{
+			float t = t0;
+			t0 = t1;
+			t1 = t;
+		}
+		range[0] = Math.max(range[0], t0);
+		range[1] = Math.min(range[1], t1);
+		return range[0] <= range[1];
+	}
+
+	/**
+	 * Walks the quads of a level 0 tile along the ray, between tEnter and tExit.
+	 */
+	private float intersectTile(int tx, int ty, float tEnter, float tExit)
+	{
+		int xStart = tx << HeightPyramid.TILE_SHIFT;
+		int yStart = ty << HeightPyramid.TILE_SHIFT;
+		int xEnd = Math.min(xStart + HeightPyramid.TILE_SIZE, field.width - 1) - 1;
+		int yEnd = Math.min(yStart + HeightPyramid.TILE_SIZE, field.length - 1) - 1;
+		float px = ox + (tEnter * dx);
+		float pz = oz + (tEnter * dz);
+		int x = Math.min(Math.max((int)Math.floor(px), xStart), xEnd);
+		int y = Math.min(Math.max((int)Math.floor(pz), yStart), yEnd);
+		int stepX = (dx > 0) ? 1 : -1;
+		int stepY = (dz > 0) ? 1 : -1;
+		float tDeltaX = (dx != 0) ? Math.abs(1 / dx) : Float.MAX_VALUE;
+		float tDeltaY = (dz != 0) ? Math.abs(1 / dz) : Float.MAX_VALUE;
+		float tNextX = (dx != 0) ? ((x + ((dx > 0) ? 1 : 0)) - ox) / dx : Float.MAX_VALUE;
+		float tNextY = (dz != 0) ? ((y + ((dz > 0) ? 1 : 0)) - oz) / dz : Float.MAX_VALUE;
+		while (true)
+		{
+			float t = intersectQuad(x, y);
+			if (t >= 0)
+				return t;
+			if (tNextX < tNextY)
+			{
+				if (tNextX > tExit)
+					return -1;
+				x += stepX;
+				tNextX += tDeltaX;
+				if ((x < xStart) || (x > xEnd))
+					return -1;
+			}
+			else
+			{
+				if (tNextY > tExit)
+					return -1;
+				y += stepY;
+				tNextY += tDeltaY;
+				if ((y < yStart) || (y > yEnd))
+					return -1;
+			}
+		}
+	}
+
+	/**
+	 * Nearest hit with the two triangles of quad (x, y), or -1.
+	 */
+	private float intersectQuad(int x, int y)
+	{
+		float[] data = field.data;
+		int i = field.index(x, y);
+		float h00 = data[i];
+		float h10 = data[i + 1];
+		float h01 = data[i + field.stride];
+		float h11 = data[i + field.stride + 1];
+		float t1 = intersectTriangle(x, h00, y, x, h01, y + 1, x + 1, h10, y);
+		float t2 = intersectTriangle(x, h01, y + 1, x + 1, h11, y + 1, x + 1, h10, y);
+		if (t1 < 0)
+			return t2;
+		if (t2 < 0)
+			return t1;
+		return Math.min(t1, t2);
+	}
+
+	/**
+	 * Moeller-Trumbore, works for both windings.
+	 */
+	private float intersectTriangle(float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz)
+	{
+		float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+		float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+		float px = (dy * e2z) - (dz * e2y);
+		float py = (dz * e2x) - (dx * e2z);
+		float pz = (dx * e2y) - (dy * e2x);
+		float det = (e1x * px) + (e1y * py) + (e1z * pz);
+		if (Math.abs(det) < 1e-12f)
+			return -1;
+		float invDet = 1 / det;
+		float sx = ox - ax, sy = oy - ay, sz = oz - az;
+		float u = ((sx * px) + (sy * py) + (sz * pz)) * invDet;
+		if ((u < 0) || (u > 1))
+			return -1;
+		float qx = (sy * e1z) - (sz * e1y);
+		float qy = (sz * e1x) - (sx * e1z);
+		float qz = (sx * e1y) - (sy * e1x);
+		float v = ((dx * qx) + (dy * qy) + (dz * qz)) * invDet;
+		if ((v < 0) || (u + v > 1))
+			return -1;
+		float t = ((e2x * qx) + (e2y * qy) + (e2z * qz)) * invDet;
+		return (t >= 0) ? t : -1;
+	}
+}
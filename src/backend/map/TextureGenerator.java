@@ -0,0 +1,314 @@
+package backend.map;
+
+import backend.ParallelTasks;
+import backend.TextureGeneratorSetup;
+import frontend.render.brushes.BrushTexture;
+
+/**
+ * Auto texturing by height and steepness, the engine behind Map.genColorsByHeight.<BR>
+ * Works in bands of heightmap cell rows in parallel. For every cell the four corner heights and the four<BR>
+ * steepness values (from the cached SteepnessField) are read once and shared by its texels.<BR>
+ * Which transition a height falls into is looked up in a table instead of searching all transitions.<BR>
+ * The result is the same as that of the old serial loop, including one of its quirks: above the first and<BR>
+ * below the last transition the flat blend factor of the previous texel is kept. Brush 1 and 2 are the same<BR>
+ * there, so it only shows in rounding, but to keep every byte the same a first pass finds the factor each row<BR>
+ * starts with.
+ */
+public class TextureGenerator
+{
+	private static final int LOOKUP_SIZE = 256;
+
+	private final HeightField field;
+	private final SteepnessField steepness;
+	private final TextureStorage texture;
+	private final int factor;
+	private final int px, py, width, length;
+
+	private final int levels;
+	private final BrushTexture[] brushesFlat;
+	private final BrushTexture[] brushesSteep;
+	private final float[] heightTransitions;
+	private final float[] steepTransitions;
+	private final int transitionCount;
+
+	/**
+	 * Start index for the transition search, by height. Null if the transitions are not sorted.
+	 */
+	private int[] transitionLookup;
+	private float lookupScale;
+
+	private TextureGenerator(HeightField field, SteepnessField steepness, TextureStorage texture, int factor, int px, int py, int width, int length, TextureGeneratorSetup setup)
+	{
+		this.field = field;
+		this.steepness = steepness;
+		this.texture = texture;
+		this.factor = factor;
+		this.px = px;
+		this.py = py;
+		this.width = width;
+		this.length = length;
+		this.levels = setup.levels;
+		this.brushesFlat = setup.brushesFlat;
+		this.brushesSteep = setup.brushesSteep;
+		this.heightTransitions = setup.heightTransitions;
+		this.steepTransitions = setup.steepTransitions;
+		this.transitionCount = 2 * (levels - 1);
+		buildTransitionLookup();
+	}
+
+	/**
+	 * Texturizes texels [px, px + width) x [py, py + length) of texture from the heights in field.<BR>
+	 * steepness must be refreshed for field. factor is the number of texels per heightmap quad.
+	 */
+	public static void generate(HeightField field, SteepnessField steepness, TextureStorage texture, int factor, int px, int py, int width, int length, TextureGeneratorSetup setup)
+	{
+		if ((width <= 0) || (length <= 0))
+			return;
+		new TextureGenerator(field, steepness, texture, factor, px, py, width, length, setup).run();
+	}
+
+	private void buildTransitionLookup()
+	{
+		if (transitionCount < 2)
+			return;
+		for (int i = 1; i < transitionCount; i++)
+			if (!(heightTransitions[i - 1] <= heightTransitions[i]))
+				return;
+		float range = heightTransitions[transitionCount - 1] - heightTransitions[0];
+		if (!(range > 0))
+			return;
+		lookupScale = LOOKUP_SIZE / range;
+		transitionLookup = new int[LOOKUP_SIZE];
+		int index = 1;
+		for (int k = 0; k < LOOKUP_SIZE; k++)
+		{
+			float binStart = heightTransitions[0] + (k / lookupScale);
+			while ((index < transitionCount - 1) && (heightTransitions[index] < binStart))
+				index++;
+			transitionLookup[k] = index;
+		}
+	}
+
+	/**
+	 * Smallest index >= 1 with height <= heightTransitions[index], for heights between the first and last transition.<BR>
+	 * Returns transitionCount if there is none.
+	 */
+	private int findTransition(float height)
+	{
+		if (transitionLookup == null)
+		{
+			int index = 1;
+			while ((index < transitionCount) && !(height <= heightTransitions[index]))
+				index++;
+			return index;
+		}
+		int bin = (int)((height - heightTransitions[0]) * lookupScale);
+		bin = (bin < 0) ? 0 : ((bin >= LOOKUP_SIZE) ? LOOKUP_SIZE - 1 : bin);
+		int index = transitionLookup[bin];
+		//The table only gives a start, sorted transitions make the local search exact
+		while ((index > 1) && (height <= heightTransitions[index - 1]))
+			index--;
+		while ((index < transitionCount) && !(height <= heightTransitions[index]))
+			index++;
+		return index;
+	}
+
+	private void run()
+	{
+		final int cellStart = py / factor;
+		final int cellEnd = ((py + length - 1) / factor) + 1;
+
+		//Pass 1: flat blend factor at the end of every row, serial prefix gives the one each row starts with
+		final float[] rowEndBlend = new float[length];
+		ParallelTasks.forRows(py, py + length, ParallelTasks.getGrain(length), new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				for (int y = start; y < end; y++)
+					rowEndBlend[y - py] = findRowEndBlend(y);
+			}
+		});
+		final float[] rowStartBlend = new float[length];
+		float blend = 0.5f;
+		for (int i = 0; i < length; i++)
+		{
+			rowStartBlend[i] = blend;
+			if (!Float.isNaN(rowEndBlend[i]))
+				blend = rowEndBlend[i];
+		}
+
+		//Pass 2: texturize
+		ParallelTasks.forRows(cellStart, cellEnd, Math.max(ParallelTasks.getGrain(cellEnd - cellStart) / 8, 1), new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				int cellX0 = px / factor;
+				int cellX1 = ((px + width - 1) / factor) + 1;
+				float[] cells = new float[(cellX1 - cellX0) * 8];
+				byte[] scratch = texture.newRowBuffer();
+				for (int cy = start; cy < end; cy++)
+				{
+					readCells(cy, cellX0, cellX1, cells);
+					int y0 = Math.max(cy * factor, py);
+					int y1 = Math.min((cy + 1) * factor, py + length);
+					for (int y = y0; y < y1; y++)
+						texturizeRow(y, cellX0, cells, rowStartBlend[y - py], scratch);
+				}
+			}
+		});
+	}
+
+	private float getHeight(int x, int y)
+	{
+		if ((x < 0) || (y < 0) || (x >= field.width) || (y >= field.length))
+			return 0;
+		return field.data[field.index(x, y)];
+	}
+
+	/**
+	 * Per cell: the heights h1 to h4 of its corners and the steepness st1 to st4 at them, the height range<BR>
+	 * of the quad starting there (SteepnessField.getRange), 0 past the right and lower border.<BR>
+	 * Texels interpolate both bilinearly.
+	 */
+	private void readCells(int cy, int cellX0, int cellX1, float[] cells)
+	{
+		boolean hasBelow = cy < field.length - 2;
+		for (int cx = cellX0, c = 0; cx < cellX1; cx++, c += 8)
+		{
+			boolean hasRight = cx < field.width - 2;
+			cells[c] = getHeight(cx, cy);
+			cells[c + 1] = getHeight(cx, cy + 1);
+			cells[c + 2] = getHeight(cx + 1, cy + 1);
+			cells[c + 3] = getHeight(cx + 1, cy);
+			cells[c + 4] = steepness.getRange(cx, cy);
+			cells[c + 5] = hasBelow ? steepness.getRange(cx, cy + 1) : 0;
+			cells[c + 6] = (hasRight && hasBelow) ? steepness.getRange(cx + 1, cy + 1) : 0;
+			cells[c + 7] = hasRight ? steepness.getRange(cx + 1, cy) : 0;
+		}
+	}
+
+	/**
+	 * Flat blend factor the last texel of row y sets, NaN if no texel of the row sets one.
+	 */
+	private float findRowEndBlend(int y)
+	{
+		int cy = y / factor;
+		float fractY = (y % factor) / (float)factor;
+		for (int x = px + width - 1; x >= px; x--)
+		{
+			int cx = x / factor;
+			float fractX = (x % factor) / (float)factor;
+			float heightYLeft = ((1 - fractY) * getHeight(cx, cy)) + (fractY * getHeight(cx, cy + 1));
+			float heightYRight = ((1 - fractY) * getHeight(cx + 1, cy)) + (fractY * getHeight(cx + 1, cy + 1));
+			float height = ((1 - fractX) * heightYLeft) + (fractX * heightYRight);
+			if ((height <= heightTransitions[0]) || (height >= heightTransitions[transitionCount - 1]))
+				continue;
+			int index = findTransition(height);
+			if (index < transitionCount)
+				return ((height - heightTransitions[index - 1]) / (heightTransitions[index] - heightTransitions[index - 1]));
+		}
+		return Float.NaN;
+	}
+
+	private void texturizeRow(int y, int cellX0, float[] cells, float blendFactorBrush2Flat, byte[] scratch)
+	{
+		byte[] row = texture.getRow(y, px, width, scratch);
+		float fractY = (y % factor) / (float)factor;
+		BrushTexture brush1Flat = brushesFlat[0];
+		BrushTexture brush2Flat = brushesFlat[0];
+		BrushTexture brush1Steep = brushesSteep[0];
+		BrushTexture brush2Steep = brushesSteep[0];
+		float blendFactorBrush2Steep = 0;
+		int r1, g1, b1, r2, g2, b2;
+		int r1s, g1s, b1s, r2s, g2s, b2s;
+		int lastCell = -1;
+		float heightYLeft = 0, heightYRight = 0, steepYLeft = 0, steepYRight = 0;
+		for (int x = px; x < px + width; x++)
+		{
+			int cx = x / factor;
+			if (cx != lastCell)
+			{
+				int c = (cx - cellX0) * 8;
+				heightYLeft = ((1 - fractY) * cells[c]) + (fractY * cells[c + 1]);
+				heightYRight = ((1 - fractY) * cells[c + 3]) + (fractY * cells[c + 2]);
+				steepYLeft = ((1 - fractY) * cells[c + 4]) + (fractY * cells[c + 5]);
+				steepYRight = ((1 - fractY) * cells[c + 7]) + (fractY * cells[c + 6]);
+				lastCell = cx;
+			}
+			float fractX = (x % factor) / (float)factor;
+			float height = ((1 - fractX) * heightYLeft) + (fractX * heightYRight);
+			float steep = ((1 - fractX) * steepYLeft) + (fractX * steepYRight);
+
+			//calculate which brushes to use
+			int steepIndex;
+			if (height <= heightTransitions[0])
+			{
+				brush1Flat = brushesFlat[0];
+				brush2Flat = brushesFlat[0];
+				brush1Steep = brushesSteep[0];
+				brush2Steep = brushesSteep[0];
+				steepIndex = 0;
+			}
+			else if (height >= heightTransitions[transitionCount - 1])
+			{
+				brush1Flat = brushesFlat[levels - 1];
+				brush2Flat = brushesFlat[levels - 1];
+				brush1Steep = brushesSteep[levels - 1];
+				brush2Steep = brushesSteep[levels - 1];
+				steepIndex = (levels - 1) * 2;
+			}
+			else
+			{
+				int index = findTransition(height);
+				if (index < transitionCount)
+				{
+					int lastIndex = index - 1;
+					brush1Flat = brushesFlat[(lastIndex + 1) / 2];
+					brush2Flat = brushesFlat[(index + 1) / 2];
+					brush1Steep = brushesSteep[(lastIndex + 1) / 2];
+					brush2Steep = brushesSteep[(index + 1) / 2];
+					blendFactorBrush2Flat = ((height - heightTransitions[lastIndex]) / (heightTransitions[index] - heightTransitions[lastIndex]));
+					steepIndex = ((index - 1) / 2) * 2;
+				}
+				else
+					steepIndex = -1;
+			}
+			if (steepIndex >= 0)
+			{
+				if (steep < steepTransitions[steepIndex])
+					blendFactorBrush2Steep = 0;
+				else if (steep > steepTransitions[steepIndex + 1])
+					blendFactorBrush2Steep = 1;
+				else
+					blendFactorBrush2Steep = 1 - (steepTransitions[steepIndex + 1] - steep) / (steepTransitions[steepIndex + 1] - steepTransitions[steepIndex]);
+			}
+
+			//blend color from brushes
+			r1 = (brush1Flat.textureR[x % brush1Flat.width][y % brush1Flat.height] & 0xFF);
+			g1 = (brush1Flat.textureG[x % brush1Flat.width][y % brush1Flat.height] & 0xFF);
+			b1 = (brush1Flat.textureB[x % brush1Flat.width][y % brush1Flat.height] & 0xFF);
+			r1s = (brush1Steep.textureR[x % brush1Steep.width][y % brush1Steep.height] & 0xFF);
+			g1s = (brush1Steep.textureG[x % brush1Steep.width][y % brush1Steep.height] & 0xFF);
+			b1s = (brush1Steep.textureB[x % brush1Steep.width][y % brush1Steep.height] & 0xFF);
+			r1 = (int)(((r1 * (1 - blendFactorBrush2Steep)) + (r1s * blendFactorBrush2Steep)));
+			g1 = (int)(((g1 * (1 - blendFactorBrush2Steep)) + (g1s * blendFactorBrush2Steep)));
+			b1 = (int)(((b1 * (1 - blendFactorBrush2Steep)) + (b1s * blendFactorBrush2Steep)));
+
+			r2 = (brush2Flat.textureR[x % brush2Flat.width][y % brush2Flat.height] & 0xFF);
+			g2 = (brush2Flat.textureG[x % brush2Flat.width][y % brush2Flat.height] & 0xFF);
+			b2 = (brush2Flat.textureB[x % brush2Flat.width][y % brush2Flat.height] & 0xFF);
+			r2s = (brush2Steep.textureR[x % brush2Steep.width][y % brush2Steep.height] & 0xFF);
+			g2s = (brush2Steep.textureG[x % brush2Steep.width][y % brush2Steep.height] & 0xFF);
+			b2s = (brush2Steep.textureB[x % brush2Steep.width][y % brush2Steep.height] & 0xFF);
+			r2 = (int)(((r2 * (1 - blendFactorBrush2Steep)) + (r2s * blendFactorBrush2Steep)));
+			g2 = (int)(((g2 * (1 - blendFactorBrush2Steep)) + (g2s * blendFactorBrush2Steep)));
+			b2 = (int)(((b2 * (1 - blendFactorBrush2Steep)) + (b2s * blendFactorBrush2Steep)));
+
+			//set color to texmap
+			row[(x * 3) + 0] = (byte)(((r1 * (1 - blendFactorBrush2Flat)) + (r2 * blendFactorBrush2Flat)));
+			row[(x * 3) + 1] = (byte)(((g1 * (1 - blendFactorBrush2Flat)) + (g2 * blendFactorBrush2Flat)));
+			row[(x * 3) + 2] = (byte)(((b1 * (1 - blendFactorBrush2Flat)) + (b2 * blendFactorBrush2Flat)));
+		}
+		texture.putRow(y, px, width, row);
+	}
+}
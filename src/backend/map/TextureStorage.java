@@ -0,0 +1,86 @@
+package backend.map;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rows of RGB texels, what a Texturemap keeps its texture in.<BR>
+ * Either byte[][] on the heap (HeapTextureStorage), or for texturemaps too large for the heap a memory mapped<BR>
+ * scratch file (MappedTextureStorage) or deflated tiles (CompressedTextureStorage).<BR>
+ * Everything reading or writing texels goes through this, so it works with all of them:<BR>
+ * getRow()/putRow() edit a row in place on the heap and through a scratch row otherwise,<BR>
+ * getTexels()/setTexels() copy a span of a row.
+ */
+public abstract class TextureStorage
+{
+	protected final int width;
+	protected final int length;
+
+	protected TextureStorage(int width, int length)
+	{
+		this.width = width;
+		this.length = length;
+	}
+
+	/**
+	 * Heap storage using the given rows, texel x of a row at index x * 3.
+	 */
+	public static TextureStorage wrap(byte[][] rows, int width)
+	{
+		return new HeapTextureStorage(rows, width);
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * True if getRow() copies into the scratch row instead of returning the stored one.
+	 */
+	public abstract boolean copiesRows();
+
+	/**
+	 * Scratch row for getRow(). Empty for heap storage, which never uses it.
+	 */
+	public byte[] newRowBuffer()
+	{
+		return new byte[width * 3];
+	}
+
+	/**
+	 * Returns a row holding texels [x, x + count) of row y at index x * 3.<BR>
+	 * On the heap this is the stored row itself, otherwise scratch (from newRowBuffer()) filled with them.<BR>
+	 * After changing it, putRow() must be called with the same span.
+	 */
+	public abstract byte[] getRow(int y, int x, int count, byte[] scratch);
+
+	/**
+	 * Stores texels [x, x + count) of row (at index x * 3) into row y. Nothing to do if row is the stored row.
+	 */
+	public abstract void putRow(int y, int x, int count, byte[] row);
+
+	/**
+	 * Copies texels [x, x + count) of row y to dst, starting at offset.
+	 */
+	public abstract void getTexels(int y, int x, int count, byte[] dst, int offset);
+
+	/**
+	 * Copies texels [x, x + count) of row y to dst, at its position.
+	 */
+	public abstract void getTexels(int y, int x, int count, ByteBuffer dst);
+
+	/**
+	 * Copies count texels from src, starting at offset, into row y starting at texel x.
+	 */
+	public abstract void setTexels(int y, int x, int count, byte[] src, int offset);
+
+	/**
+	 * Sets every channel of every texel to value.
+	 */
+	public abstract void fill(byte value);
+}
@@ -1,24 +1,51 @@
 package backend.map;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
+import frontend.render.brushes.BrushPattern;
+import frontend.render.brushes.BrushTexture;
 import frontend.render.brushes.PrefabBrush;
 import frontend.render.brushes.TextureBrush;
 
 import backend.FastMath;
+import backend.ParallelTasks;
 import backend.FileHandler.FileFormat;
 import backend.image.Bitmap;
 
 public class Texturemap {
-	public byte[][] textureMap;
+	private TextureStorage textureMap;
 	private int textureMapWidth; // The actual array width is * 3 for color channels
 	public int texturemapLength;
 
+	/**
+	 * Layers that are painted separately and composited over the base texture into textureMap, bottom first.<BR>
+	 * Replaced as a whole when layers are added or removed.
+	 */
 	public TexturemapLayer[] layers;
 	
+	/**
+	 * Texture below the layers, null while there are no layers (then textureMap is the base).<BR>
+	 * baseDirty holds the tiles of it changed since the last compileLayers().
+	 */
+	private TextureStorage baseMap;
+	private DirtyTiles baseDirty;
+	
 	private int bufferWidth;
 	private byte[] buffer = new byte[0];
+	private byte[] rowBuffer;
+	
+	/**
+	 * Texturemaps with more bytes than this are kept in a memory mapped scratch file instead of the heap.
+	 */
+	private static long mappedAboveBytes = Long.MAX_VALUE;
+	/**
+	 * Texturemaps with more bytes than this are kept compressed in memory, with a cache of compressedCacheBytes.<BR>
+	 * Checked before mappedAboveBytes.
+	 */
+	private static long compressedAboveBytes = Long.MAX_VALUE;
+	private static long compressedCacheBytes = 64 * 1024 * 1024;
 	
 	/**
 	 * This is the factor we need to multiply the spring mapsize with,<BR>
@@ -40,9 +67,43 @@ public class Texturemap {
 	{
 		textureMapWidth = width * springMapsizeTexturemapFactor;
 		texturemapLength = height * springMapsizeTexturemapFactor;
-		textureMap = new byte[texturemapLength][textureMapWidth * 3]; // The whole texturemap
-		layers = new TexturemapLayer[1]; // Layers that can be edited separately and will be compiled to the texturemap
-		//layers[0] = new TexturemapLayer(height * springMapsizeTexturemapFactor, width * springMapsizeTexturemapFactor);
+		textureMap = allocate(textureMapWidth, texturemapLength); // The whole texturemap
+		layers = new TexturemapLayer[0];
+	}
+	
+	public static void setMappedAboveBytes(long bytes)
+	{
+		mappedAboveBytes = bytes;
+	}
+	
+	public static void setCompressedAboveBytes(long bytes, long cacheBytes)
+	{
+		compressedAboveBytes = bytes;
+		compressedCacheBytes = cacheBytes;
+	}
+	
+	/**
+	 * Storage for a width * length texturemap: compressed above compressedAboveBytes,<BR>
+	 * memory mapped above mappedAboveBytes (unless mapping fails), on the heap otherwise.
+	 */
+	private static TextureStorage allocate(int width, int length)
+	{
+		if (((long)width * length * 3) > compressedAboveBytes)
+			return new CompressedTextureStorage(width, length, compressedCacheBytes);
+		if (((long)width * length * 3) > mappedAboveBytes)
+		{
+			try
+			{
+				TextureStorage storage = new MappedTextureStorage(width, length);
+				System.out.println("Texturemap " + width + "x" + length + " is memory mapped");
+				return storage;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return new HeapTextureStorage(width, length);
 	}
 	
 	public int getLength()
@@ -55,11 +116,112 @@ public class Texturemap {
 		return textureMapWidth;
 	}
 	
-	public byte[][] getMap()
+	/**
+	 * Returns the composited texture, what is shown and exported.
+	 */
+	public TextureStorage getMap()
 	{
 		return textureMap;
 	}
 	
+	/**
+	 * Returns the map edits of the base texture go to: textureMap without layers, the texture below them otherwise.<BR>
+	 * Call baseChanged() after changing it.
+	 */
+	public TextureStorage getBaseMap()
+	{
+		TextureStorage base = baseMap;
+		return (base != null) ? base : textureMap;
+	}
+	
+	/**
+	 * Must be called after texels of getBaseMap() were changed, recomposites them if there are layers.
+	 */
+	public void baseChanged(int px, int py, int width, int length)
+	{
+		if (baseMap == null)
+			return;
+		baseDirty.mark(px, py, width, length);
+		compileLayers();
+	}
+	
+	/**
+	 * Adds a new, fully transparent layer on top.
+	 */
+	public TexturemapLayer addLayer()
+	{
+		if (baseMap == null)
+		{
+			TextureStorage base = allocate(textureMapWidth, texturemapLength);
+			copyRows(textureMap, base);
+			baseDirty = new DirtyTiles(textureMapWidth, texturemapLength);
+			baseMap = base;
+		}
+		TexturemapLayer layer = new TexturemapLayer(texturemapLength / springMapsizeTexturemapFactor, textureMapWidth / springMapsizeTexturemapFactor);
+		TexturemapLayer[] newLayers = Arrays.copyOf(layers, layers.length + 1);
+		newLayers[layers.length] = layer;
+		layers = newLayers;
+		return layer;
+	}
+	
+	/**
+	 * Returns the top layer, the one texture brushes paint into, null without layers.
+	 */
+	public TexturemapLayer getTopLayer()
+	{
+		TexturemapLayer[] stack = layers;
+		return (stack.length > 0) ? stack[stack.length - 1] : null;
+	}
+	
+	/**
+	 * Removes the given layer, the texture below it shows again.
+	 */
+	public void removeLayer(TexturemapLayer layer)
+	{
+		int index = Arrays.asList(layers).indexOf(layer);
+		if (index < 0)
+			return;
+		TexturemapLayer[] newLayers = new TexturemapLayer[layers.length - 1];
+		System.arraycopy(layers, 0, newLayers, 0, index);
+		System.arraycopy(layers, index + 1, newLayers, index, newLayers.length - index);
+		layers = newLayers;
+		if (newLayers.length == 0)
+		{
+			copyRows(baseMap, textureMap);
+			baseMap = null;
+			baseDirty = null;
+		}
+		else
+		{
+			baseDirty.markAll();
+			compileLayers();
+		}
+	}
+	
+	/**
+	 * Copies the whole texture from one storage into another of the same size.
+	 */
+	private void copyRows(TextureStorage from, TextureStorage to)
+	{
+		byte[] scratch = from.newRowBuffer();
+		for (int y = 0; y < texturemapLength; y++)
+			to.setTexels(y, 0, textureMapWidth, from.getRow(y, 0, textureMapWidth, scratch), 0);
+	}
+	
+	/**
+	 * Bakes all layers into the texture and removes them.<BR>
+	 * Done before operations on the whole map, which would need to move all layers the same way.
+	 */
+	public void flattenLayers()
+	{
+		if (baseMap == null)
+			return;
+		compileLayers();
+		layers = new TexturemapLayer[0];
+		baseMap = null;
+		baseDirty = null;
+	}
+	
 	public void saveTextureMap(File texturemapFile)
 	{
 		compileLayers();
@@ -68,43 +230,74 @@ public class Texturemap {
 	
 	public void loadDataIntoTexturemap(File texturemapFile)
 	{
+		flattenLayers();
 			/*if ((bitmap.width == width * springMapsizeTexturemapFactor) && (bitmap.height == height * springMapsizeTexturemapFactor))
 				throw new IllegalArgumentException("TextureMapsize must be " + heightmapSizeTextureFactor + " * (heightmapsize - 1)");*/
 			new Bitmap(texturemapFile).loadDataIntoTexturemap(textureMap);
 	}
 	
+	/**
+	 * Scratch row for getRow() of the operations below, which all run on one thread.
+	 */
+	private byte[] rowBuffer()
+	{
+		if (rowBuffer == null)
+			rowBuffer = textureMap.newRowBuffer();
+		return rowBuffer;
+	}
+	
 	public void switchMapAxis()
 	{
+		flattenLayers();
+		TextureStorage oldMap = textureMap;
 		int t = textureMapWidth;
 		textureMapWidth = texturemapLength;
 		texturemapLength = t;
-		byte[][] newMap = new byte[texturemapLength][textureMapWidth * 3];
-		for (int y = 0; y < texturemapLength; y++)
+		TextureStorage newMap = allocate(textureMapWidth, texturemapLength);
+		//Transposed in bands of new rows, so both maps are only accessed row by row
+		final int band = 64;
+		byte[] column = new byte[band * 3];
+		byte[][] newRows = new byte[band][textureMapWidth * 3];
+		for (int yStart = 0; yStart < texturemapLength; yStart += band)
+		{
+			int rows = Math.min(band, texturemapLength - yStart);
 			for (int x = 0; x < textureMapWidth; x++)
-				for (int i = 0; i < 3; i++)
-					newMap[y][x * 3 + i] = textureMap[x][y * 3 + i];
+			{
+				oldMap.getTexels(x, yStart, rows, column, 0);
+				for (int y = 0; y < rows; y++)
+					for (int i = 0; i < 3; i++)
+						newRows[y][x * 3 + i] = column[y * 3 + i];
+			}
+			for (int y = 0; y < rows; y++)
+				newMap.setTexels(yStart + y, 0, textureMapWidth, newRows[y], 0);
+		}
 		textureMap = newMap;
+		rowBuffer = null;
 	}
 	
 	public void resizeMap(int NewHeight, int NewWidth)
 	{
-		byte[][] newMap = new byte[NewHeight][NewWidth * 3];
+		flattenLayers();
+		TextureStorage newMap = allocate(NewWidth, NewHeight);
 		int width = NewWidth;
 		if (width > textureMapWidth)
 			width = textureMapWidth;
 		int height = NewHeight;
 		if (height > texturemapLength)
 			height = texturemapLength;
+		byte[] scratch = rowBuffer();
 		for (int y = 0; y < height; y++)
-			System.arraycopy(textureMap[y], 0, newMap[y], 0, width * 3);
+			newMap.setTexels(y, 0, width, textureMap.getRow(y, 0, width, scratch), 0);
 		textureMap = newMap;
+		rowBuffer = null;
 		textureMapWidth = NewWidth;
 		texturemapLength = NewHeight;
 	}
 	
 	public void moveMap(int start, int length, int amount, boolean vertically)
 	{
-		byte[][] t;
+		flattenLayers();
+		byte[] scratch = rowBuffer();
 		if (amount <= 0 || amount >= length)
 			return;
 		if (vertically)
@@ -120,16 +313,15 @@ public class Texturemap {
 				length = textureMapWidth - start;
 			if (length <= 0)
 				return;
-			t = new byte[texturemapLength][amount * 3];
-			for (int y = 0; y < texturemapLength; y++)
-				for (int x = 0; x < amount * 3; x++)
-					t[y][x] = textureMap[y][(start + length - amount) * 3 + x];
-			for (int y = 0; y < texturemapLength; y++)
-				for (int x = (length - amount - 1) * 3; x >= 0; x--)
-					textureMap[y][(start + amount) * 3 + x] = textureMap[y][start * 3 + x];
+			byte[] t = new byte[amount * 3];
 			for (int y = 0; y < texturemapLength; y++)
-				for (int x = 0; x < amount * 3; x++)
-					textureMap[y][start * 3 + x] = t[y][x];
+			{
+				byte[] row = textureMap.getRow(y, start, length, scratch);
+				System.arraycopy(row, (start + length - amount) * 3, t, 0, amount * 3);
+				System.arraycopy(row, start * 3, row, (start + amount) * 3, (length - amount) * 3);
+				System.arraycopy(t, 0, row, start * 3, amount * 3);
+				textureMap.putRow(y, start, length, row);
+			}
 		}
 		else
 		{
@@ -144,21 +336,19 @@ public class Texturemap {
 				length = texturemapLength - start;
 			if (length <= 0)
 				return;
-			t = new byte[amount][textureMapWidth * 3];
+			byte[][] t = new byte[amount][textureMapWidth * 3];
 			for (int y = 0; y < amount; y++)
-				for (int x = 0; x < textureMapWidth * 3; x++)
-					t[y][x] = textureMap[start + length - amount + y][x];
+				textureMap.getTexels(start + length - amount + y, 0, textureMapWidth, t[y], 0);
 			for (int y = length - amount - 1; y >= 0; y--)
-				for (int x = 0; x < textureMapWidth * 3; x++)
-					textureMap[start + amount + y][x] = textureMap[start + y][x];
+				textureMap.setTexels(start + amount + y, 0, textureMapWidth, textureMap.getRow(start + y, 0, textureMapWidth, scratch), 0);
 			for (int y = 0; y < amount; y++)
-				for (int x = 0; x < textureMapWidth * 3; x++)
-					textureMap[start + y][x] = t[y][x];
+				textureMap.setTexels(start + y, 0, textureMapWidth, t[y], 0);
 		}
 	}
 	
 	public void mirrorMap(int start, int length, int offset, boolean vertically)
 	{
+		flattenLayers();
 		if (vertically)
 		{
 			if (start >= textureMapWidth)
@@ -183,10 +373,15 @@ public class Texturemap {
 			if (length <= 0)
 				return;
 			offset += start + length - 1;
+			byte[] scratch = rowBuffer();
 			for (int y = 0; y < texturemapLength; y++)
+			{
+				byte[] row = textureMap.getRow(y, 0, textureMapWidth, scratch);
 				for (int x = 0; x < length; x++)
 					for (int c = 0; c < 3; c++)
-						textureMap[y][(offset - x) * 3 + c] = textureMap[y][(start + x) * 3 + c];
+						row[(offset - x) * 3 + c] = row[(start + x) * 3 + c];
+				textureMap.putRow(y, 0, textureMapWidth, row);
+			}
 		}
 		else
 		{
@@ -212,15 +407,15 @@ public class Texturemap {
 			if (length <= 0)
 				return;
 			offset += start + length - 1;
+			byte[] scratch = rowBuffer();
 			for (int y = 0; y < length; y++)
-				for (int x = 0; x < textureMapWidth; x++)
-					for (int c = 0; c < 3; c++)
-						textureMap[offset - y][x * 3 + c] = textureMap[start + y][x * 3 + c];
+				textureMap.setTexels(offset - y, 0, textureMapWidth, textureMap.getRow(start + y, 0, textureMapWidth, scratch), 0);
 		}
 	}
 	
 	public void flipMap(int start, int length, int offset, boolean vertically)
 	{
+		flattenLayers();
 		byte t;
 		if (vertically)
 		{
@@ -246,14 +441,19 @@ public class Texturemap {
 			if (length <= 0)
 				return;
 			offset += start + length - 1;
+			byte[] scratch = rowBuffer();
 			for (int y = 0; y < texturemapLength; y++)
+			{
+				byte[] row = textureMap.getRow(y, 0, textureMapWidth, scratch);
 				for (int x = 0; x < length; x++)
 					for (int c = 0; c < 3; c++)
 					{
-						t = textureMap[y][(offset - x) * 3 + c];
-						textureMap[y][(offset - x) * 3 + c] = textureMap[y][(start + x) * 3 + c];
-						textureMap[y][(start + x) * 3 + c] = t;
+						t = row[(offset - x) * 3 + c];
+						row[(offset - x) * 3 + c] = row[(start + x) * 3 + c];
+						row[(start + x) * 3 + c] = t;
 					}
+				textureMap.putRow(y, 0, textureMapWidth, row);
+			}
 		}
 		else
 		{
@@ -279,14 +479,15 @@ public class Texturemap {
 			if (length <= 0)
 				return;
 			offset += start + length - 1;
+			byte[] upper = new byte[textureMapWidth * 3];
+			byte[] lower = new byte[textureMapWidth * 3];
 			for (int y = 0; y < length; y++)
-				for (int x = 0; x < textureMapWidth; x++)
-					for (int c = 0; c < 3; c++)
-					{
-						t = textureMap[offset - y][x * 3 + c];
-						textureMap[offset - y][x * 3 + c] = textureMap[start + y][x * 3 + c];
-						textureMap[start + y][x * 3 + c] = t;
-					}
+			{
+				textureMap.getTexels(start + y, 0, textureMapWidth, upper, 0);
+				textureMap.getTexels(offset - y, 0, textureMapWidth, lower, 0);
+				textureMap.setTexels(offset - y, 0, textureMapWidth, upper, 0);
+				textureMap.setTexels(start + y, 0, textureMapWidth, lower, 0);
+			}
 		}
 	}
 	
@@ -315,8 +516,7 @@ public class Texturemap {
 		buffer = new byte[height * width * 3];
 		bufferWidth = width;
 		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width * 3; x++)
-				buffer[y * width * 3 + x] = textureMap[py + y][px * 3 + x];
+			textureMap.getTexels(py + y, px, width, buffer, y * width * 3);
 	}
 	
 	public void paste(int py, int px, PrefabBrush brush)
@@ -359,190 +559,332 @@ public class Texturemap {
 			return;
 		if (height > buffer.length / tempBufferWidth / 3)
 			height = buffer.length / tempBufferWidth / 3;
+		TextureStorage map = getBaseMap();
 		for (int y = 0; y < height; y++)
-			for (int x = 0; x < width * 3; x++)
-				textureMap[py + y][px * 3 + x] = tempBuffer[y * tempBufferWidth * 3 + x];// + (amount * pattern[x - px][y - py]);
+			map.setTexels(py + y, px, width, tempBuffer, y * tempBufferWidth * 3);// + (amount * pattern[x - px][y - py]);
+		baseChanged(px, py, width, height);
 	}
 	
+	/**
+	 * Recomposites the tiles changed in the base texture or any layer since the last call, in parallel.<BR>
+	 * Must be called after painting into layers directly.
+	 */
 	public void compileLayers()
 	{
-		for (int i = 0; i < layers.length; i++)
-			for (int y = 0; y < texturemapLength; y++)
-				for (int x = 0; x < textureMapWidth; x++)
-					for (int c = 0; c < 3; c++)
-						;//textureMap[y][x * 3 + c] += (layers[i].texturemapLayer[y][x * 4 + c] - textureMap[y][x * 3 + c]) * (layers[i].texturemapLayer[y][x * 4 + 3] / 255);
+		final TextureStorage base = baseMap;
+		if (base == null)
+			return;
+		final TexturemapLayer[] stack = layers;
+		final int tilesX = baseDirty.getTilesX();
+		boolean[] dirty = new boolean[tilesX * baseDirty.getTilesY()];
+		boolean anyDirty = baseDirty.takeInto(dirty);
+		for (int i = 0; i < stack.length; i++)
+			anyDirty |= stack[i].getDirtyTiles().takeInto(dirty);
+		if (!anyDirty)
+			return;
+		int count = 0;
+		final int[] tiles = new int[dirty.length];
+		for (int t = 0; t < dirty.length; t++)
+			if (dirty[t])
+				tiles[count++] = t;
+		ParallelTasks.forRows(0, count, 1, new ParallelTasks.RowTask()
+		{
+			public void run(int start, int end)
+			{
+				byte[] scratch = textureMap.newRowBuffer();
+				for (int i = start; i < end; i++)
+					compositeTile(base, stack, (tiles[i] % tilesX) * DirtyTiles.TILE_SIZE, (tiles[i] / tilesX) * DirtyTiles.TILE_SIZE, scratch);
+			}
+		});
+	}
+	
+	private void compositeTile(TextureStorage base, TexturemapLayer[] stack, int px, int py, byte[] scratch)
+	{
+		int xEnd = Math.min(px + DirtyTiles.TILE_SIZE, textureMapWidth);
+		int yEnd = Math.min(py + DirtyTiles.TILE_SIZE, texturemapLength);
+		for (int y = py; y < yEnd; y++)
+		{
+			byte[] row = textureMap.getRow(y, px, xEnd - px, scratch);
+			base.getTexels(y, px, xEnd - px, row, px * 3);
+			for (int l = 0; l < stack.length; l++)
+			{
+				byte[] layerRow = stack[l].texturemapLayer[y];
+				for (int x = px, i = px * 3, j = px * 4; x < xEnd; x++, i += 3, j += 4)
+				{
+					int a = layerRow[j + 3] & 0xFF;
+					if (a == 0)
+						continue;
+					if (a == 255)
+					{
+						row[i + 0] = layerRow[j + 0];
+						row[i + 1] = layerRow[j + 1];
+						row[i + 2] = layerRow[j + 2];
+					}
+					else
+					{
+						int inv = 255 - a;
+						row[i + 0] = (byte)((((row[i + 0] & 0xFF) * inv) + ((layerRow[j + 0] & 0xFF) * a) + 127) / 255);
+						row[i + 1] = (byte)((((row[i + 1] & 0xFF) * inv) + ((layerRow[j + 1] & 0xFF) * a) + 127) / 255);
+						row[i + 2] = (byte)((((row[i + 2] & 0xFF) * inv) + ((layerRow[j + 2] & 0xFF) * a) + 127) / 255);
+					}
+				}
+			}
+			textureMap.putRow(y, px, xEnd - px, row);
+		}
+	}
+	
+	/**
+	 * (i / 255f) for every byte value i, alpha and color channels as factor. Also used by TexturemapLayer.
+	 */
+	static final float[] byteToUnit = new float[256];
+	/**
+	 * Position of texel i inside its heightmap quad, 0 to 1.
+	 */
+	static final float[] texelToQuad = new float[heightmapSizeTextureFactor];
+	static
+	{
+		for (int i = 0; i < 256; i++)
+			byteToUnit[i] = i / (float)0xFF;
+		for (int i = 0; i < heightmapSizeTextureFactor; i++)
+			texelToQuad[i] = i / (float)heightmapSizeTextureFactor;
 	}
 	
+	/**
+	 * Scratch of the brush kernels, grown to the largest brush used. Painting does not allocate.
+	 */
+	private final int[] colorTable = new int[256];
+	private float[] blendLeft = new float[0];
+	private float[] blendRight = new float[0];
+	
+	/*
+	 * The brush kernels below read the brush texture packed row-major (BrushTexture.getPackedTexture()).
+	 * Instead of a modulo per texel, the texture column is taken modulo once per row and wrapped by compare.
+	 * Rounding is (int)(v + 0.5f), the same as FastMath.round() for v >= 0, and both end up at 0 for v < 0.
+	 */
+	
 	public void setColorToTexture(int px, int py, TextureBrush brush)
 	{
+		TextureStorage map = getBaseMap();
+		byte[] scratch = rowBuffer();
 		float amount = brush.getStrength();
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
 		px *= heightmapSizeTextureFactor;
 		py *= heightmapSizeTextureFactor;
-		int r, g, b;
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < textureMapWidth) && (y >= 0) && (y < texturemapLength))
-				{
-					r = FastMath.round((amount * (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					g = FastMath.round((amount * (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					b = FastMath.round((amount * (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-							
-					textureMap[y][(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					textureMap[y][(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					textureMap[y][(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-				}
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * heightmapSizeTextureFactor), textureMapWidth);
+		int yEnd = Math.min(py + (brush.getHeight() * heightmapSizeTextureFactor), texturemapLength);
+		if ((xStart >= xEnd) || (yStart >= yEnd))
+			return;
+		
+		//Result only depends on the channel value
+		int[] table = colorTable;
+		for (int i = 0; i < 256; i++)
+			table[i] = Math.min(Math.max(FastMath.round(amount * i), 0), 255);
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = map.getRow(y, xStart, xEnd - xStart, scratch);
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			for (int i = xStart * 3, iEnd = xEnd * 3; i < iEnd; i += 3)
+			{
+				int c = packed[t + u];
+				row[i + 0] = (byte)table[(c >> 16) & 0xFF];
+				row[i + 1] = (byte)table[(c >> 8) & 0xFF];
+				row[i + 2] = (byte)table[c & 0xFF];
+				if (++u == textureWidth)
+					u = 0;
+			}
+			map.putRow(y, xStart, xEnd - xStart, row);
+		}
+		baseChanged(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
 	public void addColorToTexture(int px, int py, TextureBrush brush)
 	{
+		TextureStorage map = getBaseMap();
+		byte[] scratch = rowBuffer();
 		float amount = brush.getStrength();
-		float[][] pattern = brush.getPattern().getPattern();
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
-		byte[][] textureA = brush.texture.getTextureA();
+		BrushPattern pattern = brush.getPattern();
+		float[] patternRows = pattern.getPatternRows();
+		int patternWidth = pattern.width;
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
 		px *= heightmapSizeTextureFactor;
 		py *= heightmapSizeTextureFactor;
-		int r, g, b;
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < textureMapWidth) && (y >= 0) && (y < texturemapLength))
-				{
-					float alpha = amount * ((textureA[x % brush.texture.width][y % brush.texture.height] & 0xFF) / (float) 0xFF)
-							* pattern[((x - px) / heightmapSizeTextureFactor)][((y - py) / heightmapSizeTextureFactor)];
-					r = FastMath.round((textureMap[y][(x * 3) + 0] & 0xFF) + (alpha * (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					g = FastMath.round((textureMap[y][(x * 3) + 1] & 0xFF) + (alpha * (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					b = FastMath.round((textureMap[y][(x * 3) + 2] & 0xFF) + (alpha * (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					
-					textureMap[y][(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					textureMap[y][(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					textureMap[y][(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-				}
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * heightmapSizeTextureFactor), textureMapWidth);
+		int yEnd = Math.min(py + (brush.getHeight() * heightmapSizeTextureFactor), texturemapLength);
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = map.getRow(y, xStart, xEnd - xStart, scratch);
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			int p = ((y - py) / heightmapSizeTextureFactor) * patternWidth;
+			for (int x = xStart, i = xStart * 3; x < xEnd; x++, i += 3)
+			{
+				int c = packed[t + u];
+				float alpha = amount * byteToUnit[c >>> 24] * patternRows[p + ((x - px) / heightmapSizeTextureFactor)];
+				int r = (int)((row[i + 0] & 0xFF) + (alpha * ((c >> 16) & 0xFF)) + 0.5f);
+				int g = (int)((row[i + 1] & 0xFF) + (alpha * ((c >> 8) & 0xFF)) + 0.5f);
+				int b = (int)((row[i + 2] & 0xFF) + (alpha * (c & 0xFF)) + 0.5f);
+				
+				row[i + 0] = (byte)Math.min(Math.max(r, 0), 255);
+				row[i + 1] = (byte)Math.min(Math.max(g, 0), 255);
+				row[i + 2] = (byte)Math.min(Math.max(b, 0), 255);
+				if (++u == textureWidth)
+					u = 0;
+			}
+			map.putRow(y, xStart, xEnd - xStart, row);
+		}
+		baseChanged(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 
 	public void multiplyColorToTexture(int px, int py, TextureBrush brush)
 	{
+		TextureStorage map = getBaseMap();
+		byte[] scratch = rowBuffer();
 		float amount = brush.getStrength();
-		float[][] pattern = brush.getPattern().getPattern();
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
-		byte[][] textureA = brush.texture.getTextureA();
+		BrushPattern pattern = brush.getPattern();
+		float[] patternRows = pattern.getPatternRows();
+		int patternWidth = pattern.width;
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
 		px *= heightmapSizeTextureFactor;
 		py *= heightmapSizeTextureFactor;
-		int r, g, b;
-		int destr, destg, destb;
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < textureMapWidth) && (y >= 0) && (y < texturemapLength))
-				{
-					destr = (textureMap[y][(x * 3) + 0] & 0xFF);
-					destg = (textureMap[y][(x * 3) + 1] & 0xFF);
-					destb = (textureMap[y][(x * 3) + 2] & 0xFF);
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * heightmapSizeTextureFactor), textureMapWidth);
+		int yEnd = Math.min(py + (brush.getHeight() * heightmapSizeTextureFactor), texturemapLength);
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = map.getRow(y, xStart, xEnd - xStart, scratch);
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			int p = ((y - py) / heightmapSizeTextureFactor) * patternWidth;
+			for (int x = xStart, i = xStart * 3; x < xEnd; x++, i += 3)
+			{
+				int c = packed[t + u];
+				int destr = row[i + 0] & 0xFF;
+				int destg = row[i + 1] & 0xFF;
+				int destb = row[i + 2] & 0xFF;
 
-					float alpha = amount * ((textureA[x % brush.texture.width][y % brush.texture.height] & 0xFF) / (float) 0xFF)
-							* pattern[((x - px) / heightmapSizeTextureFactor)][((y - py) / heightmapSizeTextureFactor)];
-					r = FastMath.round(((1f - alpha) * destr) + (alpha * (destr/255f) * (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					g = FastMath.round(((1f - alpha) * destg) + (alpha * (destg/255f) * (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					b = FastMath.round(((1f - alpha) * destb) + (alpha * (destb/255f) * (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
+				float alpha = amount * byteToUnit[c >>> 24] * patternRows[p + ((x - px) / heightmapSizeTextureFactor)];
+				int r = (int)(((1f - alpha) * destr) + (alpha * byteToUnit[destr] * ((c >> 16) & 0xFF)) + 0.5f);
+				int g = (int)(((1f - alpha) * destg) + (alpha * byteToUnit[destg] * ((c >> 8) & 0xFF)) + 0.5f);
+				int b = (int)(((1f - alpha) * destb) + (alpha * byteToUnit[destb] * (c & 0xFF)) + 0.5f);
 
-					textureMap[y][(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					textureMap[y][(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					textureMap[y][(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-				}
+				row[i + 0] = (byte)Math.min(Math.max(r, 0), 255);
+				row[i + 1] = (byte)Math.min(Math.max(g, 0), 255);
+				row[i + 2] = (byte)Math.min(Math.max(b, 0), 255);
+				if (++u == textureWidth)
+					u = 0;
+			}
+			map.putRow(y, xStart, xEnd - xStart, row);
+		}
+		baseChanged(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
+	/**
+	 * Blends the brush texture in, weighted by the brush pattern interpolated bilinearly between heightmap vertices.<BR>
+	 * The interpolation in y is done once per texel row and pattern column, so each texel only interpolates in x.<BR>
+	 * The pattern is deliberately not cached at texel resolution: such a mask has 64 values per pattern value<BR>
+	 * (gigabytes for the largest brushes), and for a 64 brush reading it measured slower than interpolating in x.
+	 */
 	public void blendColorToTexture(int px, int py, TextureBrush brush)
 	{
-		float[][] pattern = brush.getPattern().getPattern();
-		float[][] newPattern = pattern;
-		int length = brush.getHeight() * heightmapSizeTextureFactor;
-		int width = brush.getWidth() * heightmapSizeTextureFactor;
-		px *= heightmapSizeTextureFactor;
-		py *= heightmapSizeTextureFactor;
-		if (px >= textureMapWidth || py >= texturemapLength)
+		TextureStorage map = getBaseMap();
+		byte[] scratch = rowBuffer();
+		final int f = heightmapSizeTextureFactor;
+		float amount = brush.getStrength();
+		BrushPattern brushPattern = brush.getPattern();
+		float[] pattern = brushPattern.getPatternRows();
+		int fullPatternWidth = brushPattern.width;
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
+		px *= f;
+		py *= f;
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * f), textureMapWidth);
+		int yEnd = Math.min(py + (brush.getHeight() * f), texturemapLength);
+		if ((xStart >= xEnd) || (yStart >= yEnd))
 			return;
-		if (px < 0)
+		//Pattern columns/rows up to the map border; the last one is not interpolated towards the next
+		int patternWidth = (xEnd - px) / f;
+		int patternHeight = (yEnd - py) / f;
+		int columnStart = (xStart - px) / f;
+		int columnEnd = Math.min(((xEnd - 1 - px) / f) + 1, patternWidth);
+		if (blendLeft.length < columnEnd)
 		{
-			width += px;
-			if (width <= 0)
-				return;
-			newPattern = new float[width / heightmapSizeTextureFactor][length / heightmapSizeTextureFactor];
-			System.arraycopy(pattern, (-px - 1) / heightmapSizeTextureFactor, newPattern, 0, width / heightmapSizeTextureFactor);
-			pattern = newPattern;
-			px = 0;
+			blendLeft = new float[fullPatternWidth];
+			blendRight = new float[fullPatternWidth];
 		}
-		if (py < 0)
+		float[] left = blendLeft;
+		float[] right = blendRight;
+		
+		for (int y = yStart; y < yEnd; y++)
 		{
-			length += py;
-			if (length <= 0)
-				return;
-			newPattern = new float[width / heightmapSizeTextureFactor][length / heightmapSizeTextureFactor];
-			for (int x = 0; x < width / heightmapSizeTextureFactor; x++)
-				System.arraycopy(pattern[x], (-py - 1) / heightmapSizeTextureFactor, newPattern[x], 0, length / heightmapSizeTextureFactor);
-			pattern = newPattern;
-			py = 0;
-		}
-		if (length + py >= texturemapLength)
-			length = texturemapLength - py;
-		if (width + px >= textureMapWidth)
-			width = textureMapWidth - px;
-		if (width <= 0 || length <= 0)
-			return;
-		int r, g, b;
-		int patternX, patternY;
-		float blendFactorX, blendFactorY, leftVal, rightVal;
-		float newTexAmountOrigin, newTexAmountLower, newTexAmountRight, newTexAmountLowerRight, newTexAmount, invNewTexAmount;
-		float amount = brush.getStrength();
-		int patternWidth = width / heightmapSizeTextureFactor;//brush.getPattern().width;
-		int patternHeight = length / heightmapSizeTextureFactor;//brush.getPattern().height;
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
-		byte[][] textureA = brush.texture.getTextureA();
-		for (int y = py; y < py + length; y++)
-			for (int x = px; x < px + width; x++) {
-				patternX = (x - px) / heightmapSizeTextureFactor;
-				patternY = (y - py) / heightmapSizeTextureFactor;
-				newTexAmountOrigin = amount * newPattern[patternX][patternY];
-				newTexAmountRight = newTexAmountOrigin;
-				newTexAmountLower = newTexAmountOrigin;
-				newTexAmountLowerRight = newTexAmountOrigin;
-				if ((patternX + 1) < patternWidth)
-					newTexAmountRight = amount * newPattern[patternX + 1][patternY];
-				if ((patternY + 1) < patternHeight)
-					newTexAmountLower = amount * newPattern[patternX][patternY + 1];
-				if (((patternX + 1) < patternWidth) && ((patternY + 1) < patternHeight))
-					newTexAmountLowerRight = amount * newPattern[patternX + 1][patternY + 1];
-				blendFactorX = ((x - px) % heightmapSizeTextureFactor) / (float)heightmapSizeTextureFactor;
-				blendFactorY = ((y - py) % heightmapSizeTextureFactor) / (float)heightmapSizeTextureFactor;
-				leftVal = (newTexAmountOrigin * (1 - blendFactorY)) + (newTexAmountLower * blendFactorY);
-				rightVal = (newTexAmountRight * (1 - blendFactorY)) + (newTexAmountLowerRight * blendFactorY);
-				newTexAmount = (leftVal * (1 - blendFactorX)) + (rightVal * blendFactorX);
-
-				newTexAmount *= (textureA[x % brush.texture.width][y % brush.texture.height] & 0xFF) / (float) 0xFF;
-				invNewTexAmount = 1 - newTexAmount;
-				r = FastMath.round((invNewTexAmount * (textureMap[y][(x * 3) + 0] & 0xFF)) + (newTexAmount * (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-				g = FastMath.round((invNewTexAmount * (textureMap[y][(x * 3) + 1] & 0xFF)) + (newTexAmount * (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-				b = FastMath.round((invNewTexAmount * (textureMap[y][(x * 3) + 2] & 0xFF)) + (newTexAmount * (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
+			int patternY = (y - py) / f;
+			float blendFactorY = texelToQuad[(y - py) % f];
+			boolean hasLower = (patternY + 1) < patternHeight;
+			int p = patternY * fullPatternWidth;
+			for (int patternX = columnStart; patternX < columnEnd; patternX++)
+			{
+				boolean hasRight = (patternX + 1) < patternWidth;
+				float origin = amount * pattern[p + patternX];
+				float newTexAmountRight = hasRight ? amount * pattern[p + patternX + 1] : origin;
+				float newTexAmountLower = hasLower ? amount * pattern[p + fullPatternWidth + patternX] : origin;
+				float newTexAmountLowerRight = (hasRight && hasLower) ? amount * pattern[p + fullPatternWidth + patternX + 1] : origin;
+				left[patternX] = (origin * (1 - blendFactorY)) + (newTexAmountLower * blendFactorY);
+				right[patternX] = (newTexAmountRight * (1 - blendFactorY)) + (newTexAmountLowerRight * blendFactorY);
+			}
+			
+			byte[] row = map.getRow(y, xStart, xEnd - xStart, scratch);
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			for (int x = xStart, i = xStart * 3; x < xEnd; x++, i += 3)
+			{
+				int patternX = (x - px) / f;
+				float blendFactorX = texelToQuad[(x - px) % f];
+				int c = packed[t + u];
+				float newTexAmount = (left[patternX] * (1 - blendFactorX)) + (right[patternX] * blendFactorX);
+				newTexAmount *= byteToUnit[c >>> 24];
+				float invNewTexAmount = 1 - newTexAmount;
+				int r = (int)((invNewTexAmount * (row[i + 0] & 0xFF)) + (newTexAmount * ((c >> 16) & 0xFF)) + 0.5f);
+				int g = (int)((invNewTexAmount * (row[i + 1] & 0xFF)) + (newTexAmount * ((c >> 8) & 0xFF)) + 0.5f);
+				int b = (int)((invNewTexAmount * (row[i + 2] & 0xFF)) + (newTexAmount * (c & 0xFF)) + 0.5f);
 
-				textureMap[y][(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-				textureMap[y][(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-				textureMap[y][(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
+				row[i + 0] = (byte)Math.min(Math.max(r, 0), 255);
+				row[i + 1] = (byte)Math.min(Math.max(g, 0), 255);
+				row[i + 2] = (byte)Math.min(Math.max(b, 0), 255);
+				if (++u == textureWidth)
+					u = 0;
 			}
+			map.putRow(y, xStart, xEnd - xStart, row);
+		}
+		baseChanged(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
 	public void stampColorToTexture(int px, int py, TextureBrush brush)
 	{
+		TextureStorage map = getBaseMap();
+		byte[] scratch = rowBuffer();
 		float strength = brush.getStrength();
-		float amount;
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
-		byte[][] textureA = brush.texture.getTextureA();
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
 
 		// First get the brush center pos and convert it into texture coords
 		px += brush.getWidth()/2;
@@ -551,26 +893,31 @@ public class Texturemap {
 		py = (py * heightmapSizeTextureFactor);
 
 		// Then offset it by half of the brush texture size to center it.
-		px -= brush.texture.width/2;
-		py -= brush.texture.height/2;
+		px -= textureWidth/2;
+		py -= textureHeight/2;
 
-		int r, g, b;
-		for (int y = 0; y < brush.texture.height ; y++)
-			for (int x = 0; x < brush.texture.width; x++)
-				if ((x+px >= 0) && (x+px < textureMapWidth) && (y+py >= 0) && (y+py < texturemapLength))
-				{
-					amount = strength * ((textureA[x][y] & 0xFF) / (float) 0xFF);
-					r = FastMath.round(((1 - amount) * (textureMap[y+py][((x+px) * 3) + 0] & 0xFF))
-							+ (amount * (textureR[x][y] & 0xFF)));
-					g = FastMath.round(((1 - amount) * (textureMap[y+py][((x+px) * 3) + 1] & 0xFF))
-							+ (amount * (textureG[x][y] & 0xFF)));
-					b = FastMath.round(((1 - amount) * (textureMap[y+py][((x+px) * 3) + 2] & 0xFF))
-							+ (amount * (textureB[x][y] & 0xFF)));
-							
-					textureMap[y+py][((x+px) * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					textureMap[y+py][((x+px) * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					textureMap[y+py][((x+px) * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-				}
+		int xStart = Math.max(-px, 0);
+		int yStart = Math.max(-py, 0);
+		int xEnd = Math.min(textureWidth, textureMapWidth - px);
+		int yEnd = Math.min(textureHeight, texturemapLength - py);
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = map.getRow(y + py, xStart + px, xEnd - xStart, scratch);
+			for (int x = xStart, t = (y * textureWidth) + xStart, i = (xStart + px) * 3; x < xEnd; x++, t++, i += 3)
+			{
+				int c = packed[t];
+				float amount = strength * byteToUnit[c >>> 24];
+				int r = (int)(((1 - amount) * (row[i + 0] & 0xFF)) + (amount * ((c >> 16) & 0xFF)) + 0.5f);
+				int g = (int)(((1 - amount) * (row[i + 1] & 0xFF)) + (amount * ((c >> 8) & 0xFF)) + 0.5f);
+				int b = (int)(((1 - amount) * (row[i + 2] & 0xFF)) + (amount * (c & 0xFF)) + 0.5f);
+						
+				row[i + 0] = (byte)Math.min(Math.max(r, 0), 255);
+				row[i + 1] = (byte)Math.min(Math.max(g, 0), 255);
+				row[i + 2] = (byte)Math.min(Math.max(b, 0), 255);
+			}
+			map.putRow(y + py, xStart + px, xEnd - xStart, row);
+		}
+		baseChanged(px + xStart, py + yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
 	public void setPrefabTextureMap(int px, int py, PrefabBrush brush)
@@ -580,21 +927,31 @@ public class Texturemap {
 			byte[][] textureR = brush.texturemap.getTextureR();
 			byte[][] textureG = brush.texturemap.getTextureG();
 			byte[][] textureB = brush.texturemap.getTextureB();
+			TextureStorage map = getBaseMap();
+			byte[] scratch = rowBuffer();
 			px *= heightmapSizeTextureFactor;
 			py *= heightmapSizeTextureFactor;
+			int xStart = Math.max(px, 0);
+			int yStart = Math.max(py, 0);
+			int xEnd = Math.min(px + ((brush.width - 1) * heightmapSizeTextureFactor), textureMapWidth);
+			int yEnd = Math.min(py + ((brush.height - 1) * heightmapSizeTextureFactor), texturemapLength);
 			int r, g, b;
-			for (int y = py; y < py + ((brush.height - 1) * heightmapSizeTextureFactor); y++)
-				for (int x = px; x < px + ((brush.width - 1) * heightmapSizeTextureFactor); x++)
-					if ((x >= 0) && (x < textureMapWidth) && (y >= 0) && (y < texturemapLength))
-					{
-						r = textureR[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
-						g = textureG[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
-						b = textureB[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
-								
-						textureMap[y][(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-						textureMap[y][(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-						textureMap[y][(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-					}
+			for (int y = yStart; y < yEnd; y++)
+			{
+				byte[] row = map.getRow(y, xStart, xEnd - xStart, scratch);
+				for (int x = xStart; x < xEnd; x++)
+				{
+					r = textureR[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
+					g = textureG[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
+					b = textureB[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
+							
+					row[(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
+					row[(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
+					row[(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
+				}
+				map.putRow(y, xStart, xEnd - xStart, row);
+			}
+			baseChanged(px, py, (brush.width - 1) * heightmapSizeTextureFactor, (brush.height - 1) * heightmapSizeTextureFactor);
 		}
 	}
 	
@@ -605,33 +962,39 @@ public class Texturemap {
 			byte[][] textureR = brush.texturemap.getTextureR();
 			byte[][] textureG = brush.texturemap.getTextureG();
 			byte[][] textureB = brush.texturemap.getTextureB();
+			TextureStorage map = getBaseMap();
+			byte[] scratch = rowBuffer();
 			px = (px * heightmapSizeTextureFactor);
 			py = (py * heightmapSizeTextureFactor);
+			int xStart = Math.max(px, 0);
+			int yStart = Math.max(py, 0);
+			int xEnd = Math.min(px + ((brush.width - 1) * heightmapSizeTextureFactor), textureMapWidth);
+			int yEnd = Math.min(py + ((brush.height - 1) * heightmapSizeTextureFactor), texturemapLength);
 			int r, g, b;
-			for (int y = py; y < py + ((brush.height - 1) * heightmapSizeTextureFactor); y++)
+			for (int y = yStart; y < yEnd; y++)
 			{
-				for (int x = px; x < px + ((brush.width - 1) * heightmapSizeTextureFactor); x++)
+				byte[] row = map.getRow(y, xStart, xEnd - xStart, scratch);
+				for (int x = xStart; x < xEnd; x++)
 				{
-					if ((x >= 0) && (x < textureMapWidth) && (y >= 0) && (y < texturemapLength))
-					{
-						r = textureR[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
-						g = textureG[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
-						b = textureB[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
-								
-						textureMap[y][(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-						textureMap[y][(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-						textureMap[y][(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-					}
+					r = textureR[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
+					g = textureG[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
+					b = textureB[(x - px) % brush.texturemap.width][(y - py) % brush.texturemap.height] & 0xFF;
+							
+					row[(x * 3) + 0] = (byte)Math.min(Math.max(r, 0), 255);
+					row[(x * 3) + 1] = (byte)Math.min(Math.max(g, 0), 255);
+					row[(x * 3) + 2] = (byte)Math.min(Math.max(b, 0), 255);
 				}
+				map.putRow(y, xStart, xEnd - xStart, row);
 			}
+			baseChanged(px, py, (brush.width - 1) * heightmapSizeTextureFactor, (brush.height - 1) * heightmapSizeTextureFactor);
 		}
 	}
 	
 	public void whiteOutTextureMap()
 	{
 		long start = System.nanoTime();
-		for (int y = 0; y < texturemapLength; y++)
-			Arrays.fill(textureMap[y], (byte)127);
+		getBaseMap().fill((byte)127);
+		baseChanged(0, 0, textureMapWidth, texturemapLength);
 		System.out.println("Done blanking texture ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
 	}
 }
@@ -3,6 +3,8 @@ package backend.map;
 import java.io.File;
 import java.util.Arrays;
 
+import frontend.render.brushes.BrushPattern;
+import frontend.render.brushes.BrushTexture;
 import frontend.render.brushes.PrefabBrush;
 import frontend.render.brushes.TextureBrush;
 
@@ -14,10 +16,22 @@ public class TexturemapLayer {
 	public byte[][] texturemapLayer;
 	public int width; // The actual array width is * 4 for color channels + alpha
 	public int length;
+	
+	/**
+	 * Tiles painted since the last Texturemap.compileLayers().
+	 */
+	private DirtyTiles dirtyTiles;
 
 	private int bufferWidth;
 	private byte[] buffer = new byte[0];
 	
+	/**
+	 * Scratch of the brush kernels, as in Texturemap.
+	 */
+	private final int[] colorTable = new int[256];
+	private float[] blendLeft = new float[0];
+	private float[] blendRight = new float[0];
+	
 	/**
 	 * This is the factor we need to multiply the spring mapsize with,<BR>
 	 * to get the actual heightmap-size. (do not forget to add 1 pixel to heightmap)
@@ -38,7 +52,21 @@ public class TexturemapLayer {
 	{
 		this.width = width * springMapsizeTexturemapFactor;
 		this.length = length * springMapsizeTexturemapFactor;
-		texturemapLayer = new byte[length][width * 4];
+		texturemapLayer = new byte[this.length][this.width * 4];
+		dirtyTiles = new DirtyTiles(this.width, this.length);
+	}
+	
+	DirtyTiles getDirtyTiles()
+	{
+		return dirtyTiles;
+	}
+	
+	/**
+	 * Marks texels of this layer as changed, for the next Texturemap.compileLayers().
+	 */
+	public void markDirty(int px, int py, int width, int length)
+	{
+		dirtyTiles.mark(px, py, width, length);
 	}
 	
 	public int getMapLength()
@@ -53,14 +81,15 @@ public class TexturemapLayer {
 	
 	public void saveMap(File texturemapFile)
 	{
-		new Bitmap(FileFormat.Bitmap24Bit).saveDataFromTexturemap(texturemapFile, texturemapLayer, width, length);
+		new Bitmap(FileFormat.Bitmap24Bit).saveDataFromTexturemap(texturemapFile, TextureStorage.wrap(texturemapLayer, width), width, length);
 	}
 	
 	public void loadDataIntoMap(File texturemapFile)
 	{
 			/*if ((bitmap.width == width * springMapsizeTexturemapFactor) && (bitmap.height == height * springMapsizeTexturemapFactor))
 				throw new IllegalArgumentException("TextureMapsize must be " + heightmapSizeTextureFactor + " * (heightmapsize - 1)");*/
-			new Bitmap(texturemapFile).loadDataIntoTexturemap(texturemapLayer);
+			new Bitmap(texturemapFile).loadDataIntoTexturemap(TextureStorage.wrap(texturemapLayer, width));
+		dirtyTiles.markAll();
 	}
 	
 	public void switchMapAxis()
@@ -74,6 +103,8 @@ public class TexturemapLayer {
 				for (int i = 0; i < 4; i++)
 					newMap[y][x * 4 + i] = texturemapLayer[x][y * 4 + i];
 		texturemapLayer = newMap;
+		dirtyTiles = new DirtyTiles(width, length);
+		dirtyTiles.markAll();
 	}
 	
 	public void resizeMap(int NewWidth, int NewHeight)
@@ -88,8 +119,10 @@ public class TexturemapLayer {
 		for (int y = 0; y < length; y++)
 			System.arraycopy(texturemapLayer[y], 0, newMap[y], 0, width * 4);
 		texturemapLayer = newMap;
-		width = NewWidth;
-		length = NewHeight;
+		this.width = NewWidth;
+		this.length = NewHeight;
+		dirtyTiles = new DirtyTiles(this.width, this.length);
+		dirtyTiles.markAll();
 	}
 	
 	public void moveMap(int start, int length, int amount, boolean vertically)
@@ -145,6 +178,7 @@ public class TexturemapLayer {
 				for (int x = 0; x < width * 4; x++)
 					texturemapLayer[start + y][x] = t[y][x];
 		}
+		dirtyTiles.markAll();
 	}
 	
 	public void mirrorMap(int start, int length, int offset, boolean vertically)
@@ -207,6 +241,7 @@ public class TexturemapLayer {
 					for (int c = 0; c < 4; c++)
 						texturemapLayer[offset - y][x * 4 + c] = texturemapLayer[start + y][x * 4 + c];
 		}
+		dirtyTiles.markAll();
 	}
 	
 	public void flipMap(int start, int length, int offset, boolean vertically)
@@ -278,6 +313,7 @@ public class TexturemapLayer {
 						texturemapLayer[start + y][x * 4 + c] = t;
 					}
 		}
+		dirtyTiles.markAll();
 	}
 	
 	public void copy(int px, int py, PrefabBrush brush)
@@ -352,140 +388,239 @@ public class TexturemapLayer {
 		for (int y = 0; y < height; y++)
 			for (int x = 0; x < width * 4; x++)
 				texturemapLayer[py + y][px * 4 + x] = tempBuffer[y * tempBufferWidth * 4 + x];// + (amount * pattern[x - px][y - py]);
+		markDirty(px, py, width, height);
 	}
 	
+	/*
+	 * The brush kernels below work like those of Texturemap (packed brush texture, no modulo per texel),
+	 * but paint coverage: alpha is straight, and a texel painted with coverage t over alpha a gets
+	 * alpha a + t * (1 - a) and the color of the brush laid over its own, weighted by a * (1 - t) and t.
+	 * A transparent texel thus takes the brush color, and compileLayers() shows the brush with coverage t.
+	 */
+	
+	/**
+	 * Sets the brush texture scaled by the strength, alpha is the texture alpha.
+	 */
 	public void setColorToTexture(int px, int py, TextureBrush brush)
 	{
 		float amount = brush.getStrength();
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
 		px *= heightmapSizeTextureFactor;
 		py *= heightmapSizeTextureFactor;
-		int r, g, b;
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < width) && (y >= 0) && (y < length))
-				{
-					r = FastMath.round((amount * (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					g = FastMath.round((amount * (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					b = FastMath.round((amount * (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-							
-					texturemapLayer[y][(x * 4) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					texturemapLayer[y][(x * 4) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					texturemapLayer[y][(x * 4) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-					texturemapLayer[y][(x * 4) + 3] = (byte)255;
-				}
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * heightmapSizeTextureFactor), width);
+		int yEnd = Math.min(py + (brush.getHeight() * heightmapSizeTextureFactor), length);
+		if ((xStart >= xEnd) || (yStart >= yEnd))
+			return;
+		
+		//Result only depends on the channel value
+		int[] table = colorTable;
+		for (int i = 0; i < 256; i++)
+			table[i] = Math.min(Math.max(FastMath.round(amount * i), 0), 255);
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = texturemapLayer[y];
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			for (int j = xStart * 4, jEnd = xEnd * 4; j < jEnd; j += 4)
+			{
+				int c = packed[t + u];
+				row[j + 0] = (byte)table[(c >> 16) & 0xFF];
+				row[j + 1] = (byte)table[(c >> 8) & 0xFF];
+				row[j + 2] = (byte)table[c & 0xFF];
+				row[j + 3] = (byte)(c >>> 24);
+				if (++u == textureWidth)
+					u = 0;
+			}
+		}
+		markDirty(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
+	/**
+	 * Adds the brush texture, weighted by strength, pattern and texture alpha, to the color the texel shows with its alpha.
+	 */
 	public void addColorToTexture(int px, int py, TextureBrush brush)
 	{
 		float amount = brush.getStrength();
-		float[][] pattern = brush.getPattern().getPattern();
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
+		BrushPattern pattern = brush.getPattern();
+		float[] patternRows = pattern.getPatternRows();
+		int patternWidth = pattern.width;
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
 		px *= heightmapSizeTextureFactor;
 		py *= heightmapSizeTextureFactor;
-		int r, g, b;
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < width) && (y >= 0) && (y < length))
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * heightmapSizeTextureFactor), width);
+		int yEnd = Math.min(py + (brush.getHeight() * heightmapSizeTextureFactor), length);
+		if ((xStart >= xEnd) || (yStart >= yEnd))
+			return;
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = texturemapLayer[y];
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			int p = ((y - py) / heightmapSizeTextureFactor) * patternWidth;
+			for (int x = xStart, j = xStart * 4; x < xEnd; x++, j += 4)
+			{
+				int c = packed[t + u];
+				float coverage = Math.min(amount * Texturemap.byteToUnit[c >>> 24] * patternRows[p + ((x - px) / heightmapSizeTextureFactor)], 1);
+				if (coverage > 0)
 				{
-					r = FastMath.round((texturemapLayer[y][(x * 4) + 0] & 0xFF) + (amount * pattern[((x - px) / heightmapSizeTextureFactor)][((y - py) / heightmapSizeTextureFactor)] 
-							* (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					g = FastMath.round((texturemapLayer[y][(x * 4) + 1] & 0xFF) + (amount * pattern[((x - px) / heightmapSizeTextureFactor)][((y - py) / heightmapSizeTextureFactor)] 
-							* (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					b = FastMath.round((texturemapLayer[y][(x * 4) + 2] & 0xFF) + (amount * pattern[((x - px) / heightmapSizeTextureFactor)][((y - py) / heightmapSizeTextureFactor)] 
-							* (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
+					float a = Texturemap.byteToUnit[row[j + 3] & 0xFF];
+					float newA = a + (coverage * (1 - a));
+					float inv = 1 / newA;
+					int r = (int)((((a * (row[j + 0] & 0xFF)) + (coverage * ((c >> 16) & 0xFF))) * inv) + 0.5f);
+					int g = (int)((((a * (row[j + 1] & 0xFF)) + (coverage * ((c >> 8) & 0xFF))) * inv) + 0.5f);
+					int b = (int)((((a * (row[j + 2] & 0xFF)) + (coverage * (c & 0xFF))) * inv) + 0.5f);
 					
-					texturemapLayer[y][(x * 4) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					texturemapLayer[y][(x * 4) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					texturemapLayer[y][(x * 4) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-					texturemapLayer[y][(x * 4) + 3] = (byte)255;
+					row[j + 0] = (byte)Math.min(r, 255);
+					row[j + 1] = (byte)Math.min(g, 255);
+					row[j + 2] = (byte)Math.min(b, 255);
+					row[j + 3] = (byte)(int)((newA * 255) + 0.5f);
 				}
+				if (++u == textureWidth)
+					u = 0;
+			}
+		}
+		markDirty(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
+	/**
+	 * Lays the brush texture over the layer with the coverage of Texturemap.blendColorToTexture():<BR>
+	 * strength * texture alpha * the brush pattern interpolated bilinearly between heightmap vertices.
+	 */
 	public void blendColorToTexture(int px, int py, TextureBrush brush)
 	{
-		int r, g, b;
-		int patternX, patternY;
-		float blendFactorX, blendFactorY, leftVal, rightVal;
-		float newTexAmountOrigin, newTexAmountLower, newTexAmountRight, newTexAmountLowerRight, newTexAmount, invNewTexAmount;
+		final int f = heightmapSizeTextureFactor;
 		float amount = brush.getStrength();
-		float[][] pattern = brush.getPattern().getPattern();
-		int patternWidth = brush.getPattern().width;
-		int patternHeight = brush.getPattern().height;
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
-		byte[][] textureA = brush.texture.getTextureA();
-		px = (px * heightmapSizeTextureFactor);
-		py = (py * heightmapSizeTextureFactor);
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < width) && (y >= 0) && (y < this.length))
-				{
-					patternX = ((x - px) / heightmapSizeTextureFactor);
-					patternY = ((y - py) / heightmapSizeTextureFactor);
-					newTexAmountOrigin = amount * pattern[patternX][patternY];
-					newTexAmountRight = newTexAmountOrigin;
-					newTexAmountLower = newTexAmountOrigin;
-					newTexAmountLowerRight = newTexAmountOrigin;
-					if ((patternX + 1) < patternWidth)
-						newTexAmountRight = amount * pattern[patternX + 1][patternY];
-					if ((patternY + 1) < patternHeight)
-						newTexAmountLower = amount * pattern[patternX][patternY + 1];
-					if (((patternX + 1) < patternWidth) && ((patternY + 1) < patternHeight))
-						newTexAmountLowerRight = amount * pattern[patternX + 1][patternY + 1];
-					blendFactorX = ((x - px) % heightmapSizeTextureFactor) / (float)heightmapSizeTextureFactor;
-					blendFactorY = ((y - py) % heightmapSizeTextureFactor) / (float)heightmapSizeTextureFactor;
-					leftVal = (newTexAmountOrigin * (1 - blendFactorY)) + (newTexAmountLower * blendFactorY);
-					rightVal = (newTexAmountRight * (1 - blendFactorY)) + (newTexAmountLowerRight * blendFactorY);
-					newTexAmount = (leftVal * (1 - blendFactorX)) + (rightVal * blendFactorX);
-
-					invNewTexAmount = 1 - newTexAmount;
-					r = FastMath.round((invNewTexAmount * (texturemapLayer[y][(x * 4) + 0] & 0xFF))
-							+ (newTexAmount * (textureR[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					g = FastMath.round((invNewTexAmount * (texturemapLayer[y][(x * 4) + 1] & 0xFF))
-							+ (newTexAmount * (textureG[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					b = FastMath.round((invNewTexAmount * (texturemapLayer[y][(x * 4) + 2] & 0xFF))
-							+ (newTexAmount * (textureB[x % brush.texture.width][y % brush.texture.height] & 0xFF)));
-					
-					texturemapLayer[y][(x * 4) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					texturemapLayer[y][(x * 4) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					texturemapLayer[y][(x * 4) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-					texturemapLayer[y][(x * 4) + 3] = (byte)255;
-				}
+		BrushPattern brushPattern = brush.getPattern();
+		float[] pattern = brushPattern.getPatternRows();
+		int fullPatternWidth = brushPattern.width;
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
+		px *= f;
+		py *= f;
+		int xStart = Math.max(px, 0);
+		int yStart = Math.max(py, 0);
+		int xEnd = Math.min(px + (brush.getWidth() * f), width);
+		int yEnd = Math.min(py + (brush.getHeight() * f), length);
+		if ((xStart >= xEnd) || (yStart >= yEnd))
+			return;
+		//Pattern columns/rows up to the map border; the last one is not interpolated towards the next
+		int patternWidth = (xEnd - px) / f;
+		int patternHeight = (yEnd - py) / f;
+		int columnStart = (xStart - px) / f;
+		int columnEnd = Math.min(((xEnd - 1 - px) / f) + 1, patternWidth);
+		if (blendLeft.length < columnEnd)
+		{
+			blendLeft = new float[fullPatternWidth];
+			blendRight = new float[fullPatternWidth];
+		}
+		float[] left = blendLeft;
+		float[] right = blendRight;
+		
+		for (int y = yStart; y < yEnd; y++)
+		{
+			int patternY = (y - py) / f;
+			float blendFactorY = Texturemap.texelToQuad[(y - py) % f];
+			boolean hasLower = (patternY + 1) < patternHeight;
+			int p = patternY * fullPatternWidth;
+			for (int patternX = columnStart; patternX < columnEnd; patternX++)
+			{
+				boolean hasRight = (patternX + 1) < patternWidth;
+				float origin = amount * pattern[p + patternX];
+				float newTexAmountRight = hasRight ? amount * pattern[p + patternX + 1] : origin;
+				float newTexAmountLower = hasLower ? amount * pattern[p + fullPatternWidth + patternX] : origin;
+				float newTexAmountLowerRight = (hasRight && hasLower) ? amount * pattern[p + fullPatternWidth + patternX + 1] : origin;
+				left[patternX] = (origin * (1 - blendFactorY)) + (newTexAmountLower * blendFactorY);
+				right[patternX] = (newTexAmountRight * (1 - blendFactorY)) + (newTexAmountLowerRight * blendFactorY);
+			}
+			
+			byte[] row = texturemapLayer[y];
+			int t = (y % textureHeight) * textureWidth;
+			int u = xStart % textureWidth;
+			for (int x = xStart, j = xStart * 4; x < xEnd; x++, j += 4)
+			{
+				int patternX = (x - px) / f;
+				float blendFactorX = Texturemap.texelToQuad[(x - px) % f];
+				int c = packed[t + u];
+				float coverage = (left[patternX] * (1 - blendFactorX)) + (right[patternX] * blendFactorX);
+				over(row, j, c, coverage * Texturemap.byteToUnit[c >>> 24]);
+				if (++u == textureWidth)
+					u = 0;
+			}
+		}
+		markDirty(xStart, yStart, xEnd - xStart, yEnd - yStart);
 	}
 	
+	/**
+	 * Lays the brush texture once over the layer, centered on the brush, with coverage strength * texture alpha.
+	 */
 	public void stampColorToTexture(int px, int py, TextureBrush brush)
 	{
-		float amount = brush.getStrength();
-		byte[][] textureR = brush.texture.getTextureR();
-		byte[][] textureG = brush.texture.getTextureG();
-		byte[][] textureB = brush.texture.getTextureB();
-		byte[][] textureA = brush.texture.getTextureA();
+		float strength = brush.getStrength();
+		BrushTexture texture = brush.texture;
+		int[] packed = texture.getPackedTexture();
+		int textureWidth = texture.width;
+		int textureHeight = texture.height;
+
+		// First get the brush center pos and convert it into texture coords
+		px += brush.getWidth()/2;
+		py += brush.getHeight()/2;
 		px = (px * heightmapSizeTextureFactor);
 		py = (py * heightmapSizeTextureFactor);
-		int r, g, b;
-		for (int y = py; y < py + (brush.getHeight() * heightmapSizeTextureFactor); y++)
-			for (int x = px; x < px + (brush.getWidth() * heightmapSizeTextureFactor); x++)
-				if ((x >= 0) && (x < width) && (y >= 0) && (y < length))
-				{
-					amount = (textureA[(x - px) % brush.texture.width][(y - py) % brush.texture.height] & 0xFF) / (float)0xFF;
-					r = FastMath.round(((1 - amount) * (texturemapLayer[y][(x * 4) + 0] & 0xFF))
-							+ (amount * (textureR[(x - px) % brush.texture.width][(y - py) % brush.texture.height] & 0xFF)));
-					g = FastMath.round(((1 - amount) * (texturemapLayer[y][(x * 4) + 1] & 0xFF))
-							+ (amount * (textureG[(x - px) % brush.texture.width][(y - py) % brush.texture.height] & 0xFF)));
-					b = FastMath.round(((1 - amount) * (texturemapLayer[y][(x * 4) + 2] & 0xFF))
-							+ (amount * (textureB[(x - px) % brush.texture.width][(y - py) % brush.texture.height] & 0xFF)));
-							
-					texturemapLayer[y][(x * 4) + 0] = (byte)Math.min(Math.max(r, 0), 255);
-					texturemapLayer[y][(x * 4) + 1] = (byte)Math.min(Math.max(g, 0), 255);
-					texturemapLayer[y][(x * 4) + 2] = (byte)Math.min(Math.max(b, 0), 255);
-					texturemapLayer[y][(x * 4) + 3] = (byte)255;
-				}
+
+		// Then offset it by half of the brush texture size to center it.
+		px -= textureWidth/2;
+		py -= textureHeight/2;
+
+		int xStart = Math.max(-px, 0);
+		int yStart = Math.max(-py, 0);
+		int xEnd = Math.min(textureWidth, width - px);
+		int yEnd = Math.min(textureHeight, length - py);
+		if ((xStart >= xEnd) || (yStart >= yEnd))
+			return;
+		for (int y = yStart; y < yEnd; y++)
+		{
+			byte[] row = texturemapLayer[y + py];
+			for (int x = xStart, t = (y * textureWidth) + xStart, j = (xStart + px) * 4; x < xEnd; x++, t++, j += 4)
+			{
+				int c = packed[t];
+				over(row, j, c, strength * Texturemap.byteToUnit[c >>> 24]);
+			}
+		}
+		markDirty(px + xStart, py + yStart, xEnd - xStart, yEnd - yStart);
+	}
+	
+	/**
+	 * Lays color c (packed, alpha ignored) with the given coverage over the RGBA texel at row[j].
+	 */
+	private static void over(byte[] row, int j, int c, float coverage)
+	{
+		if (coverage <= 0)
+			return;
+		if (coverage > 1)
+			coverage = 1;
+		float keep = Texturemap.byteToUnit[row[j + 3] & 0xFF] * (1 - coverage);
+		float newA = keep + coverage;
+		float inv = 1 / newA;
+		int r = (int)((((keep * (row[j + 0] & 0xFF)) + (coverage * ((c >> 16) & 0xFF))) * inv) + 0.5f);
+		int g = (int)((((keep * (row[j + 1] & 0xFF)) + (coverage * ((c >> 8) & 0xFF))) * inv) + 0.5f);
+		int b = (int)((((keep * (row[j + 2] & 0xFF)) + (coverage * (c & 0xFF))) * inv) + 0.5f);
+		
+		row[j + 0] = (byte)Math.min(r, 255);
+		row[j + 1] = (byte)Math.min(g, 255);
+		row[j + 2] = (byte)Math.min(b, 255);
+		row[j + 3] = (byte)(int)((newA * 255) + 0.5f);
 	}
 	
 	public void setPrefabTextureMap(int px, int py, PrefabBrush brush)
@@ -511,6 +646,7 @@ public class TexturemapLayer {
 						texturemapLayer[y][(x * 4) + 2] = (byte)Math.min(Math.max(b, 0), 255);
 						texturemapLayer[y][(x * 4) + 3] = (byte)255;
 					}
+			markDirty(px, py, (brush.width - 1) * heightmapSizeTextureFactor, (brush.height - 1) * heightmapSizeTextureFactor);
 		}
 	}
 	
@@ -539,6 +675,7 @@ public class TexturemapLayer {
 						texturemapLayer[y][(x * 4) + 3] = (byte)255;
 					}
 				}
+			markDirty(px, py, (brush.width - 1) * heightmapSizeTextureFactor, (brush.height - 1) * heightmapSizeTextureFactor);
 			}
 	}
 	
@@ -548,5 +685,6 @@ public class TexturemapLayer {
 		for (int y = 0; y < length; y++)
 			Arrays.fill(texturemapLayer[y], (byte)0);
 		System.out.println("Done blanking texture ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		dirtyTiles.markAll();
 	}
 }
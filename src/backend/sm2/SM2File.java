@@ -37,6 +37,7 @@ import backend.SpringMapEdit;
 import backend.dds.DDSFile;
 import backend.io.LERandomAccessFile;
 import backend.map.Featuremap;
+import backend.map.TextureStorage;
 
 import frontend.gui.ErrorHandler;
 import frontend.render.MapRenderer;
@@ -446,7 +447,7 @@ public class SM2File
 			int height = (sme.height * SpringMapEdit.springMapsizeHeightmapFactor) + 1;
 			
 			final int oneTenthsOfHeight = Math.max(height / 10, 1);
-			float[][] map = sme.map.heightmap.getHeightMap();
+			float[] map = sme.map.heightmap.getHeightField().data;
 			int scanlineSize = width * 2;
 			byte[] scanline = new byte[scanlineSize];
 			for (int y = 0; y < height; y++)
@@ -454,7 +455,7 @@ public class SM2File
 				int currentByte = 0;
 				for (int x = 0; x < width; x++)
 				{
-					int v = FastMath.round(0xFFFF * map[y][x]);
+					int v = FastMath.round(0xFFFF * map[(y * width) + x]);
 					scanline[currentByte] = (byte)(v & 0xFF);
 					scanline[currentByte + 1] = (byte)((v >> 8) & 0xFF);
 					
@@ -1008,7 +1009,7 @@ public class SM2File
 			int height = (sme.height * SpringMapEdit.springMapsizeHeightmapFactor) + 1;
 			
 			final int oneTenthsOfHeight = Math.max(height / 10, 1);
-			float[][] map = sme.map.heightmap.getHeightMap();
+			float[] map = sme.map.heightmap.getHeightField().data;
 			int scanlineSize = width * 2;
 			byte[] scanline = new byte[scanlineSize];
 			int x,y, currentByte;
@@ -1019,13 +1020,14 @@ public class SM2File
 				currentByte = 0;
 				for (x = 0; x < width; x++)
 				{
-					map[y][x] = ((float)(scanline[currentByte + 0] & 0xFF) + ((scanline[currentByte + 1] & 0xFF) << 8)) / 0xFFFF;
+					map[(y * width) + x] = ((float)(scanline[currentByte + 0] & 0xFF) + ((scanline[currentByte + 1] & 0xFF) << 8)) / 0xFFFF;
 					currentByte += 2;
 				}
 				
 				if ((y % oneTenthsOfHeight) == 0)
 					System.out.print("#");
 			}
+			sme.map.heightmap.heightChanged();
 			System.out.println(" Done loading heightmap data");
 		}
 		catch (IOException e)
@@ -1253,6 +1255,7 @@ public class SM2File
 			 */
 			int width = sme.map.textureMap.getWidth() / tileSize;
 			//int height = sme.textureMapHeight / tileSize;
+			TextureStorage texture = sme.map.textureMap.getBaseMap();
 			final int oneTenthsOfHeight = Math.max(numDifferentTiles / 10, 1);
 			byte[] compressedData = new byte[compressedTileSize];
 			byte[] uncompressedData = new byte[tileSize * tileSize * 3];
@@ -1278,10 +1281,10 @@ public class SM2File
 					
 					int yDst = (tile / width) * tileSize;
 					int offsetSrc = 0;
-					int xOffsetDst = ((tile % width) * tileSize) * 3;
+					int xDst = (tile % width) * tileSize;
 					for (int y = 0; y < tileSize; y++)
 					{
-						System.arraycopy(uncompressedData, offsetSrc, sme.map.textureMap.textureMap[yDst], xOffsetDst, tileScanlineSize);
+						texture.setTexels(yDst, xDst, tileSize, uncompressedData, offsetSrc);
 						offsetSrc += tileScanlineSize;
 						yDst++;
 					}
@@ -1292,6 +1295,7 @@ public class SM2File
 				if ((curTileID % oneTenthsOfHeight) == 0)
 					System.out.print("#");
 			}
+			sme.map.textureMap.baseChanged(0, 0, texture.getWidth(), texture.getLength());
 			renderer.cleanDecompressTileData();
 		}
 		catch (IOException e)
@@ -41,6 +41,7 @@ public class Edit_Autogen_Texture extends SpringMapEditGUICommand
 	public void execute(Object[] data2)
 	{
 		//new ProcessingDialog(shell).close();
+		smeGUI.clearUndoHistory();
 		smeGUI.sme.genColorsByHeight(0, 0, null);
 		smeGUI.renderer.invalidateAllBlocks(false, true, false);
 	}
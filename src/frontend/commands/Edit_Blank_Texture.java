@@ -36,6 +36,7 @@ public class Edit_Blank_Texture extends SpringMapEditGUICommand
 	@Override
 	public void execute(Object[] data2)
 	{
+		smeGUI.clearUndoHistory();
 		smeGUI.sme.map.textureMap.whiteOutTextureMap();
 		smeGUI.renderer.invalidateAllBlocks(false, true, false);
 	}
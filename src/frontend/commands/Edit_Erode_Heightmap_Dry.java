@@ -21,6 +21,7 @@
 package frontend.commands;
 
 import frontend.gui.SpringMapEditGUI;
+import backend.map.ErosionJob;
 
 /**
  * @author Heiko Schmitt
@@ -36,7 +37,7 @@ public class Edit_Erode_Heightmap_Dry extends SpringMapEditGUICommand
 	@Override
 	public void execute(Object[] data2)
 	{
-		smeGUI.sme.erodeMapDryWet(0, 0, smeGUI.sme.map.heightmap.getHeightmapWidth(), smeGUI.sme.map.heightmap.getHeightmapLength(), false);
-		smeGUI.renderer.invalidateAllBlocks(true, false, false);
+		smeGUI.startErosionJob(new ErosionJob(smeGUI.sme.map.heightmap, 0, 0, smeGUI.sme.map.heightmap.getHeightmapWidth(), smeGUI.sme.map.heightmap.getHeightmapLength(),
+				ErosionJob.Mode.DRY, 1, smeGUI.sme.mes.getErosionSetup()));
 	}
 }
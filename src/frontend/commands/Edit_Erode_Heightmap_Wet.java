@@ -21,7 +21,7 @@
 package frontend.commands;
 
 import frontend.gui.SpringMapEditGUI;
-import backend.map.Heightmap;
+import backend.map.ErosionJob;
 
 /**
  * @author Heiko Schmitt
@@ -37,7 +37,7 @@ public class Edit_Erode_Heightmap_Wet extends SpringMapEditGUICommand
 	@Override
 	public void execute(Object[] data2)
 	{
-		smeGUI.sme.map.heightmap.erodeMapWet(0, 0, smeGUI.sme.map.heightmap.getHeightmapWidth(), smeGUI.sme.map.heightmap.getHeightmapLength(), smeGUI.sme.mes.getErosionSetup());
-		smeGUI.renderer.invalidateAllBlocks(true, false, false);
+		smeGUI.startErosionJob(new ErosionJob(smeGUI.sme.map.heightmap, 0, 0, smeGUI.sme.map.heightmap.getHeightmapWidth(), smeGUI.sme.map.heightmap.getHeightmapLength(),
+				ErosionJob.Mode.WET, 1, smeGUI.sme.mes.getErosionSetup()));
 	}
 }
@@ -0,0 +1,37 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.commands;
+
+import frontend.gui.SpringMapEditGUI;
+
+/**
+ * Bakes all texture layers into the texturemap, texture brushes paint into it again.<BR>
+ * Clears the undo history, its texture tiles hold the top layer.
+ */
+public class Edit_Flatten_Texture_Layers extends SpringMapEditGUICommand
+{
+	public Edit_Flatten_Texture_Layers(SpringMapEditGUI smeGUI)
+	{
+		super(smeGUI);
+	}
+
+	@Override
+	public void execute(Object[] data2)
+	{
+		smeGUI.clearUndoHistory();
+		smeGUI.sme.map.textureMap.flattenLayers();
+	}
+}
@@ -41,6 +41,7 @@ public class Edit_Randomize_Heightmap extends SpringMapEditGUICommand
 		smeGUI.sme.mes.getHeightBrush().brushMode = 1;//HeightMode.Smooth;
 		float strength = smeGUI.sme.mes.getHeightBrush().getStrength();
 		smeGUI.sme.mes.getHeightBrush().brushMode = hm;
+		smeGUI.clearUndoHistory();
 		smeGUI.sme.map.heightmap.genRandom(strength);
 		smeGUI.renderer.invalidateAllBlocks(true, false, false);
 	}
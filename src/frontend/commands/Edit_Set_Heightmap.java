@@ -45,6 +45,7 @@ public class Edit_Set_Heightmap extends SpringMapEditGUICommand
 		float strength = smeGUI.sme.mes.getHeightBrush().getStrength();
 		smeGUI.sme.mes.getHeightBrush().brushMode = hm;
 		
+		smeGUI.clearUndoHistory();
 		smeGUI.sme.map.heightmap.setHeightToMap(strength);
 		smeGUI.renderer.invalidateAllBlocks(true, false, false);
 	}
@@ -41,6 +41,7 @@ public class Edit_Smooth_Heightmap extends SpringMapEditGUICommand
 		smeGUI.sme.mes.getHeightBrush().brushMode = 3;//HeightMode.Smooth;
 		float strength = smeGUI.sme.mes.getHeightBrush().getStrength();
 		smeGUI.sme.mes.getHeightBrush().brushMode = hm;
+		smeGUI.clearUndoHistory();
 		smeGUI.sme.map.heightmap.smoothMap(strength);
 		smeGUI.renderer.invalidateAllBlocks(true, false, false);
 	}
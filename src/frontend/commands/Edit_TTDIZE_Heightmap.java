@@ -45,6 +45,7 @@ public class Edit_TTDIZE_Heightmap extends SpringMapEditGUICommand
 		int strength = smeGUI.sme.mes.getHeightBrush().getStrengthInt();
 		smeGUI.sme.mes.getHeightBrush().brushMode = hm;
 		
+		smeGUI.clearUndoHistory();
 		smeGUI.sme.map.heightmap.ttdize(strength);
 		smeGUI.renderer.invalidateAllBlocks(true, false, false);
 	}
@@ -231,6 +231,8 @@ public class EditMapDialog extends Dialog
 					{*/
 						if (true)
 						{
+							//Synchronously, before the map changes under undo steps still queued
+							smeGUI.clearUndoHistory();
 							if (switchMapAxis)
 								sme.map.switchMapAxis();
 							else
@@ -21,6 +21,7 @@
 package frontend.gui;
 
 import backend.SpringMapEdit;
+import backend.map.ErosionJob;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
@@ -132,25 +133,8 @@ public class ErodeMapDialog extends Dialog
 		{
 			public void widgetSelected(SelectionEvent event)
 			{
-				Command cmd = new Command(null)
-				{
-					public void execute(Object[] data2)
-					{
-						if (wetErode){
-							for (int i = 0; i < erosionReps; i++){
-								smeGUI.sme.map.heightmap.erodeMapWet(0, 0, smeGUI.sme.map.heightmap.getHeightmapWidth(), smeGUI.sme.map.heightmap.getHeightmapLength(), smeGUI.sme.mes.getErosionSetup());
-							}
-							smeGUI.renderer.invalidateAllBlocks(true, false, false);
-						}else{
-							for (int i = 0; i < erosionReps; i++){
-								smeGUI.sme.erodeMapDryWet(0, 0, smeGUI.sme.map.heightmap.getHeightmapWidth(), smeGUI.sme.map.heightmap.getHeightmapLength(), false);
-							}
-							smeGUI.renderer.invalidateAllBlocks(true, false, false);
-						}
-					}
-				};
-				smeGUI.messageQueue.offer(cmd);
-				new ProcessingDialog(shell).close();
+				smeGUI.startErosionJob(new ErosionJob(sme.map.heightmap, 0, 0, sme.map.heightmap.getHeightmapWidth(), sme.map.heightmap.getHeightmapLength(),
+						wetErode ? ErosionJob.Mode.WET : ErosionJob.Mode.DRY, erosionReps, sme.mes.getErosionSetup()));
 				shell.dispose();
 				smeGUI.renderer.setSpringMapEdit(sme);
 			}
@@ -0,0 +1,118 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.gui;
+
+import java.awt.Toolkit;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.events.ShellAdapter;
+import org.eclipse.swt.events.ShellEvent;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Dialog;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.ProgressBar;
+import org.eclipse.swt.widgets.Shell;
+
+import backend.map.ErosionJob;
+
+/**
+ * Non modal progress window for a running ErosionJob.<BR>
+ * Polls the job, so the worker thread never has to talk to the GUI. Closes itself when the job is finished.<BR>
+ * Must be created on the GUI thread.
+ */
+public class ErosionProgressDialog extends Dialog
+{
+	private static final int UPDATE_INTERVAL = 100; //ms
+
+	private Display display;
+	private Shell shell;
+	private ProgressBar progressBar;
+	private ErosionJob job;
+
+	public ErosionProgressDialog(Shell parent, ErosionJob job)
+	{
+		super(parent, SWT.DIALOG_TRIM);
+		this.display = parent.getDisplay();
+		this.shell = new Shell(parent, SWT.DIALOG_TRIM);
+		this.shell.setText("Eroding");
+		this.job = job;
+
+		createDialogArea();
+		shell.setVisible(true);
+		display.timerExec(UPDATE_INTERVAL, new Runnable()
+		{
+			public void run()
+			{
+				if (shell.isDisposed())
+					return;
+				if (ErosionProgressDialog.this.job.isFinished())
+				{
+					shell.dispose();
+					return;
+				}
+				progressBar.setSelection((int)(ErosionProgressDialog.this.job.getProgress() * 1000));
+				display.timerExec(UPDATE_INTERVAL, this);
+			}
+		});
+	}
+
+	private void createDialogArea()
+	{
+		shell.setLayout(new GridLayout(1, true));
+
+		Label l = new Label(shell, SWT.HORIZONTAL);
+		l.setText("Eroding heightmap. You can keep working meanwhile.");
+		l.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+
+		progressBar = new ProgressBar(shell, SWT.HORIZONTAL | SWT.SMOOTH);
+		progressBar.setMinimum(0);
+		progressBar.setMaximum(1000);
+		GridData gd = new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1);
+		gd.widthHint = 300;
+		progressBar.setLayoutData(gd);
+
+		Button b = new Button(shell, SWT.PUSH);
+		b.setText("Cancel");
+		gd = new GridData(GridData.CENTER, GridData.CENTER, false, false, 1, 1);
+		gd.widthHint = 100;
+		b.setLayoutData(gd);
+		b.addSelectionListener(new SelectionAdapter()
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				job.cancel();
+				shell.dispose();
+			}
+		});
+
+		//Closing the window cancels too
+		shell.addShellListener(new ShellAdapter()
+		{
+			public void shellClosed(ShellEvent e)
+			{
+				job.cancel();
+			}
+		});
+
+		shell.pack();
+		shell.setLocation((Toolkit.getDefaultToolkit().getScreenSize().width / 2) - (shell.getSize().x / 2), (Toolkit.getDefaultToolkit().getScreenSize().height / 2) - (shell.getSize().y / 2));
+	}
+}
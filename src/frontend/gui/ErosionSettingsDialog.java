@@ -58,7 +58,13 @@ public class ErosionSettingsDialog extends Dialog
 		L_WET2_ITERATIONS, SL_WET2_ITERATIONS,
 		L_WET2_BREAK_HEIGHT, SL_WET2_BREAK_HEIGHT,
 		L_DRY_ITERATIONS, SL_DRY_ITERATIONS,
-		L_DRY_BREAK_HEIGHT, SL_DRY_BREAK_HEIGHT
+		L_DRY_BREAK_HEIGHT, SL_DRY_BREAK_HEIGHT,
+		L_DROPLET_DENSITY, SL_DROPLET_DENSITY,
+		L_DROPLET_LIFETIME, SL_DROPLET_LIFETIME,
+		L_DROPLET_RADIUS, SL_DROPLET_RADIUS,
+		L_DROPLET_ERODE_SPEED, SL_DROPLET_ERODE_SPEED,
+		L_DROPLET_DEPOSIT_SPEED, SL_DROPLET_DEPOSIT_SPEED,
+		L_DROPLET_EVAPORATE_SPEED, SL_DROPLET_EVAPORATE_SPEED
 	}
 	
 	/**
@@ -196,6 +202,90 @@ public class ErosionSettingsDialog extends Dialog
 				{
 					return "Break Height: " + (Integer) data2[0];
 				}});
+		
+		//DROPLET
+		l = new Label(shell, SWT.NONE);
+		l.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 2, 1));
+		l.setText("--- Droplet Erosion ---");
+		b = new Button(shell, SWT.CHECK);
+		b.setText("Use droplet erosion for WET");
+		b.setToolTipText("Simulates single raindrops carrying sediment. Gives gullies and fans instead of even smoothing.");
+		b.setSelection(smeGUI.sme.mes.getErosionSetup().useDropletMethod);
+		b.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 2, 1));
+		b.addSelectionListener(new SelectionAdapter()
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				Command cmd = new Command(new Object[] { ((Button)e.widget).getSelection() }) 
+				{
+					public void execute(Object[] data2)
+					{
+						smeGUI.sme.mes.getErosionSetup().useDropletMethod = (Boolean) data[0];
+					}
+				};
+				smeGUI.messageQueue.offer(cmd);
+			}
+		});
+		
+		addSlider(Widgets.L_DROPLET_DENSITY, Widgets.SL_DROPLET_DENSITY, shell, (int)(smeGUI.sme.mes.getErosionSetup().dropletDensity * 100), 1, 1000, 
+				new Command(null) { public void execute(Object[] data2)
+				{
+					smeGUI.sme.mes.getErosionSetup().dropletDensity = ((Integer) data2[0]) / 100f;
+				}},
+				new Getter(null) { public Object getValue(Object[] data2)
+				{
+					return "Droplets/Vertex: " + (((Integer) data2[0]) / 100f);
+				}});
+		
+		addSlider(Widgets.L_DROPLET_LIFETIME, Widgets.SL_DROPLET_LIFETIME, shell, smeGUI.sme.mes.getErosionSetup().dropletLifetime, 1, 200, 
+				new Command(null) { public void execute(Object[] data2)
+				{
+					smeGUI.sme.mes.getErosionSetup().dropletLifetime = (Integer) data2[0];
+				}},
+				new Getter(null) { public Object getValue(Object[] data2)
+				{
+					return "Lifetime: " + (Integer) data2[0];
+				}});
+		
+		addSlider(Widgets.L_DROPLET_RADIUS, Widgets.SL_DROPLET_RADIUS, shell, smeGUI.sme.mes.getErosionSetup().dropletRadius, 1, 10, 
+				new Command(null) { public void execute(Object[] data2)
+				{
+					smeGUI.sme.mes.getErosionSetup().dropletRadius = (Integer) data2[0];
+				}},
+				new Getter(null) { public Object getValue(Object[] data2)
+				{
+					return "Erosion Radius: " + (Integer) data2[0];
+				}});
+		
+		addSlider(Widgets.L_DROPLET_ERODE_SPEED, Widgets.SL_DROPLET_ERODE_SPEED, shell, (int)(smeGUI.sme.mes.getErosionSetup().dropletErodeSpeed * 100), 0, 100, 
+				new Command(null) { public void execute(Object[] data2)
+				{
+					smeGUI.sme.mes.getErosionSetup().dropletErodeSpeed = ((Integer) data2[0]) / 100f;
+				}},
+				new Getter(null) { public Object getValue(Object[] data2)
+				{
+					return "Erode Speed: " + (Integer) data2[0];
+				}});
+		
+		addSlider(Widgets.L_DROPLET_DEPOSIT_SPEED, Widgets.SL_DROPLET_DEPOSIT_SPEED, shell, (int)(smeGUI.sme.mes.getErosionSetup().dropletDepositSpeed * 100), 0, 100, 
+				new Command(null) { public void execute(Object[] data2)
+				{
+					smeGUI.sme.mes.getErosionSetup().dropletDepositSpeed = ((Integer) data2[0]) / 100f;
+				}},
+				new Getter(null) { public Object getValue(Object[] data2)
+				{
+					return "Deposit Speed: " + (Integer) data2[0];
+				}});
+		
+		addSlider(Widgets.L_DROPLET_EVAPORATE_SPEED, Widgets.SL_DROPLET_EVAPORATE_SPEED, shell, (int)(smeGUI.sme.mes.getErosionSetup().dropletEvaporateSpeed * 1000), 0, 1000, 
+				new Command(null) { public void execute(Object[] data2)
+				{
+					smeGUI.sme.mes.getErosionSetup().dropletEvaporateSpeed = ((Integer) data2[0]) / 1000f;
+				}},
+				new Getter(null) { public Object getValue(Object[] data2)
+				{
+					return "Evaporation Speed: " + (Integer) data2[0];
+				}});
 
 		shell.pack();
 		shell.setLocation((Toolkit.getDefaultToolkit().getScreenSize().width / 2) - (shell.getSize().x / 2), (Toolkit.getDefaultToolkit().getScreenSize().height / 2) - (shell.getSize().y / 2));
@@ -234,6 +234,7 @@ public class FlipMapDialog extends Dialog
 				{
 					public void execute(Object[] data2)
 					{
+						smeGUI.clearUndoHistory();
 						smeGUI.sme.map.flipMap(start, length, offset, vertically);
 					}
 				};
@@ -234,6 +234,7 @@ public class MirrorMapDialog extends Dialog
 				{
 					public void execute(Object[] data2)
 					{
+						smeGUI.clearUndoHistory();
 						smeGUI.sme.map.mirrorMap(start, length, offset, vertically);
 					}
 				};
@@ -30,6 +30,7 @@ import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Combo;
 import org.eclipse.swt.widgets.Dialog;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Label;
@@ -38,6 +39,7 @@ import org.eclipse.swt.widgets.Slider;
 import org.eclipse.swt.widgets.Text;
 
 import backend.FastMath;
+import backend.TerraGenSetup;
 
 /**
  * @author Heiko Schmitt
@@ -115,6 +117,26 @@ public class RandomizeTerrainDialog extends Dialog
 			}
 		});
 		
+		l = new Label(shell, SWT.HORIZONTAL);
+		l.setText("Generator:");
+		gd = new GridData(GridData.BEGINNING, GridData.BEGINNING, false, false, 1, 1);
+		gd.widthHint = 100;
+		l.setLayoutData(gd);
+		
+		Combo c = new Combo(shell, SWT.DROP_DOWN | SWT.READ_ONLY);
+		c.setItems(new String[] { "Diamond-Square", "Noise (fBm)" });
+		c.select(smeGUI.sme.mes.getTerraGenSetup().mode.ordinal());
+		gd = new GridData(GridData.FILL, GridData.CENTER, true, false, 1, 1);
+		gd.widthHint = 100;
+		c.setLayoutData(gd);
+		c.addSelectionListener(new SelectionAdapter() 
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				smeGUI.sme.mes.getTerraGenSetup().mode = TerraGenSetup.GeneratorMode.values()[((Combo)e.widget).getSelectionIndex()];
+			}
+		});
+		
 		final Label lSkip = new Label(shell, SWT.NONE);
 		lSkip.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
 		lSkip.setText("Skip Steps: " + smeGUI.sme.mes.getTerraGenSetup().skipSteps);
@@ -177,6 +199,90 @@ public class RandomizeTerrainDialog extends Dialog
 			}
 		});
 		
+		final Label lOctaves = new Label(shell, SWT.NONE);
+		lOctaves.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		lOctaves.setText("Noise Octaves: " + smeGUI.sme.mes.getTerraGenSetup().octaves);
+		lOctaves.setToolTipText("Number of noise layers. More octaves -> finer detail.");
+		
+		sl = new Slider(shell, SWT.HORIZONTAL);
+		sl.setMinimum(1);
+		sl.setMaximum(13);
+		sl.setThumb(1);
+		sl.setSelection(smeGUI.sme.mes.getTerraGenSetup().octaves);
+		sl.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		sl.addSelectionListener(new SelectionAdapter()
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				int value = ((Slider)e.widget).getSelection();
+				lOctaves.setText("Noise Octaves: " + value);
+				smeGUI.sme.mes.getTerraGenSetup().octaves = value;
+			}
+		});
+		
+		final Label lFrequency = new Label(shell, SWT.NONE);
+		lFrequency.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		lFrequency.setText("Noise Frequency: " + FastMath.round(smeGUI.sme.mes.getTerraGenSetup().baseFrequency));
+		lFrequency.setToolTipText("Number of large features across the map.");
+		
+		sl = new Slider(shell, SWT.HORIZONTAL);
+		sl.setMinimum(1);
+		sl.setMaximum(65);
+		sl.setThumb(1);
+		sl.setSelection(FastMath.round(smeGUI.sme.mes.getTerraGenSetup().baseFrequency));
+		sl.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		sl.addSelectionListener(new SelectionAdapter()
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				int value = ((Slider)e.widget).getSelection();
+				lFrequency.setText("Noise Frequency: " + value);
+				smeGUI.sme.mes.getTerraGenSetup().baseFrequency = value;
+			}
+		});
+		
+		final Label lRidged = new Label(shell, SWT.NONE);
+		lRidged.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		lRidged.setText("Ridges: " + FastMath.round(smeGUI.sme.mes.getTerraGenSetup().ridged * 100));
+		lRidged.setToolTipText("Blends rolling fBm hills (0) into sharp ridged mountains (100).");
+		
+		sl = new Slider(shell, SWT.HORIZONTAL);
+		sl.setMinimum(0);
+		sl.setMaximum(101);
+		sl.setThumb(1);
+		sl.setSelection(FastMath.round(smeGUI.sme.mes.getTerraGenSetup().ridged * 100));
+		sl.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		sl.addSelectionListener(new SelectionAdapter()
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				int value = ((Slider)e.widget).getSelection();
+				lRidged.setText("Ridges: " + value);
+				smeGUI.sme.mes.getTerraGenSetup().ridged = value / 100f;
+			}
+		});
+		
+		final Label lWarp = new Label(shell, SWT.NONE);
+		lWarp.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		lWarp.setText("Domain Warp: " + FastMath.round(smeGUI.sme.mes.getTerraGenSetup().warpStrength * 100));
+		lWarp.setToolTipText("Distorts the noise with another noise field. 0 disables it.");
+		
+		sl = new Slider(shell, SWT.HORIZONTAL);
+		sl.setMinimum(0);
+		sl.setMaximum(401);
+		sl.setThumb(1);
+		sl.setSelection(FastMath.round(smeGUI.sme.mes.getTerraGenSetup().warpStrength * 100));
+		sl.setLayoutData(new GridData(GridData.FILL, GridData.BEGINNING, true, false, 1, 1));
+		sl.addSelectionListener(new SelectionAdapter()
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				int value = ((Slider)e.widget).getSelection();
+				lWarp.setText("Domain Warp: " + value);
+				smeGUI.sme.mes.getTerraGenSetup().warpStrength = value / 100f;
+			}
+		});
+		
 		Button b = new Button(shell, SWT.PUSH);
 		b.setText("Generate Map");
 		gd = new GridData(GridData.CENTER, GridData.CENTER, false, false, 1, 1);
@@ -190,6 +296,7 @@ public class RandomizeTerrainDialog extends Dialog
 				{
 					public void execute(Object[] data2)
 					{
+						smeGUI.clearUndoHistory();
 						smeGUI.sme.map.heightmap.genStartupHeightmap(smeGUI.sme.mes.getTerraGenSetup());
 						smeGUI.renderer.invalidateAllBlocks(true, false, false);
 					}
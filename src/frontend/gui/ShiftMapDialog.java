@@ -226,6 +226,7 @@ public class ShiftMapDialog extends Dialog
 				{
 					public void execute(Object[] data2)
 					{
+						smeGUI.clearUndoHistory();
 						smeGUI.sme.map.moveMap(start, length, amount, vertically);
 					}
 				};
@@ -27,9 +27,7 @@ import java.awt.Point;
 import java.awt.Robot;
 import java.awt.Toolkit;
 import java.io.File;
-import java.util.Deque;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.LockSupport;
 
@@ -47,11 +45,13 @@ import org.eclipse.swt.widgets.*;
 
 import backend.SpringMapEdit;
 import backend.UndoRedo;
+import backend.map.ErosionJob;
 import backend.math.Vector3;
 import backend.math.Vector3Math;
 import frontend.keybinding.KeyMapper;
 import frontend.render.MapRenderer;
 import frontend.render.AppSettings;
+import frontend.render.brushes.Brush;
 import frontend.gui.SpringMapEditMenuBar;
 import frontend.gui.Console;
 
@@ -80,8 +80,6 @@ public class SpringMapEditGUI
 	
 	public boolean lockCameraY;
 	
-	public Deque<UndoRedo> undoQueue;
-	
 	private Point mousePos, mousePosOld, mousePosCenter;
 		
 	public Queue<Command> glMessageQueue;
@@ -106,6 +104,12 @@ public class SpringMapEditGUI
 	}
 	private static final int KEYCOUNT = HoldableKeys.LAST.ordinal();
 	public boolean kill = false;
+	
+	/**
+	 * Length of one slice of a running erosion job, the worker thread handles other commands in between.
+	 */
+	private static final long EROSION_SLICE_NANOS = 50000000L;
+	private volatile ErosionJob erosionJob;
 	Thread worker;		
 	/**
 	 * @throws HeadlessException
@@ -116,7 +120,6 @@ public class SpringMapEditGUI
 		this.display = new Display();
 		this.shell = new Shell(display);
 		shell.setLayout(new GridLayout(2, false));
-		undoQueue = new ConcurrentLinkedDeque<UndoRedo>();
 		//Show Logo Dialog
 		try
 		{
@@ -341,16 +344,18 @@ public class SpringMapEditGUI
 				{
 					//Process render independent Message Queue (does not depend on GL)
 					//Do work which relies on this thread as executor. (everything which modifies some state)
+					//Commands run without holding the lock, so the GUI thread never blocks on notify() while one runs.
+					Command cmd = messageQueue.poll();
+					while (cmd != null)
+					{
+						cmd.execute(null);
+						cmd = messageQueue.poll();
+					}
 					synchronized (messageQueue)
 					{
-						Command cmd = messageQueue.poll();
-						while (cmd != null)
-						{
-							cmd.execute(null);
-							cmd = messageQueue.poll();
-						}
 						try {
-							messageQueue.wait();
+							if ((messageQueue.peek() == null) && !kill)
+								messageQueue.wait();
 						} catch (InterruptedException e) {
 							e.printStackTrace();
 						}
@@ -387,23 +392,113 @@ public class SpringMapEditGUI
 		}*/
 	}
 	
-	public void insertUndo(UndoRedo o)
+	/**
+	 * Returns the point where the view ray hits the terrain.<BR>
+	 * If it misses the terrain, the ray is intersected with a flat plane at planeHeight instead.<BR>
+	 * Like for Vector3Math.planeIntersectPoint, viewVector points backwards from the camera.
+	 */
+	private Vector3 pickTerrain(Vector3 viewVector, float planeHeight)
+	{
+		Vector3 camera = new Vector3(as.cameraPosition.camX, as.cameraPosition.camY, as.cameraPosition.camZ);
+		Vector3 direction = viewVector.getCopy().normalize();
+		float heightScale = sme.map.maxHeight / 4f;
+		float t = sme.map.heightmap.intersectRay((camera.x() - as.quadHalfSize) / as.quadSize, camera.y() / heightScale,
+				(camera.z() - as.quadHalfSize) / as.quadSize, -direction.x() / as.quadSize, -direction.y() / heightScale, -direction.z() / as.quadSize);
+		if (t >= 0)
+			return Vector3Math.subVectors(camera, Vector3Math.scaleVector(direction, t));
+		return Vector3Math.planeIntersectPoint(new Vector3(0, planeHeight, 0), new Vector3(0, 1, 0), camera, viewVector);
+	}
+	
+	/**
+	 * Stores the area under the brush in the undo journal, before the brush modifies it.<BR>
+	 * Must be called from the worker thread.
+	 */
+	private void recordUndo(int layers, Brush brush)
 	{
-		if (undoQueue.size() > 50)
-			undoQueue.pollLast();
-		undoQueue.push(o);
+		sme.undoJournal.record(layers, sme.mes.brushPos.x() - 1, sme.mes.brushPos.y() - 1, brush.getWidth() + 2, brush.getHeight() + 2);
+	}
+	
+	/**
+	 * Runs an erosion job on the worker thread, one slice per command, so brush strokes and other<BR>
+	 * commands queued meanwhile get their turn in between. After every slice the blocks of the changed<BR>
+	 * tiles are redrawn. A job that is still running is cancelled. A job whose map was replaced meanwhile<BR>
+	 * (new or loaded map) is dropped. Erosion is not journaled, so every slice clears the undo history,<BR>
+	 * including steps of strokes made while the job runs. Can be called from any thread.
+	 */
+	public void startErosionJob(final ErosionJob job)
+	{
+		ErosionJob old = erosionJob;
+		if (old != null)
+			old.cancel();
+		erosionJob = job;
+		display.asyncExec(new Runnable()
+		{
+			public void run()
+			{
+				if (!job.isFinished())
+					new ErosionProgressDialog(shell, job);
+			}
+		});
+		messageQueue.offer(new Command(null)
+		{
+			public void execute(Object[] data2)
+			{
+				if (job.getHeightmap() != sme.map.heightmap)
+				{
+					job.abandon();
+					if (erosionJob == job)
+						erosionJob = null;
+					return;
+				}
+				clearUndoHistory();
+				boolean more = job.run(EROSION_SLICE_NANOS, new ErosionJob.TileListener()
+				{
+					public void tileChanged(int px, int py, int width, int height)
+					{
+						renderer.invalidateBlocks(px, py, width, height, true, false, false);
+					}
+				});
+				if (more)
+					messageQueue.offer(this);
+				else if (erosionJob == job)
+					erosionJob = null;
+			}
+		});
+		synchronized (messageQueue)
+		{
+			messageQueue.notify();
+		}
+	}
+	
+	/**
+	 * Drops the undo history. Called before operations on the whole map, which are not journaled:<BR>
+	 * undoing older steps afterwards would write back tiles from before the operation.<BR>
+	 * Can be called from any thread; undo and redo commands still queued find nothing to do.
+	 */
+	public void clearUndoHistory()
+	{
+		sme.undoJournal.clear();
 	}
 	
 	public void undo()
 	{
-		if (undoQueue.peek() != null)
-			undoQueue.peek().applyUndo();
+		invalidateUndoStep(sme.undoJournal.undo());
 	}
 	
 	public void redo()
 	{
-		if (undoQueue.peek() != null)
-			undoQueue.peek().applyUndo();
+		invalidateUndoStep(sme.undoJournal.redo());
+	}
+	
+	private void invalidateUndoStep(UndoRedo step)
+	{
+		if (step == null)
+			return;
+		for (UndoRedo.Tile tile : step.tiles)
+		{
+			boolean isHeight = tile.layer == UndoRedo.HEIGHT;
+			renderer.invalidateBlocks(tile.tileX * UndoRedo.TILE_SIZE, tile.tileY * UndoRedo.TILE_SIZE, UndoRedo.TILE_SIZE, UndoRedo.TILE_SIZE, isHeight, !isHeight, false);
+		}
 	}
 	
 	private void deactivateMouseLook()
@@ -474,6 +569,7 @@ public class SpringMapEditGUI
 		final FPSMeter fps = new FPSMeter();
 		int ticksSinceLastRender = 0;
 		boolean makeTickThisLoop = false;
+		boolean wasEditing = false;
 		final int worldFPS = 60; //set wanted fps to 60 FPS
 		final long animationTimeStep = 1000000000L / worldFPS;
 		long lastAnimation = System.nanoTime();
@@ -582,9 +678,7 @@ public class SpringMapEditGUI
 						Vector3 viewVector = Vector3Math.rotateZ(Vector3Math.rotateY(Vector3Math.rotateX(new Vector3(0, 0, 1),
 								as.cameraPosition.camRotX * Math.PI / 180), as.cameraPosition.camRotY * Math.PI / 180),
 								as.cameraPosition.camRotZ * Math.PI / 180);
-						Vector3 intersectPoint = Vector3Math.planeIntersectPoint(new Vector3(0, (sme.map.maxHeight / 8) - (sme.diag - as.cameraPosition.camY), 0),
-								new Vector3(0, 1, 0),
-								new Vector3(as.cameraPosition.camX, as.cameraPosition.camY, as.cameraPosition.camZ), viewVector);
+						Vector3 intersectPoint = pickTerrain(viewVector, (sme.map.maxHeight / 8) - (sme.diag - as.cameraPosition.camY));
 						if (intersectPoint != null)
 						{
 							//System.out.println("X:" + intersectPoint.x() + "  Y: " + intersectPoint.y() +"  Z: " + intersectPoint.z());
@@ -608,10 +702,7 @@ public class SpringMapEditGUI
 						Vector3 viewVector = Vector3Math.rotateZ(Vector3Math.rotateY(Vector3Math.rotateX(mouseVector,
 								as.cameraPosition.camRotX * Math.PI / 180), as.cameraPosition.camRotY * Math.PI / 180),
 								as.cameraPosition.camRotZ * Math.PI / 180);
-						Vector3 intersectPoint = Vector3Math.planeIntersectPoint(new Vector3(0, sme.map.maxHeight / 2, 0),
-								new Vector3(0, 1, 0),
-								new Vector3(as.cameraPosition.camX, as.cameraPosition.camY, as.cameraPosition.camZ),
-								viewVector);
+						Vector3 intersectPoint = pickTerrain(viewVector, sme.map.maxHeight / 2);
 						if (intersectPoint != null)
 						{
 							//System.out.println("X:" + intersectPoint.x() + "  Y: " + intersectPoint.y() +"  Z: " + intersectPoint.z());
@@ -623,6 +714,7 @@ public class SpringMapEditGUI
 					}
 				}
 				//Handle edit
+				boolean editing = holdableKeys[HoldableKeys.MOUSE_1.ordinal()] || holdableKeys[HoldableKeys.MOUSE_3.ordinal()];
 				if (holdableKeys[HoldableKeys.MOUSE_1.ordinal()])
 				{
 					switch (sme.mes.getBrushMode())
@@ -632,12 +724,11 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.HEIGHT, sme.mes.getHeightBrush());
 								sme.mes.getHeightBrush().applyBrush(sme.mes.brushPos, false);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getHeightBrush(), true, false, false);
 							}
 						});
-						if (false)
-							insertUndo(new UndoRedo(sme.mes.brushPos, sme.mes.getHeightBrush().getHeight(), sme.mes.getHeightBrush().getWidth(), sme.map.heightmap.getHeightMap(), sme));
 						if (sme.mes.getHeightBrush().brushMode == 1) { // Height stamp mode should not continue placing after click
 							holdableKeys[HoldableKeys.MOUSE_1.ordinal()] = false;
 						}
@@ -647,6 +738,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.TEXTURE, sme.mes.getTextureBrush());
 								sme.mes.getTextureBrush().applyBrush(sme.mes.brushPos, sme.mes.getTextureBrush(), false);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getTextureBrush(), false, true, false);
 							}
@@ -660,6 +752,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.METAL, sme.mes.getMetalBrush());
 								sme.mes.getMetalBrush().applyBrush(sme.mes.brushPos, false);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getMetalBrush(), false, true, false);
 							}
@@ -670,6 +763,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.TYPE, sme.mes.getTypeBrush());
 								sme.map.setToTypemap(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getTypeBrush(), false);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getTypeBrush(), false, true, false);
 							}
@@ -680,6 +774,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.VEGETATION, sme.mes.getVegetationBrush());
 								sme.map.setToVegetationmap(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getVegetationBrush(), false);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getVegetationBrush(), false, true, false);
 							}
@@ -701,6 +796,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.HEIGHT | UndoRedo.TEXTURE, sme.mes.getPrefabBrush());
 								sme.mes.getPrefabBrush().applybrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getPrefabBrush(), false);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getPrefabBrush(), true, true, false);
 							}
@@ -712,6 +808,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.HEIGHT | UndoRedo.TEXTURE | UndoRedo.METAL | UndoRedo.TYPE, sme.mes.getCopypasteBrush());
 								sme.mes.getCopypasteBrush().paste(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getPrefabBrush());
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getCopypasteBrush(), true, true, false);
 							}
@@ -729,6 +826,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.HEIGHT, sme.mes.getHeightBrush());
 								sme.mes.getHeightBrush().applyBrush(sme.mes.brushPos, true);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getHeightBrush(), true, false, false);
 							}
@@ -741,6 +839,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.TEXTURE, sme.mes.getTextureBrush());
 								sme.mes.getTextureBrush().applyBrush(sme.mes.brushPos, sme.mes.getTextureBrush(), true);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getTextureBrush(), false, true, false);
 							}
@@ -753,6 +852,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.METAL, sme.mes.getMetalBrush());
 								sme.mes.getMetalBrush().applyBrush(sme.mes.brushPos, true);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getMetalBrush(), false, true, false);
 							}
@@ -763,6 +863,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.TYPE, sme.mes.getTypeBrush());
 								sme.map.setToTypemap(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getTypeBrush(), true);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getTypeBrush(), false, true, false);
 							}
@@ -773,6 +874,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.VEGETATION, sme.mes.getVegetationBrush());
 								sme.map.setToVegetationmap(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getVegetationBrush(), true);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getVegetationBrush(), false, true, false);
 							}
@@ -793,6 +895,7 @@ public class SpringMapEditGUI
 						{	
 							public void execute(Object[] data2)
 							{
+								recordUndo(UndoRedo.HEIGHT | UndoRedo.TEXTURE, sme.mes.getPrefabBrush());
 								sme.mes.getPrefabBrush().applybrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getPrefabBrush(), true);
 								renderer.invalidateBlocksByBrush(sme.mes.brushPos.x(), sme.mes.brushPos.y(), sme.mes.getPrefabBrush(), true, true, false);
 							}
@@ -810,6 +913,16 @@ public class SpringMapEditGUI
 						break;
 					}
 				}
+				//Stroke finished, close the undo step
+				if (wasEditing && !editing)
+					messageQueue.offer(new Command(null)
+					{	
+						public void execute(Object[] data2)
+						{
+							sme.undoJournal.endStep();
+						}
+					});
+				wasEditing = editing;
 				synchronized (messageQueue)
 				{
 					if (messageQueue.peek() != null)
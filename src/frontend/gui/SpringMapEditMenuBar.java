@@ -17,8 +17,10 @@ import backend.ZipWrapper;
 import backend.SpringMapEdit;
 import backend.FileHandler.FileFormat;
 import backend.image.Bitmap;
+import frontend.commands.Edit_Add_Texture_Layer;
 import frontend.commands.Edit_Erode_Heightmap_Dry;
 import frontend.commands.Edit_Erode_Heightmap_Wet;
+import frontend.commands.Edit_Flatten_Texture_Layers;
 import frontend.commands.Edit_Randomize_Heightmap;
 import frontend.commands.Edit_Set_Heightmap;
 import frontend.commands.Edit_Smooth_Heightmap;
@@ -317,6 +319,7 @@ public class SpringMapEditMenuBar {
 						{
 							try 
 							{
+							smeGUI.clearUndoHistory();
 							File filename = (File) data[0];
 							if (FileHandler.isHandledByBitmap(filename))
 							{
@@ -365,6 +368,7 @@ public class SpringMapEditMenuBar {
 						{
 							try 
 							{
+								smeGUI.clearUndoHistory();
 								sme.map.textureMap.loadDataIntoTexturemap((File) data[0]);
 							}
 							catch (Exception e)
@@ -395,6 +399,7 @@ public class SpringMapEditMenuBar {
 						{
 							try 
 							{
+								smeGUI.clearUndoHistory();
 								sme.map.metalmap.loadDataIntoMap((File) data[0]);
 							}
 							catch (Exception e)
@@ -455,6 +460,7 @@ public class SpringMapEditMenuBar {
 						{
 							try
 							{
+								smeGUI.clearUndoHistory();
 								sme.map.loadDataIntoTypemap((File) data[0]);
 							}
 							catch (Exception e)
@@ -485,6 +491,7 @@ public class SpringMapEditMenuBar {
 						{
 							try
 							{
+								smeGUI.clearUndoHistory();
 								sme.map.loadDataIntoVegetationmap((File) data[0]);
 							}
 							catch (Exception e)
@@ -854,7 +861,7 @@ public class SpringMapEditMenuBar {
 		menu = new Menu(menuItem);
 		menuItem.setMenu(menu);
 		
-		/*menuItem = new MenuItem(menu, SWT.PUSH);
+		menuItem = new MenuItem(menu, SWT.PUSH);
 		menuItem.setText("Undo");
 		menuItem.addSelectionListener(new SelectionAdapter() 
 		{
@@ -886,7 +893,7 @@ public class SpringMapEditMenuBar {
 				};
 				smeGUI.messageQueue.offer(cmd);
 			}
-		});*/
+		});
 		
 		menuItem = new MenuItem(menu, SWT.PUSH);
 		menuItem.setText("Mirror Map");
@@ -968,6 +975,28 @@ public class SpringMapEditMenuBar {
 			}
 		});
 		
+		menuItem = new MenuItem(menu, SWT.SEPARATOR);
+		
+		menuItem = new MenuItem(menu, SWT.PUSH);
+		menuItem.setText("Add Texture Layer");
+		menuItem.addSelectionListener(new SelectionAdapter() 
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				smeGUI.messageQueue.offer(new Edit_Add_Texture_Layer(smeGUI));
+			}
+		});
+		
+		menuItem = new MenuItem(menu, SWT.PUSH);
+		menuItem.setText("Flatten Texture Layers");
+		menuItem.addSelectionListener(new SelectionAdapter() 
+		{
+			public void widgetSelected(SelectionEvent e)
+			{
+				smeGUI.messageQueue.offer(new Edit_Flatten_Texture_Layers(smeGUI));
+			}
+		});
+		
 		/////////////////////////////
 		// VIEW Menu
 		/////////////////////////////
@@ -1103,6 +1132,7 @@ public class SpringMapEditMenuBar {
 				{
 					public void execute(Object[] data2)
 					{
+						smeGUI.clearUndoHistory();
 						smeGUI.sme.genColorsByHeight(0, 0, null);
 						smeGUI.renderer.invalidateAllBlocks(false, true, false);
 					}
@@ -129,6 +129,8 @@ public class KeyMapper
 		commandMap.put("EDIT_ERODE_HEIGHTMAP_DRY", new Edit_Erode_Heightmap_Dry(smeGUI));
 		commandMap.put("EDIT_TTDIZE_HEIGHTMAP", new Edit_TTDIZE_Heightmap(smeGUI));
 		commandMap.put("EDIT_AUTOGEN_TEXTURE", new Edit_Autogen_Texture(smeGUI));
+		commandMap.put("EDIT_ADD_TEXTURE_LAYER", new Edit_Add_Texture_Layer(smeGUI));
+		commandMap.put("EDIT_FLATTEN_TEXTURE_LAYERS", new Edit_Flatten_Texture_Layers(smeGUI));
 		commandMap.put("EDIT_QUICKSAVE_MAP", new Edit_Quicksave_Map(smeGUI));
 		commandMap.put("EDIT_QUICKLOAD_MAP", new Edit_Quickload_Map(smeGUI));
 		
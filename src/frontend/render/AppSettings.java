@@ -68,6 +68,8 @@ public class AppSettings
 	public boolean batchMode = false;
 	public boolean smoothNormals = true;
 	public int maxFeatureBlocksPerFrame = 16;
+	public int maxBlocksPerFrame = 16;
+	public int blockUploadBudgetMs = 4;
 	public int maxFeaturesPerFrame = 32;
 	public boolean fancyWater = false;
 	public boolean useLighting = true;
@@ -91,6 +93,7 @@ public class AppSettings
 	
 	//Frame statistics
 	public int trisRendered;
+	public int blocksRendered;
 	public int fps;
 	
 	//Animation
@@ -117,6 +120,15 @@ public class AppSettings
 	public boolean quicksave_typemap = true;
 	public boolean quicksave_vegetationmap = true;
 	public boolean quicksave_featuremap = true;
+	
+	//Undo
+	public int undo_budgetMB = 64;
+	
+	//Texturemaps larger than this are memory mapped, negative: never
+	public int texturemap_mapAboveMB = 512;
+	//Texturemaps larger than this are kept compressed in memory (before mapping), negative: never
+	public int texturemap_compressAboveMB = -1;
+	public int texturemap_cacheMB = 64;
 
 	public boolean quitWithoutAsking = false;
 	public boolean quietExit = false; //Prevents quit message dialog
@@ -156,6 +168,12 @@ public class AppSettings
 			else if (propertyName.equals("waterMapExtend")) waterMapExtend = Integer.parseInt(values[0]);
 			else if (propertyName.equals("maxFeaturesToDisplay")) maxFeaturesToDisplay = Integer.parseInt(values[0]);
 			else if (propertyName.equals("renderFeatureLOD")) renderFeatureLOD = Integer.parseInt(values[0]);
+			else if (propertyName.equals("maxBlocksPerFrame")) maxBlocksPerFrame = Integer.parseInt(values[0]);
+			else if (propertyName.equals("blockUploadBudgetMs")) blockUploadBudgetMs = Integer.parseInt(values[0]);
+			else if (propertyName.equals("undo_budgetMB")) undo_budgetMB = Integer.parseInt(values[0]);
+			else if (propertyName.equals("texturemap_mapAboveMB")) texturemap_mapAboveMB = Integer.parseInt(values[0]);
+			else if (propertyName.equals("texturemap_compressAboveMB")) texturemap_compressAboveMB = Integer.parseInt(values[0]);
+			else if (propertyName.equals("texturemap_cacheMB")) texturemap_cacheMB = Integer.parseInt(values[0]);
 			
 			//Boolean props
 			else if (propertyName.equals("smoothNormals")) smoothNormals = Boolean.parseBoolean(values[0]);
@@ -262,6 +280,8 @@ public class AppSettings
 			bw.write("vsync" + "\t" + vsync + "\n");
 			bw.write("featureLighting" + "\t" + featureLighting + "\n");
 			bw.write("renderFeatureLOD" + "\t" + renderFeatureLOD + "\n");
+			bw.write("maxBlocksPerFrame" + "\t" + maxBlocksPerFrame + "\n");
+			bw.write("blockUploadBudgetMs" + "\t" + blockUploadBudgetMs + "\n");
 			bw.write("useLOD" + "\t" + useLOD + "\n");
 			bw.write("outputPerfDebug" + "\t" + outputPerfDebug + "\n");
 			bw.write("invertY" + "\t" + invertY + "\n");
@@ -278,6 +298,10 @@ public class AppSettings
 			bw.write("quicksave_typemap" + "\t" + quicksave_typemap + "\n");
 			bw.write("quicksave_vegetationmap" + "\t" + quicksave_vegetationmap + "\n");
 			bw.write("quicksave_featuremap" + "\t" + quicksave_featuremap + "\n");
+			bw.write("undo_budgetMB" + "\t" + undo_budgetMB + "\n");
+			bw.write("texturemap_mapAboveMB" + "\t" + texturemap_mapAboveMB + "\n");
+			bw.write("texturemap_compressAboveMB" + "\t" + texturemap_compressAboveMB + "\n");
+			bw.write("texturemap_cacheMB" + "\t" + texturemap_cacheMB + "\n");
 			bw.write("quitWithoutAsking" + "\t" + quitWithoutAsking + "\n");
 			bw.write("lodDist" + "\t" + lodDist + "\n");
 
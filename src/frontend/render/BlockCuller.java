@@ -0,0 +1,115 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import backend.map.HeightPyramid;
+
+/**
+ * Finds the terrain blocks inside a view frustum.<BR>
+ * Blocks are tested as a quadtree: a group of blocks completely outside (or inside) the frustum<BR>
+ * decides all of them with one box test, only groups crossing a plane are split further.<BR>
+ * The boxes span the block quads horizontally and the height bounds of the HeightPyramid vertically.
+ */
+class BlockCuller
+{
+	private final int widthInBlocks;
+	private final int lengthInBlocks;
+	private final int blockSizeinTiles;
+	private final int rootSize;
+
+	//Parameters of the current cull()
+	private Frustum frustum;
+	private HeightPyramid pyramid;
+	private float heightScale;
+	private int quadSize;
+	private int quadHalfSize;
+	private float margin;
+	private boolean[] visible;
+	private int boxesTested;
+
+	BlockCuller(int widthInBlocks, int lengthInBlocks, int blockSizeinTiles)
+	{
+		this.widthInBlocks = widthInBlocks;
+		this.lengthInBlocks = lengthInBlocks;
+		this.blockSizeinTiles = blockSizeinTiles;
+		int size = 1;
+		while ((size < widthInBlocks) || (size < lengthInBlocks))
+			size *= 2;
+		this.rootSize = size;
+	}
+
+	/**
+	 * Sets visible[index] for every block, index = x + (y * widthInBlocks). Returns the number of visible blocks.<BR>
+	 * heightScale is the world height of a height of 1. Vertex x sits at world x * quadSize + quadHalfSize.<BR>
+	 * Boxes are grown by margin to the sides and upwards, for features standing on the blocks.
+	 */
+	int cull(Frustum frustum, HeightPyramid pyramid, float heightScale, int quadSize, int quadHalfSize, float margin, boolean[] visible)
+	{
+		this.frustum = frustum;
+		this.pyramid = pyramid;
+		this.heightScale = heightScale;
+		this.quadSize = quadSize;
+		this.quadHalfSize = quadHalfSize;
+		this.margin = margin;
+		this.visible = visible;
+		boxesTested = 0;
+		int count = cullNode(0, 0, rootSize);
+		this.frustum = null;
+		this.pyramid = null;
+		this.visible = null;
+		return count;
+	}
+
+	private int cullNode(int bx, int by, int size)
+	{
+		if ((bx >= widthInBlocks) || (by >= lengthInBlocks))
+			return 0;
+		int bw = Math.min(size, widthInBlocks - bx);
+		int bl = Math.min(size, lengthInBlocks - by);
+		int px = bx * blockSizeinTiles;
+		int py = by * blockSizeinTiles;
+		int w = (bw * blockSizeinTiles) + 1;
+		int l = (bl * blockSizeinTiles) + 1;
+
+		boxesTested++;
+		int result = frustum.classifyBox(
+				(px * quadSize) + quadHalfSize - margin,
+				pyramid.getMin(px, py, w, l) * heightScale,
+				(py * quadSize) + quadHalfSize - margin,
+				((px + w - 1) * quadSize) + quadHalfSize + margin,
+				(pyramid.getMax(px, py, w, l) * heightScale) + margin,
+				((py + l - 1) * quadSize) + quadHalfSize + margin);
+		if ((result == Frustum.INTERSECTS) && (size > 1))
+		{
+			int half = size / 2;
+			return cullNode(bx, by, half) + cullNode(bx + half, by, half) + cullNode(bx, by + half, half) + cullNode(bx + half, by + half, half);
+		}
+
+		boolean inside = (result != Frustum.OUTSIDE);
+		for (int y = by; y < by + bl; y++)
+			for (int x = bx; x < bx + bw; x++)
+				visible[x + (y * widthInBlocks)] = inside;
+		return inside ? bw * bl : 0;
+	}
+
+	/**
+	 * Number of boxes the last cull() tested.
+	 */
+	int getBoxesTested()
+	{
+		return boxesTested;
+	}
+}
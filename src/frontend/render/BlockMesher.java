@@ -0,0 +1,172 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import backend.FastMath;
+import backend.map.HeightField;
+import backend.map.Map;
+import backend.map.NormalField;
+
+/**
+ * Builds the vertex data of terrain blocks on background threads, so the render thread only uploads it.<BR>
+ * A job meshes one LOD of one block into its own buffer, taken from a fixed pool. So at most getFreeBuffers()<BR>
+ * more jobs can be submitted, and memory stays bounded however much is invalidated.<BR>
+ * submit(), poll() and release() are meant to be called from the render thread only.
+ */
+class BlockMesher
+{
+	/**
+	 * One LOD of a block to mesh. version is what the caller uses to detect blocks changed while meshing.
+	 */
+	static class Job
+	{
+		final int index;
+		final int lodLevel;
+		final int version;
+		final FloatBuffer vbo;
+
+		private Job(int index, int lodLevel, int version, FloatBuffer vbo)
+		{
+			this.index = index;
+			this.lodLevel = lodLevel;
+			this.version = version;
+			this.vbo = vbo;
+		}
+	}
+
+	private static final int threadCount = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+	private static final ExecutorService workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "BlockMesher");
+			t.setDaemon(true);
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			return t;
+		}
+	});
+	private static final ThreadLocal<TerrainMeshBuilder> builders = new ThreadLocal<TerrainMeshBuilder>();
+
+	private final AppSettings rs;
+	private final Map map;
+	private final int mapWidthInBlocks;
+	private final int blockSizeinTiles;
+	private final ArrayDeque<FloatBuffer> freeBuffers = new ArrayDeque<FloatBuffer>();
+	private final ConcurrentLinkedQueue<Job> finished = new ConcurrentLinkedQueue<Job>();
+	private volatile boolean cancelled;
+
+	/**
+	 * @param verticesPerBlock vertex count of a block at LOD 0, the largest one
+	 */
+	BlockMesher(AppSettings rs, Map map, int mapWidthInBlocks, int blockSizeinTiles, int verticesPerBlock)
+	{
+		this.rs = rs;
+		this.map = map;
+		this.mapWidthInBlocks = mapWidthInBlocks;
+		this.blockSizeinTiles = blockSizeinTiles;
+		for (int s = Math.max(2 * threadCount, 4); s > 0; s--)
+			freeBuffers.add(FloatBuffer.allocate(verticesPerBlock * 8)); //3Vertex 3Normal 2TexCoord
+	}
+
+	/**
+	 * Number of jobs that can be submitted now.
+	 */
+	int getFreeBuffers()
+	{
+		return freeBuffers.size();
+	}
+
+	/**
+	 * Starts meshing LOD lodLevel of block index. Returns false if no buffers are free.
+	 */
+	boolean submit(int index, int lodLevel, int version)
+	{
+		FloatBuffer vbo = freeBuffers.poll();
+		if (vbo == null)
+			return false;
+		final Job job = new Job(index, lodLevel, version, vbo);
+		workers.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					if (!cancelled)
+						mesh(job);
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+				finally
+				{
+					finished.offer(job);
+				}
+			}
+		});
+		return true;
+	}
+
+	private void mesh(Job job)
+	{
+		TerrainMeshBuilder builder = builders.get();
+		if (builder == null)
+		{
+			builder = new TerrainMeshBuilder(rs);
+			builders.set(builder);
+		}
+		HeightField field = map.heightmap.getHeightField();
+		float maxHeight = map.maxHeight / 4f;
+		//Normals are computed with 4 times the vertex heights, as they always were
+		NormalField normals = rs.smoothNormals ? map.heightmap.getNormalField(maxHeight * 4f, rs.quadSize, rs.fastNormals) : null;
+		int lodSkip = FastMath.pow(2, job.lodLevel);
+		long start = System.nanoTime();
+		int xStart = ((job.index % mapWidthInBlocks) * blockSizeinTiles) + lodSkip;
+		int yStart = ((job.index / mapWidthInBlocks) * blockSizeinTiles) + lodSkip;
+		builder.build(job.vbo, field.data, field.stride, field.width, field.length, maxHeight, normals,
+				xStart, yStart, blockSizeinTiles, blockSizeinTiles, lodSkip);
+		if (rs.outputPerfDebug)
+			System.out.println("Done creating VBO Block. LOD: " + job.lodLevel + " ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+	}
+
+	/**
+	 * Returns the next finished job, or null. Its buffer must be given back with release() after uploading.
+	 */
+	Job poll()
+	{
+		return finished.poll();
+	}
+
+	void release(Job job)
+	{
+		freeBuffers.add(job.vbo);
+	}
+
+	/**
+	 * Jobs not started yet are skipped. Used when the map is replaced.
+	 */
+	void cancel()
+	{
+		cancelled = true;
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import java.nio.ByteBuffer;
+
+import backend.SpringMapEdit;
+import backend.map.TextureStorage;
+import frontend.render.MapRenderer.MapMode;
+
+/**
+ * Assembles the RGB texels of terrain block textures for every map mode, from the texturemap and the overlay maps.<BR>
+ * Only a rectangle of the block is assembled, so a brush stroke costs its own size, not the size of the block.<BR>
+ * Rows of the rectangle are written one after another, as glTexSubImage2D expects them. Needs no GL.<BR>
+ * Not thread safe.
+ */
+public class BlockTextureBuilder
+{
+	private final SpringMapEdit sme;
+	private final AppSettings rs;
+	private final int mapWidthInBlocks;
+	private final int blockSizeinPixels;
+	private final int blockSizeinMetalmapPixels;
+	private final int blockSizeinTypemapPixels;
+	private final int blockSizeinVegetationmapPixels;
+	private final int blockSizeinSlopemapPixels;
+	private final byte[] tmpScanline;
+
+	public BlockTextureBuilder(SpringMapEdit sme, AppSettings rs, int mapWidthInBlocks)
+	{
+		this.sme = sme;
+		this.rs = rs;
+		this.mapWidthInBlocks = mapWidthInBlocks;
+		this.blockSizeinPixels = sme.map.textureMap.getWidth() / mapWidthInBlocks;
+		this.blockSizeinMetalmapPixels = sme.map.metalmap.getMapWidth() / mapWidthInBlocks;
+		this.blockSizeinTypemapPixels = sme.map.typemap.getMapWidth() / mapWidthInBlocks;
+		this.blockSizeinVegetationmapPixels = sme.map.vegetationMapWidth / mapWidthInBlocks;
+		this.blockSizeinSlopemapPixels = sme.map.slopeMapWidth / mapWidthInBlocks;
+		int maxScanlineSize = Math.max(Math.max(Math.max(blockSizeinMetalmapPixels, blockSizeinTypemapPixels), blockSizeinVegetationmapPixels), blockSizeinSlopemapPixels);
+		this.tmpScanline = new byte[maxScanlineSize * 3];
+	}
+
+	/**
+	 * Width and height in texels of the block textures of mode.
+	 */
+	public int getTextureSize(MapMode mode)
+	{
+		switch (mode)
+		{
+			case SlopeMap:
+				return blockSizeinSlopemapPixels;
+			case VegetationMap:
+				return blockSizeinVegetationmapPixels;
+			case TypeMap:
+				return blockSizeinTypemapPixels;
+			case MetalMap:
+				return blockSizeinMetalmapPixels;
+			default: //TextureMap, FeatureMap
+				return blockSizeinPixels;
+		}
+	}
+
+	/**
+	 * Clears dst and fills it with texels [x0, x1) * [y0, y1) of the texture of block index in mode, then flips it.<BR>
+	 * Coordinates are texels of that texture, 0 to getTextureSize(mode).
+	 */
+	public void build(ByteBuffer dst, MapMode mode, int index, int x0, int y0, int x1, int y1)
+	{
+		dst.clear();
+		TextureStorage textureMap = sme.map.textureMap.getMap();
+		byte[] rowBuffer = textureMap.newRowBuffer();
+		int size = getTextureSize(mode);
+		int blockX = (index % mapWidthInBlocks) * size;
+		int blockY = (index / mapWidthInBlocks) * size;
+		int xStart = blockX + x0;
+		int xEnd = blockX + x1;
+		switch (mode)
+		{
+			case SlopeMap:
+			{
+				int factor = blockSizeinPixels / blockSizeinSlopemapPixels;
+				byte[][] slopeMap = sme.map.slopeMap;
+				byte[][] slopeColors = sme.slopeMapColorTable;
+				int[] slopes = sme.slopes;
+				int x, y, currentByte;
+				int slopeType;
+				for (y = blockY + y0; y < (blockY + y1); y++)
+				{
+					//Create scanline
+					currentByte = 0;
+					byte[] textureRow = textureMap.getRow(y * factor, xStart * factor, (xEnd - xStart) * factor, rowBuffer);
+					for (x = xStart; x < xEnd; x++)
+					{
+						slopeType = 3;
+						if ((slopeMap[y][x] & 0xFF) <= slopes[0])
+							slopeType = 0;
+						else if ((slopeMap[y][x] & 0xFF) <= slopes[1])
+							slopeType = 1;
+						else if ((slopeMap[y][x] & 0xFF) <= slopes[2])
+							slopeType = 2;
+						if (rs.blendTextureMap)
+						{
+							tmpScanline[currentByte + 0] = (byte)(((textureRow[(x * factor * 3) + 0] & 0xFF) + (slopeColors[slopeType][0] & 0xFF)) / 2);
+							tmpScanline[currentByte + 1] = (byte)(((textureRow[(x * factor * 3) + 1] & 0xFF) + (slopeColors[slopeType][1] & 0xFF)) / 2);
+							tmpScanline[currentByte + 2] = (byte)(((textureRow[(x * factor * 3) + 2] & 0xFF) + (slopeColors[slopeType][2] & 0xFF)) / 2);
+						}
+						else
+						{
+							tmpScanline[currentByte + 0] = slopeColors[slopeType][0];
+							tmpScanline[currentByte + 1] = slopeColors[slopeType][1];
+							tmpScanline[currentByte + 2] = slopeColors[slopeType][2];
+						}
+						currentByte += 3;
+					}
+					//Copy whole scanline at once
+					dst.put(tmpScanline, 0, currentByte);
+				}
+				break;
+			}
+			case VegetationMap:
+			{
+				int factor = blockSizeinPixels / blockSizeinVegetationmapPixels;
+				byte[][] vegetationMap = sme.map.vegetationMap;
+				int x, y, currentByte;
+				for (y = blockY + y0; y < (blockY + y1); y++)
+				{
+					//Create scanline
+					currentByte = 0;
+					byte[] textureRow = textureMap.getRow(y * factor, xStart * factor, (xEnd - xStart) * factor, rowBuffer);
+					for (x = xStart; x < xEnd; x++)
+					{
+						if (rs.blendTextureMap)
+						{
+							tmpScanline[currentByte + 0] = (byte)((textureRow[(x * factor * 3) + 0] & 0xFF) / 2);
+							tmpScanline[currentByte + 1] = (byte)(((textureRow[(x * factor * 3) + 1] & 0xFF) + (((vegetationMap[x][y] & 0xFF) == 1) ? 255 : 0)) / 2);
+							tmpScanline[currentByte + 2] = (byte)((textureRow[(x * factor * 3) + 2] & 0xFF) / 2);
+						}
+						else
+						{
+							tmpScanline[currentByte + 0] = (byte) 0;
+							tmpScanline[currentByte + 1] = (((vegetationMap[x][y] & 0xFF) == 1) ? (byte) 255 : (byte) 0);
+							tmpScanline[currentByte + 2] = (byte) 0;
+						}
+						currentByte += 3;
+					}
+					//Copy whole scanline at once
+					dst.put(tmpScanline, 0, currentByte);
+				}
+				break;
+			}
+			case TypeMap:
+			{
+				int factor = blockSizeinPixels / blockSizeinTypemapPixels;
+				byte[][] typeMap = sme.map.typemap.getMap();
+				byte[][] typeMapColors = sme.typeMapColorTable;
+				int currentByte;
+				for (int y = blockY + y0; y < (blockY + y1); y++)
+				{
+					//Create scanline
+					currentByte = 0;
+					byte[] textureRow = textureMap.getRow(y * factor, xStart * factor, (xEnd - xStart) * factor, rowBuffer);
+					for (int x = xStart; x < xEnd; x++)
+					{
+						if (rs.blendTextureMap)
+						{
+							tmpScanline[currentByte + 0] = (byte)(((textureRow[(x * factor * 3) + 0] & 0xFF) + (typeMapColors[typeMap[y][x] & 0xFF][0] & 0xFF)) / 2);
+							tmpScanline[currentByte + 1] = (byte)(((textureRow[(x * factor * 3) + 1] & 0xFF) + (typeMapColors[typeMap[y][x] & 0xFF][1] & 0xFF)) / 2);
+							tmpScanline[currentByte + 2] = (byte)(((textureRow[(x * factor * 3) + 2] & 0xFF) + (typeMapColors[typeMap[y][x] & 0xFF][2] & 0xFF)) / 2);
+						}
+						else
+						{
+							tmpScanline[currentByte + 0] = typeMapColors[typeMap[y][x] & 0xFF][0];
+							tmpScanline[currentByte + 1] = typeMapColors[typeMap[y][x] & 0xFF][1];
+							tmpScanline[currentByte + 2] = typeMapColors[typeMap[y][x] & 0xFF][2];
+						}
+						currentByte += 3;
+					}
+					//Copy whole scanline at once
+					dst.put(tmpScanline, 0, currentByte);
+				}
+				break;
+			}
+			case MetalMap:
+			{
+				int factor = blockSizeinPixels / blockSizeinMetalmapPixels;
+				byte[][] metalMap = sme.map.metalmap.getMap();
+				int x, y, currentByte;
+				for (y = blockY + y0; y < (blockY + y1); y++)
+				{
+					//Create scanline
+					currentByte = 0;
+					byte[] textureRow = textureMap.getRow(y * factor, xStart * factor, (xEnd - xStart) * factor, rowBuffer);
+					for (x = xStart; x < xEnd; x++)
+					{
+						if (rs.blendTextureMap)
+						{
+							tmpScanline[currentByte + 0] = (byte)((textureRow[(x * factor * 3) + 0] & 0xFF) / 2);
+							tmpScanline[currentByte + 1] = (byte)(((textureRow[(x * factor * 3) + 1] & 0xFF) + (metalMap[y][x] & 0xFF)) / 2);
+							tmpScanline[currentByte + 2] = (byte)((textureRow[(x * factor * 3) + 2] & 0xFF) / 2);
+						}
+						else
+						{
+							tmpScanline[currentByte + 0] = (byte) 0;
+							tmpScanline[currentByte + 1] = (byte) metalMap[y][x];
+							tmpScanline[currentByte + 2] = (byte) 0;
+						}
+						currentByte += 3;
+					}
+					//Copy whole scanline at once
+					dst.put(tmpScanline, 0, currentByte);
+				}
+				break;
+			}
+			default: //case TextureMap
+			{
+				for (int y = blockY + y0; y < (blockY + y1); y++)
+				{
+					//Copy whole scanline at once
+					try { // TODO Temporary hack for a problem that should not happen
+						textureMap.getTexels(y, xStart, xEnd - xStart, dst);
+					} catch (IndexOutOfBoundsException e) {
+						break;
+					}
+				}
+				break;
+			}
+		}
+		dst.flip();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+/**
+ * The 6 planes of a view frustum, taken from OpenGL projection and modelview matrices (column major, as glGetFloatv returns them).<BR>
+ * Planes point inwards, a point p is inside if a*x + b*y + c*z + d >= 0 for all of them.<BR>
+ * Works for any matrices, including mirrored ones, since the planes are the clip space bounds -w <= x, y, z <= w.
+ */
+public class Frustum
+{
+	public static final int OUTSIDE = 0;
+	public static final int INTERSECTS = 1;
+	public static final int INSIDE = 2;
+
+	private final float[] planes = new float[6 * 4];
+	private final float[] clip = new float[16];
+
+	/**
+	 * Sets the frustum to what projection * modelview shows.
+	 */
+	public void set(float[] projection, float[] modelview)
+	{
+		for (int col = 0; col < 4; col++)
+			for (int row = 0; row < 4; row++)
+			{
+				float sum = 0;
+				for (int k = 0; k < 4; k++)
+					sum += projection[(k * 4) + row] * modelview[(col * 4) + k];
+				clip[(col * 4) + row] = sum;
+			}
+		//left, right, bottom, top, near, far: row 3 plus or minus row 0, 1, 2
+		for (int p = 0; p < 6; p++)
+		{
+			int row = p / 2;
+			float sign = ((p % 2) == 0) ? 1 : -1;
+			float a = clip[3] + (sign * clip[row]);
+			float b = clip[7] + (sign * clip[4 + row]);
+			float c = clip[11] + (sign * clip[8 + row]);
+			float d = clip[15] + (sign * clip[12 + row]);
+			float length = (float)Math.sqrt((a * a) + (b * b) + (c * c));
+			if (length > 0)
+			{
+				a /= length;
+				b /= length;
+				c /= length;
+				d /= length;
+			}
+			planes[p * 4] = a;
+			planes[(p * 4) + 1] = b;
+			planes[(p * 4) + 2] = c;
+			planes[(p * 4) + 3] = d;
+		}
+	}
+
+	/**
+	 * Returns OUTSIDE if the axis aligned box lies completely outside one plane, INSIDE if it lies inside all of them,<BR>
+	 * INTERSECTS otherwise. Conservative: a box near a frustum corner may be reported INTERSECTS although it is outside.
+	 */
+	public int classifyBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		int result = INSIDE;
+		for (int p = 0; p < planes.length; p += 4)
+		{
+			float a = planes[p];
+			float b = planes[p + 1];
+			float c = planes[p + 2];
+			float d = planes[p + 3];
+			//Corner furthest along the plane normal, and the one opposite
+			float far = (a * ((a >= 0) ? maxX : minX)) + (b * ((b >= 0) ? maxY : minY)) + (c * ((c >= 0) ? maxZ : minZ)) + d;
+			if (far < 0)
+				return OUTSIDE;
+			float near = (a * ((a >= 0) ? minX : maxX)) + (b * ((b >= 0) ? minY : maxY)) + (c * ((c >= 0) ? minZ : maxZ)) + d;
+			if (near < 0)
+				result = INTERSECTS;
+		}
+		return result;
+	}
+
+	public boolean isBoxVisible(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		return classifyBox(minX, minY, minZ, maxX, maxY, maxZ) != OUTSIDE;
+	}
+}
@@ -33,7 +33,12 @@ import javax.media.opengl.glu.GLU;
 
 import backend.FastMath;
 import backend.SpringMapEdit;
+import backend.map.CompressedTextureStorage;
 import backend.map.Featuremap;
+import backend.map.HeightField;
+import backend.map.NormalField;
+import backend.map.SteepnessField;
+import backend.map.TextureStorage;
 import backend.math.Vector3;
 import backend.math.Vector3Math;
 import backend.sm2.SM2File;
@@ -68,9 +73,6 @@ public class MapRenderer
 	//Buffer vars
 	private int blockSizeinTiles;
 	private int blockSizeinPixels;
-	private int blockSizeinMetalmapPixels;
-	private int blockSizeinTypemapPixels;
-	private int blockSizeinVegetationmapPixels;
 	private int blockSizeinSlopemapPixels;
 	private int pixelCountPerBlock;
 	private int blockCount;
@@ -90,8 +92,21 @@ public class MapRenderer
 	private int[] verticesPerBlock;
 		
 	//VBO cache
-	private FloatBuffer[] vbo;
-	private Vector3 nullVector;
+	private TerrainMeshBuilder meshBuilder;
+	
+	//Background meshing
+	private BlockMesher blockMesher;
+	private int[] geometryVersion;
+	private boolean[] isMeshing;
+	private boolean[] isHeightDependentDirty;
+	private long[] meshCandidates;
+	
+	//Frustum culling
+	private BlockCuller blockCuller;
+	private boolean[] isBlockInFrustum;
+	private final Frustum frustum = new Frustum();
+	private final float[] projectionMatrix = new float[16];
+	private final float[] modelviewMatrix = new float[16];
 	
 	//Feature sorting
 	private int featuresToRenderCount;
@@ -99,7 +114,10 @@ public class MapRenderer
 	
 	//Textures
 	private ByteBuffer textureData;
-	private byte[] tmpScanline;
+	private BlockTextureBuilder textureBuilder;
+	private int[] textureDirty;
+	private int[] textureSize;
+	private int[] textureFormat;
 	private int tempTexture;
 	
 	//Framebuffer for reflection
@@ -186,8 +204,6 @@ public class MapRenderer
 				if (displayListID[l][i] >= 0)
 					staticGl.glDeleteLists(displayListID[l][i], 1);
 			}
-			//Temporary Buffers
-			this.vbo[l] = null;
 		}
 		
 		for (int i = 0; i < blockCount; i++)
@@ -197,9 +213,17 @@ public class MapRenderer
 			featureList[i] = null;
 		}
 		
-		this.vbo = null;
+		if (blockMesher != null)
+			blockMesher.cancel();
+		this.blockMesher = null;
+		this.geometryVersion = null;
+		this.isMeshing = null;
+		this.meshCandidates = null;
 		this.textureData = null;
-		this.tmpScanline = null;
+		this.textureBuilder = null;
+		this.textureDirty = null;
+		this.textureSize = null;
+		this.textureFormat = null;
 						
 		this.isGeometryCached = null;
 		this.isTextureCached = null;
@@ -235,36 +259,39 @@ public class MapRenderer
 		this.blockCount = mapWidthInBlocks * mapHeightInBlocks;
 		
 		this.blockSizeinPixels = sme.map.textureMap.getWidth() / mapWidthInBlocks;
-		this.blockSizeinMetalmapPixels = sme.map.metalmap.getMapWidth() / mapWidthInBlocks;
-		this.blockSizeinTypemapPixels = sme.map.typemap.getMapWidth() / mapWidthInBlocks;
-		this.blockSizeinVegetationmapPixels = sme.map.vegetationMapWidth / mapWidthInBlocks;
 		this.blockSizeinSlopemapPixels = sme.map.slopeMapWidth / mapWidthInBlocks;
 		this.pixelCountPerBlock = blockSizeinPixels * blockSizeinPixels;
-		
-		int maxScanlineSize = Math.max(Math.max(Math.max(blockSizeinMetalmapPixels, blockSizeinTypemapPixels), blockSizeinVegetationmapPixels), blockSizeinSlopemapPixels);
-		this.tmpScanline = new byte[maxScanlineSize * 3];
+		this.textureBuilder = new BlockTextureBuilder(sme, rs, mapWidthInBlocks);
 		
 		LODLEVELS = 4;
 		triCountPerBlock = new int[LODLEVELS];
 		verticesPerBlock = new int[LODLEVELS];
 		
-		this.vbo = new FloatBuffer[LODLEVELS];
 		for (int l = 0; l < LODLEVELS; l++)
 		{
 			int blockSize = rs.blockSize / FastMath.pow(2, l);
 			triCountPerBlock[l] = blockSize * blockSize * 2;
-			
-			//Initialize temp buffer
 			verticesPerBlock[l] = triCountPerBlock[l] + (4 * blockSize);
-			this.vbo[l] = FloatBuffer.allocate(verticesPerBlock[l] * 8); //3Vertex 3Normal 2TexCoord
 		}
 		
-		this.nullVector = new Vector3(0, 1, 0); 
+		this.meshBuilder = new TerrainMeshBuilder(rs);
+		if (blockMesher != null)
+			blockMesher.cancel();
+		this.blockMesher = new BlockMesher(rs, sme.map, mapWidthInBlocks, blockSizeinTiles, verticesPerBlock[0]);
+		this.geometryVersion = new int[blockCount];
+		this.isMeshing = new boolean[blockCount];
+		this.isHeightDependentDirty = new boolean[blockCount];
+		this.meshCandidates = new long[blockCount];
+		this.blockCuller = new BlockCuller(mapWidthInBlocks, mapHeightInBlocks, blockSizeinTiles);
+		this.isBlockInFrustum = new boolean[blockCount];
 		this.textureData = ByteBuffer.allocate(pixelCountPerBlock * 3);
 				
 		//Initialize caches
 		this.isGeometryCached = new boolean[LODLEVELS][blockCount];
 		this.isTextureCached = new boolean[blockCount];
+		this.textureDirty = new int[blockCount * 4];
+		this.textureSize = new int[blockCount];
+		this.textureFormat = new int[blockCount];
 		this.isFeatureCached = new boolean[blockCount];
 		this.vboID = new int[LODLEVELS][blockCount];
 		this.displayListID = new int[LODLEVELS][blockCount];
@@ -280,7 +307,10 @@ public class MapRenderer
 			}
 		for (int i = 0; i < blockCount; i++)
 		{
+			this.isHeightDependentDirty[i] = true;
 			this.isTextureCached[i] = false;
+			this.textureDirty[(i * 4) + 2] = blockSizeinTiles;
+			this.textureDirty[(i * 4) + 3] = blockSizeinTiles;
 			this.isFeatureCached[i] = false;
 			this.textureID[i] = -1;
 			this.featureList[i] = new ArrayList<FeatureMapContainer>();
@@ -297,217 +327,47 @@ public class MapRenderer
 		staticGl.setSwapInterval(vsync ? 1 : 0);
 	}
 	
-	private void createTexture(GL gl, int index)
+	/**
+	 * Brings the texture of block index up to date. Only the dirty rectangle is assembled and uploaded<BR>
+	 * with glTexSubImage2D, the texture object is kept. It is created anew only if it does not exist yet<BR>
+	 * or the map mode needs another size or format.
+	 */
+	private void updateTexture(GL gl, int index)
 	{
 		/*if (texturesCreatedThisFrame >= rs.maxTexturesPerFrame)
 			return;*/
 		
 		long start = System.nanoTime();
 		
-		//Remove old texture
-		if (textureID[index] >= 0)
-			gl.glDeleteTextures(1, textureID, index);
+		int size = textureBuilder.getTextureSize(rs.mapMode);
+		int format = (rs.compressTextures && (rs.mapMode == MapMode.TextureMap)) ? GL.GL_COMPRESSED_RGB_S3TC_DXT1_EXT : GL.GL_RGB8;
+		boolean isNewTexture = (textureID[index] < 0) || (textureSize[index] != size) || (textureFormat[index] != format);
 		
-		//Copy texture data from map
-		textureData.clear();
-
-		byte[][] textureMap = sme.map.textureMap.getMap();
-		switch (rs.mapMode)
+		//Dirty tiles to texels. Aligned to 4 texels, for DXT1 blocks and GL_UNPACK_ALIGNMENT of RGB rows
+		int x0 = 0, y0 = 0, x1 = size, y1 = size;
+		if (!isNewTexture)
 		{
-			case SlopeMap:
-			{
-				int factor = blockSizeinPixels / blockSizeinSlopemapPixels;
-				byte[][] slopeMap = sme.map.slopeMap;
-				byte[][] slopeColors = sme.slopeMapColorTable;
-				int[] slopes = sme.slopes;
-				final int scanlineSize = blockSizeinSlopemapPixels * 3;
-				int x, y, currentByte;
-				int xStart = ((index % mapWidthInBlocks) * blockSizeinSlopemapPixels);
-		    	int yStart = ((index / mapWidthInBlocks) * blockSizeinSlopemapPixels);
-		    	int slopeType;
-				for (y = yStart; y < (yStart + blockSizeinSlopemapPixels); y++)
-				{
-					//Create scanline
-					currentByte = 0;
-					for (x = xStart; x < (xStart + blockSizeinSlopemapPixels); x++)
-					{
-						slopeType = 3;
-						if ((slopeMap[y][x] & 0xFF) <= slopes[0])
-							slopeType = 0;
-						else if ((slopeMap[y][x] & 0xFF) <= slopes[1])
-							slopeType = 1;
-						else if ((slopeMap[y][x] & 0xFF) <= slopes[2])
-							slopeType = 2;
-						if (rs.blendTextureMap)
-						{
-							tmpScanline[currentByte + 0] = (byte)(((textureMap[y * factor][(x * factor * 3) + 0] & 0xFF) + (slopeColors[slopeType][0] & 0xFF)) / 2);
-							tmpScanline[currentByte + 1] = (byte)(((textureMap[y * factor][(x * factor * 3) + 1] & 0xFF) + (slopeColors[slopeType][1] & 0xFF)) / 2);
-							tmpScanline[currentByte + 2] = (byte)(((textureMap[y * factor][(x * factor * 3) + 2] & 0xFF) + (slopeColors[slopeType][2] & 0xFF)) / 2);
-						}
-						else
-						{
-							tmpScanline[currentByte + 0] = slopeColors[slopeType][0];
-							tmpScanline[currentByte + 1] = slopeColors[slopeType][1];
-							tmpScanline[currentByte + 2] = slopeColors[slopeType][2];
-						}
-						currentByte += 3;
-					}
-					//Copy whole scanline at once
-					textureData.put(tmpScanline, 0, scanlineSize);
-				}
-				break;
-			}
-			case VegetationMap:
-			{
-				int factor = blockSizeinPixels / blockSizeinVegetationmapPixels;
-				byte[][] vegetationMap = sme.map.vegetationMap;
-				int x, y, currentByte;
-				int xStart = ((index % mapWidthInBlocks) * blockSizeinVegetationmapPixels);
-		    	int yStart = ((index / mapWidthInBlocks) * blockSizeinVegetationmapPixels);
-				for (y = yStart; y < (yStart + blockSizeinVegetationmapPixels); y++)
-				{
-					//Create scanline
-					currentByte = 0;
-					for (x = xStart; x < (xStart + blockSizeinVegetationmapPixels); x++)
-					{
-						if (rs.blendTextureMap)
-						{
-							tmpScanline[currentByte + 0] = (byte)((textureMap[y * factor][(x * factor * 3) + 0] & 0xFF) / 2);
-							tmpScanline[currentByte + 1] = (byte)(((textureMap[y * factor][(x * factor * 3) + 1] & 0xFF) + (((vegetationMap[x][y] & 0xFF) == 1) ? 255 : 0)) / 2);
-							tmpScanline[currentByte + 2] = (byte)((textureMap[y * factor][(x * factor * 3) + 2] & 0xFF) / 2);
-						}
-						else
-						{
-							tmpScanline[currentByte + 0] = (byte) 0;
-							tmpScanline[currentByte + 1] = (((vegetationMap[x][y] & 0xFF) == 1) ? (byte) 255 : (byte) 0);
-							tmpScanline[currentByte + 2] = (byte) 0;
-						}
-						currentByte += 3;
-					}
-					//Copy whole scanline at once
-					textureData.put(tmpScanline, 0, blockSizeinVegetationmapPixels * 3);
-				}
-				break;
-			}
-			case TypeMap:
-			{
-				int factor = blockSizeinPixels / blockSizeinTypemapPixels;
-				byte[][] typeMap = sme.map.typemap.getMap();
-				byte[][] typeMapColors = sme.typeMapColorTable;
-				int currentByte;
-				int xStart = ((index % mapWidthInBlocks) * blockSizeinTypemapPixels);
-		    	int yStart = ((index / mapWidthInBlocks) * blockSizeinTypemapPixels);
-				for (int y = yStart; y < (yStart + blockSizeinTypemapPixels); y++)
-				{
-					//Create scanline
-					currentByte = 0;
-					for (int x = xStart; x < (xStart + blockSizeinTypemapPixels); x++)
-					{
-						if (rs.blendTextureMap)
-						{
-							tmpScanline[currentByte + 0] = (byte)(((textureMap[y * factor][(x * factor * 3) + 0] & 0xFF) + (typeMapColors[typeMap[y][x] & 0xFF][0] & 0xFF)) / 2);
-							tmpScanline[currentByte + 1] = (byte)(((textureMap[y * factor][(x * factor * 3) + 1] & 0xFF) + (typeMapColors[typeMap[y][x] & 0xFF][1] & 0xFF)) / 2);
-							tmpScanline[currentByte + 2] = (byte)(((textureMap[y * factor][(x * factor * 3) + 2] & 0xFF) + (typeMapColors[typeMap[y][x] & 0xFF][2] & 0xFF)) / 2);
-						}
-						else
-						{
-							tmpScanline[currentByte + 0] = typeMapColors[typeMap[y][x] & 0xFF][0];
-							tmpScanline[currentByte + 1] = typeMapColors[typeMap[y][x] & 0xFF][1];
-							tmpScanline[currentByte + 2] = typeMapColors[typeMap[y][x] & 0xFF][2];
-						}
-						currentByte += 3;
-					}
-					//Copy whole scanline at once
-					textureData.put(tmpScanline, 0, blockSizeinTypemapPixels * 3);
-				}
-				break;
-			}
-			case MetalMap:
-			{
-				int factor = blockSizeinPixels / blockSizeinMetalmapPixels;
-				byte[][] metalMap = sme.map.metalmap.getMap();
-				int x, y, currentByte;
-				int xStart = ((index % mapWidthInBlocks) * blockSizeinMetalmapPixels);
-		    	int yStart = ((index / mapWidthInBlocks) * blockSizeinMetalmapPixels);
-				for (y = yStart; y < (yStart + blockSizeinMetalmapPixels); y++)
-				{
-					//Create scanline
-					currentByte = 0;
-					for (x = xStart; x < (xStart + blockSizeinMetalmapPixels); x++)
-					{
-						if (rs.blendTextureMap)
-						{
-							tmpScanline[currentByte + 0] = (byte)((textureMap[y * factor][(x * factor * 3) + 0] & 0xFF) / 2);
-							tmpScanline[currentByte + 1] = (byte)(((textureMap[y * factor][(x * factor * 3) + 1] & 0xFF) + (metalMap[y][x] & 0xFF)) / 2);
-							tmpScanline[currentByte + 2] = (byte)((textureMap[y * factor][(x * factor * 3) + 2] & 0xFF) / 2);
-						}
-						else
-						{
-							tmpScanline[currentByte + 0] = (byte) 0;
-							tmpScanline[currentByte + 1] = (byte) metalMap[y][x];
-							tmpScanline[currentByte + 2] = (byte) 0;
-						}
-						currentByte += 3;
-					}
-					//Copy whole scanline at once
-					textureData.put(tmpScanline, 0, blockSizeinMetalmapPixels * 3);
-				}
-				break;
-			}
-			/*case FeatureMap:
-			{
-				int factor = blockSizeinPixels / blockSizeinMetalmapPixels;
-				byte[][] metalMap = sme.metalmap.getMap();
-				final int scanlineSize = blockSizeinMetalmapPixels * 3;
-				int x, y, currentByte;
-				int xStart = ((index % mapWidthInBlocks) * blockSizeinMetalmapPixels);
-		    	int yStart = ((index / mapWidthInBlocks) * blockSizeinMetalmapPixels);
-				for (y = yStart; y < (yStart + blockSizeinMetalmapPixels); y++)
-				{
-					//Create scanline
-					currentByte = 0;
-					for (x = xStart; x < (xStart + blockSizeinMetalmapPixels); x++)
-					{
-						if (rs.blendTextureMap)
-						{
-							tmpScanline[currentByte + 0] = (byte)((textureMap[y * factor][(x * factor * 3) + 0] & 0xFF) / 2);
-							tmpScanline[currentByte + 1] = (byte)(((textureMap[y * factor][(x * factor * 3) + 1] & 0xFF) + (metalMap[x][y] & 0xFF)) / 2);
-							tmpScanline[currentByte + 2] = (byte)((textureMap[y * factor][(x * factor * 3) + 2] & 0xFF) / 2);
-						}
-						else
-						{
-							tmpScanline[currentByte + 0] = (byte) 0;
-							tmpScanline[currentByte + 1] = (byte) metalMap[x][y];
-							tmpScanline[currentByte + 2] = (byte) 0;
-						}
-						currentByte += 3;
-					}
-					//Copy whole scanline at once
-					textureData.put(tmpScanline, 0, scanlineSize);
-				}
-				break;
-			}*/
-			default: //case TextureMap
-			{
-				int y;
-				int xStart = ((index % mapWidthInBlocks) * blockSizeinPixels);
-		    	int yStart = ((index / mapWidthInBlocks) * blockSizeinPixels);
-				for (y = yStart; y < yStart + blockSizeinPixels; y++)
-				{
-					//Copy whole scanline at once
-					try { // TODO Temporary hack for a problem that should not happen
-						textureData.put(textureMap[y], xStart * 3, blockSizeinPixels * 3);
-					} catch (IndexOutOfBoundsException e) {
-						break;
-					}
-				}
-				break;
-			}
+			int d = index * 4;
+			x0 = ((textureDirty[d] * size) / blockSizeinTiles) & ~3;
+			y0 = ((textureDirty[d + 1] * size) / blockSizeinTiles) & ~3;
+			x1 = Math.min((((textureDirty[d + 2] * size) + blockSizeinTiles - 1) / blockSizeinTiles + 3) & ~3, size);
+			y1 = Math.min((((textureDirty[d + 3] * size) + blockSizeinTiles - 1) / blockSizeinTiles + 3) & ~3, size);
 		}
-		textureData.flip();
 		
-		//Generate new texture
-		gl.glGenTextures(1, textureID, index);
+		//Copy texture data from map
+		textureBuilder.build(textureData, rs.mapMode, index, x0, y0, x1, y1);
+		
+		if (isNewTexture)
+		{
+			//Remove old texture
+			if (textureID[index] >= 0)
+				gl.glDeleteTextures(1, textureID, index);
+			
+			//Generate new texture
+			gl.glGenTextures(1, textureID, index);
+			textureSize[index] = size;
+			textureFormat[index] = format;
+		}
 	    gl.glBindTexture(GL.GL_TEXTURE_2D, textureID[index]);
 	    if (rs.filterTextures)
 	    {
@@ -521,49 +381,64 @@ public class MapRenderer
 	    	gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
 	    	gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
 	    }
-		
-	    int size;
-	    switch (rs.mapMode)
-	    {
-	    	case SlopeMap:      
-	    		size = blockSizeinSlopemapPixels;
-	    		break;
-	    	case VegetationMap: 
-	    		size = blockSizeinVegetationmapPixels;
-	    		break;
-	    	case TypeMap:
-	    		size = blockSizeinTypemapPixels;
-	    		break;
-	    	case MetalMap:
-	    		size = blockSizeinMetalmapPixels;
-	    		break;
-	    	case FeatureMap:
-	    		size = blockSizeinMetalmapPixels;
-	    		break;
-	    	default:
-	    		size = blockSizeinPixels;
-	    	break; //TextureMap
-	    }
 	    
-	    if (rs.compressTextures && (rs.mapMode == MapMode.TextureMap))
-			try {
-				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_COMPRESSED_RGB_S3TC_DXT1_EXT, size, size, 0, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, textureData);
-				texturesCreatedThisFrame++;
-				isTextureCached[index] = true;
-			} catch (IndexOutOfBoundsException e) {
-				 // TODO Temporary hack for a problem that should not happen
-			}
-	    else
-			try {
-				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGB8, size, size, 0, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, textureData);
-				texturesCreatedThisFrame++;
-				isTextureCached[index] = true;
-			} catch (IndexOutOfBoundsException e) {
-
-			}
+		try {
+			if (isNewTexture)
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, format, size, size, 0, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, textureData);
+			else
+				gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, x0, y0, x1 - x0, y1 - y0, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, textureData);
+			texturesCreatedThisFrame++;
+			isTextureCached[index] = true;
+		} catch (IndexOutOfBoundsException e) {
+			 // TODO Temporary hack for a problem that should not happen
+		}
 		
 		if (rs.outputPerfDebug)
-			System.out.println("Done creating Texture Block ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		{
+			System.out.println("Done updating Texture Block " + (x1 - x0) + "x" + (y1 - y0) + " of " + size + "x" + size + " ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+			TextureStorage textureMap = sme.map.textureMap.getMap();
+			if (textureMap instanceof CompressedTextureStorage)
+				System.out.println(textureMap);
+		}
+	}
+	
+	/**
+	 * Marks the tiles [x0, x1) * [y0, y1) (map coordinates) of the texture of block index dirty,<BR>
+	 * together with what is dirty already.
+	 */
+	private void invalidateTexture(int index, int x0, int y0, int x1, int y1)
+	{
+		int xOffset = (index % mapWidthInBlocks) * blockSizeinTiles;
+		int yOffset = (index / mapWidthInBlocks) * blockSizeinTiles;
+		x0 = Math.max(x0 - xOffset, 0);
+		y0 = Math.max(y0 - yOffset, 0);
+		x1 = Math.min(x1 - xOffset, blockSizeinTiles);
+		y1 = Math.min(y1 - yOffset, blockSizeinTiles);
+		if ((x0 >= x1) || (y0 >= y1))
+			return;
+		int d = index * 4;
+		if (isTextureCached[index])
+		{
+			isTextureCached[index] = false;
+			textureDirty[d] = x0;
+			textureDirty[d + 1] = y0;
+			textureDirty[d + 2] = x1;
+			textureDirty[d + 3] = y1;
+		}
+		else
+		{
+			textureDirty[d] = Math.min(textureDirty[d], x0);
+			textureDirty[d + 1] = Math.min(textureDirty[d + 1], y0);
+			textureDirty[d + 2] = Math.max(textureDirty[d + 2], x1);
+			textureDirty[d + 3] = Math.max(textureDirty[d + 3], y1);
+		}
+	}
+	
+	private void invalidateTexture(int index)
+	{
+		int xOffset = (index % mapWidthInBlocks) * blockSizeinTiles;
+		int yOffset = (index / mapWidthInBlocks) * blockSizeinTiles;
+		invalidateTexture(index, xOffset, yOffset, xOffset + blockSizeinTiles, yOffset + blockSizeinTiles);
 	}
 	
 	private void createFeatureBlock(int index)
@@ -603,7 +478,7 @@ public class MapRenderer
     				if ((feature.x >= minX) && (feature.z >= minY) && (feature.x < maxX) && (feature.z < maxY))
     				{
     					//Set Height appropriate to heightmap
-    					feature.y = sme.map.heightmap.getHeightMap()[FastMath.round(feature.z / rs.quadSize)][FastMath.round(feature.x / rs.quadSize)] * sme.map.maxHeight/4f;
+    					feature.y = sme.map.heightmap.getHeightField().get(FastMath.round(feature.x / rs.quadSize), FastMath.round(feature.z / rs.quadSize)) * sme.map.maxHeight/4f;
     					featureList[index].add(feature);
     				}
     			}
@@ -618,272 +493,150 @@ public class MapRenderer
 	
 	private void updateFeatureBlockHeights(int index)
 	{
-		float[][] heightMap = sme.map.heightmap.getHeightMap();
+		HeightField heightField = sme.map.heightmap.getHeightField();
 		Iterator<FeatureMapContainer> it = featureList[index].iterator();
 		FeatureMapContainer cont;
 		while (it.hasNext())
 		{
 			cont = it.next();
-			cont.y = heightMap[FastMath.round(cont.z / rs.quadSize)][FastMath.round(cont.x / rs.quadSize)] * sme.map.maxHeight/4f;
+			cont.y = heightField.get(FastMath.round(cont.x / rs.quadSize), FastMath.round(cont.z / rs.quadSize)) * sme.map.maxHeight/4f;
 		}
 	}
 	
 	private void updateSlopemapBlock(int index)
 	{
-		float[][] map = sme.map.heightmap.getHeightMap();
-		int x, y;
-		Vector3 v1, v2, v3, v4, vN1, vN2;
-		int lodSkip = 2;
-		int lodNegativeExtendTileSize = (lodSkip-1) * rs.quadSize;
-		float maxHeight = sme.map.maxHeight/4f; //
+		SteepnessField steepness = sme.map.heightmap.getSteepnessField((sme.map.maxHeight / 4f) / rs.quadSize);
+		byte[][] slopeMap = sme.map.slopeMap;
+		long start = System.nanoTime();
+		
+		int xStart = (index % mapWidthInBlocks) * blockSizeinSlopemapPixels;
+		int yStart = (index / mapWidthInBlocks) * blockSizeinSlopemapPixels;
+		int xEnd = Math.min(xStart + blockSizeinSlopemapPixels, steepness.getSlopeWidth());
+		int yEnd = Math.min(yStart + blockSizeinSlopemapPixels, steepness.getSlopeLength());
+		for (int y = yStart; y < yEnd; y++)
+			for (int x = xStart; x < xEnd; x++)
+				slopeMap[y][x] = (byte)(steepness.getSlope(x, y) * 255);
+		if (rs.outputPerfDebug)
+			System.out.println("Done updating complete Slopemap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+	}
+	
+	/**
+	 * Uploads blocks meshed in the background, then starts meshing the blocks still needed, nearest to the camera first.<BR>
+	 * Only the LOD a block is drawn with now is meshed, other LODs follow when the camera distance asks for them.<BR>
+	 * Blocks outside the view frustum come after all visible ones.<BR>
+	 * At most rs.maxBlocksPerFrame blocks are uploaded and started per frame, and uploading stops once<BR>
+	 * rs.blockUploadBudgetMs are used up (after at least one block).
+	 */
+	private void scheduleBlocks(GL gl)
+	{
 		long start = System.nanoTime();
-			    	
-		int xStart = ((index % mapWidthInBlocks) * blockSizeinTiles) + lodSkip;
-    	int yStart = ((index / mapWidthInBlocks) * blockSizeinTiles) + lodSkip;
-		for (y = yStart; y < (yStart + blockSizeinTiles); y += lodSkip)
+		long budget = rs.blockUploadBudgetMs * 1000000L;
+		BlockMesher.Job job;
+		int uploaded = 0;
+		while ((uploaded < rs.maxBlocksPerFrame) && ((uploaded == 0) || (System.nanoTime() - start < budget)) && ((job = blockMesher.poll()) != null))
 		{
-			x = xStart;
-			
-			try { // TODO Temporary hack for a problem that should not happen
-				v1 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (x * rs.quadSize),
-						map[y - lodSkip][x - lodSkip] * maxHeight, -rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
-				v2 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (x * rs.quadSize),
-						map[y][x - lodSkip] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-			} catch (ArrayIndexOutOfBoundsException e) {
-				break;
-			}
-			for (; x < (xStart + blockSizeinTiles); x += lodSkip)
+			uploadBlock(gl, job);
+			blockMesher.release(job);
+			uploaded++;
+		}
+		
+		//Sort blocks missing their current LOD by distance. Distances are positive, so their bits sort like them.
+		//Visible blocks are collected from the front, hidden ones from the back.
+		int count = 0;
+		int hidden = blockCount;
+		for (int i = 0; i < blockCount; i++)
+			if (!isMeshing[i] && !isGeometryCached[getLODLevel(i)][i])
 			{
-				v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize),
-						map[y - lodSkip][x] * maxHeight, -rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
-				v4 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), map[y][x] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-				
-				vN1 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
-				vN2 = Vector3Math.crossProduct(Vector3Math.subVectors(v2, v4), Vector3Math.subVectors(v4, v3)).normalize();
-				
-				//Update Slopemap
-				sme.map.slopeMap[(y - lodSkip) / 2][(x - lodSkip) / 2] = (byte)((1 - ((vN1.vector[1] + vN2.vector[1]) / 2)) * 255);
-			    
-				//Copy last 2 vectors to new first ones
-				v1 = v3;
-				v2 = v4;
+				long key = ((long)Float.floatToIntBits(getBlockDistance(i)) << 32) | i;
+				if (isBlockVisible(i))
+					meshCandidates[count++] = key;
+				else
+					meshCandidates[--hidden] = key;
 			}
+		Arrays.sort(meshCandidates, 0, count);
+		Arrays.sort(meshCandidates, hidden, blockCount);
+		int submitted = 0;
+		for (int c = 0; (c < count + blockCount - hidden) && (submitted < rs.maxBlocksPerFrame); c++)
+		{
+			int index = (int)meshCandidates[(c < count) ? c : hidden + c - count];
+			if (!blockMesher.submit(index, getLODLevel(index), geometryVersion[index]))
+				break;
+			isMeshing[index] = true;
+			submitted++;
 		}
-		if (rs.outputPerfDebug)
-			System.out.println("Done updating complete Slopemap ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		
+		if (rs.outputPerfDebug && ((uploaded > 0) || (submitted > 0)))
+			System.out.println("Blocks uploaded: " + uploaded + ", started: " + submitted + " of " + (count + blockCount - hidden) + " ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
 	}
 	
-	private void createBlock(GL gl, int index)
+	private void uploadBlock(GL gl, BlockMesher.Job job)
 	{
-		/*if (blocksCreatedThisFrame >= rs.maxBlocksPerFrame)
-			return;*/
-		float[][] heightmap = sme.map.heightmap.getHeightMap();
-		int x, xStart, yStart;
-		int width = sme.map.heightmap.getHeightmapWidth();
-		int height = sme.map.heightmap.getHeightmapLength();
-		float maxHeight = sme.map.maxHeight/4f;
-
-		for (int lodLevel = 0; lodLevel < 4; lodLevel++) {
-			int lodSkip = FastMath.pow(2, lodLevel);
-			int lodNegativeExtendTileSize = (lodSkip - 1) * rs.quadSize;
-			int lodSkipTileSize = lodSkip * rs.quadSize;
-			float texFraction = lodSkip / (float) blockSizeinTiles;
-			long start = System.nanoTime();
-
-			Vector3 v1, v2, v3, v4, vBaseNormal;
-
-			//Generate VertexBuffer Data
-			vbo[lodLevel].clear();
-
-			xStart = ((index % mapWidthInBlocks) * blockSizeinTiles) + lodSkip;
-			yStart = ((index / mapWidthInBlocks) * blockSizeinTiles) + lodSkip;
-
-			v4 = null;
-			int xLocal;
-			int yLocal = 0;
-			for (int y = yStart; y < (yStart + blockSizeinTiles); y += lodSkip) {
-				xLocal = 0;
-				x = xStart;
-
-				try {
-					v1 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (x * rs.quadSize),
-							heightmap[y - lodSkip][x - lodSkip] * maxHeight, -rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
-					v2 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (x * rs.quadSize),
-							heightmap[y][x - lodSkip] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-				} catch (ArrayIndexOutOfBoundsException e) {
-					break; // Temporary hack for a problem that should not happen
-				}
-				v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), heightmap[y - lodSkip][x] * maxHeight,
-						-rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
-
-				vBaseNormal = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
-				
-			/* TEXCOORD */
-				vbo[lodLevel].put(0 + (xLocal / (float) blockSizeinTiles));
-				vbo[lodLevel].put(0 + (yLocal / (float) blockSizeinTiles));
-			/* NORMAL   */
-				vbo[lodLevel].put(getSmoothedNormal(heightmap, x - lodSkip, y - lodSkip, width,
-						height, vBaseNormal, lodSkip, lodSkipTileSize, maxHeight).vector, 0, 3);
-			/* VERTEX   */
-				vbo[lodLevel].put(v1.vector, 0, 3);
-				
-			/* TEXCOORD */
-				vbo[lodLevel].put(0 + (xLocal / (float) blockSizeinTiles));
-				vbo[lodLevel].put(texFraction + (yLocal / (float) blockSizeinTiles));
-			/* NORMAL   */
-				vbo[lodLevel].put(getSmoothedNormal(heightmap, x - lodSkip, y, width, height, vBaseNormal, lodSkip, lodSkipTileSize, maxHeight).vector, 0, 3);
-			/* VERTEX   */
-				vbo[lodLevel].put(v2.vector, 0, 3);
-
-				for (; x < (xStart + blockSizeinTiles); x += lodSkip) {
-					v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize),
-							heightmap[y - lodSkip][x] * maxHeight, -rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
-					v4 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), heightmap[y][x] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-
-					vBaseNormal = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
-					
-				/* TEXCOORD */
-					vbo[lodLevel].put(texFraction + (xLocal / (float) blockSizeinTiles));
-					vbo[lodLevel].put(0 + (yLocal / (float) blockSizeinTiles));
-				/* NORMAL   */
-					vbo[lodLevel].put(getSmoothedNormal(heightmap, x, y - lodSkip, width, height, vBaseNormal, lodSkip, lodSkipTileSize, maxHeight).vector, 0, 3);
-				/* VERTEX   */
-					vbo[lodLevel].put(v3.vector, 0, 3);
-					
-				/* TEXCOORD */
-					vbo[lodLevel].put(texFraction + (xLocal / (float) blockSizeinTiles));
-					vbo[lodLevel].put(texFraction + (yLocal / (float) blockSizeinTiles));
-				/* NORMAL   */
-					vbo[lodLevel].put(getSmoothedNormal(heightmap, x, y, width, height, vBaseNormal, lodSkip, lodSkipTileSize, maxHeight).vector, 0, 3);
-				/* VERTEX   */
-					vbo[lodLevel].put(v4.vector, 0, 3);
-
-					//Copy last 2 vectors to new first ones
-					v1 = v3;
-					v2 = v4;
-
-					xLocal += lodSkip;
-				}
-
-				//We need to insert null triangles here, for lf+cr
-				//Last point again
-			/* TEXCOORD */
-				vbo[lodLevel].put(0);
-				vbo[lodLevel].put(0);
-			/* NORMAL   */
-				vbo[lodLevel].put(nullVector.vector, 0, 3);
-			/* VERTEX   */
-				vbo[lodLevel].put(v4.vector, 0, 3);
-
-				//First point of next row again (=second point of this row)
-				v2 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (xStart * rs.quadSize),
-						heightmap[y][xStart - lodSkip] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-			/* TEXCOORD */
-				vbo[lodLevel].put(0);
-				vbo[lodLevel].put(0);
-			/* NORMAL   */
-				vbo[lodLevel].put(nullVector.vector, 0, 3);
-			/* VERTEX   */
-				vbo[lodLevel].put(v2.vector, 0, 3);
-
-				yLocal += lodSkip;
-			}
-
-			vbo[lodLevel].flip();
-
-			//Upload our interleaved Array
-			boolean isNewArray = (vboID[lodLevel][index] < 0);
-
-			if (isNewArray)
-				gl.glGenBuffers(1, vboID[lodLevel], index);
-
-			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID[lodLevel][index]);
+		int index = job.index;
+		int lodLevel = job.lodLevel;
+		isMeshing[index] = false;
+		
+		//Upload our interleaved Array
+		boolean isNewArray = (vboID[lodLevel][index] < 0);
 
-			if (isNewArray)
-				gl.glBufferData(GL.GL_ARRAY_BUFFER, verticesPerBlock[lodLevel] * 8 * BufferUtil.SIZEOF_FLOAT, vbo[lodLevel], GL.GL_DYNAMIC_DRAW);
-			else
-				gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, verticesPerBlock[lodLevel] * 8 * BufferUtil.SIZEOF_FLOAT, vbo[lodLevel]);
+		if (isNewArray)
+			gl.glGenBuffers(1, vboID[lodLevel], index);
 
-			if (rs.outputPerfDebug)
-				System.out.println("Done creating VBO Block. LOD: " + lodLevel + " ( " + ((System.nanoTime() - start) / 1000000) + " ms )");
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID[lodLevel][index]);
 
+		if (isNewArray)
+			gl.glBufferData(GL.GL_ARRAY_BUFFER, verticesPerBlock[lodLevel] * 8 * BufferUtil.SIZEOF_FLOAT, job.vbo, GL.GL_DYNAMIC_DRAW);
+		else
+			gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, verticesPerBlock[lodLevel] * 8 * BufferUtil.SIZEOF_FLOAT, job.vbo);
 
-			//If map heights changed, we need to adopt the feature heights and slopemap
+		blocksCreatedThisFrame++;
+		//Changed while it was meshed, stays invalid and is meshed again
+		if (job.version != geometryVersion[index])
+			return;
+		isGeometryCached[lodLevel][index] = true;
+		
+		//If map heights changed, we need to adopt the feature heights and slopemap, once for all LODs
+		if (isHeightDependentDirty[index])
+		{
+			isHeightDependentDirty[index] = false;
 			updateFeatureBlockHeights(index);
 			updateSlopemapBlock(index);
 
 			//invalidate slope texture
 			if (rs.mapMode == MapMode.SlopeMap)
-				isTextureCached[index] = false;
-
-			blocksCreatedThisFrame++;
-			isGeometryCached[lodLevel][index] = true;
+				invalidateTexture(index);
 		}
 	}
-		
-	private Vector3 getSmoothedNormal(float map[][], int x, int y, int width, int height, Vector3 baseVector, int lodSkip, int lodSkipTileSize, float maxHeight)
+	
+	/**
+	 * Returns the LOD of block index to draw: lodLevel if it is up to date, else the nearest up to date one,<BR>
+	 * else the nearest uploaded one (old geometry, until the block is meshed again), or -1.
+	 */
+	private int getDrawableLOD(int index, int lodLevel)
 	{
-		maxHeight *= 4f;
-		if (!rs.smoothNormals)
-			return baseVector;
-		
-		if ((x >= lodSkip) && (x < width-lodSkip) && (y >= lodSkip) && (y < height-lodSkip))
+		int uploaded = -1;
+		for (int d = 0; d < LODLEVELS; d++)
 		{
-			if (rs.fastNormals)
-			{
-				/*
-				 * Arrangement of vertices:
-				 *  	2
-				 * 
-				 * 3	1	
-				 * 
-				 * 1 Triangle used:
-				 * 1:	1, 2, 3 
-				 */
-				
-				Vector3 v1, v2, v3;
-				v1 = new Vector3(0, map[y][x] * maxHeight, 0);
-				v2 = new Vector3(0, map[y - lodSkip][x] * maxHeight, -lodSkipTileSize);
-				v3 = new Vector3(-lodSkipTileSize, map[y][x - lodSkip] * maxHeight, 0);
-				return Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
-			}
-			else
-			{
-				/*
-				 * Arrangement of vertices:
-				 *  	4
-				 * 
-				 * 5	1	3
-				 * 
-				 *  	2
-				 *  
-				 * 4 Triangles used:
-				 * 1:	1, 2, 3
-				 * 2:	1, 3, 4
-				 * 3:	1, 4, 5
-				 * 4:	1, 5, 2
-				 * 
-				 */
-				Vector3 vN1, vN2, vN3, vN4, v1, v2, v3;
-				v1 = new Vector3(0, map[y][x] * maxHeight, 0);
-				v2 = new Vector3(0, map[y + lodSkip][x] * maxHeight, lodSkipTileSize);
-				v3 = new Vector3(lodSkipTileSize, map[y][x + lodSkip] * maxHeight, 0);
-				vN1 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3));
-				
-				v2 = new Vector3(0, map[y - lodSkip][x] * maxHeight, -lodSkipTileSize); //4
-				vN2 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v3), Vector3Math.subVectors(v3, v2));
-	
-				v3 = new Vector3(-lodSkipTileSize, map[y][x - lodSkip] * maxHeight, 0); //5
-				vN3 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3));
-				
-				v2 = new Vector3(0, map[y + lodSkip][x] * maxHeight, lodSkipTileSize); //2 again
-				vN4 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v3), Vector3Math.subVectors(v3, v2));
-				
-				return Vector3Math.addVectors(Vector3Math.addVectors(Vector3Math.addVectors(vN1, vN2), vN3), vN4).normalize();
-			}
+			for (int l = lodLevel - d; l <= lodLevel + d; l += Math.max(2 * d, 1))
+				if ((l >= 0) && (l < LODLEVELS) && (vboID[l][index] >= 0))
+				{
+					if (isGeometryCached[l][index])
+						return l;
+					if (uploaded < 0)
+						uploaded = l;
+				}
 		}
-		else
-			return baseVector;
+		return uploaded;
+	}
+	
+	/**
+	 * Marks all LODs of block index outdated. They are meshed again one by one, when drawn with.
+	 */
+	private void invalidateGeometry(int index)
+	{
+		for (int l = 0; l < LODLEVELS; l++)
+			isGeometryCached[l][index] = false;
+		isHeightDependentDirty[index] = true;
+		geometryVersion[index]++;
 	}
 	
 	public void invalidateBlocksByBrush(int tileX, int tileY, Brush brush, boolean geometry, boolean texture, boolean feature)
@@ -893,13 +646,48 @@ public class MapRenderer
 				if ((x >= 0) && (x < sme.map.heightmap.getHeightmapWidth() - 1) && (y >= 0) && (y < sme.map.heightmap.getHeightmapLength() - 1))
 				{
 					if (geometry)
-						for (int l = 0; l < LODLEVELS; l++)	
-							isGeometryCached[l][(x / blockSizeinTiles) + (mapWidthInBlocks * (y / blockSizeinTiles))] = false;
-					if (texture)
-						isTextureCached[(x / blockSizeinTiles) + (mapWidthInBlocks * (y / blockSizeinTiles))] = false;
+						invalidateGeometry((x / blockSizeinTiles) + (mapWidthInBlocks * (y / blockSizeinTiles)));
 					if (feature)
 						isFeatureCached[(x / blockSizeinTiles) + (mapWidthInBlocks * (y / blockSizeinTiles))] = false;
 				}
+		if (texture)
+			invalidateTextures(tileX - 4, tileY - 4, tileX + brush.getWidth() + 4, tileY + brush.getHeight() + 4);
+		camPosChangedNotify();
+	}
+	
+	/**
+	 * Marks the tiles [x0, x1) * [y0, y1) dirty in the textures of all blocks they touch.
+	 */
+	private void invalidateTextures(int x0, int y0, int x1, int y1)
+	{
+		int xStart = Math.max(x0, 0) / blockSizeinTiles;
+		int yStart = Math.max(y0, 0) / blockSizeinTiles;
+		int xEnd = Math.min((x1 - 1) / blockSizeinTiles, mapWidthInBlocks - 1);
+		int yEnd = Math.min((y1 - 1) / blockSizeinTiles, mapHeightInBlocks - 1);
+		for (int y = yStart; y <= yEnd; y++)
+			for (int x = xStart; x <= xEnd; x++)
+				invalidateTexture(x + (mapWidthInBlocks * y), x0, y0, x1, y1);
+	}
+	
+	/**
+	 * Invalidates all blocks within 4 tiles of the given rectangle of vertices, like invalidateBlocksByBrush.
+	 */
+	public void invalidateBlocks(int px, int py, int width, int height, boolean geometry, boolean texture, boolean feature)
+	{
+		int xStart = Math.max(px - 4, 0) / blockSizeinTiles;
+		int yStart = Math.max(py - 4, 0) / blockSizeinTiles;
+		int xEnd = Math.min((px + width + 3) / blockSizeinTiles, mapWidthInBlocks - 1);
+		int yEnd = Math.min((py + height + 3) / blockSizeinTiles, mapHeightInBlocks - 1);
+		for (int y = yStart; y <= yEnd; y++)
+			for (int x = xStart; x <= xEnd; x++)
+			{
+				if (geometry)
+					invalidateGeometry(x + (mapWidthInBlocks * y));
+				if (feature)
+					isFeatureCached[x + (mapWidthInBlocks * y)] = false;
+			}
+		if (texture)
+			invalidateTextures(px - 4, py - 4, px + width + 4, py + height + 4);
 		camPosChangedNotify();
 	}
 	
@@ -908,10 +696,9 @@ public class MapRenderer
 		for (int i = 0; i < blockCount; i++)
 		{
 			if (geometry)
-				for (int l = 0; l < LODLEVELS; l++)
-					isGeometryCached[l][i] = false;
+				invalidateGeometry(i);
 			if (texture)
-				isTextureCached[i] = false;
+				invalidateTexture(i);
 			if (feature)
 				isFeatureCached[i] = false;
 		}
@@ -929,10 +716,9 @@ public class MapRenderer
 				if ((x >= 0) && (x < mapWidthInBlocks) && (y >= 0) && (y < mapHeightInBlocks))
 				{
 					if (geometry)
-						for (int l = 0; l < LODLEVELS; l++)
-							isGeometryCached[l][x + (mapWidthInBlocks * y)] = false;
+						invalidateGeometry(x + (mapWidthInBlocks * y));
 					if (texture)
-						isTextureCached[x + (mapWidthInBlocks * y)] = false;
+						invalidateTexture(x + (mapWidthInBlocks * y));
 					if (feature)
 						isFeatureCached[x + (mapWidthInBlocks * y)] = false;
 				}
@@ -1047,7 +833,9 @@ public class MapRenderer
 	
 	private void renderBrush(GL gl)
 	{
-		float[][] map = sme.map.heightmap.getHeightMap();
+		HeightField field = sme.map.heightmap.getHeightField();
+		float[] map = field.data;
+		int stride = field.stride;
 		int width = sme.map.heightmap.getHeightmapWidth();
 		int length = sme.map.heightmap.getHeightmapLength();
 		float maxHeight = sme.map.maxHeight/4f; //
@@ -1078,22 +866,22 @@ public class MapRenderer
 			for (; y < (yStart + brushHeight); y++)
 			{
 				if ((x > 0) && (x <= width) && (y > 0) && (y <= length))
-					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[y - 1][x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
+					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[(y - 1) * stride + x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
 			}
 			for (; x < (xStart + brushWidth); x++)
 			{
 				if ((x > 0) && (x <= width) && (y > 0) && (y <= length))
-					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[y - 1][x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
+					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[(y - 1) * stride + x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
 			}
 			for (; y > yStart; y--)
 			{
 				if ((x > 0) && (x <= width) && (y > 0) && (y <= length))
-					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[y - 1][x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
+					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[(y - 1) * stride + x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
 			}
 			for (; x > xStart; x--)
 			{
 				if ((x > 0) && (x <= width) && (y > 0) && (y <= length))
-					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[y - 1][x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
+					gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[(y - 1) * stride + x - 1] * maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
 			}
 		    gl.glEnd();
 
@@ -1102,8 +890,8 @@ public class MapRenderer
 		    int yCenter = (y + (brushHeight / 2));
 		    if ((xCenter > 0) && (xCenter < width) && (yCenter > 0) && (yCenter < length))
 		    {
-		    	float height = Math.max(Math.max(Math.max(map[yCenter][xCenter], map[yCenter - 1][xCenter]),
-		    			map[yCenter][xCenter - 1]), map[yCenter - 1][xCenter - 1]);
+		    	float height = Math.max(Math.max(Math.max(map[yCenter * stride + xCenter], map[(yCenter - 1) * stride + xCenter]),
+		    			map[yCenter * stride + xCenter - 1]), map[(yCenter - 1) * stride + xCenter - 1]);
 			    gl.glPushMatrix();
 				float centerScale = Math.max(1, (brushWidth + brushHeight) / 40);
 			    gl.glTranslatef(xCenter * rs.quadSize, (height * maxHeight) + yHeightOffset, yCenter * rs.quadSize);
@@ -1128,16 +916,16 @@ public class MapRenderer
 						gl.glColor4f(1f, 1f, 1f, pattern[x - xStart - 1][y - yStart - 1]);
 						gl.glBegin(GL.GL_QUADS);
 						    //gl.glTexCoord2f(0, 0);
-						    gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[x-1][y-1] * sme.map.maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
+						    gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[(x-1) * stride + y-1] * sme.map.maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
 
 						    //gl.glTexCoord2f(0, 1);
-						    gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[x-1][y] * sme.map.maxHeight) + yHeightOffset, rs.quadHalfSize + (y * rs.quadSize));
+						    gl.glVertex3f(-rs.quadHalfSize + (x * rs.quadSize), (map[(x-1) * stride + y] * sme.map.maxHeight) + yHeightOffset, rs.quadHalfSize + (y * rs.quadSize));
 
 						    //gl.glTexCoord2f(1, 1);
-						    gl.glVertex3f(rs.quadHalfSize + (x * rs.quadSize), (map[x][y] * sme.map.maxHeight) + yHeightOffset, rs.quadHalfSize + (y * rs.quadSize));
+						    gl.glVertex3f(rs.quadHalfSize + (x * rs.quadSize), (map[x * stride + y] * sme.map.maxHeight) + yHeightOffset, rs.quadHalfSize + (y * rs.quadSize));
 
 						    //gl.glTexCoord2f(1, 0);
-						    gl.glVertex3f(rs.quadHalfSize + (x * rs.quadSize), (map[x][y-1] * sme.map.maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
+						    gl.glVertex3f(rs.quadHalfSize + (x * rs.quadSize), (map[x * stride + y-1] * sme.map.maxHeight) + yHeightOffset, -rs.quadHalfSize + (y * rs.quadSize));
 					    gl.glEnd();
 					}
 				}
@@ -1146,26 +934,30 @@ public class MapRenderer
     	}
 	}
 	
+	/**
+	 * True if block index was inside the view frustum of the last renderScene() call.
+	 */
 	private boolean isBlockVisible(int index)
 	{
-		return true;
-		/*
-		//Retrieve camera
-		CameraPosition cam = rs.cameraPosition;
-		
-		//Determine current position
-		int xPosInTiles = FastMath.round(cam.camX / rs.quadSize);
-		int yPosInTiles = FastMath.round(cam.camZ / rs.quadSize);
-				
-		int blockXPosInTiles = ((index % mapWidthInBlocks) * blockSizeinTiles) + (blockSizeinTiles / 2);
-		int blockYPosInTiles = ((index / mapWidthInBlocks) * blockSizeinTiles) + (blockSizeinTiles / 2);
+		return isBlockInFrustum[index];
+	}
+	
+	/**
+	 * Marks the blocks inside the view frustum of the current projection and modelview matrices.<BR>
+	 * Done by every renderScene(), so the mirrored reflection pass culls with its own camera.
+	 */
+	private void cullBlocks(GL gl)
+	{
+		gl.glGetFloatv(GL.GL_PROJECTION_MATRIX, projectionMatrix, 0);
+		gl.glGetFloatv(GL.GL_MODELVIEW_MATRIX, modelviewMatrix, 0);
+		frustum.set(projectionMatrix, modelviewMatrix);
 		
-		int distXinTiles = xPosInTiles - blockXPosInTiles;
-		int distYinTiles = yPosInTiles - blockYPosInTiles;
-		float distInTiles = (float)Math.sqrt((distXinTiles * distXinTiles) + (distYinTiles * distYinTiles));
-		*/
+		//Features stick out of their block, grow the boxes by the largest one
+		float margin = 0;
+		for (int f = 0; f < featureManager.getFeatureCount(); f++)
+			margin = Math.max(margin, Math.max(featureManager.getMaxHeight(f), featureManager.getMaxWidth(f)));
 		
-		//TODO: cull non visible blocks. make real frustrum culling
+		blockCuller.cull(frustum, sme.map.heightmap.getHeightPyramid(), sme.map.maxHeight / 4f, rs.quadSize, rs.quadHalfSize, margin, isBlockInFrustum);
 	}
 	
 	private void renderReflectionMap(GL gl)
@@ -1381,6 +1173,8 @@ public class MapRenderer
 		//Clear feature sort list
 		featuresToRenderCount = 0;
 		
+		cullBlocks(gl);
+		
 		//Clear
 		gl.glClearColor(0f, 0f, 0f, 1f);
 		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
@@ -1410,24 +1204,24 @@ public class MapRenderer
 			{
 				if (isBlockVisible(i))
 				{
-					//Calculate lodLevel
+					//Calculate lodLevel, geometry is meshed in the background (scheduleBlocks)
 					lodLevel = getLODLevel(i);
-					
-					if (!isGeometryCached[lodLevel][i])
-						createBlock(gl, i);
+					int drawLOD = getDrawableLOD(i, lodLevel);
 					
 					//Render Block
 					//VBO
-					if (vboID[lodLevel][i] >= 0)
+					if (drawLOD >= 0) {
 						//Set Buffer
-						gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID[lodLevel][i]);
+						gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID[drawLOD][i]);
 							
-					//Format:
-					gl.glInterleavedArrays(GL.GL_T2F_N3F_V3F, 0, 0);
+						//Format:
+						gl.glInterleavedArrays(GL.GL_T2F_N3F_V3F, 0, 0);
 							
-					//Render Buffer
-					gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, verticesPerBlock[lodLevel]);
-					rs.trisRendered += triCountPerBlock[lodLevel];
+						//Render Buffer
+						gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, verticesPerBlock[drawLOD]);
+						rs.trisRendered += triCountPerBlock[drawLOD];
+						rs.blocksRendered++;
+					}
 
 					if (lodLevel <= rs.renderFeatureLOD) {
 						if (!isFeatureCached[i])
@@ -1451,13 +1245,11 @@ public class MapRenderer
 			{
 				if (isBlockVisible(i))
 				{
-					//Calculate lodLevel
+					//Calculate lodLevel, geometry is meshed in the background (scheduleBlocks)
 					lodLevel = getLODLevel(i);
-					
-					if (!isGeometryCached[lodLevel][i])
-						createBlock(gl, i);
+					int drawLOD = getDrawableLOD(i, lodLevel);
 					if (!isTextureCached[i])
-						createTexture(gl, i);
+						updateTexture(gl, i);
 					
 					//Bind block texture
 					if ((textureID[i] >= 0) && (currentTexture != textureID[i]))
@@ -1468,16 +1260,17 @@ public class MapRenderer
 					
 					//Render Block
 					//VBO
-					if (vboID[lodLevel][i] >= 0) {
+					if (drawLOD >= 0) {
 						//Set Buffer
-						gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID[lodLevel][i]);
+						gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboID[drawLOD][i]);
 							
 						//Format:
 						gl.glInterleavedArrays(GL.GL_T2F_N3F_V3F, 0, 0);
 							
 						//Render Buffer
-						gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, verticesPerBlock[lodLevel]);
-						rs.trisRendered += triCountPerBlock[lodLevel];
+						gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, verticesPerBlock[drawLOD]);
+						rs.trisRendered += triCountPerBlock[drawLOD];
+						rs.blocksRendered++;
 					}
 
 					
@@ -1525,6 +1318,7 @@ public class MapRenderer
 
 
 		rs.trisRendered = 0;
+		rs.blocksRendered = 0;
 		
 		//Switch between wireframe and normal mode
 		if (switchPolyMode)
@@ -1550,6 +1344,9 @@ public class MapRenderer
 			gl.glPolygonMode(GL.GL_FRONT, GL.GL_FILL);
 			renderScene(gl);
 		}
+		
+		//Upload meshed blocks and start meshing the missing ones, by what the camera sees
+		scheduleBlocks(gl);
 
 
 		renderBrush(gl);
@@ -1577,20 +1374,26 @@ public class MapRenderer
 		renderSkyBox(gl);
 	}
 	
-	private int getLODLevel(int index)
+	/**
+	 * Horizontal distance from the camera to the center of block index.
+	 */
+	private float getBlockDistance(int index)
 	{
-		if (!rs.useLOD)
-			return 0;
-
-		float dist;
-		
 		double x = (((index % mapWidthInBlocks) * blockSizeinTiles) * rs.quadSize) + (rs.quadHalfSize * blockSizeinTiles);
 		double z = (((index / mapWidthInBlocks) * blockSizeinTiles) * rs.quadSize) + (rs.quadHalfSize * blockSizeinTiles);
 
-		dist = (float) Math.sqrt(
+		return (float) Math.sqrt(
 				((x - rs.cameraPosition.camX) * (x - rs.cameraPosition.camX)) +
 						((z - rs.cameraPosition.camZ) * (z - rs.cameraPosition.camZ)));
+	}
+	
+	private int getLODLevel(int index)
+	{
+		if (!rs.useLOD)
+			return 0;
 
+		float dist = getBlockDistance(index);
+		
 		float n = rs.lodDist;
 		if (dist > n * 4){
 			return 3;
@@ -1909,7 +1712,9 @@ public class MapRenderer
 		final int normalizeFactor = downscaleX * downscaleY;
 		final int xStep = 3;
 		final int xScaledStep = 3 * downscaleX;
-		final byte[][] texture = sme.map.textureMap.textureMap;
+		final TextureStorage texture = sme.map.textureMap.getMap();
+		final byte[] rowBuffer = texture.newRowBuffer();
+		final int[] sums = new int[scanlineSize];
 		
 		int minimapx, minimapy, texturex, texturey, filterx, filtery;
 		int r, g, b;
@@ -1918,27 +1723,31 @@ public class MapRenderer
 		texturey = 0;
 		for (minimapy = 0; minimapy < height; minimapy++)
 		{
-			texturex = 0;
-			for (minimapx = 0; minimapx < scanlineSize; minimapx += xStep)
+			//Sum up the texture rows of this minimap row one after another
+			Arrays.fill(sums, 0);
+			for (filtery = 0; filtery < downscaleY; filtery++)
 			{
-				r = 0;
-				g = 0;
-				b = 0;
-				for (filtery = 0; filtery < downscaleY; filtery++)
+				byte[] row = texture.getRow(texturey + filtery, 0, width * downscaleX, rowBuffer);
+				texturex = 0;
+				for (minimapx = 0; minimapx < scanlineSize; minimapx += xStep)
 				{
+					r = 0;
+					g = 0;
+					b = 0;
 					for (filterx = 0; filterx < xScaledStep; filterx += xStep)
 					{
-						r += (texture[texturey + filtery][(texturex + filterx) + 0] & 0xFF);
-						g += (texture[texturey + filtery][(texturex + filterx) + 1] & 0xFF);
-						b += (texture[texturey + filtery][(texturex + filterx) + 2] & 0xFF);
+						r += (row[(texturex + filterx) + 0] & 0xFF);
+						g += (row[(texturex + filterx) + 1] & 0xFF);
+						b += (row[(texturex + filterx) + 2] & 0xFF);
 					}
+					sums[minimapx + 0] += r;
+					sums[minimapx + 1] += g;
+					sums[minimapx + 2] += b;
+					texturex += xScaledStep;
 				}
-				minimapData[minimapy][minimapx + 0] = (byte)(r / normalizeFactor);
-				minimapData[minimapy][minimapx + 1] = (byte)(g / normalizeFactor);
-				minimapData[minimapy][minimapx + 2] = (byte)(b / normalizeFactor);
-				
-				texturex += xScaledStep;
 			}
+			for (minimapx = 0; minimapx < scanlineSize; minimapx++)
+				minimapData[minimapy][minimapx] = (byte)(sums[minimapx] / normalizeFactor);
 			texturey += downscaleY;
 			
 			//Status output
@@ -2001,14 +1810,14 @@ public class MapRenderer
 	{
 		final int height = tileSizeInPixels;
 		final int width = tileSizeInPixels;
-		int scanlineSize = width * 3;
+		TextureStorage texture = sme.map.textureMap.getMap();
 		ByteBuffer uncompressed = ByteBuffer.allocate(width * height * 3);
 				
 		//copy image from texturemap
 		for (int y = 0; y < height; y++)
 		{
 			//Copy whole scanline at once
-			uncompressed.put(sme.map.textureMap.textureMap[pixelY + y], pixelX * 3, scanlineSize);
+			texture.getTexels(pixelY + y, pixelX, width, uncompressed);
 		}
 		uncompressed.flip();
 		
@@ -2148,75 +1957,18 @@ public class MapRenderer
 	
 	private void createVBOData(FloatBuffer vbo, float map[][], int xOffset, int yOffset, int width, int height, float maxHeight)
 	{
-		//Clear Buffer
-		vbo.clear();
-		
-		int widthInTiles = width - 1;
-		int heightInTiles = height - 1;
-		float texFractionX = 1 / (float)widthInTiles;
-		float texFractionY = 1 / (float)heightInTiles;
-		int tileSize = rs.quadSize;
-		
-		int x, y;
-		Vector3 v1, v2, v3, v4, vBaseNormal;
-		v4 = null;
-    	int xLocal;
-    	int yLocal = 0;
-		for (y = yOffset; y < (yOffset + heightInTiles); y++)
+		//map is [x][y], the builder reads rows
+		HeightField field = new HeightField(height, width);
+		for (int x = 0; x < width; x++)
+			for (int y = 0; y < height; y++)
+				field.data[field.index(x, y)] = map[x][y];
+		NormalField normals = null;
+		if (rs.smoothNormals)
 		{
-			xLocal = 0;
-			x = xOffset;
-			
-			v1 = new Vector3(-rs.quadHalfSize + (x * rs.quadSize), map[x-1][y-1] * maxHeight, -rs.quadHalfSize + (y * rs.quadSize));
-			v2 = new Vector3(-rs.quadHalfSize + (x * rs.quadSize), map[x-1][y] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-			v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), map[x][y-1] * maxHeight, -rs.quadHalfSize + (y * rs.quadSize));
-			
-			vBaseNormal = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
-			
-			/* TEXCOORD */vbo.put(0 + (xLocal / (float)widthInTiles)); vbo.put(0 + (yLocal / (float)heightInTiles));
-			/* NORMAL   */vbo.put(getSmoothedNormal(map, x-1, y-1, width, height, vBaseNormal, 1, tileSize, maxHeight).vector, 0, 3);
-			/* VERTEX   */vbo.put(v1.vector, 0, 3);
-			
-			/* TEXCOORD */vbo.put(0 + (xLocal / (float)widthInTiles)); vbo.put(texFractionY + (yLocal / (float)heightInTiles));
-			/* NORMAL   */vbo.put(getSmoothedNormal(map, x-1, y, width, height, vBaseNormal, 1, tileSize, maxHeight).vector, 0, 3);
-			/* VERTEX   */vbo.put(v2.vector, 0, 3);
-			
-			for (; x < (xOffset + widthInTiles); x++)
-			{
-				v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), map[x][y-1] * maxHeight, -rs.quadHalfSize + (y * rs.quadSize));
-				v4 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), map[x][y] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-				
-				vBaseNormal = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
-				
-				/* TEXCOORD */vbo.put(texFractionX + (xLocal / (float)widthInTiles)); vbo.put(0 + (yLocal / (float)heightInTiles));
-				/* NORMAL   */vbo.put(getSmoothedNormal(map, x, y-1, width, height, vBaseNormal, 1, tileSize, maxHeight).vector, 0, 3);
-				/* VERTEX   */vbo.put(v3.vector, 0, 3);
-				
-				/* TEXCOORD */vbo.put(texFractionX + (xLocal / (float)widthInTiles)); vbo.put(texFractionY + (yLocal / (float)heightInTiles));
-				/* NORMAL   */vbo.put(getSmoothedNormal(map, x, y, width, height, vBaseNormal, 1, tileSize, maxHeight).vector, 0, 3);
-				/* VERTEX   */vbo.put(v4.vector, 0, 3);
-			    
-				//Copy last 2 vectors to new first ones
-				v1 = v3;
-				v2 = v4;
-				
-			    xLocal++;
-			}
-			
-			//We need to insert null triangles here, for lf+cr
-			//Last point again
-			/* TEXCOORD */vbo.put(0); vbo.put(0);
-			/* NORMAL   */vbo.put(nullVector.vector, 0, 3);
-			/* VERTEX   */vbo.put(v4.vector, 0, 3);
-			
-			//First point of next row again (=second point of this row)
-			v2 = new Vector3(-rs.quadHalfSize + (xOffset * rs.quadSize), map[xOffset-1][y] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
-			/* TEXCOORD */vbo.put(0); vbo.put(0);
-			/* NORMAL   */vbo.put(nullVector.vector, 0, 3);
-			/* VERTEX   */vbo.put(v2.vector, 0, 3);
-			yLocal++;
+			normals = new NormalField(width, height);
+			normals.refresh(field, maxHeight * 4f, rs.quadSize, rs.fastNormals);
 		}
-		vbo.flip();
+		meshBuilder.build(vbo, field.data, field.stride, width, height, maxHeight, normals, xOffset, yOffset, width - 1, height - 1, 1);
 	}
 	
 	private void createTextureData(byte[][] r, byte[][] g, byte[][] b, ByteBuffer textureData, int xOffset, int yOffset, int width, int height)
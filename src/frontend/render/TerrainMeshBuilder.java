@@ -0,0 +1,196 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import java.nio.FloatBuffer;
+
+import backend.map.NormalField;
+
+/**
+ * Builds terrain triangle strips as interleaved T2F_N3F_V3F vertex data, on plain floats.<BR>
+ * One row of the strip is assembled in a reused float[] and then put into the buffer at once,<BR>
+ * nothing is allocated per vertex. Smoothed normals are taken from a NormalField at full resolution for every LOD,<BR>
+ * positions and base normals are computed in the same order as with Vector3/Vector3Math.<BR>
+ * Not thread safe, every thread needs its own builder.
+ */
+public class TerrainMeshBuilder
+{
+	private static final int FLOATS_PER_VERTEX = 8;
+
+	private final AppSettings rs;
+	private float[] row = new float[0];
+	private final float[] normal = new float[3];
+	private float[] normals;
+
+	//Base normal of the current quad
+	private float baseX, baseY, baseZ;
+
+	public TerrainMeshBuilder(AppSettings rs)
+	{
+		this.rs = rs;
+	}
+
+	/**
+	 * Clears vbo and fills it with the strip for quadsX * quadsY quads (every lodSkip'th vertex) of the given heights,<BR>
+	 * starting at vertex (xStart - lodSkip, yStart - lodSkip). Texture coordinates run from 0 to 1 over the quads.<BR>
+	 * heights are width * length values, row y starting at y * stride. Vertex heights are scaled by maxHeight.<BR>
+	 * Interior vertices get their normal from smoothed (refreshed for the same heights), border vertices and all<BR>
+	 * vertices without smoothed the normal of their quad.
+	 */
+	public void build(FloatBuffer vbo, float[] heights, int stride, int width, int length, float maxHeight, NormalField smoothed,
+			int xStart, int yStart, int quadsX, int quadsY, int lodSkip)
+	{
+		normals = (smoothed != null) ? smoothed.getNormals() : null;
+		int quadSize = rs.quadSize;
+		int quadHalfSize = rs.quadHalfSize;
+		int lodNegativeExtendTileSize = (lodSkip - 1) * quadSize;
+		float texFractionX = lodSkip / (float)quadsX;
+		float texFractionY = lodSkip / (float)quadsY;
+		int rowFloats = (4 + (2 * ((quadsX + lodSkip - 1) / lodSkip))) * FLOATS_PER_VERTEX;
+		if (row.length < rowFloats)
+			row = new float[rowFloats];
+
+		vbo.clear();
+		int yLocal = 0;
+		for (int y = yStart; y < (yStart + quadsY); y += lodSkip)
+		{
+			int x = xStart;
+			int xLocal = 0;
+			int i = 0;
+			float zTop = -quadHalfSize - lodNegativeExtendTileSize + (y * quadSize);
+			float zBottom = quadHalfSize + (y * quadSize);
+			int top = (y - lodSkip) * stride;
+			int bottom = y * stride;
+			if ((top + x - lodSkip < 0) || (bottom + x - lodSkip >= heights.length))
+				break; // Temporary hack for a problem that should not happen
+
+			float x1 = -quadHalfSize - lodNegativeExtendTileSize + (x * quadSize);
+			float y1 = heights[top + x - lodSkip] * maxHeight;
+			float y2 = heights[bottom + x - lodSkip] * maxHeight;
+			float x3 = quadHalfSize + (x * quadSize);
+			float y3 = heights[top + x] * maxHeight;
+			float y4 = 0;
+			setBaseNormal(x1, y1, zTop, x1, y2, zBottom, x3, y3, zTop);
+
+			i = put(row, i, xLocal / (float)quadsX, yLocal / (float)quadsY, x - lodSkip, y - lodSkip, width, length, x1, y1, zTop);
+			i = put(row, i, xLocal / (float)quadsX, texFractionY + (yLocal / (float)quadsY), x - lodSkip, y, width, length, x1, y2, zBottom);
+
+			for (; x < (xStart + quadsX); x += lodSkip)
+			{
+				x3 = quadHalfSize + (x * quadSize);
+				y3 = heights[top + x] * maxHeight;
+				y4 = heights[bottom + x] * maxHeight;
+				setBaseNormal(x1, y1, zTop, x1, y2, zBottom, x3, y3, zTop);
+
+				i = put(row, i, texFractionX + (xLocal / (float)quadsX), yLocal / (float)quadsY, x, y - lodSkip, width, length, x3, y3, zTop);
+				i = put(row, i, texFractionX + (xLocal / (float)quadsX), texFractionY + (yLocal / (float)quadsY), x, y, width, length, x3, y4, zBottom);
+
+				//Last 2 vertices are the first ones of the next quad
+				x1 = x3;
+				y1 = y3;
+				y2 = y4;
+
+				xLocal += lodSkip;
+			}
+
+			//We need to insert null triangles here, for lf+cr
+			//Last point again, then first point of next row (=second point of this row)
+			i = putNull(row, i, x1, y4, zBottom);
+			i = putNull(row, i, -quadHalfSize - lodNegativeExtendTileSize + (xStart * quadSize),
+					heights[bottom + xStart - lodSkip] * maxHeight, zBottom);
+			vbo.put(row, 0, i);
+
+			yLocal += lodSkip;
+		}
+		vbo.flip();
+		normals = null;
+	}
+
+	private int put(float[] row, int i, float s, float t, int x, int y, int width, int length, float vx, float vy, float vz)
+	{
+		smoothedNormal(x, y, width, length);
+		row[i] = s;
+		row[i + 1] = t;
+		row[i + 2] = normal[0];
+		row[i + 3] = normal[1];
+		row[i + 4] = normal[2];
+		row[i + 5] = vx;
+		row[i + 6] = vy;
+		row[i + 7] = vz;
+		return i + FLOATS_PER_VERTEX;
+	}
+
+	private static int putNull(float[] row, int i, float vx, float vy, float vz)
+	{
+		row[i] = 0;
+		row[i + 1] = 0;
+		row[i + 2] = 0;
+		row[i + 3] = 1;
+		row[i + 4] = 0;
+		row[i + 5] = vx;
+		row[i + 6] = vy;
+		row[i + 7] = vz;
+		return i + FLOATS_PER_VERTEX;
+	}
+
+	/**
+	 * Normal of triangle 1, 2, 3: (1 - 2) x (2 - 3), normalized.
+	 */
+	private void setBaseNormal(float x1, float y1, float z1, float x2, float y2, float z2, float x3, float y3, float z3)
+	{
+		cross(x1 - x2, y1 - y2, z1 - z2, x2 - x3, y2 - y3, z2 - z3);
+		normalize();
+		baseX = normal[0];
+		baseY = normal[1];
+		baseZ = normal[2];
+	}
+
+	/**
+	 * Sets normal to the smoothed normal of vertex (x, y), or the base normal on the border or without smoothing.
+	 */
+	private void smoothedNormal(int x, int y, int width, int length)
+	{
+		if ((normals == null) || (x < 1) || (x >= width - 1) || (y < 1) || (y >= length - 1))
+		{
+			normal[0] = baseX;
+			normal[1] = baseY;
+			normal[2] = baseZ;
+			return;
+		}
+		int n = ((y * width) + x) * 3;
+		normal[0] = normals[n];
+		normal[1] = normals[n + 1];
+		normal[2] = normals[n + 2];
+	}
+
+	private void cross(float ax, float ay, float az, float bx, float by, float bz)
+	{
+		normal[0] = (ay * bz) - (az * by);
+		normal[1] = (az * bx) - (ax * bz);
+		normal[2] = (ax * by) - (ay * bx);
+	}
+
+	private void normalize()
+	{
+		float length = (float)Math.sqrt((normal[0] * normal[0]) + (normal[1] * normal[1]) + (normal[2] * normal[2]));
+		if (length > 0)
+		{
+			normal[0] = normal[0] / length;
+			normal[1] = normal[1] / length;
+			normal[2] = normal[2] / length;
+		}
+	}
+}
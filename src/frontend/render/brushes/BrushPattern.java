@@ -38,6 +38,7 @@ public class BrushPattern implements BrushData
 	public String stringID;
 	
 	private float[][] pattern;
+	private float[] patternRows;
 	public int width;
 	public int height;
 	
@@ -84,6 +85,24 @@ public class BrushPattern implements BrushData
 		return pattern;
 	}
 	
+	/**
+	 * Returns the pattern row-major, value (x, y) is at [y * width + x].<BR>
+	 * Built on first use and kept until the pattern changes.
+	 */
+	public float[] getPatternRows()
+	{
+		loadFromFile();
+		if ((patternRows == null) && (pattern != null))
+		{
+			float[] rows = new float[width * height];
+			for (int x = 0; x < width; x++)
+				for (int y = 0; y < height; y++)
+					rows[(y * width) + x] = pattern[x][y];
+			patternRows = rows;
+		}
+		return patternRows;
+	}
+	
 	public BrushPattern getScaledChild(int width, int height, boolean keepAspect)
 	{
 		final BrushPattern newBrushPattern = new BrushPattern();
@@ -208,6 +227,7 @@ public class BrushPattern implements BrushData
 					newPattern[x][y] = pattern[y][(oldHeight - 1) - x];
 		}
 		pattern = newPattern;
+		patternRows = null;
 	}
 	
 	public void mirror(boolean horizontal)
@@ -230,6 +250,7 @@ public class BrushPattern implements BrushData
 					newPattern[x][y] = pattern[x][(height - 1) - y];
 		}
 		pattern = newPattern;
+		patternRows = null;
 	}
 	
 	@Override
@@ -255,5 +276,6 @@ public class BrushPattern implements BrushData
 	{
 		this.isLoaded = false;
 		this.pattern = null;
+		this.patternRows = null;
 	}
 }
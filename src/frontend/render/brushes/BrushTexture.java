@@ -45,6 +45,7 @@ public class BrushTexture implements BrushData
 	public byte[][] textureG;
 	public byte[][] textureB;
 	public byte[][] textureA;
+	private int[] packedTexture;
 	public int width;
 	public int height;
 	
@@ -164,6 +165,24 @@ public class BrushTexture implements BrushData
 		return textureA;
 	}
 	
+	/**
+	 * Returns the texture row-major with one ARGB int per texel, texel (x, y) is at [y * width + x].<BR>
+	 * Built on first use and kept until the texture changes.
+	 */
+	public int[] getPackedTexture()
+	{
+		loadFromFile();
+		if ((packedTexture == null) && (textureR != null))
+		{
+			int[] packed = new int[width * height];
+			for (int x = 0; x < width; x++)
+				for (int y = 0; y < height; y++)
+					packed[(y * width) + x] = ((textureA[x][y] & 0xFF) << 24) | ((textureR[x][y] & 0xFF) << 16) | ((textureG[x][y] & 0xFF) << 8) | (textureB[x][y] & 0xFF);
+			packedTexture = packed;
+		}
+		return packedTexture;
+	}
+	
 	public BrushTexture getScaledChild(int width, int height, boolean keepAspect)
 	{
 		long start = System.nanoTime();
@@ -346,6 +365,7 @@ public class BrushTexture implements BrushData
 		textureG = newTextureG;
 		textureB = newTextureB;
 		textureA = newTextureA;
+		packedTexture = null;
 	}
 	
 	public void mirror(boolean horizontal)
@@ -384,6 +404,7 @@ public class BrushTexture implements BrushData
 		textureG = newTextureG;
 		textureB = newTextureB;
 		textureA = newTextureA;
+		packedTexture = null;
 	}
 	
 	@Override
@@ -412,5 +433,6 @@ public class BrushTexture implements BrushData
 		this.textureG = null;
 		this.textureB = null;
 		this.textureA = null;
+		this.packedTexture = null;
 	}
 }
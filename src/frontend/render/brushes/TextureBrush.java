@@ -21,6 +21,7 @@
 package frontend.render.brushes;
 
 import backend.SpringMapEdit;
+import backend.map.TexturemapLayer;
 import backend.math.Vector2Int;
 
 /**
@@ -231,6 +232,19 @@ public class TextureBrush extends Brush
 	
 	public void applyBrush(Vector2Int position, Brush brush, boolean invert)
 	{
+		TexturemapLayer layer = sme.map.textureMap.getTopLayer();
+		//Multiply has no layer kernel, it paints into the texture below the layers
+		if ((layer != null) && (sme.mes.getTextureBrush().brushMode != 2))
+		{
+			switch (sme.mes.getTextureBrush().brushMode)
+			{
+				case 0: layer.blendColorToTexture(position.x(), position.y(), this); break;
+				case 1: layer.addColorToTexture(position.x(), position.y(), this); break;
+				case 3: layer.stampColorToTexture(position.x(), position.y(), this); break;
+			}
+			sme.map.textureMap.compileLayers();
+			return;
+		}
 		switch (sme.mes.getTextureBrush().brushMode)
 		{
 			case 0: sme.map.textureMap.blendColorToTexture(position.x(), position.y(), this); break;
@@ -3,5 +3,8 @@
 arch=x64
 maxmem=2048m
 lib=lib_lin_$arch
+#FloatVector brush kernels, only if the JVM knows the module (Java 16 or newer)
+vector=
+java --add-modules jdk.incubator.vector -version >/dev/null 2>&1 && vector="--add-modules jdk.incubator.vector"
 
-java -cp springmapedit.jar:$lib/gluegen-rt.jar:$lib/jogl.jar:$lib/swt.jar -Xms512m -Xmx$maxmem -Djava.library.path=$lib application.SpringMapEditApplication
+java $vector -cp springmapedit.jar:$lib/gluegen-rt.jar:$lib/jogl.jar:$lib/swt.jar -Xms512m -Xmx$maxmem -Djava.library.path=$lib application.SpringMapEditApplication
@@ -1,2 +1,5 @@
 #!/bin/sh
-java -cp springmapedit.jar:lib_osx64/gluegen-rt.jar:lib_osx64/jogl.jar:lib_osx64/swt.jar -XstartOnFirstThread -Xms512m -Xmx4g -Djava.library.path=lib_osx64 application.SpringMapEditApplication
\ No newline at end of file
+#FloatVector brush kernels, only if the JVM knows the module (Java 16 or newer)
+vector=
+java --add-modules jdk.incubator.vector -version >/dev/null 2>&1 && vector="--add-modules jdk.incubator.vector"
+java $vector -cp springmapedit.jar:lib_osx64/gluegen-rt.jar:lib_osx64/jogl.jar:lib_osx64/swt.jar -XstartOnFirstThread -Xms512m -Xmx4g -Djava.library.path=lib_osx64 application.SpringMapEditApplication
\ No newline at end of file
@@ -1,2 +1,5 @@
-java.exe -classpath springmapedit.jar;lib_win64/gluegen-rt.jar;lib_win64/jogl.jar;lib_win64/swt.jar -Xms128m -Xmx1024m -Djava.library.path=lib_win64 application.SpringMapEditApplication
+rem FloatVector brush kernels, only if the JVM knows the module (Java 16 or newer)
+set VECTOR=
+java.exe --add-modules jdk.incubator.vector -version >nul 2>&1 && set VECTOR=--add-modules jdk.incubator.vector
+java.exe %VECTOR% -classpath springmapedit.jar;lib_win64/gluegen-rt.jar;lib_win64/jogl.jar;lib_win64/swt.jar -Xms128m -Xmx1024m -Djava.library.path=lib_win64 application.SpringMapEditApplication
 pause
\ No newline at end of file
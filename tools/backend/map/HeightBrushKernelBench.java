@@ -0,0 +1,92 @@
+package backend.map;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Times the plain loop HeightBrushKernels against the vector ones for square brushes of 16 to 1024 pixels<BR>
+ * on a 2049 * 2049 heightmap. Prints the best time of one brush application in ms.<BR>
+ * Usage: java --add-modules jdk.incubator.vector HeightBrushKernelBench
+ */
+public class HeightBrushKernelBench
+{
+	private static final int MAP_SIZE = 2049;
+	private static final int[] BRUSH_SIZES = { 16, 32, 64, 128, 256, 512, 1024 };
+	private static final String[] KERNELS = { "add", "set", "blend", "average3x3" };
+
+	public static void main(String[] args)
+	{
+		HeightBrushKernels.Kernels vector = HeightBrushKernels.getVectorKernels();
+		if (vector == null)
+		{
+			System.out.println("No vector kernels on this JVM (started without --add-modules jdk.incubator.vector?)");
+			System.exit(1);
+		}
+		HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+		String avx = System.getProperty("os.arch").startsWith("amd64") ? ", UseAVX=" + hotspot.getVMOption("UseAVX").getValue() : "";
+		System.out.println("HeightBrushKernels" + avx + ", " + vector + ", ms per brush application, plain loops / vector");
+		System.out.println("Brush size            add                  set                blend           average3x3");
+
+		Random random = new Random(1);
+		float[] map = new float[MAP_SIZE * MAP_SIZE];
+		for (int i = 0; i < map.length; i++)
+			map[i] = random.nextFloat();
+		float[] pattern = new float[1024 * 1024];
+		for (int i = 0; i < pattern.length; i++)
+			pattern[i] = (random.nextFloat() > 0.2f) ? random.nextFloat() : 0;
+		//Random target, all zero would make blend slow on denormals
+		float[] target = new float[1024 * 1024];
+		for (int i = 0; i < target.length; i++)
+			target[i] = random.nextFloat();
+		float[] out = new float[1024 * 1024];
+
+		//First pass only warms up the JIT for all sizes
+		for (int pass = 0; pass < 2; pass++)
+			for (int size : BRUSH_SIZES)
+			{
+				long[] scalarTimes = measure(HeightBrushKernels.SCALAR, size, map, pattern, target, out);
+				long[] vectorTimes = measure(vector, size, map, pattern, target, out);
+				if (pass == 0)
+					continue;
+				StringBuilder line = new StringBuilder(String.format("%-10d", size));
+				for (int k = 0; k < KERNELS.length; k++)
+					line.append(String.format("  %8.4f / %8.4f", scalarTimes[k] / 1e6, vectorTimes[k] / 1e6));
+				System.out.println(line);
+			}
+	}
+
+	private static long[] measure(HeightBrushKernels.Kernels kernels, int size, float[] map, float[] pattern, float[] target, float[] out)
+	{
+		int repeats = Math.max(1, (1 << 22) / (size * size));
+		int offset = MAP_SIZE + 1;
+		long[] best = new long[KERNELS.length];
+		Arrays.fill(best, Long.MAX_VALUE);
+		for (int run = 0; run < 15; run++)
+		{
+			long t0 = System.nanoTime();
+			for (int r = 0; r < repeats; r++)
+				for (int y = 0; y < size; y++)
+					kernels.add(map, offset + (y * MAP_SIZE), pattern, y * size, size, ((r & 1) == 0) ? 0.001f : -0.001f);
+			long t1 = System.nanoTime();
+			for (int r = 0; r < repeats; r++)
+				for (int y = 0; y < size; y++)
+					kernels.set(map, offset + (y * MAP_SIZE), pattern, y * size, size, 0.5f);
+			long t2 = System.nanoTime();
+			for (int r = 0; r < repeats; r++)
+				for (int y = 0; y < size; y++)
+					kernels.blend(map, offset + (y * MAP_SIZE), target, y * size, pattern, y * size, size, 0.5f);
+			long t3 = System.nanoTime();
+			for (int r = 0; r < repeats; r++)
+				for (int y = 0; y < size; y++)
+					kernels.average3x3(map, offset + (y * MAP_SIZE), MAP_SIZE, out, y * size, size);
+			long t4 = System.nanoTime();
+			long[] times = { t1 - t0, t2 - t1, t3 - t2, t4 - t3 };
+			for (int i = 0; i < times.length; i++)
+				best[i] = Math.min(best[i], times[i] / repeats);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,89 @@
+package backend.map;
+
+import java.util.Random;
+
+/**
+ * Checks the vector HeightBrushKernels against the plain loops: row lengths 0 to 70 and 1000 at random offsets,<BR>
+ * amounts that clamp at 0 and 1, patterns with zeros. Results must be equal (0 and -0 count as equal).<BR>
+ * Usage: java --add-modules jdk.incubator.vector HeightBrushKernelCheck. Exits with 1 on a difference.
+ */
+public class HeightBrushKernelCheck
+{
+	private static final int SIZE = 4096;
+
+	private static int failed;
+
+	public static void main(String[] args)
+	{
+		HeightBrushKernels.Kernels scalar = HeightBrushKernels.SCALAR;
+		HeightBrushKernels.Kernels vector = HeightBrushKernels.getVectorKernels();
+		if (vector == null)
+		{
+			System.out.println("No vector kernels on this JVM (started without --add-modules jdk.incubator.vector?), nothing to compare");
+			return;
+		}
+		Random random = new Random(9);
+		float[] map = new float[SIZE];
+		float[] pattern = new float[SIZE];
+		float[] target = new float[SIZE];
+		for (int i = 0; i < SIZE; i++)
+		{
+			map[i] = random.nextFloat();
+			pattern[i] = (random.nextFloat() > 0.3f) ? random.nextFloat() : 0;
+			target[i] = random.nextFloat();
+		}
+		float[] noise = new float[SIZE];
+		for (int i = 0; i < SIZE; i++)
+			noise[i] = (random.nextFloat() - 0.5f) * 2;
+		int tests = 0;
+		for (int count = 0; count <= 1000; count = (count < 70) ? count + 1 : 1000)
+		{
+			for (int run = 0; run < 20; run++)
+			{
+				int stride = 1100;
+				int mapOffset = stride + 1 + random.nextInt(SIZE - count - (2 * stride) - 2);
+				int patternOffset = random.nextInt(SIZE - count);
+				float amount = (random.nextFloat() - 0.5f) * 3;
+				float[] a = map.clone();
+				float[] b = map.clone();
+				scalar.add(a, mapOffset, pattern, patternOffset, count, amount);
+				vector.add(b, mapOffset, pattern, patternOffset, count, amount);
+				compare(a, b, "add", count);
+				scalar.addNoise(a, mapOffset, noise, pattern, patternOffset, count);
+				vector.addNoise(b, mapOffset, noise, pattern, patternOffset, count);
+				compare(a, b, "addNoise", count);
+				scalar.set(a, mapOffset, pattern, patternOffset, count, amount);
+				vector.set(b, mapOffset, pattern, patternOffset, count, amount);
+				compare(a, b, "set", count);
+				scalar.blend(a, mapOffset, target, patternOffset, pattern, patternOffset, count, amount);
+				vector.blend(b, mapOffset, target, patternOffset, pattern, patternOffset, count, amount);
+				compare(a, b, "blend", count);
+				float[] outA = new float[SIZE];
+				float[] outB = new float[SIZE];
+				scalar.average3x3(map, mapOffset, stride, outA, patternOffset, count);
+				vector.average3x3(map, mapOffset, stride, outB, patternOffset, count);
+				compare(outA, outB, "average3x3", count);
+				tests++;
+			}
+			if (count == 1000)
+				break;
+		}
+		System.out.println(tests * 5 + " kernel runs compared, " + failed + " differ");
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private static void compare(float[] a, float[] b, String kernel, int count)
+	{
+		for (int i = 0; i < a.length; i++)
+			if (a[i] != b[i])
+			{
+				if (failed < 5)
+					System.out.println(kernel + ", " + count + " floats: " + b[i] + " instead of " + a[i] + " at " + i);
+				failed++;
+				//Keep both equal, so later kernels compare on the same input
+				System.arraycopy(a, 0, b, 0, a.length);
+				return;
+			}
+	}
+}
@@ -0,0 +1,161 @@
+package backend.map;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Throughput of the flat HeightField against the float[][] heightmap it replaced, on a 32x32 map (2049 * 2049 heights).<BR>
+ * Both layouts run the same single threaded loops: a 3x3 smoothing pass, row and column walks, brush sized adds<BR>
+ * and a rectangle copy. Prints the best of several runs in ms.<BR>
+ * Usage: HeightFieldBench [mapsize in spring units, default 32]
+ */
+public class HeightFieldBench
+{
+	private static final int RUNS = 10;
+	private static final int BRUSH_SIZE = 128;
+	private static final int BRUSH_DABS = 200;
+	private static final int RECT_SIZE = 512;
+
+	private static float sink;
+
+	public static void main(String[] args)
+	{
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		int n = (size * Heightmap.springMapsizeHeightmapFactor) + 1;
+		Random random = new Random(1);
+		float[][] jagged = new float[n][n];
+		HeightField field = new HeightField(n, n);
+		for (int y = 0; y < n; y++)
+			for (int x = 0; x < n; x++)
+			{
+				jagged[y][x] = random.nextFloat();
+				field.data[field.index(x, y)] = jagged[y][x];
+			}
+		float[][] jaggedOut = new float[n][n];
+		HeightField fieldOut = new HeightField(n, n);
+		int[] dabs = new int[BRUSH_DABS * 2];
+		for (int i = 0; i < dabs.length; i++)
+			dabs[i] = random.nextInt(n - BRUSH_SIZE);
+		float[] rect = new float[RECT_SIZE * RECT_SIZE];
+
+		System.out.println("Heightmap " + n + " * " + n + ", best of " + RUNS + " runs, ms");
+		System.out.println("                          float[][]    float[]");
+		long[] best = new long[10];
+		Arrays.fill(best, Long.MAX_VALUE);
+		for (int run = 0; run < RUNS; run++)
+		{
+			long t0 = System.nanoTime();
+			smooth(jagged, jaggedOut, n);
+			long t1 = System.nanoTime();
+			smooth(field, fieldOut);
+			long t2 = System.nanoTime();
+			sink += sumRows(jagged, n);
+			long t3 = System.nanoTime();
+			sink += sumRows(field);
+			long t4 = System.nanoTime();
+			sink += sumColumns(jagged, n);
+			long t5 = System.nanoTime();
+			sink += sumColumns(field);
+			long t6 = System.nanoTime();
+			addBrush(jagged, dabs);
+			long t7 = System.nanoTime();
+			addBrush(field, dabs);
+			long t8 = System.nanoTime();
+			for (int i = 0; i < dabs.length; i += 2)
+				for (int y = 0; y < RECT_SIZE; y++)
+					System.arraycopy(jagged[(dabs[i + 1] + y) % (n - RECT_SIZE)], dabs[i] % (n - RECT_SIZE), rect, y * RECT_SIZE, RECT_SIZE);
+			long t9 = System.nanoTime();
+			for (int i = 0; i < dabs.length; i += 2)
+				field.copyRect(dabs[i] % (n - RECT_SIZE), dabs[i + 1] % (n - RECT_SIZE), RECT_SIZE, RECT_SIZE, rect, 0, RECT_SIZE);
+			long t10 = System.nanoTime();
+			long[] times = { t1 - t0, t2 - t1, t3 - t2, t4 - t3, t5 - t4, t6 - t5, t7 - t6, t8 - t7, t9 - t8, t10 - t9 };
+			for (int i = 0; i < times.length; i++)
+				best[i] = Math.min(best[i], times[i]);
+		}
+		String[] names = { "3x3 smoothing pass", "Row walk", "Column walk", BRUSH_DABS + " dabs " + BRUSH_SIZE + "^2 add", BRUSH_DABS + " copies " + RECT_SIZE + "^2" };
+		for (int i = 0; i < names.length; i++)
+			System.out.printf("%-24s %8.2f    %8.2f%n", names[i], best[i * 2] / 1e6, best[(i * 2) + 1] / 1e6);
+		if (sink == 0)
+			System.out.println();
+	}
+
+	private static void smooth(float[][] in, float[][] out, int n)
+	{
+		for (int y = 1; y < n - 1; y++)
+			for (int x = 1; x < n - 1; x++)
+				out[y][x] = (in[y - 1][x - 1] + in[y - 1][x] + in[y - 1][x + 1] + in[y][x - 1] + in[y][x] + in[y][x + 1]
+						+ in[y + 1][x - 1] + in[y + 1][x] + in[y + 1][x + 1]) / 9f;
+	}
+
+	private static void smooth(HeightField in, HeightField out)
+	{
+		float[] src = in.data;
+		float[] dst = out.data;
+		int s = in.stride;
+		//Row cursors as in HeightFieldSmoother
+		for (int y = 1; y < in.length - 1; y++)
+		{
+			int i = (y * s) + 1;
+			int up = i - s;
+			int down = i + s;
+			for (int x = 1; x < in.width - 1; x++, i++, up++, down++)
+				dst[i] = (src[up - 1] + src[up] + src[up + 1] + src[i - 1] + src[i] + src[i + 1]
+						+ src[down - 1] + src[down] + src[down + 1]) / 9f;
+		}
+	}
+
+	private static float sumRows(float[][] map, int n)
+	{
+		float sum = 0;
+		for (int y = 0; y < n; y++)
+			for (int x = 0; x < n; x++)
+				sum += map[y][x];
+		return sum;
+	}
+
+	private static float sumRows(HeightField field)
+	{
+		float sum = 0;
+		float[] data = field.data;
+		for (int i = 0; i < data.length; i++)
+			sum += data[i];
+		return sum;
+	}
+
+	private static float sumColumns(float[][] map, int n)
+	{
+		float sum = 0;
+		for (int x = 0; x < n; x++)
+			for (int y = 0; y < n; y++)
+				sum += map[y][x];
+		return sum;
+	}
+
+	private static float sumColumns(HeightField field)
+	{
+		float sum = 0;
+		float[] data = field.data;
+		int s = field.stride;
+		for (int x = 0; x < field.width; x++)
+			for (int i = x; i < data.length; i += s)
+				sum += data[i];
+		return sum;
+	}
+
+	private static void addBrush(float[][] map, int[] dabs)
+	{
+		for (int d = 0; d < dabs.length; d += 2)
+			for (int y = dabs[d + 1]; y < dabs[d + 1] + BRUSH_SIZE; y++)
+				for (int x = dabs[d]; x < dabs[d] + BRUSH_SIZE; x++)
+					map[y][x] = Math.min(Math.max(map[y][x] + 0.0001f, 0), 1);
+	}
+
+	private static void addBrush(HeightField field, int[] dabs)
+	{
+		float[] data = field.data;
+		for (int d = 0; d < dabs.length; d += 2)
+			for (int y = dabs[d + 1]; y < dabs[d + 1] + BRUSH_SIZE; y++)
+				for (int i = (y * field.stride) + dabs[d], end = i + BRUSH_SIZE; i < end; i++)
+					data[i] = Math.min(Math.max(data[i] + 0.0001f, 0), 1);
+	}
+}
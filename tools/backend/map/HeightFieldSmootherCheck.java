@@ -0,0 +1,70 @@
+package backend.map;
+
+import java.util.Random;
+
+/**
+ * Checks HeightFieldSmoother.smoothSeparable() against a brute force box mean of all existing neighbours.<BR>
+ * Several field sizes, radii (also larger than the field) and band sizes, so every band border is crossed.<BR>
+ * Usage: HeightFieldSmootherCheck. Exits with 1 on a difference above 1e-4.
+ */
+public class HeightFieldSmootherCheck
+{
+	private static int failed;
+
+	public static void main(String[] args)
+	{
+		Random random = new Random(11);
+		int[][] sizes = { { 513, 300 }, { 65, 65 }, { 17, 5 }, { 1, 40 } };
+		int[] radii = { 1, 2, 5, 8, 40 };
+		for (int[] size : sizes)
+		{
+			HeightField src = new HeightField(size[1], size[0]);
+			for (int i = 0; i < src.data.length; i++)
+				src.data[i] = random.nextFloat();
+			HeightField temp = new HeightField(size[1], size[0]);
+			HeightField dst = new HeightField(size[1], size[0]);
+			for (int radius : radii)
+			{
+				float[] expected = boxMean(src, radius, 0.8f);
+				int[] grains = { 1, 16, 128, src.length };
+				for (int grain : grains)
+				{
+					HeightFieldSmoother.smoothSeparable(src, temp, dst, 0.8f, radius, grain);
+					int differ = 0;
+					float maxError = 0;
+					for (int i = 0; i < expected.length; i++)
+					{
+						float error = Math.abs(dst.data[i] - expected[i]);
+						maxError = Math.max(maxError, error);
+						if (error > 1e-4f)
+							differ++;
+					}
+					System.out.printf("%dx%d radius %d, bands of %d rows: %d differ, max error %.2g%n", size[0], size[1], radius, grain, differ, maxError);
+					failed += differ;
+				}
+			}
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private static float[] boxMean(HeightField src, int radius, float strength)
+	{
+		float[] result = new float[src.data.length];
+		for (int y = 0; y < src.length; y++)
+			for (int x = 0; x < src.width; x++)
+			{
+				double sum = 0;
+				int count = 0;
+				for (int v = Math.max(y - radius, 0); v <= Math.min(y + radius, src.length - 1); v++)
+					for (int u = Math.max(x - radius, 0); u <= Math.min(x + radius, src.width - 1); u++)
+					{
+						sum += src.get(u, v);
+						count++;
+					}
+				int i = src.index(x, y);
+				result[i] = ((1f - strength) * src.data[i]) + (strength * (float)(sum / count));
+			}
+		return result;
+	}
+}
@@ -0,0 +1,137 @@
+package backend.map;
+
+import java.util.Random;
+
+/**
+ * Checks TerrainPicker.intersect() against the brute force TerrainPicker.intersectAll(), which tests every triangle.<BR>
+ * Random rays (from outside the map, straight down, axis aligned, upwards) are cast on fields of odd sizes,<BR>
+ * then on a Heightmap after local edits, to check the pyramid updates. Both must agree on hit or miss,<BR>
+ * and on the hit distance within 1e-3 quads. Then the pick time is compared to ray marching on a 32x32 map.<BR>
+ * Usage: PickingCheck. Exits with 1 on a difference.
+ */
+public class PickingCheck
+{
+	private static final int RAYS = 3000;
+
+	private static int failed;
+
+	public static void main(String[] args)
+	{
+		Random random = new Random(3);
+		int[][] sizes = { { 2, 2 }, { 17, 17 }, { 65, 65 }, { 129, 70 }, { 257, 257 } };
+		for (int[] size : sizes)
+		{
+			HeightField field = new HeightField(size[1], size[0]);
+			fill(field, random);
+			HeightPyramid pyramid = new HeightPyramid(field.width, field.length);
+			pyramid.rebuild(field);
+			check(field, pyramid, random, "field " + size[0] + "x" + size[1]);
+		}
+
+		//Through Heightmap, with the pyramid updated by local edits
+		Heightmap heightmap = new Heightmap(2, 2);
+		HeightField field = heightmap.getHeightField();
+		fill(field, random);
+		heightmap.heightChanged();
+		heightmap.getHeightPyramid();
+		for (int edit = 0; edit < 50; edit++)
+		{
+			int px = random.nextInt(field.width - 16);
+			int py = random.nextInt(field.length - 16);
+			for (int y = py; y < py + 16; y++)
+				for (int x = px; x < px + 16; x++)
+					field.data[field.index(x, y)] += (random.nextFloat() - 0.5f) * 0.2f;
+			heightmap.heightChanged(px, py, 16, 16);
+		}
+		check(field, heightmap.getHeightPyramid(), random, "heightmap after 50 edits");
+
+		benchmark(random);
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private static void fill(HeightField field, Random random)
+	{
+		for (int y = 0; y < field.length; y++)
+			for (int x = 0; x < field.width; x++)
+				field.set(x, y, (float)(0.5 + (0.25 * Math.sin(x * 0.05) * Math.cos(y * 0.07)) + (0.05 * random.nextFloat())));
+	}
+
+	private static void check(HeightField field, HeightPyramid pyramid, Random random, String name)
+	{
+		int hits = 0;
+		int differ = 0;
+		for (int i = 0; i < RAYS; i++)
+		{
+			float ox = (random.nextFloat() * (field.width + 40)) - 20;
+			float oz = (random.nextFloat() * (field.length + 40)) - 20;
+			float oy = (random.nextFloat() * 2) - 0.2f;
+			float dx = (float)random.nextGaussian();
+			float dz = (float)random.nextGaussian();
+			float dy = -(float)Math.abs(random.nextGaussian()) * 0.05f * (((i % 5) == 0) ? -1 : 1);
+			if ((i % 17) == 0)
+			{
+				dx = 0;
+				dz = 0;
+				dy = -1;
+			}
+			if ((i % 19) == 0)
+				dx = 0;
+			float t = TerrainPicker.intersect(field, pyramid, ox, oy, oz, dx, dy, dz);
+			float expected = TerrainPicker.intersectAll(field, ox, oy, oz, dx, dy, dz);
+			if (expected >= 0)
+				hits++;
+			float length = (float)Math.sqrt((dx * dx) + (dy * dy) + (dz * dz));
+			if (((t < 0) != (expected < 0)) || ((t >= 0) && (Math.abs(t - expected) * length > 1e-3f * Math.max(1, expected * length))))
+			{
+				if (differ < 5)
+					System.out.println(name + ": t " + t + " instead of " + expected + " for origin " + ox + ", " + oy + ", " + oz
+							+ " direction " + dx + ", " + dy + ", " + dz);
+				differ++;
+			}
+		}
+		System.out.println(name + ": " + hits + " of " + RAYS + " rays hit, " + differ + " differ");
+		failed += differ;
+	}
+
+	private static void benchmark(Random random)
+	{
+		HeightField field = new HeightField(2049, 2049);
+		fill(field, random);
+		HeightPyramid pyramid = new HeightPyramid(field.width, field.length);
+		pyramid.rebuild(field);
+		float[][] rays = new float[1000][];
+		for (int i = 0; i < rays.length; i++)
+		{
+			float angle = random.nextFloat() * 6.28f;
+			rays[i] = new float[] { random.nextFloat() * 2048, 1.5f, random.nextFloat() * 2048,
+					(float)Math.cos(angle), (-0.3f / 256) * (0.2f + random.nextFloat()), (float)Math.sin(angle) };
+		}
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 20; run++)
+		{
+			long start = System.nanoTime();
+			for (float[] ray : rays)
+				TerrainPicker.intersect(field, pyramid, ray[0], ray[1], ray[2], ray[3], ray[4], ray[5]);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("32x32 map: pyramid pick %.2f us per ray%n", best / 1e3 / rays.length);
+
+		//Ray marching in steps of a quarter quad, for comparison
+		best = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++)
+		{
+			long start = System.nanoTime();
+			for (float[] ray : rays)
+				for (float s = 0; s < 4000; s += 0.25f)
+				{
+					float x = ray[0] + (s * ray[3]);
+					float z = ray[2] + (s * ray[5]);
+					if ((x < 0) || (z < 0) || (x >= 2048) || (z >= 2048) || (ray[1] + (s * ray[4]) <= field.get((int)x, (int)z)))
+						break;
+				}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("32x32 map: ray marching %.2f us per ray%n", best / 1e3 / rays.length);
+	}
+}
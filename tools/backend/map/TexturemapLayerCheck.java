@@ -0,0 +1,209 @@
+package backend.map;
+
+import java.util.Random;
+
+import frontend.render.AppSettings;
+import frontend.render.brushes.BrushDataManager;
+import frontend.render.brushes.BrushPattern;
+import frontend.render.brushes.BrushPatternFactory;
+import frontend.render.brushes.BrushTexture;
+import frontend.render.brushes.BrushTextureFactory;
+import frontend.render.brushes.TextureBrush;
+import frontend.render.brushes.TextureBrush.TextureMode;
+
+/**
+ * Checks the TexturemapLayer brush kernels and Texturemap.compileLayers() on a 2x2 map.<BR>
+ * 1. Two 50% stamps into a transparent layer give alpha 0.75 (191 or 192, the first rounds to 128),<BR>
+ *    and the composite shows the stamp with 0.75.<BR>
+ * 2. Blend and stamp strokes into a transparent layer composite like the same strokes painted into the base.<BR>
+ * 3. After all kernels painted into two layers, with compiles in between, compileLayers() equals a full composite.<BR>
+ * Usage: TexturemapLayerCheck (run from the SpringMapEdit directory, needs brushpatterns/ and brushtextures/).<BR>
+ * Exits with 1 on a wrong result.
+ */
+public class TexturemapLayerCheck
+{
+	private static final int DABS = 60;
+
+	private static int failed;
+
+	public static void main(String[] args)
+	{
+		AppSettings as = new AppSettings();
+		BrushDataManager<BrushPattern> patterns = new BrushDataManager<BrushPattern>(BrushDataManager.brushPatternPath, new BrushPatternFactory(), "Pattern", as);
+		BrushDataManager<BrushTexture> textures = new BrushDataManager<BrushTexture>(BrushDataManager.brushTexturePath, new BrushTextureFactory(), "Texture", as);
+		TextureBrush brush = new TextureBrush(patterns, textures, 0, 0, 20, 20, 128, 128, null);
+		//Texture with alpha falling off to the right, so coverage also comes from the texture
+		BrushTexture fading = new BrushTexture(200, 90, 30);
+		for (int x = 0; x < fading.width; x++)
+			for (int y = 0; y < fading.height; y++)
+				fading.textureA[x][y] = (byte)(255 - (x * 30));
+
+		BrushTexture image = brush.texture;
+
+		checkAccumulation(brush);
+		checkAgainstBase(brush, image, fading);
+		checkCompile(brush, image, fading);
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private static void checkAccumulation(TextureBrush brush)
+	{
+		Texturemap map = newMap(new Random(1));
+		TexturemapLayer layer = map.addLayer();
+		brush.texture = new BrushTexture(250, 20, 120);
+		brush.brushMode = TextureMode.Stamp.ordinal();
+		brush.strength[brush.brushMode] = 0.5f;
+		int x = 50;
+		int y = 60;
+		int center = (x + 5) * Texturemap.heightmapSizeTextureFactor;
+		int centerY = (y + 5) * Texturemap.heightmapSizeTextureFactor;
+		byte[] base = map.getBaseMap().getRow(centerY, center, 1, map.getBaseMap().newRowBuffer()).clone();
+		int[] alphas = new int[2];
+		for (int i = 0; i < 2; i++)
+		{
+			brush.width[brush.brushMode] = 10;
+			brush.height[brush.brushMode] = 10;
+			layer.stampColorToTexture(x, y, brush);
+			alphas[i] = layer.texturemapLayer[centerY][(center * 4) + 3] & 0xFF;
+		}
+		map.compileLayers();
+		byte[] shown = map.getMap().getRow(centerY, center, 1, map.getMap().newRowBuffer());
+		int[] color = { 250, 20, 120 };
+		int error = 0;
+		for (int c = 0; c < 3; c++)
+			error = Math.max(error, Math.abs((shown[(center * 3) + c] & 0xFF) - Math.round((0.25f * (base[(center * 3) + c] & 0xFF)) + (0.75f * color[c]))));
+		System.out.println("two 50% stamps: alpha " + alphas[0] + ", then " + alphas[1] + ", composite off by " + error);
+		if ((alphas[0] != 128) || (Math.abs(alphas[1] - 191) > 1) || (error > 1))
+			failed++;
+	}
+
+	private static void checkAgainstBase(TextureBrush brush, BrushTexture image, BrushTexture fading)
+	{
+		Texturemap layered = newMap(new Random(2));
+		Texturemap plain = newMap(new Random(2));
+		TexturemapLayer layer = layered.addLayer();
+		Random random = new Random(3);
+		for (int i = 0; i < DABS; i++)
+		{
+			int x = random.nextInt(160) - 20;
+			int y = random.nextInt(160) - 20;
+			brush.texture = ((i & 1) == 0) ? fading : image;
+			if ((i % 3) == 0)
+			{
+				brush.brushMode = TextureMode.Stamp.ordinal();
+				brush.strength[brush.brushMode] = 0.7f;
+				layer.stampColorToTexture(x, y, brush);
+				plain.stampColorToTexture(x, y, brush);
+			}
+			else
+			{
+				brush.brushMode = TextureMode.Blend.ordinal();
+				brush.strength[brush.brushMode] = 0.25f + (i * 0.01f);
+				layer.blendColorToTexture(x, y, brush);
+				plain.blendColorToTexture(x, y, brush);
+			}
+		}
+		layered.compileLayers();
+		int maxError = compare(layered.getMap(), plain.getMap());
+		System.out.println(DABS + " blends and stamps into a layer against the base: off by at most " + maxError);
+		//Each dab rounds the layer color and alpha to bytes once more
+		if (maxError > 4)
+			failed++;
+	}
+
+	private static void checkCompile(TextureBrush brush, BrushTexture image, BrushTexture fading)
+	{
+		Texturemap map = newMap(new Random(4));
+		TexturemapLayer[] layers = { map.addLayer(), map.addLayer() };
+		Random random = new Random(5);
+		for (int i = 0; i < DABS; i++)
+		{
+			TexturemapLayer layer = layers[i & 1];
+			int x = random.nextInt(160) - 20;
+			int y = random.nextInt(160) - 20;
+			brush.texture = ((i % 3) == 0) ? fading : image;
+			switch (i % 4)
+			{
+				case 0:
+					brush.brushMode = TextureMode.Blend.ordinal();
+					layer.blendColorToTexture(x, y, brush);
+					break;
+				case 1:
+					brush.brushMode = TextureMode.Add.ordinal();
+					brush.strength[brush.brushMode] = 0.3f;
+					layer.addColorToTexture(x, y, brush);
+					break;
+				case 2:
+					brush.brushMode = TextureMode.Blend.ordinal();
+					layer.setColorToTexture(x, y, brush);
+					break;
+				default:
+					brush.brushMode = TextureMode.Stamp.ordinal();
+					layer.stampColorToTexture(x, y, brush);
+					break;
+			}
+			if ((i % 7) == 0)
+				map.compileLayers();
+			if ((i % 11) == 0)
+				map.blendColorToTexture(x + 3, y + 3, brush);
+		}
+		map.compileLayers();
+		Texturemap expected = new Texturemap(2, 2);
+		compositeAll(map.getBaseMap(), layers, expected.getMap());
+		int maxError = compare(map.getMap(), expected.getMap());
+		System.out.println(DABS + " dabs of all kernels into two layers: compileLayers() off by " + maxError + " from a full composite");
+		if (maxError > 0)
+			failed++;
+	}
+
+	private static Texturemap newMap(Random random)
+	{
+		Texturemap map = new Texturemap(2, 2);
+		TextureStorage storage = map.getMap();
+		byte[] row = new byte[storage.getWidth() * 3];
+		for (int y = 0; y < storage.getLength(); y++)
+		{
+			random.nextBytes(row);
+			storage.setTexels(y, 0, storage.getWidth(), row, 0);
+		}
+		return map;
+	}
+
+	/**
+	 * The layers over the base, all texels, with the integer blend of compileLayers().
+	 */
+	private static void compositeAll(TextureStorage base, TexturemapLayer[] layers, TextureStorage out)
+	{
+		int width = base.getWidth();
+		byte[] scratch = base.newRowBuffer();
+		for (int y = 0; y < base.getLength(); y++)
+		{
+			byte[] row = base.getRow(y, 0, width, scratch).clone();
+			for (TexturemapLayer layer : layers)
+				for (int x = 0; x < width; x++)
+				{
+					int a = layer.texturemapLayer[y][(x * 4) + 3] & 0xFF;
+					for (int c = 0; c < 3; c++)
+						row[(x * 3) + c] = (byte)((((row[(x * 3) + c] & 0xFF) * (255 - a)) + ((layer.texturemapLayer[y][(x * 4) + c] & 0xFF) * a) + 127) / 255);
+				}
+			out.setTexels(y, 0, width, row, 0);
+		}
+	}
+
+	private static int compare(TextureStorage a, TextureStorage b)
+	{
+		int width = a.getWidth();
+		byte[] scratchA = a.newRowBuffer();
+		byte[] scratchB = b.newRowBuffer();
+		int maxError = 0;
+		for (int y = 0; y < a.getLength(); y++)
+		{
+			byte[] rowA = a.getRow(y, 0, width, scratchA);
+			byte[] rowB = b.getRow(y, 0, width, scratchB);
+			for (int i = 0; i < width * 3; i++)
+				maxError = Math.max(maxError, Math.abs((rowA[i] & 0xFF) - (rowB[i] & 0xFF)));
+		}
+		return maxError;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import backend.SpringMapEdit;
+import backend.map.Map;
+import backend.map.TextureStorage;
+import frontend.render.MapRenderer.MapMode;
+
+/**
+ * Checks BlockTextureBuilder.build() for partial rectangles against the same rectangle cut out of the whole block.<BR>
+ * Texturemap and all overlay maps are filled with random bytes. For heap, mapped and compressed texturemaps, every map mode,<BR>
+ * with and without blendTextureMap, random rectangles of random blocks (also single texels, rows, columns and whole blocks)<BR>
+ * must match byte for byte.<BR>
+ * Usage: BlockTextureBuilderCheck [mapsize in spring units, default 4]. Exits with 1 on a difference.
+ */
+public class BlockTextureBuilderCheck
+{
+	private static final int RECTANGLES = 200;
+
+	public static void main(String[] args)
+	{
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		//Heap, memory mapped and compressed texturemap, partial rows come from a scratch row in the last two
+		int[][] storages = { { 512, -1 }, { 0, -1 }, { -1, 0 } };
+		int failed = 0;
+		int tests = 0;
+		for (int[] storage : storages)
+		{
+			AppSettings as = new AppSettings();
+			as.texturemap_mapAboveMB = storage[0];
+			as.texturemap_compressAboveMB = storage[1];
+			SpringMapEdit sme = new SpringMapEdit(size, size, null, as);
+			fill(sme.map, new Random(3));
+			int mapWidthInBlocks = (sme.map.heightmap.getHeightmapWidth() - 1) / as.blockSize;
+			int blocks = mapWidthInBlocks * ((sme.map.heightmap.getHeightmapLength() - 1) / as.blockSize);
+			BlockTextureBuilder builder = new BlockTextureBuilder(sme, as, mapWidthInBlocks);
+			String name = sme.map.textureMap.getMap().getClass().getSimpleName();
+
+			Random random = new Random(5);
+			boolean[] blendModes = { false, true };
+			for (boolean blend : blendModes)
+			{
+				as.blendTextureMap = blend;
+				for (MapMode mode : MapMode.values())
+				{
+					int textureSize = builder.getTextureSize(mode);
+					ByteBuffer whole = ByteBuffer.allocate(textureSize * textureSize * 3);
+					ByteBuffer part = ByteBuffer.allocate(textureSize * textureSize * 3);
+					int differ = 0;
+					for (int r = 0; r < RECTANGLES; r++)
+					{
+						int index = random.nextInt(blocks);
+						int[] rect = rectangle(r, textureSize, random);
+						builder.build(whole, mode, index, 0, 0, textureSize, textureSize);
+						builder.build(part, mode, index, rect[0], rect[1], rect[2], rect[3]);
+						if (!matches(whole, part, textureSize, rect))
+						{
+							if (differ < 5)
+								System.out.println(name + ", " + mode + ", blendTextureMap " + blend + ", block " + index + ": rectangle "
+										+ rect[0] + "," + rect[1] + " - " + rect[2] + "," + rect[3] + " differs");
+							differ++;
+						}
+						tests++;
+					}
+					System.out.println(name + ", " + mode + ", blendTextureMap " + blend + ", " + textureSize + " texels: " + differ + " of " + RECTANGLES + " rectangles differ");
+					failed += differ;
+				}
+			}
+		}
+		System.out.println(tests + " rectangles compared, " + failed + " differ");
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * x0, y0, x1, y1. The first ones are the edge cases, then random rectangles.
+	 */
+	private static int[] rectangle(int r, int size, Random random)
+	{
+		switch (r)
+		{
+			case 0:
+				return new int[] { 0, 0, size, size };
+			case 1:
+				return new int[] { size - 1, size - 1, size, size };
+			case 2:
+				return new int[] { 0, 5, size, 6 };
+			case 3:
+				return new int[] { 7, 0, 8, size };
+			default:
+			{
+				int x0 = random.nextInt(size);
+				int y0 = random.nextInt(size);
+				return new int[] { x0, y0, x0 + 1 + random.nextInt(size - x0), y0 + 1 + random.nextInt(size - y0) };
+			}
+		}
+	}
+
+	private static boolean matches(ByteBuffer whole, ByteBuffer part, int size, int[] rect)
+	{
+		int rowBytes = (rect[2] - rect[0]) * 3;
+		if (part.remaining() != rowBytes * (rect[3] - rect[1]))
+			return false;
+		for (int y = rect[1]; y < rect[3]; y++)
+			for (int i = 0; i < rowBytes; i++)
+				if (whole.get((((y * size) + rect[0]) * 3) + i) != part.get(((y - rect[1]) * rowBytes) + i))
+					return false;
+		return true;
+	}
+
+	private static void fill(Map map, Random random)
+	{
+		TextureStorage storage = map.textureMap.getMap();
+		byte[] row = new byte[storage.getWidth() * 3];
+		for (int y = 0; y < storage.getLength(); y++)
+		{
+			random.nextBytes(row);
+			storage.setTexels(y, 0, storage.getWidth(), row, 0);
+		}
+		for (byte[] line : map.slopeMap)
+			random.nextBytes(line);
+		for (byte[] line : map.metalmap.getMap())
+			random.nextBytes(line);
+		for (byte[] line : map.typemap.getMap())
+			random.nextBytes(line);
+		for (byte[] line : map.vegetationMap)
+			for (int i = 0; i < line.length; i++)
+				line[i] = (byte)random.nextInt(2);
+	}
+}
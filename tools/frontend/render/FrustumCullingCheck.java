@@ -0,0 +1,238 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import backend.TerraGenSetup;
+import backend.map.HeightField;
+import backend.map.HeightPyramid;
+import backend.map.Map;
+
+/**
+ * Checks Frustum and BlockCuller with camera matrices built the way OpenGL builds them, without GL.<BR>
+ * First Frustum.classifyBox() on boxes with known answers, then the culling of a generated map for several cameras,<BR>
+ * including the mirrored reflection camera: every block with a vertex inside the view must be kept.<BR>
+ * Usage: FrustumCullingCheck [mapsize in spring units, default 16]. Exits with 1 on a wrong result.
+ */
+public class FrustumCullingCheck
+{
+	private static int failed;
+
+	public static void main(String[] args)
+	{
+		checkBoxes();
+
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+		Map map = new Map(size, size);
+		map.maxHeight = 400;
+		TerraGenSetup setup = new TerraGenSetup();
+		setup.randomSeed = 7;
+		setup.mode = TerraGenSetup.GeneratorMode.Noise;
+		map.heightmap.genStartupHeightmap(setup);
+		HeightField field = map.heightmap.getHeightField();
+		HeightPyramid pyramid = map.heightmap.getHeightPyramid();
+		int quadSize = 2;
+		int quadHalfSize = 1;
+		int blockSize = 64;
+		int widthInBlocks = (field.width - 1) / blockSize;
+		int lengthInBlocks = (field.length - 1) / blockSize;
+		float heightScale = map.maxHeight / 4f;
+		float diag = (float)Math.sqrt(2) * size * 128;
+
+		BlockCuller culler = new BlockCuller(widthInBlocks, lengthInBlocks, blockSize);
+		Frustum frustum = new Frustum();
+		boolean[] visible = new boolean[widthInBlocks * lengthInBlocks];
+		String[] names = { "start view (high, -70 deg)", "low, oblique (y=120, -20 deg, turned 30 deg)",
+				"its reflection (water at 30)", "close from above (y=300, -90 deg)", "outside the map, looking away" };
+		float[][] cameras = { camera(diag, size * 64, diag, size * 128, -70, 0, false, 0),
+				camera(diag, size * 64, 120, size * 64, -20, 30, false, 0),
+				camera(diag, size * 64, 120, size * 64, -20, 30, true, 30),
+				camera(diag, size * 64, 300, size * 64, -90, 0, false, 0),
+				camera(diag, -100, 120, -100, -10, 45, false, 0) };
+		for (int c = 0; c < cameras.length; c++)
+		{
+			float[] m = cameras[c];
+			frustum.set(m, identity());
+			int count = culler.cull(frustum, pyramid, heightScale, quadSize, quadHalfSize, 0, visible);
+			int needed = 0;
+			int missed = 0;
+			for (int b = 0; b < visible.length; b++)
+			{
+				int bx = (b % widthInBlocks) * blockSize;
+				int by = (b / widthInBlocks) * blockSize;
+				boolean any = false;
+				for (int y = by; (y <= by + blockSize) && !any; y++)
+					for (int x = bx; (x <= bx + blockSize) && !any; x++)
+						any = isInClipSpace(m, (x * quadSize) + quadHalfSize, field.get(x, y) * heightScale, (y * quadSize) + quadHalfSize);
+				if (any)
+				{
+					needed++;
+					if (!visible[b])
+						missed++;
+				}
+			}
+			long start = System.nanoTime();
+			for (int run = 0; run < 10000; run++)
+			{
+				frustum.set(m, identity());
+				culler.cull(frustum, pyramid, heightScale, quadSize, quadHalfSize, 0, visible);
+			}
+			System.out.printf("%s: %d of %d blocks kept, %d with a vertex in view, %d wrongly culled, %d box tests, %.1f us%n",
+					names[c], count, visible.length, needed, missed, culler.getBoxesTested(), (System.nanoTime() - start) / 1e4 / 1e3);
+			failed += missed;
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Boxes against an orthographic view of -1 to 1 on all axes, a perspective camera and its mirror image.
+	 */
+	private static void checkBoxes()
+	{
+		Frustum frustum = new Frustum();
+		frustum.set(identity(), identity());
+		expect(frustum.classifyBox(-0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f), Frustum.INSIDE, "box inside");
+		expect(frustum.classifyBox(-2, -2, -2, 2, 2, 2), Frustum.INTERSECTS, "box around");
+		expect(frustum.classifyBox(0.5f, -0.5f, -0.5f, 1.5f, 0.5f, 0.5f), Frustum.INTERSECTS, "box crossing right");
+		expect(frustum.classifyBox(1.5f, -0.5f, -0.5f, 2.5f, 0.5f, 0.5f), Frustum.OUTSIDE, "box right");
+		expect(frustum.classifyBox(-0.5f, -0.5f, 1.5f, 0.5f, 0.5f, 2.5f), Frustum.OUTSIDE, "box behind far plane");
+
+		//Camera at the origin looking down -z, near 1, far 100
+		frustum.set(perspective(60, 1, 1, 100), identity());
+		expect(frustum.classifyBox(-1, -1, -11, 1, 1, -9), Frustum.INSIDE, "box ahead");
+		expect(frustum.classifyBox(-1, -1, 9, 1, 1, 11), Frustum.OUTSIDE, "box behind camera");
+		expect(frustum.classifyBox(-1, -1, -201, 1, 1, -199), Frustum.OUTSIDE, "box beyond far plane");
+		expect(frustum.classifyBox(20, -1, -11, 22, 1, -9), Frustum.OUTSIDE, "box far right");
+		//Mirrored in y, as the reflection pass does: planes must still point inwards
+		frustum.set(multiply(perspective(60, 1, 1, 100), scale(1, -1, 1)), identity());
+		expect(frustum.classifyBox(-1, 3, -11, 1, 5, -9), Frustum.INSIDE, "box ahead, mirrored");
+		expect(frustum.classifyBox(-1, -9, -11, 1, -8, -9), Frustum.OUTSIDE, "box below, mirrored");
+		expect(frustum.classifyBox(-1, 5, -11, 1, 7, -9), Frustum.INTERSECTS, "box crossing the top, mirrored");
+	}
+
+	private static void expect(int result, int expected, String name)
+	{
+		if (result != expected)
+		{
+			System.out.println(name + ": " + result + " instead of " + expected);
+			failed++;
+		}
+	}
+
+	private static boolean isInClipSpace(float[] m, float x, float y, float z)
+	{
+		float cx = (m[0] * x) + (m[4] * y) + (m[8] * z) + m[12];
+		float cy = (m[1] * x) + (m[5] * y) + (m[9] * z) + m[13];
+		float cz = (m[2] * x) + (m[6] * y) + (m[10] * z) + m[14];
+		float cw = (m[3] * x) + (m[7] * y) + (m[11] * z) + m[15];
+		return (Math.abs(cx) <= cw) && (Math.abs(cy) <= cw) && (Math.abs(cz) <= cw);
+	}
+
+	/**
+	 * Projection * modelview of the camera as MapRenderer sets it up: rotate around x, then y, then translate.<BR>
+	 * mirror adds the reflection of the water pass.
+	 */
+	private static float[] camera(float diag, float x, float y, float z, float rotX, float rotY, boolean mirror, float waterHeight)
+	{
+		float[] m = perspective(60, 4 / 3.0, 1, diag * 3);
+		m = multiply(m, rotate(-rotX, 1, 0, 0));
+		m = multiply(m, rotate(-rotY, 0, 1, 0));
+		m = multiply(m, translate(-x, -y, -z));
+		if (mirror)
+		{
+			m = multiply(m, scale(1, -1, 1));
+			m = multiply(m, translate(0, -2 * waterHeight, 0));
+		}
+		return m;
+	}
+
+	//Column major 4x4 matrices, as glGetFloatv returns them
+
+	private static float[] identity()
+	{
+		float[] m = new float[16];
+		m[0] = m[5] = m[10] = m[15] = 1;
+		return m;
+	}
+
+	private static float[] multiply(float[] a, float[] b)
+	{
+		float[] result = new float[16];
+		for (int col = 0; col < 4; col++)
+			for (int row = 0; row < 4; row++)
+			{
+				float sum = 0;
+				for (int k = 0; k < 4; k++)
+					sum += a[(k * 4) + row] * b[(col * 4) + k];
+				result[(col * 4) + row] = sum;
+			}
+		return result;
+	}
+
+	/**
+	 * Same as gluPerspective.
+	 */
+	private static float[] perspective(double fovy, double aspect, double near, double far)
+	{
+		float[] m = new float[16];
+		double f = 1 / Math.tan(Math.toRadians(fovy) / 2);
+		m[0] = (float)(f / aspect);
+		m[5] = (float)f;
+		m[10] = (float)((far + near) / (near - far));
+		m[11] = -1;
+		m[14] = (float)((2 * far * near) / (near - far));
+		return m;
+	}
+
+	/**
+	 * Same as glRotatef.
+	 */
+	private static float[] rotate(double degrees, double x, double y, double z)
+	{
+		double a = Math.toRadians(degrees);
+		double c = Math.cos(a);
+		double s = Math.sin(a);
+		float[] m = identity();
+		m[0] = (float)((x * x * (1 - c)) + c);
+		m[4] = (float)((x * y * (1 - c)) - (z * s));
+		m[8] = (float)((x * z * (1 - c)) + (y * s));
+		m[1] = (float)((y * x * (1 - c)) + (z * s));
+		m[5] = (float)((y * y * (1 - c)) + c);
+		m[9] = (float)((y * z * (1 - c)) - (x * s));
+		m[2] = (float)((x * z * (1 - c)) - (y * s));
+		m[6] = (float)((y * z * (1 - c)) + (x * s));
+		m[10] = (float)((z * z * (1 - c)) + c);
+		return m;
+	}
+
+	private static float[] translate(float x, float y, float z)
+	{
+		float[] m = identity();
+		m[12] = x;
+		m[13] = y;
+		m[14] = z;
+		return m;
+	}
+
+	private static float[] scale(float x, float y, float z)
+	{
+		float[] m = identity();
+		m[0] = x;
+		m[5] = y;
+		m[10] = z;
+		return m;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * SpringMapEdit -- A 3D map editor for the Spring engine
+ *
+ * Copyright (C) 2008-2009  Heiko Schmitt <heikos23@web.de>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package frontend.render;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import backend.TerraGenSetup;
+import backend.map.HeightField;
+import backend.map.Heightmap;
+import backend.map.NormalField;
+import backend.math.Vector3;
+import backend.math.Vector3Math;
+
+/**
+ * Checks TerrainMeshBuilder against the Vector3 based block builder it replaced, without GL.<BR>
+ * Every block of a generated map is built at all 4 LODs, with smoothed, fast and flat normals,<BR>
+ * and must match the reference bit for bit. The reference takes smoothed normals from full resolution<BR>
+ * neighbours for every LOD, as the NormalField does. Then both are timed.<BR>
+ * Usage: MeshBuilderCheck [mapsize in spring units, default 8]. Exits with 1 on a difference.
+ */
+public class MeshBuilderCheck
+{
+	private static final int BLOCK_SIZE = 64;
+	private static final Vector3 nullVector = new Vector3(0, 1, 0);
+
+	private final AppSettings rs;
+
+	public MeshBuilderCheck(AppSettings rs)
+	{
+		this.rs = rs;
+	}
+
+	public static void main(String[] args)
+	{
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		Heightmap heightmap = new Heightmap(size, size);
+		TerraGenSetup setup = new TerraGenSetup();
+		setup.randomSeed = 7;
+		setup.mode = TerraGenSetup.GeneratorMode.Noise;
+		heightmap.genStartupHeightmap(setup);
+		HeightField field = heightmap.getHeightField();
+		float maxHeight = 400 / 4f;
+		int widthInBlocks = (field.width - 1) / BLOCK_SIZE;
+		int blocks = widthInBlocks * ((field.length - 1) / BLOCK_SIZE);
+
+		AppSettings rs = new AppSettings();
+		MeshBuilderCheck reference = new MeshBuilderCheck(rs);
+		TerrainMeshBuilder builder = new TerrainMeshBuilder(rs);
+		int capacity = (BLOCK_SIZE * BLOCK_SIZE * 2 * 8) + (4 * BLOCK_SIZE * 8);
+		FloatBuffer expected = FloatBuffer.allocate(capacity);
+		FloatBuffer actual = FloatBuffer.allocate(capacity);
+
+		int checked = 0;
+		int failed = 0;
+		String[] modeNames = { "smoothed", "fast", "flat" };
+		for (int mode = 0; mode < 3; mode++)
+		{
+			rs.smoothNormals = (mode != 2);
+			rs.fastNormals = (mode == 1);
+			NormalField normals = rs.smoothNormals ? heightmap.getNormalField(maxHeight * 4f, rs.quadSize, rs.fastNormals) : null;
+			for (int index = 0; index < blocks; index++)
+				for (int lod = 0; lod < 4; lod++)
+				{
+					int lodSkip = 1 << lod;
+					int xStart = ((index % widthInBlocks) * BLOCK_SIZE) + lodSkip;
+					int yStart = ((index / widthInBlocks) * BLOCK_SIZE) + lodSkip;
+					reference.build(expected, field, maxHeight, xStart, yStart, BLOCK_SIZE, BLOCK_SIZE, lodSkip);
+					builder.build(actual, field.data, field.stride, field.width, field.length, maxHeight, normals, xStart, yStart, BLOCK_SIZE, BLOCK_SIZE, lodSkip);
+					checked++;
+					if (!compare(expected, actual, modeNames[mode] + " block " + index + " LOD " + lod))
+						failed++;
+				}
+		}
+
+		//Prefab preview: a small field of its own
+		rs.smoothNormals = true;
+		rs.fastNormals = false;
+		HeightField small = new HeightField(17, 17);
+		Random random = new Random(3);
+		for (int i = 0; i < small.data.length; i++)
+			small.data[i] = random.nextFloat();
+		NormalField smallNormals = new NormalField(17, 17);
+		smallNormals.refresh(small, 50f * 4f, rs.quadSize, false);
+		reference.build(expected, small, 50f, 1, 1, 16, 16, 1);
+		builder.build(actual, small.data, small.stride, 17, 17, 50f, smallNormals, 1, 1, 16, 16, 1);
+		checked++;
+		if (!compare(expected, actual, "prefab 17x17"))
+			failed++;
+		System.out.println("Checked " + checked + " meshes, " + failed + " differ");
+
+		for (int run = 0; run < 3; run++)
+		{
+			long start = System.nanoTime();
+			for (int index = 0; index < blocks; index++)
+				reference.build(expected, field, maxHeight, ((index % widthInBlocks) * BLOCK_SIZE) + 1, ((index / widthInBlocks) * BLOCK_SIZE) + 1, BLOCK_SIZE, BLOCK_SIZE, 1);
+			long referenceTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			NormalField normals = heightmap.getNormalField(maxHeight * 4f, rs.quadSize, false);
+			for (int index = 0; index < blocks; index++)
+				builder.build(actual, field.data, field.stride, field.width, field.length, maxHeight, normals,
+						((index % widthInBlocks) * BLOCK_SIZE) + 1, ((index / widthInBlocks) * BLOCK_SIZE) + 1, BLOCK_SIZE, BLOCK_SIZE, 1);
+			long builderTime = System.nanoTime() - start;
+			System.out.printf("LOD 0, %d blocks: Vector3 %.3f ms/block, TerrainMeshBuilder %.3f ms/block%n",
+					blocks, referenceTime / 1e6 / blocks, builderTime / 1e6 / blocks);
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private static boolean compare(FloatBuffer expected, FloatBuffer actual, String name)
+	{
+		if (expected.remaining() != actual.remaining())
+		{
+			System.out.println(name + ": " + actual.remaining() + " floats instead of " + expected.remaining());
+			return false;
+		}
+		for (int i = 0; i < expected.remaining(); i++)
+			if (Float.floatToRawIntBits(expected.get(i)) != Float.floatToRawIntBits(actual.get(i)))
+			{
+				System.out.println(name + ": float " + i + " is " + actual.get(i) + " instead of " + expected.get(i));
+				return false;
+			}
+		return true;
+	}
+
+	/**
+	 * The block builder of MapRenderer before TerrainMeshBuilder, with a Vector3 per vertex.
+	 */
+	private void build(FloatBuffer vbo, HeightField field, float maxHeight, int xStart, int yStart, int quadsX, int quadsY, int lodSkip)
+	{
+		float[] heightmap = field.data;
+		int stride = field.stride;
+		int lodNegativeExtendTileSize = (lodSkip - 1) * rs.quadSize;
+		float texFractionX = lodSkip / (float)quadsX;
+		float texFractionY = lodSkip / (float)quadsY;
+		Vector3 v1, v2, v3, v4, vBaseNormal;
+
+		vbo.clear();
+		v4 = null;
+		int xLocal;
+		int yLocal = 0;
+		for (int y = yStart; y < (yStart + quadsY); y += lodSkip)
+		{
+			xLocal = 0;
+			int x = xStart;
+
+			v1 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (x * rs.quadSize),
+					heightmap[(y - lodSkip) * stride + x - lodSkip] * maxHeight, -rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
+			v2 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (x * rs.quadSize),
+					heightmap[y * stride + x - lodSkip] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
+			v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), heightmap[(y - lodSkip) * stride + x] * maxHeight,
+					-rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
+			vBaseNormal = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
+
+			put(vbo, xLocal / (float)quadsX, yLocal / (float)quadsY, getSmoothedNormal(field, x - lodSkip, y - lodSkip, vBaseNormal, maxHeight), v1);
+			put(vbo, xLocal / (float)quadsX, texFractionY + (yLocal / (float)quadsY), getSmoothedNormal(field, x - lodSkip, y, vBaseNormal, maxHeight), v2);
+			for (; x < (xStart + quadsX); x += lodSkip)
+			{
+				v3 = new Vector3(rs.quadHalfSize + (x * rs.quadSize),
+						heightmap[(y - lodSkip) * stride + x] * maxHeight, -rs.quadHalfSize - lodNegativeExtendTileSize + (y * rs.quadSize));
+				v4 = new Vector3(rs.quadHalfSize + (x * rs.quadSize), heightmap[y * stride + x] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
+				vBaseNormal = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
+
+				put(vbo, texFractionX + (xLocal / (float)quadsX), yLocal / (float)quadsY, getSmoothedNormal(field, x, y - lodSkip, vBaseNormal, maxHeight), v3);
+				put(vbo, texFractionX + (xLocal / (float)quadsX), texFractionY + (yLocal / (float)quadsY), getSmoothedNormal(field, x, y, vBaseNormal, maxHeight), v4);
+
+				//Copy last 2 vectors to new first ones
+				v1 = v3;
+				v2 = v4;
+				xLocal += lodSkip;
+			}
+
+			//Null triangles: last point again, then first point of next row
+			put(vbo, 0, 0, nullVector, v4);
+			v2 = new Vector3(-rs.quadHalfSize - lodNegativeExtendTileSize + (xStart * rs.quadSize),
+					heightmap[y * stride + xStart - lodSkip] * maxHeight, rs.quadHalfSize + (y * rs.quadSize));
+			put(vbo, 0, 0, nullVector, v2);
+			yLocal += lodSkip;
+		}
+		vbo.flip();
+	}
+
+	private static void put(FloatBuffer vbo, float s, float t, Vector3 normal, Vector3 vertex)
+	{
+		vbo.put(s);
+		vbo.put(t);
+		vbo.put(normal.vector, 0, 3);
+		vbo.put(vertex.vector, 0, 3);
+	}
+
+	/**
+	 * Smoothed normal of vertex (x, y) from its direct neighbours, or baseVector on the border or without smoothing.
+	 */
+	private Vector3 getSmoothedNormal(HeightField field, int x, int y, Vector3 baseVector, float maxHeight)
+	{
+		float[] map = field.data;
+		int stride = field.stride;
+		int tileSize = rs.quadSize;
+		maxHeight *= 4f;
+		if (!rs.smoothNormals || (x < 1) || (x >= field.width - 1) || (y < 1) || (y >= field.length - 1))
+			return baseVector;
+		if (rs.fastNormals)
+		{
+			//Triangle of the vertex and its upper and left neighbours
+			Vector3 v1 = new Vector3(0, map[y * stride + x] * maxHeight, 0);
+			Vector3 v2 = new Vector3(0, map[(y - 1) * stride + x] * maxHeight, -tileSize);
+			Vector3 v3 = new Vector3(-tileSize, map[y * stride + x - 1] * maxHeight, 0);
+			return Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3)).normalize();
+		}
+		//The 4 triangles around the vertex
+		Vector3 vN1, vN2, vN3, vN4, v1, v2, v3;
+		v1 = new Vector3(0, map[y * stride + x] * maxHeight, 0);
+		v2 = new Vector3(0, map[(y + 1) * stride + x] * maxHeight, tileSize);
+		v3 = new Vector3(tileSize, map[y * stride + x + 1] * maxHeight, 0);
+		vN1 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3));
+		v2 = new Vector3(0, map[(y - 1) * stride + x] * maxHeight, -tileSize);
+		vN2 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v3), Vector3Math.subVectors(v3, v2));
+		v3 = new Vector3(-tileSize, map[y * stride + x - 1] * maxHeight, 0);
+		vN3 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v2), Vector3Math.subVectors(v2, v3));
+		v2 = new Vector3(0, map[(y + 1) * stride + x] * maxHeight, tileSize);
+		vN4 = Vector3Math.crossProduct(Vector3Math.subVectors(v1, v3), Vector3Math.subVectors(v3, v2));
+		return Vector3Math.addVectors(Vector3Math.addVectors(Vector3Math.addVectors(vN1, vN2), vN3), vN4).normalize();
+	}
+}